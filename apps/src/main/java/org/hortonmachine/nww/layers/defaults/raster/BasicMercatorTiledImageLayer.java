@@ -8,6 +8,7 @@ package org.hortonmachine.nww.layers.defaults.raster;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,7 +18,11 @@ import java.nio.ByteBuffer;
 
 import javax.imageio.ImageIO;
 
+import org.hortonmachine.nww.utils.cache.CacheUtils;
+import org.hortonmachine.nww.utils.cache.TileCache;
+
 import com.jogamp.opengl.util.texture.TextureData;
+import com.jogamp.opengl.util.texture.awt.AWTTextureIO;
 
 import gov.nasa.worldwind.Configuration;
 import gov.nasa.worldwind.WorldWind;
@@ -49,6 +54,8 @@ import gov.nasa.worldwind.util.WWIO;
  */
 public class BasicMercatorTiledImageLayer extends MercatorTiledImageLayer {
     private final Object fileLock = new Object();
+    private ITileImageProvider tileImageProvider;
+    private String tileCacheSource;
 
     public BasicMercatorTiledImageLayer( LevelSet levelSet ) {
         super(levelSet);
@@ -66,7 +73,39 @@ public class BasicMercatorTiledImageLayer extends MercatorTiledImageLayer {
         this.setValue(AVKey.CONSTRUCTION_PARAMETERS, params);
     }
 
+    /**
+     * Create the tiles through a provider instead of downloading them from the tile urls.
+     * 
+     * <p>The created tiles are kept in the {@link TileCache} under the cache name of the layer
+     * and are created again when the timestamp of the source changes.</p>
+     * 
+     * @param tileImageProvider the provider of the tile images.
+     * @param sourceTimestamp the timestamp of the data of the provider, for example the last
+     *          modification of its file.
+     */
+    public void setTileImageProvider( ITileImageProvider tileImageProvider, long sourceTimestamp ) {
+        this.tileImageProvider = tileImageProvider;
+        this.tileCacheSource = this.getLevels().getFirstLevel().getCacheName();
+        try {
+            CacheUtils.getTileCache().validateSource(tileCacheSource, sourceTimestamp);
+        } catch (Exception e) {
+            Logging.logger().log(java.util.logging.Level.SEVERE, "Unable to check the tile cache of " + tileCacheSource, e);
+        }
+    }
+
     protected void forceTextureLoad( MercatorTextureTile tile ) {
+        if (this.tileImageProvider != null) {
+            try {
+                byte[] tileBytes = CacheUtils.getTileCache().getTile(this.tileCacheSource, tile.getPath());
+                if (tileBytes != null) {
+                    this.loadTexture(tile, ImageIO.read(new ByteArrayInputStream(tileBytes)));
+                }
+            } catch (Exception e) {
+                Logging.logger().log(java.util.logging.Level.SEVERE, "Unable to read the cached tile " + tile.getPath(), e);
+            }
+            return;
+        }
+
         final URL textureURL = this.getDataFileStore().findFile(tile.getPath(), true);
 
         if (textureURL != null && !this.isTextureExpired(tile, textureURL)) {
@@ -95,6 +134,16 @@ public class BasicMercatorTiledImageLayer extends MercatorTiledImageLayer {
         public void run() {
             // TODO: check to ensure load is still needed
 
+            if (this.layer.tileImageProvider != null) {
+                if (this.layer.loadProvidedTexture(this.tile)) {
+                    layer.getLevels().unmarkResourceAbsent(tile);
+                    this.layer.firePropertyChange(AVKey.LAYER, null, this);
+                } else {
+                    layer.getLevels().markResourceAbsent(tile);
+                }
+                return;
+            }
+
             final java.net.URL textureURL = this.layer.getDataFileStore().findFile(tile.getPath(), false);
             if (textureURL != null && !this.layer.isTextureExpired(tile, textureURL)) {
                 if (this.layer.loadTexture(tile, textureURL)) {
@@ -180,6 +229,50 @@ public class BasicMercatorTiledImageLayer extends MercatorTiledImageLayer {
         return true;
     }
 
+    /**
+     * Load a tile from the tile cache, creating it through the provider if it is not cached.
+     */
+    private boolean loadProvidedTexture( MercatorTextureTile tile ) {
+        try {
+            TileCache tileCache = CacheUtils.getTileCache();
+            byte[] tileBytes = tileCache.getTile(this.tileCacheSource, tile.getPath());
+            BufferedImage image;
+            if (tileBytes != null) {
+                image = ImageIO.read(new ByteArrayInputStream(tileBytes));
+            } else {
+                image = this.tileImageProvider.getTileImage(tile);
+                if (image == null) {
+                    return false;
+                }
+                image = this.modifyImage(image);
+                if (!this.isTileValid(image)) {
+                    return false;
+                }
+                image = this.transform(image, tile.getMercatorSector());
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ImageIO.write(image, "png", out);
+                tileCache.putTile(this.tileCacheSource, tile.getPath(), out.toByteArray());
+            }
+            return this.loadTexture(tile, image);
+        } catch (Exception e) {
+            Logging.logger().log(java.util.logging.Level.SEVERE, "Unable to create the tile " + tile.getPath(), e);
+            return false;
+        }
+    }
+
+    private boolean loadTexture( MercatorTextureTile tile, BufferedImage image ) {
+        if (image == null)
+            return false;
+
+        TextureData textureData = AWTTextureIO.newTextureData(Configuration.getMaxCompatibleGLProfile(), image,
+                this.isUseMipMaps());
+        tile.setTextureData(textureData);
+        if (tile.getLevelNumber() != 0 || !this.isRetainLevelZeroTiles())
+            this.addTileToCache(tile);
+
+        return true;
+    }
+
     private static TextureData readTexture( java.net.URL url, boolean useMipMaps ) {
         try {
             return OGLUtil.newTextureData(Configuration.getMaxCompatibleGLProfile(), url, useMipMaps);
@@ -18,26 +18,14 @@
 package org.hortonmachine.nww.layers.defaults.raster;
 
 import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.Rectangle;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URL;
-
-import javax.imageio.ImageIO;
 
 import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridFormatFinder;
-import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.GridReaderLayer;
 import org.geotools.map.MapContent;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
-import org.geotools.renderer.GTRenderer;
-import org.geotools.renderer.lite.StreamingRenderer;
 import org.geotools.styling.RasterSymbolizer;
 import org.geotools.styling.SLD;
 import org.geotools.styling.Style;
@@ -46,10 +34,7 @@ import org.hortonmachine.gears.io.vectorreader.OmsVectorReader;
 import org.hortonmachine.gears.utils.CrsUtilities;
 import org.hortonmachine.gears.utils.SldUtilities;
 import org.hortonmachine.gears.utils.files.FileUtilities;
-import org.hortonmachine.gears.utils.images.ImageUtilities;
 import org.hortonmachine.nww.layers.defaults.NwwLayer;
-import org.hortonmachine.nww.utils.NwwUtilities;
-import org.hortonmachine.nww.utils.cache.CacheUtils;
 
 import org.locationtech.jts.geom.Coordinate;
 
@@ -58,11 +43,8 @@ import gov.nasa.worldwind.avlist.AVList;
 import gov.nasa.worldwind.avlist.AVListImpl;
 import gov.nasa.worldwind.geom.Angle;
 import gov.nasa.worldwind.geom.LatLon;
-import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.layers.mercator.MercatorSector;
 import gov.nasa.worldwind.util.LevelSet;
-import gov.nasa.worldwind.util.Tile;
-import gov.nasa.worldwind.util.TileUrlBuilder;
 
 /**
  * Procedural layer for geotools imagemosaic files
@@ -78,9 +60,18 @@ public class GridCoverageNwwLayer extends BasicMercatorTiledImageLayer implement
     private Coordinate centerCoordinate;
 
     public GridCoverageNwwLayer( File gridCoverageFile, Integer tileSize, Color colorToMakeTransparent ) throws Exception {
-        super(makeLevels(gridCoverageFile, getRenderer(gridCoverageFile), tileSize, colorToMakeTransparent));
+        super(makeLevels(gridCoverageFile, tileSize));
         this.layerName = FileUtilities.getNameWithoutExtention(gridCoverageFile);
 
+        MapContentTileImageProvider tileImageProvider = new MapContentTileImageProvider(getMapContent(gridCoverageFile), false);
+        tileImageProvider.setColorToMakeTransparent(colorToMakeTransparent);
+        long timestamp = gridCoverageFile.lastModified();
+        File styleFile = SldUtilities.getStyleFile(gridCoverageFile);
+        if (styleFile != null) {
+            timestamp = Math.max(timestamp, styleFile.lastModified());
+        }
+        setTileImageProvider(tileImageProvider, timestamp);
+
         // ReferencedEnvelope envelope =
         // OmsVectorReader.readEnvelope(gridCoverageFile.getAbsolutePath());
         // ReferencedEnvelope envelopeLL = envelope.transform(DefaultGeographicCRS.WGS84, true);
@@ -99,7 +90,7 @@ public class GridCoverageNwwLayer extends BasicMercatorTiledImageLayer implement
 
     }
 
-    private static GTRenderer getRenderer( File rasterFile ) {
+    private static MapContent getMapContent( File rasterFile ) {
 
         AbstractGridFormat format = GridFormatFinder.findFormat(rasterFile);
         AbstractGridCoverage2DReader coverageReader = format.getReader(rasterFile);
@@ -119,12 +110,10 @@ public class GridCoverageNwwLayer extends BasicMercatorTiledImageLayer implement
         } catch (Exception e) {
             e.printStackTrace();
         }
-        GTRenderer renderer = new StreamingRenderer();
-        renderer.setMapContent(mapContent);
-        return renderer;
+        return mapContent;
     }
 
-    private static LevelSet makeLevels( File imsf, GTRenderer renderer, Integer tileSize, Color colorToMakeTransparent ) throws MalformedURLException {
+    private static LevelSet makeLevels( File imsf, Integer tileSize ) throws MalformedURLException {
         AVList params = new AVListImpl();
         if (tileSize == null || tileSize < 256) {
             tileSize = TILESIZE;
@@ -149,57 +138,6 @@ public class GridCoverageNwwLayer extends BasicMercatorTiledImageLayer implement
         params.setValue(AVKey.NUM_EMPTY_LEVELS, 0);
         params.setValue(AVKey.LEVEL_ZERO_TILE_DELTA, new LatLon(Angle.fromDegrees(22.5d), Angle.fromDegrees(45d)));
         params.setValue(AVKey.SECTOR, new MercatorSector(-1.0, 1.0, Angle.NEG180, Angle.POS180));
-        File cacheRoot = CacheUtils.getCacheRoot();
-        final File cacheFolder = new File(cacheRoot, cacheRelativePath);
-        if (!cacheFolder.exists()) {
-            cacheFolder.mkdirs();
-        }
-
-        params.setValue(AVKey.TILE_URL_BUILDER, new TileUrlBuilder(){
-
-            public URL getURL( Tile tile, String altImageFormat ) throws MalformedURLException {
-                int zoom = tile.getLevelNumber() + 3;
-                Sector sector = tile.getSector();
-                double north = sector.getMaxLatitude().degrees;
-                double south = sector.getMinLatitude().degrees;
-                double east = sector.getMaxLongitude().degrees;
-                double west = sector.getMinLongitude().degrees;
-                double centerX = west + (east - west) / 2.0;
-                double centerY = south + (north - south) / 2.0;
-                int[] tileNumber = NwwUtilities.getTileNumber(centerY, centerX, zoom);
-                int x = tileNumber[0];
-                int y = tileNumber[1];
-
-                Rectangle imageBounds = new Rectangle(0, 0, finalTileSize, finalTileSize);
-                BufferedImage image = new BufferedImage(imageBounds.width, imageBounds.height, BufferedImage.TYPE_INT_RGB);
-                Graphics2D gr = image.createGraphics();
-                gr.setPaint(Color.WHITE);
-                gr.fill(imageBounds);
-                gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-                try {
-                    synchronized (renderer) {
-                        renderer.paint(gr, imageBounds,
-                                new ReferencedEnvelope(west, east, south, north, DefaultGeographicCRS.WGS84));
-                        File tileImageFolderFile = new File(cacheFolder, zoom + File.separator + x);
-                        if (!tileImageFolderFile.exists()) {
-                            tileImageFolderFile.mkdirs();
-                        }
-                        File imgFile = new File(tileImageFolderFile, y + ".png");
-                        if (!imgFile.exists()) {
-                            if (colorToMakeTransparent != null) {
-                                image = ImageUtilities.makeColorTransparent(image, colorToMakeTransparent);
-                            }
-                            ImageIO.write(image, "png", imgFile);
-                        }
-                        return imgFile.toURI().toURL();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            }
-        });
 
         return new LevelSet(params);
     }
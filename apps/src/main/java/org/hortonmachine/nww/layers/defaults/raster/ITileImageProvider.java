@@ -0,0 +1,44 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.nww.layers.defaults.raster;
+
+import java.awt.image.BufferedImage;
+
+import gov.nasa.worldwind.util.Tile;
+
+/**
+ * A source of the images of the tiles of a {@link BasicMercatorTiledImageLayer}, for the layers that
+ * create their tiles instead of downloading them.
+ * 
+ * <p>The images are cached by the layer, so they are requested only once. The provider is called by
+ * many threads at once.</p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public interface ITileImageProvider {
+
+    /**
+     * Create the image of a tile.
+     * 
+     * @param tile the tile, covering its sector in lat/long.
+     * @return the image or <code>null</code> if the tile has no data.
+     * @throws Exception
+     */
+    BufferedImage getTileImage( Tile tile ) throws Exception;
+
+}
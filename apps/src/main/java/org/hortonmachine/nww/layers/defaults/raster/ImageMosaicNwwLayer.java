@@ -17,17 +17,8 @@
  */
 package org.hortonmachine.nww.layers.defaults.raster;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.Rectangle;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URL;
-
-import javax.imageio.ImageIO;
 
 import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
@@ -38,20 +29,14 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.GridReaderLayer;
 import org.geotools.map.MapContent;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
-import org.geotools.renderer.GTRenderer;
-import org.geotools.renderer.lite.StreamingRenderer;
 import org.geotools.styling.RasterSymbolizer;
 import org.geotools.styling.SLD;
 import org.geotools.styling.Style;
 import org.hortonmachine.gears.io.vectorreader.OmsVectorReader;
 import org.hortonmachine.gears.utils.CrsUtilities;
 import org.hortonmachine.gears.utils.SldUtilities;
-import org.hortonmachine.gears.utils.colors.ColorUtilities;
 import org.hortonmachine.gears.utils.files.FileUtilities;
-import org.hortonmachine.gears.utils.images.ImageUtilities;
 import org.hortonmachine.nww.layers.defaults.NwwLayer;
-import org.hortonmachine.nww.utils.NwwUtilities;
-import org.hortonmachine.nww.utils.cache.CacheUtils;
 import org.opengis.parameter.GeneralParameterValue;
 import org.opengis.parameter.ParameterValue;
 
@@ -62,11 +47,8 @@ import gov.nasa.worldwind.avlist.AVList;
 import gov.nasa.worldwind.avlist.AVListImpl;
 import gov.nasa.worldwind.geom.Angle;
 import gov.nasa.worldwind.geom.LatLon;
-import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.layers.mercator.MercatorSector;
 import gov.nasa.worldwind.util.LevelSet;
-import gov.nasa.worldwind.util.Tile;
-import gov.nasa.worldwind.util.TileUrlBuilder;
 
 /**
  * Procedural layer for geotools imagemosaic files
@@ -83,9 +65,14 @@ public class ImageMosaicNwwLayer extends BasicMercatorTiledImageLayer implements
 
     public ImageMosaicNwwLayer( File imageMosaicShpFile, Integer tileSize, GeneralParameterValue[] gp,
             boolean removeSameColorImages ) throws Exception {
-        super(makeLevels(imageMosaicShpFile, getRenderer(imageMosaicShpFile, gp), tileSize, removeSameColorImages));
+        super(makeLevels(imageMosaicShpFile, tileSize));
         this.layerName = FileUtilities.getNameWithoutExtention(imageMosaicShpFile);
 
+        MapContentTileImageProvider tileImageProvider = new MapContentTileImageProvider(getMapContent(imageMosaicShpFile, gp),
+                true);
+        tileImageProvider.setRemoveSameColorImages(removeSameColorImages);
+        setTileImageProvider(tileImageProvider, imageMosaicShpFile.lastModified());
+
         ReferencedEnvelope envelope = OmsVectorReader.readEnvelope(imageMosaicShpFile.getAbsolutePath());
         ReferencedEnvelope envelopeLL = envelope.transform(DefaultGeographicCRS.WGS84, true);
 
@@ -103,13 +90,12 @@ public class ImageMosaicNwwLayer extends BasicMercatorTiledImageLayer implements
 
     }
 
-    private static GTRenderer getRenderer( File imsf, GeneralParameterValue[] gp ) {
+    private static MapContent getMapContent( File imsf, GeneralParameterValue[] gp ) {
 
-        GTRenderer renderer = null;
+        MapContent mapContent = new MapContent();
         try {
             ImageMosaicReader coverageTilesReader = new ImageMosaicReader(imsf);
 
-            MapContent mapContent = new MapContent();
             RasterSymbolizer sym = SldUtilities.sf.getDefaultRasterSymbolizer();
             Style style = SLD.wrapSymbolizers(sym);
 
@@ -121,29 +107,19 @@ public class ImageMosaicNwwLayer extends BasicMercatorTiledImageLayer implements
             }
             mapContent.addLayer(layer);
             mapContent.getViewport().setCoordinateReferenceSystem(CrsUtilities.WGS84);
-            renderer = new StreamingRenderer();
-            renderer.setMapContent(mapContent);
         } catch (Exception e) {
             e.printStackTrace();
         }
-        return renderer;
+        return mapContent;
     }
 
-    private static LevelSet makeLevels( File imsf, GTRenderer renderer, Integer tileSize, boolean removeSameColorImages )
-            throws MalformedURLException {
+    private static LevelSet makeLevels( File imsf, Integer tileSize ) throws MalformedURLException {
         AVList params = new AVListImpl();
         if (tileSize == null || tileSize < 256) {
             tileSize = TILESIZE;
         }
 
         int finalTileSize = tileSize;
-        Rectangle imageBounds = new Rectangle(0, 0, finalTileSize, finalTileSize);
-        BufferedImage transparentImage = new BufferedImage(imageBounds.width, imageBounds.height, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D gr = transparentImage.createGraphics();
-        gr.setPaint(ColorUtilities.makeTransparent(Color.WHITE, 0));
-        gr.fill(imageBounds);
-        gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        gr.dispose();
 
         String tilesPart = "-tiles";
         String cacheRelativePath = "imagemosaics/" + imsf.getName() + tilesPart;
@@ -162,70 +138,6 @@ public class ImageMosaicNwwLayer extends BasicMercatorTiledImageLayer implements
         params.setValue(AVKey.NUM_EMPTY_LEVELS, 0);
         params.setValue(AVKey.LEVEL_ZERO_TILE_DELTA, new LatLon(Angle.fromDegrees(22.5d), Angle.fromDegrees(45d)));
         params.setValue(AVKey.SECTOR, new MercatorSector(-1.0, 1.0, Angle.NEG180, Angle.POS180));
-        File cacheRoot = CacheUtils.getCacheRoot();
-        final File cacheFolder = new File(cacheRoot, cacheRelativePath);
-        if (!cacheFolder.exists()) {
-            cacheFolder.mkdirs();
-        }
-
-        params.setValue(AVKey.TILE_URL_BUILDER, new TileUrlBuilder(){
-
-            public URL getURL( Tile tile, String altImageFormat ) throws MalformedURLException {
-                int zoom = tile.getLevelNumber() + 3;
-                Sector sector = tile.getSector();
-                double north = sector.getMaxLatitude().degrees;
-                double south = sector.getMinLatitude().degrees;
-                double east = sector.getMaxLongitude().degrees;
-                double west = sector.getMinLongitude().degrees;
-                double centerX = west + (east - west) / 2.0;
-                double centerY = south + (north - south) / 2.0;
-                int[] tileNumber = NwwUtilities.getTileNumber(centerY, centerX, zoom);
-                int x = tileNumber[0];
-                int y = tileNumber[1];
-
-                File tileImageFolderFile = new File(cacheFolder, zoom + File.separator + x);
-                if (!tileImageFolderFile.exists()) {
-                    tileImageFolderFile.mkdirs();
-                }
-                File imgFile = new File(tileImageFolderFile, y + ".png");
-                if (imgFile.exists()) {
-                    return imgFile.toURI().toURL();
-                }
-
-                Rectangle imageBounds = new Rectangle(0, 0, finalTileSize, finalTileSize);
-                BufferedImage image = new BufferedImage(imageBounds.width, imageBounds.height, BufferedImage.TYPE_INT_ARGB);
-                Graphics2D gr = image.createGraphics();
-                gr.setPaint(ColorUtilities.makeTransparent(Color.WHITE, 0));
-                gr.fill(imageBounds);
-                gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-                try {
-                    synchronized (renderer) {
-                        ReferencedEnvelope referencedEnvelope = new ReferencedEnvelope(west, east, south, north,
-                                DefaultGeographicCRS.WGS84);
-                        renderer.paint(gr, imageBounds, referencedEnvelope);
-                        gr.dispose();
-                        if (removeSameColorImages && ImageUtilities.isAllOneColor(image)) {
-                            image = transparentImage;
-                        }
-                        // image = ImageUtilities.makeColorTransparent(image, Color.white);
-                        // File tileImageFolderFile = new File(cacheFolder, zoom + File.separator +
-                        // x);
-                        // if (!tileImageFolderFile.exists()) {
-                        // tileImageFolderFile.mkdirs();
-                        // }
-                        // File imgFile = new File(tileImageFolderFile, y + ".png");
-                        if (!imgFile.exists()) {
-                            ImageIO.write(image, "png", imgFile);
-                        }
-                        return imgFile.toURI().toURL();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            }
-        });
 
         return new LevelSet(params);
     }
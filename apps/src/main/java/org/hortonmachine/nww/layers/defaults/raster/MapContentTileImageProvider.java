@@ -0,0 +1,149 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.nww.layers.defaults.raster;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.MapContent;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.renderer.GTRenderer;
+import org.geotools.renderer.lite.StreamingRenderer;
+import org.hortonmachine.gears.utils.images.ImageUtilities;
+
+import gov.nasa.worldwind.geom.Sector;
+import gov.nasa.worldwind.util.Tile;
+
+/**
+ * A {@link ITileImageProvider} that paints the tiles from a {@link MapContent}.
+ * 
+ * <p>The {@link StreamingRenderer} can paint only one image at a time, so a pool of renderers
+ * on the same map content is kept and each tile is painted by the first free one.</p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class MapContentTileImageProvider implements ITileImageProvider {
+
+    private final BlockingQueue<GTRenderer> renderers;
+    private final boolean transparentBackground;
+    private Color colorToMakeTransparent;
+    private boolean removeSameColorImages = false;
+
+    /**
+     * Create a provider with a renderer per processor, up to four.
+     * 
+     * @param mapContent the map to paint, in lat/long.
+     * @param transparentBackground if <code>true</code>, the tiles have a transparent background,
+     *          else a white one.
+     */
+    public MapContentTileImageProvider( MapContent mapContent, boolean transparentBackground ) {
+        this(mapContent, transparentBackground, getDefaultRenderersNum());
+    }
+
+    /**
+     * Create a provider.
+     * 
+     * @param mapContent the map to paint, in lat/long.
+     * @param transparentBackground if <code>true</code>, the tiles have a transparent background,
+     *          else a white one.
+     * @param renderersNum the number of tiles that can be painted at the same time.
+     */
+    public MapContentTileImageProvider( MapContent mapContent, boolean transparentBackground, int renderersNum ) {
+        this.transparentBackground = transparentBackground;
+        renderersNum = Math.max(1, renderersNum);
+        renderers = new ArrayBlockingQueue<>(renderersNum);
+        for( int i = 0; i < renderersNum; i++ ) {
+            GTRenderer renderer = new StreamingRenderer();
+            renderer.setMapContent(mapContent);
+            renderers.add(renderer);
+        }
+    }
+
+    /**
+     * @return the default size of the renderers pool.
+     */
+    public static int getDefaultRenderersNum() {
+        return Math.min(4, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param colorToMakeTransparent a color of the painted tiles to make transparent.
+     */
+    public void setColorToMakeTransparent( Color colorToMakeTransparent ) {
+        this.colorToMakeTransparent = colorToMakeTransparent;
+    }
+
+    /**
+     * @param removeSameColorImages if <code>true</code>, the tiles painted with a single color
+     *          are replaced by transparent ones.
+     */
+    public void setRemoveSameColorImages( boolean removeSameColorImages ) {
+        this.removeSameColorImages = removeSameColorImages;
+    }
+
+    @Override
+    public BufferedImage getTileImage( Tile tile ) throws Exception {
+        Sector sector = tile.getSector();
+        double north = sector.getMaxLatitude().degrees;
+        double south = sector.getMinLatitude().degrees;
+        double east = sector.getMaxLongitude().degrees;
+        double west = sector.getMinLongitude().degrees;
+
+        Rectangle imageBounds = new Rectangle(0, 0, tile.getWidth(), tile.getHeight());
+        int imgType;
+        Color backgroundColor;
+        if (transparentBackground) {
+            imgType = BufferedImage.TYPE_INT_ARGB;
+            backgroundColor = new Color(Color.WHITE.getRed(), Color.WHITE.getGreen(), Color.WHITE.getBlue(), 0);
+        } else {
+            imgType = BufferedImage.TYPE_INT_RGB;
+            backgroundColor = Color.WHITE;
+        }
+        BufferedImage image = new BufferedImage(imageBounds.width, imageBounds.height, imgType);
+        Graphics2D gr = image.createGraphics();
+        try {
+            gr.setPaint(backgroundColor);
+            gr.fill(imageBounds);
+            gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+            GTRenderer renderer = renderers.take();
+            try {
+                renderer.paint(gr, imageBounds, new ReferencedEnvelope(west, east, south, north, DefaultGeographicCRS.WGS84));
+            } finally {
+                renderers.add(renderer);
+            }
+        } finally {
+            gr.dispose();
+        }
+
+        if (removeSameColorImages && ImageUtilities.isAllOneColor(image)) {
+            return new BufferedImage(imageBounds.width, imageBounds.height, BufferedImage.TYPE_INT_ARGB);
+        }
+        if (colorToMakeTransparent != null) {
+            image = ImageUtilities.makeColorTransparent(image, colorToMakeTransparent);
+        }
+        return image;
+    }
+
+}
@@ -17,25 +17,12 @@
  */
 package org.hortonmachine.nww.layers.defaults.spatialite;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.Rectangle;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URL;
-
-import javax.imageio.ImageIO;
 
 import org.geotools.feature.DefaultFeatureCollection;
-import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.FeatureLayer;
 import org.geotools.map.MapContent;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
-import org.geotools.renderer.GTRenderer;
-import org.geotools.renderer.lite.StreamingRenderer;
 import org.geotools.styling.SLD;
 import org.geotools.styling.Style;
 import org.hortonmachine.dbs.compat.ASpatialDb;
@@ -45,8 +32,8 @@ import org.hortonmachine.gears.utils.CrsUtilities;
 import org.hortonmachine.gears.utils.SldUtilities;
 import org.hortonmachine.nww.layers.defaults.NwwLayer;
 import org.hortonmachine.nww.layers.defaults.raster.BasicMercatorTiledImageLayer;
+import org.hortonmachine.nww.layers.defaults.raster.MapContentTileImageProvider;
 import org.hortonmachine.nww.utils.NwwUtilities;
-import org.hortonmachine.nww.utils.cache.CacheUtils;
 
 import org.locationtech.jts.geom.Coordinate;
 
@@ -55,11 +42,8 @@ import gov.nasa.worldwind.avlist.AVList;
 import gov.nasa.worldwind.avlist.AVListImpl;
 import gov.nasa.worldwind.geom.Angle;
 import gov.nasa.worldwind.geom.LatLon;
-import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.layers.mercator.MercatorSector;
 import gov.nasa.worldwind.util.LevelSet;
-import gov.nasa.worldwind.util.Tile;
-import gov.nasa.worldwind.util.TileUrlBuilder;
 
 /**
  * Procedural layer for spatialite tables folder.
@@ -76,10 +60,14 @@ public class RasterizedSpatialiteLayer extends BasicMercatorTiledImageLayer impl
 
     public RasterizedSpatialiteLayer( String title, ASpatialDb db, String tableName, int featureLimit, Style style,
             Integer tileSize, boolean transparentBackground ) throws Exception {
-        super(makeLevels(title, getRenderer(db, tableName, featureLimit, style), tileSize, transparentBackground));
+        super(makeLevels(title, tileSize));
         this.layerName = title;
         this.setUseTransparentTextures(true);
 
+        long timestamp = new File(db.getDatabasePath()).lastModified();
+        setTileImageProvider(new MapContentTileImageProvider(getMapContent(db, tableName, featureLimit, style), transparentBackground),
+                timestamp);
+
         try {
             centre = db.getTableBounds(SqlName.m(tableName)).centre();
         } catch (Exception e) {
@@ -88,7 +76,7 @@ public class RasterizedSpatialiteLayer extends BasicMercatorTiledImageLayer impl
         }
     }
 
-    private static GTRenderer getRenderer( ASpatialDb db, String tableName, int featureLimit, Style style ) {
+    private static MapContent getMapContent( ASpatialDb db, String tableName, int featureLimit, Style style ) {
         MapContent mapContent = new MapContent();
 
         // read data and convert it to featurecollection
@@ -122,13 +110,10 @@ public class RasterizedSpatialiteLayer extends BasicMercatorTiledImageLayer impl
         } catch (Exception e) {
             e.printStackTrace();
         }
-        GTRenderer renderer = new StreamingRenderer();
-        renderer.setMapContent(mapContent);
-        return renderer;
+        return mapContent;
     }
 
-    private static LevelSet makeLevels( String title, GTRenderer renderer, Integer tileSize, boolean transparentBackground )
-            throws MalformedURLException {
+    private static LevelSet makeLevels( String title, Integer tileSize ) throws MalformedURLException {
         AVList params = new AVListImpl();
 
         if (tileSize == null || tileSize < 256) {
@@ -151,64 +136,6 @@ public class RasterizedSpatialiteLayer extends BasicMercatorTiledImageLayer impl
         params.setValue(AVKey.LEVEL_ZERO_TILE_DELTA, new LatLon(Angle.fromDegrees(22.5d), Angle.fromDegrees(45d)));
         params.setValue(AVKey.SECTOR, new MercatorSector(-1.0, 1.0, Angle.NEG180, Angle.POS180));
 
-        File cacheRoot = CacheUtils.getCacheRoot();
-        final File cacheFolder = new File(cacheRoot, cacheRelativePath);
-        if (!cacheFolder.exists()) {
-            cacheFolder.mkdirs();
-        }
-        params.setValue(AVKey.TILE_URL_BUILDER, new TileUrlBuilder(){
-
-            public URL getURL( Tile tile, String altImageFormat ) throws MalformedURLException {
-                int zoom = tile.getLevelNumber() + 3;
-                Sector sector = tile.getSector();
-                double north = sector.getMaxLatitude().degrees;
-                double south = sector.getMinLatitude().degrees;
-                double east = sector.getMaxLongitude().degrees;
-                double west = sector.getMinLongitude().degrees;
-                double centerX = west + (east - west) / 2.0;
-                double centerY = south + (north - south) / 2.0;
-                int[] tileNumber = NwwUtilities.getTileNumber(centerY, centerX, zoom);
-                int x = tileNumber[0];
-                int y = tileNumber[1];
-
-                Rectangle imageBounds = new Rectangle(0, 0, finalTileSize, finalTileSize);
-
-                int imgType;
-                Color backgroundColor;
-                if (transparentBackground) {
-                    imgType = BufferedImage.TYPE_INT_ARGB;
-                    backgroundColor = new Color(Color.WHITE.getRed(), Color.WHITE.getGreen(), Color.WHITE.getBlue(), 0);
-                } else {
-                    imgType = BufferedImage.TYPE_INT_RGB;
-                    backgroundColor = Color.WHITE;
-                }
-                BufferedImage image = new BufferedImage(imageBounds.width, imageBounds.height, imgType);
-                Graphics2D gr = image.createGraphics();
-                gr.setPaint(backgroundColor);
-                gr.fill(imageBounds);
-                gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-                try {
-                    synchronized (renderer) {
-                        renderer.paint(gr, imageBounds,
-                                new ReferencedEnvelope(west, east, south, north, DefaultGeographicCRS.WGS84));
-                        File tileImageFolderFile = new File(cacheFolder, zoom + File.separator + x);
-                        if (!tileImageFolderFile.exists()) {
-                            tileImageFolderFile.mkdirs();
-                        }
-                        File imgFile = new File(tileImageFolderFile, y + ".png");
-                        if (!imgFile.exists()) {
-                            ImageIO.write(image, "png", imgFile);
-                        }
-                        return imgFile.toURI().toURL();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            }
-        });
-
         return new LevelSet(params);
     }
 
@@ -17,30 +17,15 @@
  */
 package org.hortonmachine.nww.layers.defaults.vector;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.Rectangle;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URL;
-
-import javax.imageio.ImageIO;
 
 import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.FeatureLayer;
 import org.geotools.map.MapContent;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
-import org.geotools.renderer.GTRenderer;
-import org.geotools.renderer.lite.StreamingRenderer;
 import org.geotools.styling.Style;
 import org.hortonmachine.nww.layers.defaults.NwwLayer;
 import org.hortonmachine.nww.layers.defaults.raster.BasicMercatorTiledImageLayer;
-import org.hortonmachine.nww.utils.NwwUtilities;
-import org.hortonmachine.nww.utils.cache.CacheUtils;
+import org.hortonmachine.nww.layers.defaults.raster.MapContentTileImageProvider;
 
 import org.locationtech.jts.geom.Coordinate;
 
@@ -49,11 +34,8 @@ import gov.nasa.worldwind.avlist.AVList;
 import gov.nasa.worldwind.avlist.AVListImpl;
 import gov.nasa.worldwind.geom.Angle;
 import gov.nasa.worldwind.geom.LatLon;
-import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.layers.mercator.MercatorSector;
 import gov.nasa.worldwind.util.LevelSet;
-import gov.nasa.worldwind.util.Tile;
-import gov.nasa.worldwind.util.TileUrlBuilder;
 
 /**
  * Procedural layer for shapefiles folder.
@@ -70,16 +52,20 @@ public class RasterizedFeatureCollectionLayer extends BasicMercatorTiledImageLay
 
     public RasterizedFeatureCollectionLayer( String title, SimpleFeatureCollection featureCollectionLL, Style style,
             Integer tileSize, boolean transparentBackground ) throws Exception {
-        super(makeLevels(title, getRenderer(featureCollectionLL, style), tileSize, transparentBackground));
+        super(makeLevels(title, tileSize));
         this.layerName = title;
         this.setUseTransparentTextures(true);
 
+        // the collection lives only in memory, so its tiles can't be reused
+        setTileImageProvider(new MapContentTileImageProvider(getMapContent(featureCollectionLL, style), transparentBackground),
+                System.currentTimeMillis());
+
         centre = featureCollectionLL.getBounds().centre();
         // geometryType = NwwUtilities.getGeometryType(featureCollectionLL);
 
     }
 
-    private static GTRenderer getRenderer( SimpleFeatureCollection featureCollectionLL, Style style ) {
+    private static MapContent getMapContent( SimpleFeatureCollection featureCollectionLL, Style style ) {
         MapContent mapContent = new MapContent();
         try {
             FeatureLayer layer = new FeatureLayer(featureCollectionLL, style);
@@ -87,13 +73,10 @@ public class RasterizedFeatureCollectionLayer extends BasicMercatorTiledImageLay
         } catch (Exception e) {
             e.printStackTrace();
         }
-        GTRenderer renderer = new StreamingRenderer();
-        renderer.setMapContent(mapContent);
-        return renderer;
+        return mapContent;
     }
 
-    private static LevelSet makeLevels( String title, GTRenderer renderer, Integer tileSize, boolean transparentBackground )
-            throws MalformedURLException {
+    private static LevelSet makeLevels( String title, Integer tileSize ) throws MalformedURLException {
         AVList params = new AVListImpl();
         if (tileSize == null || tileSize < 256) {
             tileSize = TILESIZE;
@@ -115,64 +98,6 @@ public class RasterizedFeatureCollectionLayer extends BasicMercatorTiledImageLay
         params.setValue(AVKey.LEVEL_ZERO_TILE_DELTA, new LatLon(Angle.fromDegrees(22.5d), Angle.fromDegrees(45d)));
         params.setValue(AVKey.SECTOR, new MercatorSector(-1.0, 1.0, Angle.NEG180, Angle.POS180));
 
-        File cacheRoot = CacheUtils.getCacheRoot();
-        final File cacheFolder = new File(cacheRoot, cacheRelativePath);
-        if (!cacheFolder.exists()) {
-            cacheFolder.mkdirs();
-        }
-        params.setValue(AVKey.TILE_URL_BUILDER, new TileUrlBuilder(){
-
-            public URL getURL( Tile tile, String altImageFormat ) throws MalformedURLException {
-                int zoom = tile.getLevelNumber() + 3;
-                Sector sector = tile.getSector();
-                double north = sector.getMaxLatitude().degrees;
-                double south = sector.getMinLatitude().degrees;
-                double east = sector.getMaxLongitude().degrees;
-                double west = sector.getMinLongitude().degrees;
-                double centerX = west + (east - west) / 2.0;
-                double centerY = south + (north - south) / 2.0;
-                int[] tileNumber = NwwUtilities.getTileNumber(centerY, centerX, zoom);
-                int x = tileNumber[0];
-                int y = tileNumber[1];
-
-                Rectangle imageBounds = new Rectangle(0, 0, finalTileSize, finalTileSize);
-
-                int imgType;
-                Color backgroundColor;
-                if (transparentBackground) {
-                    imgType = BufferedImage.TYPE_INT_ARGB;
-                    backgroundColor = new Color(Color.WHITE.getRed(), Color.WHITE.getGreen(), Color.WHITE.getBlue(), 0);
-                } else {
-                    imgType = BufferedImage.TYPE_INT_RGB;
-                    backgroundColor = Color.WHITE;
-                }
-                BufferedImage image = new BufferedImage(imageBounds.width, imageBounds.height, imgType);
-                Graphics2D gr = image.createGraphics();
-                gr.setPaint(backgroundColor);
-                gr.fill(imageBounds);
-                gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-                try {
-                    synchronized (renderer) {
-                        renderer.paint(gr, imageBounds,
-                                new ReferencedEnvelope(west, east, south, north, DefaultGeographicCRS.WGS84));
-                        File tileImageFolderFile = new File(cacheFolder, zoom + File.separator + x);
-                        if (!tileImageFolderFile.exists()) {
-                            tileImageFolderFile.mkdirs();
-                        }
-                        File imgFile = new File(tileImageFolderFile, y + ".png");
-                        if (!imgFile.exists()) {
-                            ImageIO.write(image, "png", imgFile);
-                        }
-                        return imgFile.toURI().toURL();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            }
-        });
-
         return new LevelSet(params);
     }
 
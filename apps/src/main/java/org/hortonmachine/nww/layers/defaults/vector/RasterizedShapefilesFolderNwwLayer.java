@@ -17,33 +17,21 @@
  */
 package org.hortonmachine.nww.layers.defaults.vector;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.Rectangle;
-import java.awt.RenderingHints;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FilenameFilter;
-import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URL;
-
-import javax.imageio.ImageIO;
 
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.FeatureLayer;
 import org.geotools.map.MapContent;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
-import org.geotools.renderer.GTRenderer;
-import org.geotools.renderer.lite.StreamingRenderer;
 import org.geotools.styling.SLD;
 import org.geotools.styling.Style;
 import org.hortonmachine.gears.utils.SldUtilities;
 import org.hortonmachine.nww.layers.defaults.NwwLayer;
 import org.hortonmachine.nww.layers.defaults.raster.BasicMercatorTiledImageLayer;
+import org.hortonmachine.nww.layers.defaults.raster.MapContentTileImageProvider;
 import org.hortonmachine.nww.utils.NwwUtilities;
-import org.hortonmachine.nww.utils.cache.CacheUtils;
 
 import org.locationtech.jts.geom.Coordinate;
 
@@ -52,11 +40,8 @@ import gov.nasa.worldwind.avlist.AVList;
 import gov.nasa.worldwind.avlist.AVListImpl;
 import gov.nasa.worldwind.geom.Angle;
 import gov.nasa.worldwind.geom.LatLon;
-import gov.nasa.worldwind.geom.Sector;
 import gov.nasa.worldwind.layers.mercator.MercatorSector;
 import gov.nasa.worldwind.util.LevelSet;
-import gov.nasa.worldwind.util.Tile;
-import gov.nasa.worldwind.util.TileUrlBuilder;
 
 /**
  * Procedural layer for shapefiles folder.
@@ -73,10 +58,20 @@ public class RasterizedShapefilesFolderNwwLayer extends BasicMercatorTiledImageL
 
     public RasterizedShapefilesFolderNwwLayer(String title, File shapeFilesfolder, Integer tileSize,
             boolean transparentBackground) throws Exception {
-        super(makeLevels(title, shapeFilesfolder, getRenderer(shapeFilesfolder), tileSize, transparentBackground));
+        super(makeLevels(title, shapeFilesfolder, tileSize));
         this.layerName = title != null ? title : shapeFilesfolder.getName();
         this.setUseTransparentTextures(true);
 
+        // the tiles are valid as long as no file of the folder changes
+        long timestamp = shapeFilesfolder.lastModified();
+        File[] folderFiles = shapeFilesfolder.listFiles();
+        if (folderFiles != null) {
+            for (File folderFile : folderFiles) {
+                timestamp = Math.max(timestamp, folderFile.lastModified());
+            }
+        }
+        setTileImageProvider(new MapContentTileImageProvider(getMapContent(shapeFilesfolder), transparentBackground), timestamp);
+
         // get bounds
         File[] shpFiles = shapeFilesfolder.listFiles(new FilenameFilter() {
             @Override
@@ -109,7 +104,7 @@ public class RasterizedShapefilesFolderNwwLayer extends BasicMercatorTiledImageL
         }
     }
 
-    private static GTRenderer getRenderer(File shapeFilesFolder) {
+    private static MapContent getMapContent(File shapeFilesFolder) {
         File[] shpFiles = shapeFilesFolder.listFiles(new FilenameFilter() {
             @Override
             public boolean accept(File dir, String name) {
@@ -141,13 +136,10 @@ public class RasterizedShapefilesFolderNwwLayer extends BasicMercatorTiledImageL
                 e.printStackTrace();
             }
         }
-        GTRenderer renderer = new StreamingRenderer();
-        renderer.setMapContent(mapContent);
-        return renderer;
+        return mapContent;
     }
 
-    private static LevelSet makeLevels(String title, File folderFile, GTRenderer renderer, Integer tileSize,
-            boolean transparentBackground) throws MalformedURLException {
+    private static LevelSet makeLevels(String title, File folderFile, Integer tileSize) throws MalformedURLException {
         AVList params = new AVListImpl();
 
         if (tileSize == null || tileSize < 256) {
@@ -172,64 +164,6 @@ public class RasterizedShapefilesFolderNwwLayer extends BasicMercatorTiledImageL
         params.setValue(AVKey.LEVEL_ZERO_TILE_DELTA, new LatLon(Angle.fromDegrees(22.5d), Angle.fromDegrees(45d)));
         params.setValue(AVKey.SECTOR, new MercatorSector(-1.0, 1.0, Angle.NEG180, Angle.POS180));
 
-        File cacheRoot = CacheUtils.getCacheRoot();
-        final File cacheFolder = new File(cacheRoot, cacheRelativePath);
-        if (!cacheFolder.exists()) {
-            cacheFolder.mkdirs();
-        }
-        params.setValue(AVKey.TILE_URL_BUILDER, new TileUrlBuilder() {
-
-            public URL getURL(Tile tile, String altImageFormat) throws MalformedURLException {
-                int zoom = tile.getLevelNumber() + 3;
-                Sector sector = tile.getSector();
-                double north = sector.getMaxLatitude().degrees;
-                double south = sector.getMinLatitude().degrees;
-                double east = sector.getMaxLongitude().degrees;
-                double west = sector.getMinLongitude().degrees;
-                double centerX = west + (east - west) / 2.0;
-                double centerY = south + (north - south) / 2.0;
-                int[] tileNumber = NwwUtilities.getTileNumber(centerY, centerX, zoom);
-                int x = tileNumber[0];
-                int y = tileNumber[1];
-
-                Rectangle imageBounds = new Rectangle(0, 0, finalTileSize, finalTileSize);
-
-                int imgType;
-                Color backgroundColor;
-                if (transparentBackground) {
-                    imgType = BufferedImage.TYPE_INT_ARGB;
-                    backgroundColor = new Color(Color.WHITE.getRed(), Color.WHITE.getGreen(), Color.WHITE.getBlue(), 0);
-                } else {
-                    imgType = BufferedImage.TYPE_INT_RGB;
-                    backgroundColor = Color.WHITE;
-                }
-                BufferedImage image = new BufferedImage(imageBounds.width, imageBounds.height, imgType);
-                Graphics2D gr = image.createGraphics();
-                gr.setPaint(backgroundColor);
-                gr.fill(imageBounds);
-                gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-                try {
-                    synchronized (renderer) {
-                        renderer.paint(gr, imageBounds,
-                                new ReferencedEnvelope(west, east, south, north, DefaultGeographicCRS.WGS84));
-                        File tileImageFolderFile = new File(cacheFolder, zoom + File.separator + x);
-                        if (!tileImageFolderFile.exists()) {
-                            tileImageFolderFile.mkdirs();
-                        }
-                        File imgFile = new File(tileImageFolderFile, y + ".png");
-                        if (!imgFile.exists()) {
-                            ImageIO.write(image, "png", imgFile);
-                        }
-                        return imgFile.toURI().toURL();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return null;
-                }
-            }
-        });
-
         return new LevelSet(params);
     }
 
@@ -37,8 +37,25 @@ import gov.nasa.worldwindx.hm.FileStoreDataSet;
  *
  */
 public class CacheUtils {
+    /**
+     * The name of the file of the rendered tiles cache in the cache root.
+     */
+    public static final String TILECACHE_NAME = "hm_tilecache.sqlite";
+
+    private static TileCache tileCache;
 
     public static void clearCacheBySourceName( String sourceName ) {
+        try {
+            TileCache cache = getTileCache();
+            for( Object[] sourceInfo : cache.getSourcesInfo() ) {
+                String cacheName = (String) sourceInfo[0];
+                if (cacheName.contains(sourceName)) {
+                    cache.removeSource(cacheName);
+                }
+            }
+        } catch (Exception e1) {
+            e1.printStackTrace();
+        }
         try {
             FileStore store = new BasicDataFileStore();
             File cacheRoot = store.getWriteLocation();
@@ -77,4 +94,25 @@ public class CacheUtils {
         return cacheRoot;
     }
 
+    /**
+     * Get the cache of the rendered tiles, shared by all the layers.
+     * 
+     * @return the tile cache, opened the first time it is requested.
+     * @throws Exception
+     */
+    public static synchronized TileCache getTileCache() throws Exception {
+        if (tileCache == null) {
+            File cacheFile = new File(getCacheRoot(), TILECACHE_NAME);
+            tileCache = new TileCache(cacheFile, TileCache.DEFAULT_MAX_BYTES);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    tileCache.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+        return tileCache;
+    }
+
 }
@@ -55,13 +55,27 @@ public class DataCacheViewer {
     protected JSpinner ageSpinner;
     protected JComboBox ageUnit;
     protected JLabel deleteSizeLabel;
+    protected JLabel tileCacheLabel;
+    protected JButton clearTileCacheBtn;
 
     public DataCacheViewer( File cacheRoot ) {
         this.panel = new JPanel(new BorderLayout(5, 5));
 
         JLabel rootLabel = new JLabel("Cache Root: " + cacheRoot.getPath());
         rootLabel.setBorder(new EmptyBorder(10, 15, 10, 10));
-        this.panel.add(rootLabel, BorderLayout.NORTH);
+
+        JPanel tileCachePanel = new JPanel(new BorderLayout(10, 10));
+        tileCachePanel.setBorder(new EmptyBorder(0, 15, 5, 10));
+        this.tileCacheLabel = new JLabel();
+        tileCachePanel.add(this.tileCacheLabel, BorderLayout.CENTER);
+        this.clearTileCacheBtn = new JButton("Clear tile cache");
+        tileCachePanel.add(this.clearTileCacheBtn, BorderLayout.EAST);
+        updateTileCacheStats();
+
+        JPanel northPanel = new JPanel(new BorderLayout());
+        northPanel.add(rootLabel, BorderLayout.NORTH);
+        northPanel.add(tileCachePanel, BorderLayout.SOUTH);
+        this.panel.add(northPanel, BorderLayout.NORTH);
 
         this.table = new CacheTable();
         this.table.setDataSets(cacheRoot.getPath(), FileStoreDataSet.getDataSets(cacheRoot));
@@ -148,6 +162,30 @@ public class DataCacheViewer {
             }
         });
 
+        this.clearTileCacheBtn.addActionListener(new ActionListener(){
+            public void actionPerformed( ActionEvent e ) {
+                try {
+                    CacheUtils.getTileCache().clear();
+                } catch (Exception e1) {
+                    e1.printStackTrace();
+                }
+                updateTileCacheStats();
+            }
+        });
+
+    }
+
+    /**
+     * Show the usage and the hit/miss statistics of the rendered tiles cache.
+     */
+    protected void updateTileCacheStats() {
+        try {
+            this.tileCacheLabel.setText(CacheUtils.getTileCache().getStatsDescription());
+            this.clearTileCacheBtn.setEnabled(true);
+        } catch (Exception e) {
+            this.tileCacheLabel.setText("Tile cache not available: " + e.getLocalizedMessage());
+            this.clearTileCacheBtn.setEnabled(false);
+        }
     }
 
     public JPanel getPanel() {
@@ -155,6 +193,7 @@ public class DataCacheViewer {
     }
 
     protected void update() {
+        updateTileCacheStats();
         java.util.List<FileStoreDataSet> dataSets = this.table.getSelectedDataSets();
         int age = Integer.parseInt(this.ageSpinner.getValue().toString());
 
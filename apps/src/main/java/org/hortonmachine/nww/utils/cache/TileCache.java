@@ -0,0 +1,444 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.nww.utils.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.hortonmachine.dbs.compat.ADb;
+import org.hortonmachine.dbs.compat.EDb;
+import org.hortonmachine.dbs.compat.IHMConnection;
+import org.hortonmachine.dbs.compat.IHMPreparedStatement;
+import org.hortonmachine.dbs.compat.IHMResultSet;
+
+/**
+ * A tile cache kept in a single sqlite file.
+ *
+ * <p>The tiles are kept by source (usually the cache name of a layer) and path, up to a
+ * maximum size in bytes. When the size is exceeded, the least recently used tiles are
+ * removed. Each source has the timestamp of the data it was rendered from and its tiles
+ * are removed when the timestamp changes.</p>
+ *
+ * <p>The tiles access is registered in memory and written with the next tile insertion,
+ * so that reading a tile doesn't write to the database.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TileCache implements AutoCloseable {
+    /**
+     * The default maximum size of the cache.
+     */
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024L * 1024L;
+
+    /**
+     * The fraction of the maximum size to which the cache is reduced by an eviction.
+     */
+    private static final double EVICTION_TARGET = 0.9;
+    private static final int MAX_PENDING_ACCESSES = 1000;
+
+    private static final String TABLE_TILES = "tiles";
+    private static final String TABLE_SOURCES = "sources";
+
+    private static final String CREATE_TILES = "CREATE TABLE IF NOT EXISTS " + TABLE_TILES
+            + " (source TEXT NOT NULL, path TEXT NOT NULL, data BLOB, size INTEGER, accessed INTEGER,"
+            + " PRIMARY KEY (source, path))";
+    private static final String INDEX_TILES = "CREATE INDEX IF NOT EXISTS tiles_accessed_idx ON " + TABLE_TILES
+            + " (accessed)";
+    private static final String CREATE_SOURCES = "CREATE TABLE IF NOT EXISTS " + TABLE_SOURCES
+            + " (source TEXT PRIMARY KEY, timestamp INTEGER)";
+
+    private static final String SELECT_TILE = "SELECT data FROM " + TABLE_TILES + " WHERE source=? AND path=?";
+    private static final String INSERT_TILE = "INSERT OR REPLACE INTO " + TABLE_TILES
+            + " (source, path, data, size, accessed) VALUES (?,?,?,?,?)";
+    private static final String UPDATE_ACCESS = "UPDATE " + TABLE_TILES + " SET accessed=? WHERE source=? AND path=?";
+    private static final String SELECT_OLDEST = "SELECT source, path, size FROM " + TABLE_TILES
+            + " ORDER BY accessed LIMIT 200";
+    private static final String DELETE_TILE = "DELETE FROM " + TABLE_TILES + " WHERE source=? AND path=?";
+
+    private final ADb db;
+    private final File dbFile;
+    private long maxBytes;
+
+    private long totalBytes;
+    private long tilesCount;
+    private long accessCounter;
+    private final Map<String, Long> pendingAccesses = new LinkedHashMap<>();
+
+    private long hits;
+    private long misses;
+    private long puts;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * Open or create a tile cache.
+     *
+     * @param dbFile the sqlite file of the cache.
+     * @param maxBytes the maximum size of the tiles in bytes.
+     * @throws Exception
+     */
+    public TileCache( File dbFile, long maxBytes ) throws Exception {
+        this.dbFile = dbFile;
+        this.maxBytes = maxBytes;
+        db = EDb.SQLITE.getDb();
+        db.open(dbFile.getAbsolutePath());
+        // it's a cache, don't wait for the disk
+        db.executeInsertUpdateDeleteSql("PRAGMA synchronous = OFF");
+        db.executeInsertUpdateDeleteSql(CREATE_TILES);
+        db.executeInsertUpdateDeleteSql(INDEX_TILES);
+        db.executeInsertUpdateDeleteSql(CREATE_SOURCES);
+
+        db.execOnConnection(connection -> {
+            try (IHMPreparedStatement pstmt = connection.prepareStatement(
+                    "SELECT count(*), sum(size), max(accessed) FROM " + TABLE_TILES); IHMResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    tilesCount = rs.getLong(1);
+                    totalBytes = rs.getLong(2);
+                    accessCounter = rs.getLong(3);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Check the timestamp of the data of a source, removing its tiles if the data changed.
+     *
+     * @param source the source name.
+     * @param timestamp the timestamp of the data, for example the last modification of the file.
+     * @return <code>true</code> if the cached tiles of the source were removed.
+     * @throws Exception
+     */
+    public synchronized boolean validateSource( String source, long timestamp ) throws Exception {
+        Long cachedTimestamp = db.execOnConnection(connection -> {
+            try (IHMPreparedStatement pstmt = connection.prepareStatement(
+                    "SELECT timestamp FROM " + TABLE_SOURCES + " WHERE source=?")) {
+                pstmt.setString(1, source);
+                try (IHMResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getLong(1);
+                    }
+                }
+            }
+            return null;
+        });
+        if (cachedTimestamp != null && cachedTimestamp == timestamp) {
+            return false;
+        }
+        boolean removed = cachedTimestamp != null && removeSource(source);
+        if (removed) {
+            invalidations++;
+        }
+        db.execOnConnection(connection -> {
+            try (IHMPreparedStatement pstmt = connection.prepareStatement(
+                    "INSERT OR REPLACE INTO " + TABLE_SOURCES + " (source, timestamp) VALUES (?,?)")) {
+                pstmt.setString(1, source);
+                pstmt.setLong(2, timestamp);
+                pstmt.executeUpdate();
+            }
+            return null;
+        });
+        return removed;
+    }
+
+    /**
+     * Get a tile.
+     *
+     * @param source the source name.
+     * @param path the path of the tile.
+     * @return the tile bytes or <code>null</code> if the tile is not cached.
+     * @throws Exception
+     */
+    public synchronized byte[] getTile( String source, String path ) throws Exception {
+        byte[] data = db.execOnConnection(connection -> {
+            try (IHMPreparedStatement pstmt = connection.prepareStatement(SELECT_TILE)) {
+                pstmt.setString(1, source);
+                pstmt.setString(2, path);
+                try (IHMResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getBytes(1);
+                    }
+                }
+            }
+            return null;
+        });
+        if (data == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        pendingAccesses.put(key(source, path), ++accessCounter);
+        if (pendingAccesses.size() >= MAX_PENDING_ACCESSES) {
+            db.execOnConnection(connection -> {
+                flushAccesses(connection);
+                return null;
+            });
+        }
+        return data;
+    }
+
+    /**
+     * Add or replace a tile, removing the least recently used tiles if the cache is full.
+     *
+     * @param source the source name.
+     * @param path the path of the tile.
+     * @param data the tile bytes.
+     * @throws Exception
+     */
+    public synchronized void putTile( String source, String path, byte[] data ) throws Exception {
+        db.execOnConnection(connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                long oldSize = getTileSize(connection, source, path);
+                try (IHMPreparedStatement pstmt = connection.prepareStatement(INSERT_TILE)) {
+                    pstmt.setString(1, source);
+                    pstmt.setString(2, path);
+                    pstmt.setBytes(3, data);
+                    pstmt.setLong(4, data.length);
+                    pstmt.setLong(5, ++accessCounter);
+                    pstmt.executeUpdate();
+                }
+                pendingAccesses.remove(key(source, path));
+                if (oldSize < 0) {
+                    tilesCount++;
+                    totalBytes += data.length;
+                } else {
+                    totalBytes += data.length - oldSize;
+                }
+                puts++;
+                flushAccesses(connection);
+                if (totalBytes > maxBytes) {
+                    evict(connection, (long) (maxBytes * EVICTION_TARGET));
+                }
+                connection.commit();
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Remove all the tiles of a source.
+     *
+     * @param source the source name.
+     * @return <code>true</code> if some tile was removed.
+     * @throws Exception
+     */
+    public synchronized boolean removeSource( String source ) throws Exception {
+        String prefix = key(source, "");
+        pendingAccesses.keySet().removeIf(k -> k.startsWith(prefix));
+        long[] countAndSize = db.execOnConnection(connection -> {
+            try (IHMPreparedStatement pstmt = connection.prepareStatement(
+                    "SELECT count(*), sum(size) FROM " + TABLE_TILES + " WHERE source=?")) {
+                pstmt.setString(1, source);
+                try (IHMResultSet rs = pstmt.executeQuery()) {
+                    rs.next();
+                    return new long[]{rs.getLong(1), rs.getLong(2)};
+                }
+            }
+        });
+        if (countAndSize[0] == 0) {
+            return false;
+        }
+        db.execOnConnection(connection -> {
+            try (IHMPreparedStatement pstmt = connection.prepareStatement(
+                    "DELETE FROM " + TABLE_TILES + " WHERE source=?")) {
+                pstmt.setString(1, source);
+                pstmt.executeUpdate();
+            }
+            return null;
+        });
+        tilesCount -= countAndSize[0];
+        totalBytes -= countAndSize[1];
+        return true;
+    }
+
+    /**
+     * Remove all the tiles and sources.
+     *
+     * @throws Exception
+     */
+    public synchronized void clear() throws Exception {
+        pendingAccesses.clear();
+        db.executeInsertUpdateDeleteSql("DELETE FROM " + TABLE_TILES);
+        db.executeInsertUpdateDeleteSql("DELETE FROM " + TABLE_SOURCES);
+        db.executeInsertUpdateDeleteSql("VACUUM");
+        tilesCount = 0;
+        totalBytes = 0;
+    }
+
+    /**
+     * @return the names of the cached sources and their tiles number and size in bytes.
+     * @throws Exception
+     */
+    public synchronized List<Object[]> getSourcesInfo() throws Exception {
+        return db.execOnConnection(connection -> {
+            List<Object[]> infos = new ArrayList<>();
+            try (IHMPreparedStatement pstmt = connection.prepareStatement(
+                    "SELECT source, count(*), sum(size) FROM " + TABLE_TILES + " GROUP BY source ORDER BY source");
+                    IHMResultSet rs = pstmt.executeQuery()) {
+                while( rs.next() ) {
+                    infos.add(new Object[]{rs.getString(1), rs.getLong(2), rs.getLong(3)});
+                }
+            }
+            return infos;
+        });
+    }
+
+    private long getTileSize( IHMConnection connection, String source, String path ) throws Exception {
+        try (IHMPreparedStatement pstmt = connection.prepareStatement(
+                "SELECT size FROM " + TABLE_TILES + " WHERE source=? AND path=?")) {
+            pstmt.setString(1, source);
+            pstmt.setString(2, path);
+            try (IHMResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void flushAccesses( IHMConnection connection ) throws Exception {
+        if (pendingAccesses.isEmpty()) {
+            return;
+        }
+        try (IHMPreparedStatement pstmt = connection.prepareStatement(UPDATE_ACCESS)) {
+            for( Entry<String, Long> entry : pendingAccesses.entrySet() ) {
+                String[] sourceAndPath = entry.getKey().split("\n", 2);
+                pstmt.setLong(1, entry.getValue());
+                pstmt.setString(2, sourceAndPath[0]);
+                pstmt.setString(3, sourceAndPath[1]);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        }
+        pendingAccesses.clear();
+    }
+
+    /**
+     * Remove the least recently used tiles until the size is at most the target.
+     */
+    private void evict( IHMConnection connection, long targetBytes ) throws Exception {
+        while( totalBytes > targetBytes && tilesCount > 0 ) {
+            List<Object[]> oldest = new ArrayList<>();
+            try (IHMPreparedStatement pstmt = connection.prepareStatement(SELECT_OLDEST);
+                    IHMResultSet rs = pstmt.executeQuery()) {
+                long bytes = totalBytes;
+                while( bytes > targetBytes && rs.next() ) {
+                    long size = rs.getLong(3);
+                    oldest.add(new Object[]{rs.getString(1), rs.getString(2), size});
+                    bytes -= size;
+                }
+            }
+            if (oldest.isEmpty()) {
+                break;
+            }
+            try (IHMPreparedStatement pstmt = connection.prepareStatement(DELETE_TILE)) {
+                for( Object[] tile : oldest ) {
+                    pstmt.setString(1, (String) tile[0]);
+                    pstmt.setString(2, (String) tile[1]);
+                    pstmt.addBatch();
+                    totalBytes -= (Long) tile[2];
+                    tilesCount--;
+                    evictions++;
+                }
+                pstmt.executeBatch();
+            }
+        }
+    }
+
+    private static String key( String source, String path ) {
+        return source + "\n" + path;
+    }
+
+    /**
+     * @return the sqlite file of the cache.
+     */
+    public File getFile() {
+        return dbFile;
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Set the maximum size of the cache, the tiles in excess are removed with the next insertion.
+     *
+     * @param maxBytes the maximum size in bytes.
+     */
+    public synchronized void setMaxBytes( long maxBytes ) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized long getTilesCount() {
+        return tilesCount;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getPuts() {
+        return puts;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return a one line description of the cache state.
+     */
+    public synchronized String getStatsDescription() {
+        long requests = hits + misses;
+        double hitRatio = requests == 0 ? 0 : 100.0 * hits / requests;
+        return String.format("Tile cache: %d tiles, %.1f of %.1f MB, hits %d (%.0f%%), misses %d, evicted %d, invalidated sources %d",
+                tilesCount, totalBytes / 1024.0 / 1024.0, maxBytes / 1024.0 / 1024.0, hits, hitRatio, misses, evictions,
+                invalidations);
+    }
+
+    @Override
+    public synchronized void close() throws Exception {
+        db.execOnConnection(connection -> {
+            flushAccesses(connection);
+            return null;
+        });
+        db.close();
+    }
+
+}
@@ -43,6 +43,8 @@ public abstract class ASpatialDb extends ADb implements AutoCloseable {
 
     protected boolean supportsSpatialIndex = true;
 
+    protected int cursorFetchSize = GeometryCursor.DEFAULT_FETCH_SIZE;
+
     /**
      * Open the connection to a database.
      * 
@@ -272,6 +274,9 @@ public abstract class ASpatialDb extends ADb implements AutoCloseable {
     /**
      * Get the geometries of a table inside a given envelope.
      * 
+     * <p>All the geometries are kept in memory, for big tables use 
+     * {@link #getGeometryCursorIn(SqlName, Envelope, String...)}.</p>
+     * 
      * @param tableName
      *            the table name.
      * @param envelope
@@ -283,122 +288,153 @@ public abstract class ASpatialDb extends ADb implements AutoCloseable {
      * @throws Exception
      */
     public List<Geometry> getGeometriesIn( SqlName tableName, Envelope envelope, String... prePostWhere ) throws Exception {
-        List<String> wheres = new ArrayList<>();
-        String pre = "";
-        String post = "";
-        String where = "";
-        if (prePostWhere != null && prePostWhere.length == 3) {
-            if (prePostWhere[0] != null)
-                pre = prePostWhere[0];
-            if (prePostWhere[1] != null)
-                post = prePostWhere[1];
-            if (prePostWhere[2] != null) {
-                where = prePostWhere[2];
-                wheres.add(where);
-            }
+        try (GeometryCursor cursor = getGeometryCursorIn(tableName, envelope, prePostWhere)) {
+            return toList(cursor);
         }
+    }
 
-        GeometryColumn gCol = getGeometryColumnsForTable(tableName);
-        String sql = "SELECT " + pre + gCol.geometryColumnName + post + " FROM " + tableName.fixedDoubleName;
+    /**
+     * Get the geometries of a table intersecting a given geometry.
+     * 
+     * <p>All the geometries are kept in memory, for big tables use 
+     * {@link #getGeometryCursorIn(SqlName, Geometry, String...)}.</p>
+     * 
+     * @param tableName
+     *            the table name.
+     * @param intersectionGeometry
+     *            the geometry to check, assumed in the same srid of the table geometry.
+     * @param prePostWhere an optional set of 3 parameters. The parameters are: a 
+     *          prefix wrapper for geom, a postfix for the same and a where string 
+     *          to apply. They all need to be existing if the parameter is passed.
+     * @return The list of geometries intersecting the geometry.
+     * @throws Exception
+     */
+    public List<Geometry> getGeometriesIn( SqlName tableName, Geometry intersectionGeometry, String... prePostWhere )
+            throws Exception {
+        try (GeometryCursor cursor = getGeometryCursorIn(tableName, intersectionGeometry, prePostWhere)) {
+            return toList(cursor);
+        }
+    }
+
+    private List<Geometry> toList( GeometryCursor cursor ) throws Exception {
+        if (cursor == null) {
+            return null;
+        }
+        List<Geometry> geoms = new ArrayList<Geometry>();
+        while( cursor.next() ) {
+            geoms.add(cursor.getGeometry());
+        }
+        return geoms;
+    }
 
+    /**
+     * Get a forward only cursor over the geometries of a table inside a given envelope.
+     * 
+     * <p>The geometries are read while the cursor is moved, so that tables of any 
+     * size can be traversed. The cursor needs to be closed.</p>
+     * 
+     * @param tableName
+     *            the table name.
+     * @param envelope
+     *            the envelope to check.
+     * @param prePostWhere an optional set of 3 parameters, as in {@link #getGeometriesIn(SqlName, Envelope, String...)}.
+     * @return the cursor over the geometries intersecting the envelope.
+     * @throws Exception
+     */
+    public GeometryCursor getGeometryCursorIn( SqlName tableName, Envelope envelope, String... prePostWhere )
+            throws Exception {
+        String spatialWherePiece = null;
         if (envelope != null && supportsSpatialIndex) {
             double x1 = envelope.getMinX();
             double y1 = envelope.getMinY();
             double x2 = envelope.getMaxX();
             double y2 = envelope.getMaxY();
-            String spatialindexBBoxWherePiece = getSpatialindexBBoxWherePiece(tableName, null, x1, y1, x2, y2);
-            if (spatialindexBBoxWherePiece != null)
-                wheres.add(spatialindexBBoxWherePiece);
-        }
-
-        if (wheres.size() > 0) {
-            sql += " WHERE " + DbsUtilities.joinBySeparator(wheres, " AND ");
+            spatialWherePiece = getSpatialindexBBoxWherePiece(tableName, null, x1, y1, x2, y2);
         }
+        String sql = getGeometriesSql(tableName, spatialWherePiece, prePostWhere);
 
-        String _sql = sql;
-        IGeometryParser geometryParser = getType().getGeometryParser();
-        return execOnConnection(connection -> {
-            List<Geometry> geoms = new ArrayList<Geometry>();
-            try (IHMStatement stmt = connection.createStatement(); IHMResultSet rs = stmt.executeQuery(_sql)) {
-                while( rs.next() ) {
-                    Geometry geometry = geometryParser.fromResultSet(rs, 1);
-                    if (!supportsSpatialIndex && envelope != null) {
-                        // need to check manually
-                        if (!geometry.getEnvelopeInternal().intersects(envelope)) {
-                            continue;
-                        }
-                    }
-                    geoms.add(geometry);
-                }
-            }
-            return geoms;
-        });
+        // without spatial index need to check manually
+        Envelope filterEnvelope = !supportsSpatialIndex ? envelope : null;
+        return openGeometryCursor(sql, filterEnvelope, null);
     }
 
     /**
-     * Get the geometries of a table intersecting a given geometry.
+     * Get a forward only cursor over the geometries of a table intersecting a given geometry.
+     * 
+     * <p>The geometries are read while the cursor is moved, so that tables of any 
+     * size can be traversed. The cursor needs to be closed.</p>
      * 
      * @param tableName
      *            the table name.
      * @param intersectionGeometry
      *            the geometry to check, assumed in the same srid of the table geometry.
-     * @param prePostWhere an optional set of 3 parameters. The parameters are: a 
-     *          prefix wrapper for geom, a postfix for the same and a where string 
-     *          to apply. They all need to be existing if the parameter is passed.
-     * @return The list of geometries intersecting the geometry.
+     * @param prePostWhere an optional set of 3 parameters, as in {@link #getGeometriesIn(SqlName, Geometry, String...)}.
+     * @return the cursor over the geometries intersecting the geometry.
      * @throws Exception
      */
-    public List<Geometry> getGeometriesIn( SqlName tableName, Geometry intersectionGeometry, String... prePostWhere )
+    public GeometryCursor getGeometryCursorIn( SqlName tableName, Geometry intersectionGeometry, String... prePostWhere )
             throws Exception {
-        List<Geometry> geoms = new ArrayList<Geometry>();
+        String spatialWherePiece = null;
+        if (intersectionGeometry != null && supportsSpatialIndex) {
+            GeometryColumn gCol = getGeometryColumnsForTable(tableName);
+            intersectionGeometry.setSRID(gCol.srid);
+            spatialWherePiece = getSpatialindexGeometryWherePiece(tableName, null, intersectionGeometry);
+        }
+        String sql = getGeometriesSql(tableName, spatialWherePiece, prePostWhere);
 
+        PreparedGeometry prepGeom = null;
+        if (!supportsSpatialIndex && intersectionGeometry != null) {
+            prepGeom = PreparedGeometryFactory.prepare(intersectionGeometry);
+        }
+        return openGeometryCursor(sql, null, prepGeom);
+    }
+
+    /**
+     * Set the number of rows fetched at once by the geometry cursors.
+     * 
+     * @param cursorFetchSize the number of rows, <= 0 to use the driver default.
+     */
+    public void setCursorFetchSize( int cursorFetchSize ) {
+        this.cursorFetchSize = cursorFetchSize;
+    }
+
+    private String getGeometriesSql( SqlName tableName, String spatialWherePiece, String... prePostWhere ) throws Exception {
         List<String> wheres = new ArrayList<>();
         String pre = "";
         String post = "";
-        String where = "";
         if (prePostWhere != null && prePostWhere.length == 3) {
             if (prePostWhere[0] != null)
                 pre = prePostWhere[0];
             if (prePostWhere[1] != null)
                 post = prePostWhere[1];
             if (prePostWhere[2] != null) {
-                where = prePostWhere[2];
-                wheres.add(where);
+                wheres.add(prePostWhere[2]);
             }
         }
+
         GeometryColumn gCol = getGeometryColumnsForTable(tableName);
         String sql = "SELECT " + pre + gCol.geometryColumnName + post + " FROM " + tableName.fixedDoubleName;
 
-        if (intersectionGeometry != null && supportsSpatialIndex) {
-            intersectionGeometry.setSRID(gCol.srid);
-            String spatialindexGeometryWherePiece = getSpatialindexGeometryWherePiece(tableName, null, intersectionGeometry);
-            if (spatialindexGeometryWherePiece != null)
-                wheres.add(spatialindexGeometryWherePiece);
+        if (spatialWherePiece != null) {
+            wheres.add(spatialWherePiece);
         }
-
         if (wheres.size() > 0) {
             sql += " WHERE " + DbsUtilities.joinBySeparator(wheres, " AND ");
         }
+        return sql;
+    }
 
+    private GeometryCursor openGeometryCursor( String sql, Envelope filterEnvelope, PreparedGeometry filterGeometry )
+            throws Exception {
+        IHMConnection connection = getConnectionInternal();
+        if (connection == null) {
+            return null;
+        }
+        // postgres only streams the rows inside a transaction
+        boolean disableAutocommit = getType() == EDb.POSTGIS || getType() == EDb.POSTGRES;
         IGeometryParser geometryParser = getType().getGeometryParser();
-        String _sql = sql;
-        return execOnConnection(connection -> {
-            PreparedGeometry prepGeom = null;
-            if (!supportsSpatialIndex) {
-                prepGeom = PreparedGeometryFactory.prepare(intersectionGeometry);
-            }
-            try (IHMStatement stmt = connection.createStatement(); IHMResultSet rs = stmt.executeQuery(_sql)) {
-                while( rs.next() ) {
-                    Geometry geometry = geometryParser.fromResultSet(rs, 1);
-                    if (prepGeom != null && !prepGeom.intersects(geometry)) {
-                        continue;
-                    }
-                    geoms.add(geometry);
-                }
-                return geoms;
-            }
-        });
-
+        return new GeometryCursor(connection, sql, geometryParser, cursorFetchSize, disableAutocommit, filterEnvelope,
+                filterGeometry);
     }
 
     /**
@@ -0,0 +1,173 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.dbs.compat;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+
+/**
+ * A forward only cursor over the geometries of a query.
+ *
+ * <p>The geometries are parsed one at a time while the resultset is stepped,
+ * so that tables of any size can be read without keeping them in memory. The
+ * cursor keeps a connection of the database until it is closed, which happens
+ * also automatically once the last row has been read.</p>
+ *
+ * <p>Usage:</p>
+ * <pre>
+ * try (GeometryCursor cursor = db.getGeometryCursorIn(tableName, envelope)) {
+ *     while( cursor.next() ) {
+ *         Geometry geometry = cursor.getGeometry();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GeometryCursor implements AutoCloseable {
+    /**
+     * The default number of rows fetched at once from the database.
+     */
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    private final IHMConnection connection;
+    private final IHMStatement statement;
+    private final IHMResultSet resultSet;
+    private final IGeometryParser geometryParser;
+    private final Envelope filterEnvelope;
+    private final PreparedGeometry filterGeometry;
+    private final boolean restoreAutocommit;
+
+    private Geometry geometry;
+    private long readCount = 0;
+    private boolean isClosed = false;
+
+    /**
+     * Open the cursor.
+     *
+     * @param connection the connection to use, released on close.
+     * @param sql the query, with the geometry in the first column.
+     * @param geometryParser the parser of the geometries, used only by this cursor.
+     * @param fetchSize the number of rows to fetch at once, if > 0.
+     * @param disableAutocommit if <code>true</code>, the autocommit is disabled while the
+     *          cursor is open. Some drivers (ex. postgres) only honor the fetch size in a transaction.
+     * @param filterEnvelope an optional envelope that the geometries need to intersect.
+     * @param filterGeometry an optional geometry that the geometries need to intersect.
+     * @throws Exception
+     */
+    GeometryCursor( IHMConnection connection, String sql, IGeometryParser geometryParser, int fetchSize,
+            boolean disableAutocommit, Envelope filterEnvelope, PreparedGeometry filterGeometry ) throws Exception {
+        this.connection = connection;
+        this.geometryParser = geometryParser;
+        this.filterEnvelope = filterEnvelope;
+        this.filterGeometry = filterGeometry;
+
+        IHMStatement stmt = null;
+        boolean autocommitDisabled = false;
+        try {
+            if (disableAutocommit && connection.getAutoCommit()) {
+                connection.setAutoCommit(false);
+                autocommitDisabled = true;
+            }
+            stmt = connection.createStatement();
+            if (fetchSize > 0) {
+                stmt.setFetchSize(fetchSize);
+            }
+            resultSet = stmt.executeQuery(sql);
+        } catch (Exception e) {
+            if (stmt != null) {
+                stmt.close();
+            }
+            if (autocommitDisabled) {
+                connection.setAutoCommit(true);
+            }
+            connection.release();
+            throw e;
+        }
+        statement = stmt;
+        restoreAutocommit = autocommitDisabled;
+    }
+
+    /**
+     * Move to the next geometry.
+     *
+     * @return <code>true</code> if a geometry is available, <code>false</code> if the rows are finished.
+     * @throws Exception
+     */
+    public boolean next() throws Exception {
+        if (isClosed) {
+            return false;
+        }
+        while( resultSet.next() ) {
+            Geometry geom = geometryParser.fromResultSet(resultSet, 1);
+            if (geom != null) {
+                if (filterEnvelope != null && !geom.getEnvelopeInternal().intersects(filterEnvelope)) {
+                    continue;
+                }
+                if (filterGeometry != null && !filterGeometry.intersects(geom)) {
+                    continue;
+                }
+            }
+            geometry = geom;
+            readCount++;
+            return true;
+        }
+        geometry = null;
+        close();
+        return false;
+    }
+
+    /**
+     * @return the current geometry (can be <code>null</code> if the row has no geometry).
+     */
+    public Geometry getGeometry() {
+        return geometry;
+    }
+
+    /**
+     * @return the number of geometries read so far.
+     */
+    public long getReadCount() {
+        return readCount;
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        try {
+            resultSet.close();
+            statement.close();
+        } finally {
+            try {
+                if (restoreAutocommit) {
+                    // nothing was written, end the read transaction
+                    connection.commit();
+                    connection.setAutoCommit(true);
+                }
+            } finally {
+                connection.release();
+            }
+        }
+    }
+
+}
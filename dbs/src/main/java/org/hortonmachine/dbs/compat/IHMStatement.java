@@ -31,6 +31,13 @@ public interface IHMStatement extends AutoCloseable {
 
     void setQueryTimeout( int seconds ) throws Exception;
 
+    /**
+     * Give a hint about the number of rows to fetch from the database at once.
+     * 
+     * @param rows the number of rows.
+     */
+    void setFetchSize( int rows ) throws Exception;
+
     int executeUpdate( String sql ) throws Exception;
 
     void addBatch( String sqlLine ) throws Exception;
@@ -24,13 +24,20 @@ import org.hortonmachine.dbs.geopackage.geom.GeoPkgGeomWriter;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
 
+/**
+ * The geopackage geometry parser.
+ * 
+ * <p>The blob reader is reused for all the geometries parsed by the same instance,
+ * which is therefore not threadsafe.</p>
+ */
 public class GeopackageGeometryParser implements IGeometryParser {
+    private final GeoPkgGeomReader reader = new GeoPkgGeomReader(new byte[0]);
 
     @Override
     public Geometry fromResultSet( IHMResultSet rs, int index ) throws Exception {
         byte[] geomBytes = rs.getBytes(index);
         if (geomBytes != null) {
-            Geometry geometry = new GeoPkgGeomReader(geomBytes).get();
+            Geometry geometry = reader.reset(geomBytes).get();
             return geometry;
         }
         return null;
@@ -40,7 +47,7 @@ public class GeopackageGeometryParser implements IGeometryParser {
     public Geometry fromSqlObject( Object geomObject ) throws Exception {
         if (geomObject instanceof byte[]) {
             byte[] geomBytes = (byte[]) geomObject;
-            Geometry geometry = new GeoPkgGeomReader(geomBytes).get();
+            Geometry geometry = reader.reset(geomBytes).get();
             return geometry;
         }
         throw new IllegalArgumentException("Geom object needs to be a byte array.");
@@ -62,6 +62,9 @@ public class GeoPkgGeomReader {
     private Number simplificationDistance;
     private Class geometryType;
 
+    private WKBReader wkbReader;
+    private ByteOrderDataInStream headerInput;
+
     public GeoPkgGeomReader( InStream input ) {
         this.input = input;
     }
@@ -74,6 +77,26 @@ public class GeoPkgGeomReader {
         this.input = new ByteArrayInStream(bytes);
     }
 
+    /**
+     * Reset the reader to parse a new geometry blob.
+     * 
+     * <p>The input stream and the WKB parser are reused, which avoids creating 
+     * them for every geometry when many blobs are read in sequence.</p>
+     * 
+     * @param bytes the geometry blob.
+     * @return the reader itself.
+     */
+    public GeoPkgGeomReader reset( byte[] bytes ) {
+        if (input instanceof ByteArrayInStream) {
+            ((ByteArrayInStream) input).setBytes(bytes);
+        } else {
+            input = new ByteArrayInStream(bytes);
+        }
+        header = null;
+        geometry = null;
+        return this;
+    }
+
     public GeometryHeader getHeader() throws Exception {
         if (header == null) {
             header = readHeader();
@@ -160,7 +183,9 @@ public class GeoPkgGeomReader {
     protected Geometry read() throws IOException { // header must be read!
         // read the geometry
         try {
-            WKBReader wkbReader = new WKBReader(factory);
+            if (wkbReader == null) {
+                wkbReader = new WKBReader(factory);
+            }
             Geometry g = wkbReader.read(input);
             g.setSRID(header.getSrid());
             return g;
@@ -209,7 +234,12 @@ public class GeoPkgGeomReader {
         h.setFlags(new GeometryHeaderFlags((byte) buf[3]));
 
         // set endianess
-        ByteOrderDataInStream din = new ByteOrderDataInStream(input);
+        if (headerInput == null) {
+            headerInput = new ByteOrderDataInStream(input);
+        } else {
+            headerInput.setInStream(input);
+        }
+        ByteOrderDataInStream din = headerInput;
         din.setOrder(h.getFlags().getEndianess());
 
         // read the srid
@@ -248,6 +278,7 @@ public class GeoPkgGeomReader {
     public void setFactory( GeometryFactory factory ) {
         if (factory != null) {
             this.factory = factory;
+            wkbReader = null;
         }
     }
 
@@ -64,6 +64,11 @@ public class GPStatement implements IHMStatement {
     public void setQueryTimeout( int seconds ) throws SQLException {
     }
 
+    @Override
+    public void setFetchSize( int rows ) throws SQLException {
+        // the rows are stepped one by one
+    }
+
     @Override
     public int executeUpdate( String sql ) throws Exception {
         Stmt stmt = database.prepare(sql);
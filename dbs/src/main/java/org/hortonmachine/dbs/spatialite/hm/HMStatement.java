@@ -60,6 +60,11 @@ public class HMStatement implements IHMStatement {
         statement.setQueryTimeout(seconds);
     }
 
+    @Override
+    public void setFetchSize( int rows ) throws SQLException {
+        statement.setFetchSize(rows);
+    }
+
     @Override
     public int executeUpdate( String sql ) throws Exception {
         return statement.executeUpdate(sql);
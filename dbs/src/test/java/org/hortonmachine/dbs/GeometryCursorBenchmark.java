@@ -0,0 +1,186 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.dbs;
+
+import static org.hortonmachine.dbs.TestUtilities.arr;
+
+import java.io.File;
+import java.util.List;
+
+import org.hortonmachine.dbs.compat.ASpatialDb;
+import org.hortonmachine.dbs.compat.EDb;
+import org.hortonmachine.dbs.compat.GeometryCursor;
+import org.hortonmachine.dbs.compat.IGeometryParser;
+import org.hortonmachine.dbs.compat.IHMPreparedStatement;
+import org.hortonmachine.dbs.utils.SqlName;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+/**
+ * Benchmark of the {@link GeometryCursor} against the list based geometry queries.
+ *
+ * <p>Not a unit test (it is not run by the build), launch it by hand:</p>
+ *
+ * <pre>
+ * java ... org.hortonmachine.dbs.GeometryCursorBenchmark [db type] [rows] [fetch size]
+ * </pre>
+ *
+ * <p>A table of square polygons is created in a temporary database (a geopackage by default),
+ * then it is read back whole with both the list and the cursor, printing the rows per second
+ * and the heap used while reading.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GeometryCursorBenchmark {
+
+    private static final SqlName TABLE = SqlName.m("benchpolygons");
+    private static final int RUNS = 3;
+
+    private static double lastArea = -1;
+
+    public static void main( String[] args ) throws Exception {
+        EDb dbType = args.length > 0 ? EDb.valueOf(args[0].toUpperCase()) : EDb.GEOPACKAGE;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+        int fetchSize = args.length > 2 ? Integer.parseInt(args[2]) : GeometryCursor.DEFAULT_FETCH_SIZE;
+
+        String tempDir = System.getProperty("java.io.tmpdir");
+        String dbPath = tempDir + File.separator + "hm-dbs-cursorbenchmark" + dbType.getExtensionOnCreation();
+        TestUtilities.deletePrevious(tempDir, dbPath, dbType);
+
+        try (ASpatialDb db = dbType.getSpatialDb()) {
+            db.open(dbPath);
+            db.initSpatialMetadata("'WGS84'");
+            db.setCursorFetchSize(fetchSize);
+            populate(db, rows);
+            System.out.println("Table of " + rows + " polygons in " + dbType + ", fetch size " + fetchSize);
+
+            Envelope all = new Envelope(-180, 180, -90, 90);
+            // warm up
+            readList(db, all);
+            readCursor(db, all, rows);
+
+            System.out.println("mode\trows/s\tMB");
+            for( int i = 0; i < RUNS; i++ ) {
+                printResult("list", readList(db, all));
+                printResult("cursor", readCursor(db, all, rows));
+            }
+        } finally {
+            TestUtilities.deletePrevious(tempDir, dbPath, dbType);
+        }
+    }
+
+    private static void populate( ASpatialDb db, int rows ) throws Exception {
+        db.createSpatialTable(TABLE, 4326, "the_geom POLYGON",
+                arr("id " + db.getType().getDatabaseSyntaxHelper().INTEGER() + " PRIMARY KEY"));
+
+        IGeometryParser gp = db.getType().getGeometryParser();
+        GeometryFactory gf = new GeometryFactory();
+        int cols = (int) Math.ceil(Math.sqrt(rows));
+        double side = 300.0 / cols;
+        String sql = "INSERT INTO " + TABLE.fixedName + " (id, the_geom) VALUES (?, ?)";
+        db.execOnConnection(connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (IHMPreparedStatement pStmt = connection.prepareStatement(sql)) {
+                for( int i = 0; i < rows; i++ ) {
+                    double x = -150 + (i % cols) * side;
+                    double y = -75 + (i / cols) * side * 0.5;
+                    Geometry square = gf.toGeometry(new Envelope(x, x + side * 0.9, y, y + side * 0.45));
+                    square.setSRID(4326);
+                    pStmt.setInt(1, i);
+                    pStmt.setObject(2, gp.toSqlObject(square));
+                    pStmt.addBatch();
+                    if (i % 10000 == 9999) {
+                        pStmt.executeBatch();
+                    }
+                }
+                pStmt.executeBatch();
+                connection.commit();
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return the rows per second and the heap used by the read geometries in MB.
+     */
+    private static double[] readList( ASpatialDb db, Envelope envelope ) throws Exception {
+        long baseHeap = usedHeap();
+        long start = System.nanoTime();
+        List<Geometry> geometries = db.getGeometriesIn(TABLE, envelope);
+        double area = 0;
+        for( Geometry geometry : geometries ) {
+            area += geometry.getArea();
+        }
+        double seconds = (System.nanoTime() - start) / 1E9;
+        long heap = usedHeap() - baseHeap;
+        checkArea(area);
+        return new double[]{geometries.size() / seconds, heap / 1024.0 / 1024.0};
+    }
+
+    /**
+     * @return the rows per second and the heap used halfway through the read in MB.
+     */
+    private static double[] readCursor( ASpatialDb db, Envelope envelope, int rows ) throws Exception {
+        long baseHeap = usedHeap();
+        long start = System.nanoTime();
+        long heapNanos = 0;
+        long heap = 0;
+        long count;
+        double area = 0;
+        try (GeometryCursor cursor = db.getGeometryCursorIn(TABLE, envelope)) {
+            while( cursor.next() ) {
+                area += cursor.getGeometry().getArea();
+                if (cursor.getReadCount() == rows / 2) {
+                    // the garbage collection is not part of the read time
+                    long heapStart = System.nanoTime();
+                    heap = usedHeap() - baseHeap;
+                    heapNanos = System.nanoTime() - heapStart;
+                }
+            }
+            count = cursor.getReadCount();
+        }
+        double seconds = (System.nanoTime() - start - heapNanos) / 1E9;
+        checkArea(area);
+        return new double[]{count / seconds, heap / 1024.0 / 1024.0};
+    }
+
+    private static void checkArea( double area ) {
+        if (lastArea >= 0 && Math.abs(area - lastArea) > 1E-6) {
+            throw new IllegalStateException("The list and the cursor read different geometries.");
+        }
+        lastArea = area;
+    }
+
+    private static void printResult( String mode, double[] result ) {
+        System.out.printf("%s\t%.0f\t%.1f%n", mode, result[0], result[1]);
+    }
+
+    /**
+     * @return the heap used after a garbage collection.
+     */
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
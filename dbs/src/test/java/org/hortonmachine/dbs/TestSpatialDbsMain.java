@@ -21,6 +21,7 @@ import java.util.List;
 
 import org.hortonmachine.dbs.compat.ASpatialDb;
 import org.hortonmachine.dbs.compat.EDb;
+import org.hortonmachine.dbs.compat.GeometryCursor;
 import org.hortonmachine.dbs.compat.IHMPreparedStatement;
 import org.hortonmachine.dbs.compat.IHMResultSet;
 import org.hortonmachine.dbs.compat.IHMStatement;
@@ -264,6 +265,30 @@ public class TestSpatialDbsMain {
         assertEquals(2, intersecting.size());
     }
 
+    @Test
+    public void testGeometryCursor() throws Exception {
+        Envelope bounds = new Envelope(5, 80, 5, 80);
+        List<Geometry> expected = db.getGeometriesIn(MPOLY_TABLE, bounds);
+        try (GeometryCursor cursor = db.getGeometryCursorIn(MPOLY_TABLE, bounds)) {
+            int index = 0;
+            while( cursor.next() ) {
+                assertTrue(expected.get(index++).equalsExact(cursor.getGeometry()));
+            }
+            assertEquals(expected.size(), cursor.getReadCount());
+            assertFalse(cursor.next());
+        }
+
+        String polygonStr = "POLYGON ((71 70, 40 70, 40 40, 5 40, 5 15, 15 15, 15 4, 50 4, 71 70))";
+        Geometry geom = new WKTReader().read(polygonStr);
+        try (GeometryCursor cursor = db.getGeometryCursorIn(MPOLY_TABLE, geom)) {
+            int count = 0;
+            while( cursor.next() ) {
+                count++;
+            }
+            assertEquals(2, count);
+        }
+    }
+
     @Test
     public void testReprojectFromDb() throws Exception {
 
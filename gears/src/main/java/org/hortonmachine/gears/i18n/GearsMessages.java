@@ -684,6 +684,8 @@ public class GearsMessages {
     public static final String OMSTMSGENERATOR_DO_LEGACY_GRASS_DESCRIPTION = "Optional flag to force a legacy GRASS driver usage.";
     public static final String OMSTMSGENERATOR_IN_PATH_DESCRIPTION = "The folder inside which to create the tiles.";
     public static final String OMSTMSGENERATOR_P_MAX_THREADS_DESCRIPTION = "Max threads to use (default 1)";
+    public static final String OMSTMSGENERATOR_DO_CACHE_VECTORS_DESCRIPTION = "Keep in memory the vector features of the area, to read them from file only once for all the zoom levels.";
+    public static final String OMSTMSGENERATOR_P_CACHE_VECTORS_LIMIT_DESCRIPTION = "The max number of features of a vector layer kept in memory with doCacheVectors. Layers with more features are read from file.";
 
     public static final String OMSCOVERAGELISTER_DESCRIPTION = "A module that reads rasters.";
     public static final String OMSCOVERAGELISTER_DOCUMENTATION = "";
@@ -830,7 +832,7 @@ public class GearsMessages {
     public static final String OMSSURFACEINTERPOLATOR_IN_GRID_DESCRIPTION = "The grid on which to interpolate.";
     public static final String OMSSURFACEINTERPOLATOR_IN_MASK_DESCRIPTION = "A mask raster map. Values will be computed only where the mask has values.";
     public static final String OMSSURFACEINTERPOLATOR_F_CAT_DESCRIPTION = "Field from which to take the category value.";
-    public static final String OMSSURFACEINTERPOLATOR_P_MODE_DESCRIPTION = "Interpolation mode.";
+    public static final String OMSSURFACEINTERPOLATOR_P_MODE_DESCRIPTION = "Interpolation mode (TPS by blocks solves one spline for each block of cells and is much faster on dense data).";
     public static final String OMSSURFACEINTERPOLATOR_P_BUFFER_DESCRIPTION = "The buffer to use for interpolation.";
     public static final String OMSSURFACEINTERPOLATOR_P_MAX_THREADS_DESCRIPTION = "Max threads to use.";
     public static final String OMSSURFACEINTERPOLATOR_OUT_RASTER_DESCRIPTION = "The interpolated raster";
@@ -29,8 +29,11 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.hortonmachine.dbs.compat.EDb;
+import org.hortonmachine.gears.io.las.core.LasPointsBatch;
 import org.hortonmachine.gears.io.las.core.LasRecord;
 import org.hortonmachine.gears.io.las.index.LasIndexer;
+import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
 import org.hortonmachine.gears.utils.geometry.GeometryUtilities;
 import org.hortonmachine.gears.utils.math.NumericsUtilities;
 import org.opengis.feature.simple.SimpleFeature;
@@ -43,6 +46,7 @@ import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
 
 /**
  * Abstract las data manager class.
@@ -139,6 +143,25 @@ public abstract class ALasDataManager implements AutoCloseable {
      */
     public abstract List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception;
 
+    /**
+     * Stream the points inside a given geometry boundary to a visitor.
+     *
+     * <p>Differently from {@link #getPointsInGeometry(Geometry, boolean)} the points are
+     * not collected: they are read in batches and passed on one by one, so the memory
+     * used doesn't depend on the size of the queried area. The attribute filter is
+     * checked before the records are created.</p>
+     *
+     * @param checkGeom the {@link org.locationtech.jts.geom.Geometry} to use to check.
+     * @param doOnlyEnvelope check for the geom envelope instead of a intersection with it.
+     * @param filter an optional attribute filter. Can be <code>null</code>.
+     * @param visitor the visitor of the points, which can stop the query.
+     * @return <code>false</code> if the visitor stopped the query.
+     * @throws Exception also if the filter uses attributes the source doesn't have, 
+     *          as the return numbers in databases.
+     */
+    public abstract boolean visitPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, LasPointFilter filter,
+            ILasPointVisitor visitor ) throws Exception;
+
     /**
      * Retrieve all the trees envelopes that intersect the geometry.
      *
@@ -199,7 +222,7 @@ public abstract class ALasDataManager implements AutoCloseable {
      * @return the features of the envelopes contained in the supplied geometry.
      * @throws Exception
      */
-    public synchronized SimpleFeatureCollection getEnvelopeFeaturesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope,
+    public SimpleFeatureCollection getEnvelopeFeaturesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope,
             double[] minMaxZI, boolean doPoints ) throws Exception {
         List<Geometry> envelopesInGeometry = getEnvelopesInGeometry(checkGeom, doOnlyEnvelope, null);
 
@@ -312,6 +335,98 @@ public abstract class ALasDataManager implements AutoCloseable {
         return true;
     }
 
+    /**
+     * Check a point of a batch for constraints.
+     *
+     * @param batch the batch containing the point.
+     * @param index the index of the point in the batch.
+     * @return <code>true</code> if the point is accepted.
+     */
+    protected boolean doAccept( LasPointsBatch batch, int index ) {
+        if (!hasConstraint) {
+            return true;
+        }
+        if (intensityRange != null) {
+            short intensity = batch.intensity[index];
+            if (intensity < intensityRange[0] || intensity > intensityRange[1]) {
+                return false;
+            }
+        }
+        if (impulses != null) {
+            int impulse = batch.returnNumber[index];
+            boolean takeIt = false;
+            for( final double imp : impulses ) {
+                if (impulse == (int) imp) {
+                    takeIt = true;
+                    break;
+                }
+            }
+            if (!takeIt)
+                return false;
+        }
+        if (impulsesNum != -1) {
+            if (batch.numberOfReturns[index] != impulsesNum) {
+                return false;
+            }
+        }
+        if (classes != null) {
+            int classification = batch.classification[index];
+            for( final double classs : classes ) {
+                if (classification == (int) classs) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Pass the points of a batch that are accepted by the constraints, the filter and the geometry to a visitor.
+     *
+     * @param batch the batch to check.
+     * @param env the envelope of the query.
+     * @param preparedGeometry the geometry of the query or <code>null</code> to check only the envelope.
+     * @param filter the optional attribute filter.
+     * @param inDem the optional dem to normalize the elevation.
+     * @param elevThreshold the threshold on the normalized elevation.
+     * @param visitor the visitor.
+     * @return <code>false</code> if the visitor stopped the query.
+     * @throws Exception
+     */
+    protected boolean visitBatch( LasPointsBatch batch, Envelope env, PreparedGeometry preparedGeometry, LasPointFilter filter,
+            GridCoverage2D inDem, double elevThreshold, ILasPointVisitor visitor ) throws Exception {
+        for( int i = 0; i < batch.getSize(); i++ ) {
+            // filter on the columns, records are created only for the accepted points
+            if (!doAccept(batch, i) || (filter != null && !filter.accept(batch, i))
+                    || !env.contains(batch.x[i], batch.y[i])) {
+                continue;
+            }
+            if (preparedGeometry != null && !preparedGeometry.contains(gf.createPoint(new Coordinate(batch.x[i], batch.y[i])))) {
+                continue;
+            }
+            LasRecord lasDot;
+            if (inDem != null) {
+                double value = CoverageUtilities.getValue(inDem, batch.x[i], batch.y[i]);
+                if (HMConstants.isNovalue(value)) {
+                    continue;
+                }
+                double height = batch.z[i] - value;
+                if (height <= elevThreshold) {
+                    continue;
+                }
+                lasDot = batch.toRecord(i);
+                lasDot.groundElevation = height;
+            } else {
+                lasDot = batch.toRecord(i);
+            }
+            if (!visitor.visit(lasDot)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Extracts the points contained inside a vertical range from the supplied list of points.
      *
@@ -37,6 +37,7 @@ import org.hortonmachine.gears.io.las.databases.LasCellsTable;
 import org.hortonmachine.gears.io.las.databases.LasSource;
 import org.hortonmachine.gears.io.las.databases.LasSourcesTable;
 import org.hortonmachine.gears.io.las.index.LasIndexer;
+import org.hortonmachine.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.hortonmachine.gears.libs.modules.HMConstants;
 import org.hortonmachine.gears.utils.CrsUtilities;
 import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
@@ -65,7 +66,7 @@ class DatabaseLasDataManager extends ALasDataManager {
     private ReferencedEnvelope referencedEnvelope2D;
     private List<ReferencedEnvelope> referencedEnvelope2DList = new ArrayList<ReferencedEnvelope>();
     private ReferencedEnvelope3D referencedEnvelope3D;
-    private boolean isOpen;
+    private volatile boolean isOpen;
 
     private ASpatialDb spatialDb;
 
@@ -105,22 +106,42 @@ class DatabaseLasDataManager extends ALasDataManager {
 
     @SuppressWarnings("unchecked")
     @Override
-    public synchronized List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
+    public List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
+        ArrayList<LasRecord> pointsListForTile = new ArrayList<LasRecord>();
+        visitPointsInGeometry(checkGeom, doOnlyEnvelope, null, pointsListForTile::add);
+        return pointsListForTile;
+    }
+
+    /**
+     * Stream the points inside a given geometry boundary to a visitor.
+     *
+     * <p>The database doesn't store the return numbers, so filters on them are not supported.</p>
+     *
+     * @throws ModelsIllegalargumentException if the filter has return number constraints.
+     */
+    @Override
+    public boolean visitPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, LasPointFilter filter,
+            ILasPointVisitor visitor ) throws Exception {
         checkOpen();
+        if (filter != null && filter.hasReturnNumbers()) {
+            throw new ModelsIllegalargumentException(
+                    "Las databases don't store the return numbers, the points can't be filtered by them.", this);
+        }
 
-        ArrayList<LasRecord> pointsListForTile = new ArrayList<LasRecord>();
         Envelope checkEnvelope = checkGeom.getEnvelopeInternal();
         PreparedGeometry preparedGeometry = null;
         if (!doOnlyEnvelope) {
             preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
         }
-        final PreparedGeometry _preparedGeometry = preparedGeometry;
         List<LasCell> lasCells = LasCellsTable.getLasCells(spatialDb, checkGeom, true, true, false, false, false);
-        lasCells.stream().forEach(cell -> {
+        for( LasCell cell : lasCells ) {
             double[][] positions = LasCellsTable.getCellPositions(cell);
             short[][] cellIntensityClass = LasCellsTable.getCellIntensityClass(cell);
 
             for( int i = 0; i < positions.length; i++ ) {
+                if (filter != null && !filter.accept(positions[i][2], cellIntensityClass[i][1])) {
+                    continue;
+                }
                 LasRecord dot = new LasRecord();
                 dot.x = positions[i][0];
                 dot.y = positions[i][1];
@@ -129,7 +150,7 @@ class DatabaseLasDataManager extends ALasDataManager {
                 Coordinate c = new Coordinate(dot.x, dot.y);
                 if (doOnlyEnvelope && !checkEnvelope.contains(c)) {
                     continue;
-                } else if (!doOnlyEnvelope && !_preparedGeometry.contains(gf.createPoint(c))) {
+                } else if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
                     continue;
                 }
 
@@ -147,14 +168,16 @@ class DatabaseLasDataManager extends ALasDataManager {
                 dot.intensity = cellIntensityClass[i][0];
                 dot.classification = (byte) cellIntensityClass[i][1];
 
-                pointsListForTile.add(dot);
+                if (!visitor.visit(dot)) {
+                    return false;
+                }
             }
-        });
-        return pointsListForTile;
+        }
+        return true;
     }
 
     @Override
-    public synchronized List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
+    public List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
             throws Exception {
         checkOpen();
 
@@ -248,7 +271,11 @@ class DatabaseLasDataManager extends ALasDataManager {
 
     private void checkOpen() throws Exception {
         if (!isOpen) {
-            open();
+            synchronized (this) {
+                if (!isOpen) {
+                    open();
+                }
+            }
         }
     }
 
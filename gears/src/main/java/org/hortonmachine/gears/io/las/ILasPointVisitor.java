@@ -0,0 +1,40 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.io.las;
+
+import org.hortonmachine.gears.io.las.core.LasRecord;
+
+/**
+ * A visitor of the points streamed by
+ * {@link ALasDataManager#visitPointsInGeometry(org.locationtech.jts.geom.Geometry, boolean, LasPointFilter, ILasPointVisitor)}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@FunctionalInterface
+public interface ILasPointVisitor {
+
+    /**
+     * Visit a point.
+     *
+     * @param dot the point. The record is not used any more by the data manager, so it can be kept.
+     * @return <code>false</code> to stop the query.
+     * @throws Exception if something goes wrong, which also stops the query.
+     */
+    boolean visit( LasRecord dot ) throws Exception;
+
+}
@@ -30,6 +30,7 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.hortonmachine.gears.io.las.core.ALasReader;
 import org.hortonmachine.gears.io.las.core.ILasHeader;
+import org.hortonmachine.gears.io.las.core.LasPointsBatch;
 import org.hortonmachine.gears.io.las.core.LasRecord;
 import org.hortonmachine.gears.io.las.index.LasIndexer;
 import org.hortonmachine.gears.io.las.index.OmsLasIndexReader;
@@ -65,8 +66,8 @@ class LasFileDataManager extends ALasDataManager {
     private ReferencedEnvelope3D referencedEnvelope3D;
     private ALasReader lasReader;
     private ILasHeader lasHeader;
-    private boolean isOpen;
-    private STRtree pointsTree;
+    private volatile boolean isOpen;
+    private volatile STRtree pointsTree;
 
     /**
      * Constructor.
@@ -110,97 +111,144 @@ class LasFileDataManager extends ALasDataManager {
      */
     @Override
     public void open() throws Exception {
-        lasReader = ALasReader.getReader(lasFile, crs);
+        lasReader = ALasReader.getMappedReader(lasFile, crs);
         lasReader.open();
         lasHeader = lasReader.getHeader();
         isOpen = true;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Get points inside a given geometry boundary.
+     *
+     * <p>The first call reads the whole file into a spatial index, the
+     * following ones only query the index and can run concurrently.</p>
+     */
     @Override
-    public synchronized List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
-        checkOpen();
-
+    public List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
         ArrayList<LasRecord> pointsListForTile = new ArrayList<LasRecord>();
+        visitTree(getPointsTree(), checkGeom, doOnlyEnvelope, null, pointsListForTile::add);
+        return pointsListForTile;
+    }
+
+    /**
+     * Stream the points inside a given geometry boundary to a visitor.
+     *
+     * <p>If the file has already been indexed by {@link #getPointsInGeometry(Geometry, boolean)}
+     * the index is used, else the file is scanned without keeping the points.</p>
+     */
+    @Override
+    public boolean visitPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, LasPointFilter filter,
+            ILasPointVisitor visitor ) throws Exception {
+        STRtree tree = pointsTree;
+        if (tree != null) {
+            return visitTree(tree, checkGeom, doOnlyEnvelope, filter, visitor);
+        }
+
+        Envelope env = checkGeom.getEnvelopeInternal();
+        PreparedGeometry preparedGeometry = null;
+        if (!doOnlyEnvelope) {
+            preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
+        }
+        // a reader of its own, so that concurrent scans don't share the position
+        try (ALasReader reader = ALasReader.getMappedReader(lasFile, crs)) {
+            reader.open();
+            LasPointsBatch batch = new LasPointsBatch();
+            while( reader.readBatch(batch) > 0 ) {
+                if (!visitBatch(batch, env, preparedGeometry, filter, inDem, elevThreshold, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean visitTree( STRtree tree, Geometry checkGeom, boolean doOnlyEnvelope, LasPointFilter filter,
+            ILasPointVisitor visitor ) throws Exception {
         Envelope checkEnvelope = checkGeom.getEnvelopeInternal();
-        if (pointsTree != null) {
-            List<LasRecord> pointsList = pointsTree.query(checkEnvelope);
-            PreparedGeometry preparedGeometry = null;
-            if (!doOnlyEnvelope) {
-                preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
+        PreparedGeometry preparedGeometry = null;
+        if (!doOnlyEnvelope) {
+            preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
+        }
+        List<LasRecord> pointsList = tree.query(checkEnvelope);
+        for( LasRecord lasDot : pointsList ) {
+            if (filter != null && !filter.accept(lasDot)) {
+                continue;
             }
-            for( LasRecord lasDot : pointsList ) {
-                Coordinate c = new Coordinate(lasDot.x, lasDot.y);
-                if (!checkEnvelope.contains(c)) {
-                    continue;
-                }
-                if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
+            Coordinate c = new Coordinate(lasDot.x, lasDot.y);
+            if (!checkEnvelope.contains(c)) {
+                continue;
+            }
+            if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
+                continue;
+            }
+            if (inDem != null) {
+                double value = CoverageUtilities.getValue(inDem, lasDot.x, lasDot.y);
+                if (HMConstants.isNovalue(value)) {
                     continue;
                 }
-                pointsListForTile.add(lasDot);
-            }
-        } else {
-            pointsTree = new STRtree();
-            ReferencedEnvelope overallEnvelope = getOverallEnvelope();
-            if (doOnlyEnvelope && checkEnvelope.covers(overallEnvelope)) {
-                // read it straight
-                while( lasReader.hasNextPoint() ) {
-                    LasRecord lasDot = lasReader.getNextPoint();
-                    if (!doAccept(lasDot)) {
-                        continue;
+                double height = lasDot.z - value;
+                if (height > elevThreshold) {
+                    // the indexed records are shared by all queries, don't modify them
+                    LasRecord normalizedDot = copy(lasDot);
+                    normalizedDot.groundElevation = height;
+                    if (!visitor.visit(normalizedDot)) {
+                        return false;
                     }
-                    pointsTree.insert(new Envelope(new Coordinate(lasDot.x, lasDot.y)), lasDot);
-                    pointsListForTile.add(lasDot);
                 }
-            } else {
-
-                Envelope env = checkGeom.getEnvelopeInternal();
-                PreparedGeometry preparedGeometry = null;
-                if (!doOnlyEnvelope) {
-                    preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
-                }
-
-                while( lasReader.hasNextPoint() ) {
-                    LasRecord lasDot = lasReader.getNextPoint();
-                    if (!doAccept(lasDot)) {
-                        continue;
-                    }
-                    Coordinate c = new Coordinate(lasDot.x, lasDot.y);
-                    pointsTree.insert(new Envelope(c), lasDot);
-                    if (!env.contains(c)) {
-                        continue;
-                    }
+            } else if (!visitor.visit(lasDot)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                    if (inDem != null) {
-                        // check geom instead of only envelope?
-                        if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                            continue;
-                        }
-                        double value = CoverageUtilities.getValue(inDem, lasDot.x, lasDot.y);
-                        if (HMConstants.isNovalue(value)) {
-                            continue;
+    private STRtree getPointsTree() throws Exception {
+        STRtree tree = pointsTree;
+        if (tree == null) {
+            synchronized (this) {
+                tree = pointsTree;
+                if (tree == null) {
+                    checkOpen();
+                    tree = new STRtree();
+                    LasPointsBatch batch = new LasPointsBatch();
+                    while( lasReader.readBatch(batch) > 0 ) {
+                        for( int i = 0; i < batch.getSize(); i++ ) {
+                            if (!doAccept(batch, i)) {
+                                continue;
+                            }
+                            LasRecord lasDot = batch.toRecord(i);
+                            tree.insert(new Envelope(lasDot.x, lasDot.x, lasDot.y, lasDot.y), lasDot);
                         }
-                        double height = lasDot.z - value;
-                        if (height > elevThreshold) {
-                            lasDot.groundElevation = height;
-                            pointsListForTile.add(lasDot);
-                        }
-                    } else {
-                        if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                            continue;
-                        }
-                        pointsListForTile.add(lasDot);
                     }
+                    // build it now, so that queries only read it
+                    tree.build();
+                    close();
+                    pointsTree = tree;
                 }
-
             }
-            close();
         }
-        return pointsListForTile;
+        return tree;
+    }
+
+    private static LasRecord copy( LasRecord dot ) {
+        LasRecord copy = new LasRecord();
+        copy.x = dot.x;
+        copy.y = dot.y;
+        copy.z = dot.z;
+        copy.intensity = dot.intensity;
+        copy.returnNumber = dot.returnNumber;
+        copy.numberOfReturns = dot.numberOfReturns;
+        copy.classification = dot.classification;
+        copy.gpsTime = dot.gpsTime;
+        copy.color = dot.color.clone();
+        copy.groundElevation = dot.groundElevation;
+        copy.pointsDensity = dot.pointsDensity;
+        return copy;
     }
 
     @Override
-    public synchronized List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
+    public List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
             throws Exception {
         checkOpen();
 
@@ -268,7 +316,11 @@ class LasFileDataManager extends ALasDataManager {
 
     private void checkOpen() throws Exception {
         if (!isOpen) {
-            open();
+            synchronized (this) {
+                if (!isOpen) {
+                    open();
+                }
+            }
         }
     }
 
@@ -18,9 +18,10 @@
 package org.hortonmachine.gears.io.las;
 
 import java.io.File;
-import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -29,29 +30,24 @@ import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
-import org.geotools.util.WeakValueHashMap;
 import org.hortonmachine.gears.io.las.core.ALasReader;
-import org.hortonmachine.gears.io.las.core.ILasHeader;
+import org.hortonmachine.gears.io.las.core.LasPointsBatch;
+import org.hortonmachine.gears.io.las.core.LasReaderPool;
 import org.hortonmachine.gears.io.las.core.LasRecord;
 import org.hortonmachine.gears.io.las.index.LasIndexer;
 import org.hortonmachine.gears.io.las.index.OmsLasIndexReader;
-import org.hortonmachine.gears.io.las.index.strtree.STRtreeJGT;
-import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.io.las.index.PackedHilbertRtree;
 import org.hortonmachine.gears.utils.CrsUtilities;
-import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
 import org.hortonmachine.gears.utils.files.FileUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
-import org.locationtech.jts.index.strtree.AbstractSTRtree;
-import org.locationtech.jts.index.strtree.ItemBoundable;
 
 /**
  * A class that manages las folder data.
@@ -59,13 +55,11 @@ import org.locationtech.jts.index.strtree.ItemBoundable;
  * @author Andrea Antonello (www.hydrologis.com)
  */
 class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable {
-    private WeakValueHashMap<String, Pair> fileName2LasReaderMap;
-    private WeakValueHashMap<String, STRtreeJGT> fileName2IndexMap;
-    private List<String> fileName4LasReaderMapSupport;
-    // private int READERCACHE = 5;
+    private final ConcurrentHashMap<String, IndexedFile> indexedFiles = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<LasPointsBatch> batchesPool = new ConcurrentLinkedQueue<>();
     private File lasFolderIndexFile;
     private File lasFolder;
-    private STRtreeJGT mainLasFolderIndex;
+    private volatile PackedHilbertRtree mainLasFolderIndex;
     private GridCoverage2D inDem;
     private double elevThreshold;
 
@@ -103,15 +97,6 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         } else {
             throw new IllegalArgumentException("The Crs can't be null.");
         }
-        // indexMap = new LinkedHashMap<String, Pair>() {
-        // @Override
-        // protected boolean removeEldestEntry(Entry<String, Pair> eldest) {
-        // return size() > READERCACHE;
-        // }
-        // };
-        fileName2LasReaderMap = new WeakValueHashMap<String, Pair>();
-        fileName2IndexMap = new WeakValueHashMap<String, STRtreeJGT>();
-        fileName4LasReaderMapSupport = new ArrayList<String>();
     }
 
     @Override
@@ -120,102 +105,84 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
     }
 
     /**
-     * Open the main folder file and read the main index.
+     * Open the main folder file and map the main index.
      *
      * @throws Exception
      */
     @Override
     public void open() throws Exception {
-        mainLasFolderIndex = OmsLasIndexReader.readIndex(lasFolderIndexFile.getAbsolutePath());
+        mainLasFolderIndex = OmsLasIndexReader.openIndex(lasFolderIndexFile.getAbsolutePath());
     }
 
     /**
      * Get points inside a given geometry boundary.
      *
+     * <p>This can be called by several threads at the same time, each
+     * query reads through its own readers.</p>
+     *
      * @param checkGeom the {@link org.locationtech.jts.geom.Geometry} to use to check.
      * @param doOnlyEnvelope check for the geom envelope instead of a intersection with it.
      * @return the list of points contained in the supplied geometry.
      * @throws Exception
      */
     @Override
-    @SuppressWarnings("rawtypes")
-    public synchronized List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
-        checkOpen();
+    public List<LasRecord> getPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope ) throws Exception {
         ArrayList<LasRecord> pointsListForTile = new ArrayList<LasRecord>();
+        visitPointsInGeometry(checkGeom, doOnlyEnvelope, null, pointsListForTile::add);
+        return pointsListForTile;
+    }
 
+    @Override
+    public boolean visitPointsInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, LasPointFilter filter,
+            ILasPointVisitor visitor ) throws Exception {
+        checkOpen();
         Envelope env = checkGeom.getEnvelopeInternal();
         PreparedGeometry preparedGeometry = null;
         if (!doOnlyEnvelope) {
             preparedGeometry = PreparedGeometryFactory.prepare(checkGeom);
         }
 
-        List filesList = mainLasFolderIndex.query(env);
-        for( Object fileName : filesList ) {
-            if (fileName instanceof String) {
-                String name = (String) fileName;
-
-                Pair pair = fileName2LasReaderMap.get(name);
-                if (pair == null) {
-                    File lasFile = new File(lasFolder, name);
-                    File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
-
-                    if (lasIndexFile.exists()) {
-                        pair = getIndexPair(lasFile);
-                        if (pair != null) {
-                            fileName2LasReaderMap.put(name, pair);
-                            fileName4LasReaderMapSupport.add(name);
-                        }
-                    } else {
-                        continue;
-                    }
+        List<Object> filesList = mainLasFolderIndex.query(env);
+        LasPointsBatch batch = batchesPool.poll();
+        if (batch == null) {
+            batch = new LasPointsBatch();
+        }
+        try {
+            for( Object fileName : filesList ) {
+                IndexedFile indexedFile = getIndexedFile((String) fileName);
+                if (indexedFile == null) {
+                    continue;
                 }
-
-                List addressesList = pair.strTree.query(env);
-                for( Object obj : addressesList ) {
-                    if (obj instanceof double[]) {
-                        double[] addresses = (double[]) obj;
-                        long from = (long) addresses[0];
-                        long to = (long) addresses[1];
-                        for( long pointNum = from; pointNum < to; pointNum++ ) {
-                            LasRecord lasDot = pair.reader.getPointAt(pointNum);
-                            if (!doAccept(lasDot)) {
-                                continue;
+                int[] tiles = indexedFile.index.queryItems(env);
+                if (tiles.length == 0) {
+                    continue;
+                }
+                ALasReader reader = indexedFile.readers.borrow();
+                try {
+                    for( int tile : tiles ) {
+                        long from = (long) indexedFile.index.getValue(tile, 0);
+                        long to = (long) indexedFile.index.getValue(tile, 1);
+                        reader.seek(from);
+                        long remaining = to - from;
+                        while( remaining > 0 ) {
+                            int read = reader.readBatch(batch, (int) Math.min(remaining, batch.getCapacity()));
+                            if (read == 0) {
+                                break;
                             }
-                            if (inDem != null) {
-                                Coordinate c = new Coordinate(lasDot.x, lasDot.y);
-                                if (env.contains(c)) {
-                                    // check geom instead of only envelope?
-                                    if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                                        continue;
-                                    }
-                                    double value = CoverageUtilities.getValue(inDem, lasDot.x, lasDot.y);
-                                    if (HMConstants.isNovalue(value)) {
-                                        continue;
-                                    }
-                                    double height = lasDot.z - value;
-                                    if (height > elevThreshold) {
-                                        // lasDot.z = height;
-                                        lasDot.groundElevation = height;
-                                        pointsListForTile.add(lasDot);
-                                    }
-                                }
-                            } else {
-                                Coordinate c = new Coordinate(lasDot.x, lasDot.y);
-                                if (env.contains(c)) {
-                                    // check geom instead of only envelope?
-                                    if (!doOnlyEnvelope && !preparedGeometry.contains(gf.createPoint(c))) {
-                                        continue;
-                                    }
-                                    pointsListForTile.add(lasDot);
-                                }
+                            remaining -= read;
+                            if (!visitBatch(batch, env, preparedGeometry, filter, inDem, elevThreshold, visitor)) {
+                                return false;
                             }
-
                         }
                     }
+                } finally {
+                    indexedFile.readers.release(reader);
                 }
             }
+        } finally {
+            batchesPool.offer(batch);
         }
-        return pointsListForTile;
+        return true;
     }
 
     /**
@@ -228,7 +195,7 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
      * @throws Exception
      */
     @Override
-    public synchronized List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
+    public List<Geometry> getEnvelopesInGeometry( Geometry checkGeom, boolean doOnlyEnvelope, double[] minMaxZ )
             throws Exception {
         checkOpen();
         ArrayList<Geometry> envelopeListForTile = new ArrayList<Geometry>();
@@ -242,37 +209,28 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         double max = Double.NEGATIVE_INFINITY;
         List< ? > filesList = mainLasFolderIndex.query(env);
         for( Object fileName : filesList ) {
-            if (fileName instanceof String) {
-                String name = (String) fileName;
-                File lasFile = new File(lasFolder, name);
-                File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
-
-                String absolutePath = lasIndexFile.getAbsolutePath();
-                STRtreeJGT lasIndex = fileName2IndexMap.get(absolutePath);
-                if (lasIndex == null) {
-                    lasIndex = OmsLasIndexReader.readIndex(absolutePath);
-                    fileName2IndexMap.put(absolutePath, lasIndex);
+            IndexedFile indexedFile = getIndexedFile((String) fileName);
+            if (indexedFile != null) {
+                PackedHilbertRtree lasIndex = indexedFile.index;
+                if (lasIndex.getValuesSize() < 4) {
+                    continue;
                 }
-                List< ? > queryBoundables = lasIndex.queryBoundables(env);
-                for( Object object : queryBoundables ) {
-                    if (object instanceof ItemBoundable) {
-                        ItemBoundable itemBoundable = (ItemBoundable) object;
-                        double[] item = (double[]) itemBoundable.getItem();
-                        if (item.length > 0) {
-                            Envelope bounds = (Envelope) itemBoundable.getBounds();
-                            Polygon envelopePolygon = LasIndexer.envelopeToPolygon(bounds);
-                            envelopePolygon.setUserData(new double[]{item[2], item[3]});
-                            if (minMaxZ != null) {
-                                min = Math.min(min, item[2]);
-                                max = Math.max(max, item[2]);
-                            }
-                            if (doOnlyEnvelope) {
-                                envelopeListForTile.add(envelopePolygon);
-                            } else {
-                                if (preparedGeometry.intersects(envelopePolygon)) {
-                                    envelopeListForTile.add(envelopePolygon);
-                                }
-                            }
+                int[] tiles = lasIndex.queryItems(env);
+                for( int tile : tiles ) {
+                    Envelope bounds = lasIndex.getBounds(tile);
+                    double avgElev = lasIndex.getValue(tile, 2);
+                    double avgIntensity = lasIndex.getValue(tile, 3);
+                    Polygon envelopePolygon = LasIndexer.envelopeToPolygon(bounds);
+                    envelopePolygon.setUserData(new double[]{avgElev, avgIntensity});
+                    if (minMaxZ != null) {
+                        min = Math.min(min, avgElev);
+                        max = Math.max(max, avgElev);
+                    }
+                    if (doOnlyEnvelope) {
+                        envelopeListForTile.add(envelopePolygon);
+                    } else {
+                        if (preparedGeometry.intersects(envelopePolygon)) {
+                            envelopeListForTile.add(envelopePolygon);
                         }
                     }
                 }
@@ -286,33 +244,15 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
     }
 
     @Override
-    @SuppressWarnings("rawtypes")
     public synchronized ReferencedEnvelope getOverallEnvelope() throws Exception {
         if (referencedEnvelope2D == null) {
             checkOpen();
-            Class<AbstractSTRtree> class1 = AbstractSTRtree.class;
-            Field f1 = class1.getDeclaredField("itemBoundables");
-            f1.setAccessible(true);
-            ArrayList boundablesList = (ArrayList) f1.get(mainLasFolderIndex);
-            Envelope env = null;
-            for( Object item : boundablesList ) {
-                if (item instanceof ItemBoundable) {
-                    ItemBoundable boundable = (ItemBoundable) item;
-                    Envelope envelope = (Envelope) boundable.getBounds();
-                    ReferencedEnvelope tmp = new ReferencedEnvelope(envelope, crs);
-                    referencedEnvelope2DList.add(tmp);
-                    String name = (String) boundable.getItem();
-                    fileNamesList.add(name);
-
-                    if (env == null) {
-                        env = envelope;
-                    } else {
-                        env.expandToInclude(envelope.getMinX(), envelope.getMinY());
-                        env.expandToInclude(envelope.getMaxX(), envelope.getMaxY());
-                    }
-                }
+            for( int i = 0; i < mainLasFolderIndex.size(); i++ ) {
+                Envelope envelope = mainLasFolderIndex.getBounds(i);
+                referencedEnvelope2DList.add(new ReferencedEnvelope(envelope, crs));
+                fileNamesList.add(mainLasFolderIndex.getName(i));
             }
-            referencedEnvelope2D = new ReferencedEnvelope(env, crs);
+            referencedEnvelope2D = new ReferencedEnvelope(mainLasFolderIndex.getBounds(), crs);
         }
         return referencedEnvelope2D;
     }
@@ -326,27 +266,22 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
     @Override
     public synchronized ReferencedEnvelope3D getEnvelope3D() throws Exception {
         if (referencedEnvelope3D == null) {
-            checkReadersMap();
-
-            for( String key : fileName4LasReaderMapSupport ) {
-                Pair pair = fileName2LasReaderMap.get(key);
-                if (pair == null) {
-                    File lasFile = new File(lasFolder, key);
-                    pair = getIndexPair(lasFile);
-                    if (pair == null) {
-                        System.err.println("Null reader pair: " + lasFile);
-                        continue;
-                    }
+            checkOpen();
+            ReferencedEnvelope3D envelope3D = null;
+            for( int i = 0; i < mainLasFolderIndex.size(); i++ ) {
+                IndexedFile indexedFile = getIndexedFile(mainLasFolderIndex.getName(i));
+                if (indexedFile == null) {
+                    continue;
                 }
-                ILasHeader header = pair.reader.getHeader();
-                ReferencedEnvelope3D envelope = header.getDataEnvelope();
-                if (referencedEnvelope3D == null) {
-                    referencedEnvelope3D = envelope;
+                ReferencedEnvelope3D envelope = indexedFile.readers.getHeader().getDataEnvelope();
+                if (envelope3D == null) {
+                    envelope3D = envelope;
                 } else {
-                    referencedEnvelope3D.expandToInclude(envelope.getMinX(), envelope.getMinY(), envelope.getMinZ());
-                    referencedEnvelope3D.expandToInclude(envelope.getMaxX(), envelope.getMaxY(), envelope.getMaxZ());
+                    envelope3D.expandToInclude(envelope.getMinX(), envelope.getMinY(), envelope.getMinZ());
+                    envelope3D.expandToInclude(envelope.getMaxX(), envelope.getMaxY(), envelope.getMaxZ());
                 }
             }
+            referencedEnvelope3D = envelope3D;
         }
         return referencedEnvelope3D;
     }
@@ -379,92 +314,62 @@ class LasFolderIndexDataManager extends ALasDataManager implements AutoCloseable
         return overviewFeatures;
     }
 
-    @SuppressWarnings("rawtypes")
-    private void checkReadersMap() throws Exception {
-        checkOpen();
-        if (fileName2LasReaderMap.size() == 0) {
-            List filesList = mainLasFolderIndex.itemsTree();
-            for( Object fileName : filesList ) {
-                if (fileName instanceof String) {
-                    String name = (String) fileName;
-                    getReader(name);
-                } else if (fileName instanceof List) {
-                    List filesList2 = (List) fileName;
-                    for( Object fileName2 : filesList2 ) {
-                        if (fileName2 instanceof String) {
-                            String name2 = (String) fileName2;
-                            getReader(name2);
-                        }
-                    }
-                } else {
-                    throw new RuntimeException();
-                }
-            }
-        }
-    }
-
-    private void getReader( String name ) throws Exception {
-        Pair pair = fileName2LasReaderMap.get(name);
-        if (pair == null) {
+    /**
+     * Get the index and the readers of a file of the folder, opening them the first time.
+     *
+     * @return the indexed file or <code>null</code> if the file has no index.
+     */
+    private IndexedFile getIndexedFile( String name ) throws Exception {
+        IndexedFile indexedFile = indexedFiles.get(name);
+        if (indexedFile == null) {
             File lasFile = new File(lasFolder, name);
-            pair = getIndexPair(lasFile);
-            if (pair != null) {
-                fileName2LasReaderMap.put(name, pair);
-                fileName4LasReaderMapSupport.add(name);
+            File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
+            if (!lasIndexFile.exists()) {
+                System.err.println("Doesn't exist: " + lasIndexFile);
+                return null;
+            }
+            IndexedFile newIndexedFile = new IndexedFile(OmsLasIndexReader.openIndex(lasIndexFile.getAbsolutePath()),
+                    new LasReaderPool(lasFile, crs));
+            indexedFile = indexedFiles.putIfAbsent(name, newIndexedFile);
+            if (indexedFile == null) {
+                indexedFile = newIndexedFile;
+            } else {
+                // opened by another thread in the meantime
+                newIndexedFile.readers.close();
             }
-            // System.out.println("Added: " + lasIndexFile);
-            // } else {
-
-        }
-    }
-
-    private Pair getIndexPair( File lasFile ) throws Exception {
-        File lasIndexFile = FileUtilities.substituteExtention(lasFile, "lasfix");
-        if (lasIndexFile.exists()) {
-            ALasReader reader = ALasReader.getReader(lasFile, crs);
-            reader.open();
-            reader.getHeader();
-            STRtreeJGT lasIndex = OmsLasIndexReader.readIndex(lasIndexFile.getAbsolutePath());
-            Pair pair = new Pair();
-            pair.reader = reader;
-            pair.strTree = lasIndex;
-            return pair;
-        } else {
-            System.err.println("Doesn't exist: " + lasIndexFile);
         }
-        return null;
+        return indexedFile;
     }
 
     private void checkOpen() throws Exception {
         if (mainLasFolderIndex == null) {
-            open();
+            synchronized (this) {
+                if (mainLasFolderIndex == null) {
+                    open();
+                }
+            }
         }
     }
 
     @Override
     public void close() throws Exception {
-        for( String key : fileName4LasReaderMapSupport ) {
-            Pair pair = fileName2LasReaderMap.get(key);
-            if (pair != null)
-                pair.close();
+        for( IndexedFile indexedFile : indexedFiles.values() ) {
+            indexedFile.readers.close();
         }
-        fileName4LasReaderMapSupport.clear();
-        fileName2LasReaderMap.clear();
-        fileName2LasReaderMap = null;
+        indexedFiles.clear();
+        batchesPool.clear();
     }
 
-    private class Pair {
-        ALasReader reader;
-        STRtreeJGT strTree;
-        public void close() {
-            if (reader != null)
-                try {
-                    reader.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            reader = null;
-            strTree = null;
+    /**
+     * The immutable index of a file and the pool of its readers.
+     */
+    private static class IndexedFile {
+        final PackedHilbertRtree index;
+        final LasReaderPool readers;
+
+        IndexedFile( PackedHilbertRtree index, LasReaderPool readers ) {
+            this.index = index;
+            this.readers = readers;
         }
     }
 
@@ -0,0 +1,142 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.io.las;
+
+import org.hortonmachine.gears.io.las.core.LasPointsBatch;
+import org.hortonmachine.gears.io.las.core.LasRecord;
+
+/**
+ * Attribute filter for point queries.
+ *
+ * <p>The data managers check it on the decoded columns, before
+ * any record is created for the point.</p>
+ *
+ * <pre>
+ * LasPointFilter filter = new LasPointFilter().setClasses(2, 3).setZRange(100, 500);
+ * </pre>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasPointFilter {
+
+    private int[] classes;
+    private int[] returnNumbers;
+    private double minZ = Double.NEGATIVE_INFINITY;
+    private double maxZ = Double.POSITIVE_INFINITY;
+
+    /**
+     * @param classes the classifications to keep.
+     * @return the filter.
+     */
+    public LasPointFilter setClasses( int... classes ) {
+        this.classes = classes;
+        return this;
+    }
+
+    /**
+     * @param returnNumbers the return numbers to keep (ex. 1 for first returns).
+     * @return the filter.
+     */
+    public LasPointFilter setReturnNumbers( int... returnNumbers ) {
+        this.returnNumbers = returnNumbers;
+        return this;
+    }
+
+    /**
+     * @param minZ the min elevation to keep (inclusive).
+     * @param maxZ the max elevation to keep (inclusive).
+     * @return the filter.
+     */
+    public LasPointFilter setZRange( double minZ, double maxZ ) {
+        this.minZ = minZ;
+        this.maxZ = maxZ;
+        return this;
+    }
+
+    /**
+     * @return <code>true</code> if the filter has return number constraints.
+     */
+    public boolean hasReturnNumbers() {
+        return returnNumbers != null;
+    }
+
+    /**
+     * Check a point of a batch.
+     *
+     * @param batch the batch.
+     * @param index the index of the point in the batch.
+     * @return <code>true</code> if the point passes the filter.
+     */
+    public boolean accept( LasPointsBatch batch, int index ) {
+        return accept(batch.z[index], batch.classification[index], batch.returnNumber[index]);
+    }
+
+    /**
+     * Check a point.
+     *
+     * @param dot the point.
+     * @return <code>true</code> if the point passes the filter.
+     */
+    public boolean accept( LasRecord dot ) {
+        return accept(dot.z, dot.classification, dot.returnNumber);
+    }
+
+    /**
+     * Check a point by its attributes.
+     *
+     * @param z the elevation.
+     * @param classification the classification.
+     * @param returnNumber the return number.
+     * @return <code>true</code> if the point passes the filter.
+     */
+    public boolean accept( double z, int classification, int returnNumber ) {
+        if (!accept(z, classification)) {
+            return false;
+        }
+        if (returnNumbers != null && !contains(returnNumbers, returnNumber)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check a point by elevation and classification only, for sources without return numbers.
+     * 
+     * <p>Those sources need to reject filters with {@link #hasReturnNumbers() return numbers}.</p>
+     *
+     * @param z the elevation.
+     * @param classification the classification.
+     * @return <code>true</code> if the point passes the filter.
+     */
+    public boolean accept( double z, int classification ) {
+        if (z < minZ || z > maxZ) {
+            return false;
+        }
+        return classes == null || contains(classes, classification);
+    }
+
+    private static boolean contains( int[] values, int value ) {
+        for( int v : values ) {
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
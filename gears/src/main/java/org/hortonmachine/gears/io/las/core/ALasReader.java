@@ -95,6 +95,53 @@ public abstract class ALasReader extends Las implements AutoCloseable{
      */
     public abstract LasRecord getPointAt( long pointPosition ) throws IOException;
 
+    /**
+     * Reads a dot at a given point position, possibly reusing the supplied record.
+     * 
+     * <p>Readers that can decode in place fill the given record, the others return
+     * a new one. Use this when the record is consumed before the next read.</p>
+     * 
+     * @param pointPosition the point position.
+     * @param record the record to fill.
+     * @return the read record.
+     * @throws IOException
+     */
+    public LasRecord getPointAt( long pointPosition, LasRecord record ) throws IOException {
+        return getPointAt(pointPosition);
+    }
+
+    /**
+     * Read the next points into a batch.
+     * 
+     * @param batch the batch to fill, its size is set to the number of read points.
+     * @return the number of points read, 0 if there are no more points.
+     * @throws IOException
+     */
+    public int readBatch( LasPointsBatch batch ) throws IOException {
+        return readBatch(batch, batch.getCapacity());
+    }
+
+    /**
+     * Read the next points into a batch.
+     * 
+     * <p>This implementation copies the records one by one, readers
+     * able to decode directly into the batch override it.</p>
+     * 
+     * @param batch the batch to fill, its size is set to the number of read points.
+     * @param maxPoints the max number of points to read.
+     * @return the number of points read, 0 if there are no more points.
+     * @throws IOException
+     */
+    public int readBatch( LasPointsBatch batch, int maxPoints ) throws IOException {
+        int toRead = Math.min(maxPoints, batch.getCapacity());
+        int count = 0;
+        while( count < toRead && hasNextPoint() ) {
+            batch.set(count++, getNextPoint());
+        }
+        batch.setSize(count);
+        return count;
+    }
+
     /**
      * Reads the position and the record address in the file of the next point.
      * 
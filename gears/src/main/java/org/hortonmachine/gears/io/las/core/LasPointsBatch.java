@@ -0,0 +1,194 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.io.las.core;
+
+/**
+ * A batch of las points stored by column in primitive arrays.
+ *
+ * <p>A batch is filled by {@link ALasReader#readBatch(LasPointsBatch)} and can be
+ * reused for the whole file, so that no object is created per point. Only the
+ * first {@link #getSize()} entries of the arrays are valid.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasPointsBatch {
+
+    /**
+     * The default number of points of a batch.
+     */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /**
+     * The x coordinates, with scale and offset already applied.
+     */
+    public final double[] x;
+
+    /**
+     * The y coordinates, with scale and offset already applied.
+     */
+    public final double[] y;
+
+    /**
+     * The z coordinates, with scale and offset already applied.
+     */
+    public final double[] z;
+
+    /**
+     * The intensity values.
+     */
+    public final short[] intensity;
+
+    /**
+     * The classifications.
+     */
+    public final byte[] classification;
+
+    /**
+     * The return numbers.
+     */
+    public final short[] returnNumber;
+
+    /**
+     * The number of returns of the pulses.
+     */
+    public final short[] numberOfReturns;
+
+    /**
+     * The gps timestamps (0 if the point format has no time).
+     */
+    public final double[] gpsTime;
+
+    /**
+     * The red color component (0 if the point format has no color).
+     */
+    public final short[] red;
+
+    /**
+     * The green color component (0 if the point format has no color).
+     */
+    public final short[] green;
+
+    /**
+     * The blue color component (0 if the point format has no color).
+     */
+    public final short[] blue;
+
+    private int size = 0;
+
+    /**
+     * Create a batch with the {@link #DEFAULT_CAPACITY}.
+     */
+    public LasPointsBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a batch.
+     *
+     * @param capacity the max number of points of the batch.
+     */
+    public LasPointsBatch( int capacity ) {
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        intensity = new short[capacity];
+        classification = new byte[capacity];
+        returnNumber = new short[capacity];
+        numberOfReturns = new short[capacity];
+        gpsTime = new double[capacity];
+        red = new short[capacity];
+        green = new short[capacity];
+        blue = new short[capacity];
+    }
+
+    /**
+     * @return the max number of points of the batch.
+     */
+    public int getCapacity() {
+        return x.length;
+    }
+
+    /**
+     * @return the number of points currently in the batch.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Set the number of valid points, used by the readers filling the batch.
+     *
+     * @param size the number of points.
+     */
+    public void setSize( int size ) {
+        this.size = size;
+    }
+
+    /**
+     * Copy a record into the batch.
+     *
+     * @param index the position in the batch.
+     * @param record the record to copy.
+     */
+    public void set( int index, LasRecord record ) {
+        x[index] = record.x;
+        y[index] = record.y;
+        z[index] = record.z;
+        intensity[index] = record.intensity;
+        classification[index] = record.classification;
+        returnNumber[index] = record.returnNumber;
+        numberOfReturns[index] = record.numberOfReturns;
+        gpsTime[index] = record.gpsTime;
+        red[index] = record.color[0];
+        green[index] = record.color[1];
+        blue[index] = record.color[2];
+    }
+
+    /**
+     * Create a record from a point of the batch.
+     *
+     * @param index the position in the batch.
+     * @return the new record.
+     */
+    public LasRecord toRecord( int index ) {
+        return toRecord(index, new LasRecord());
+    }
+
+    /**
+     * Fill a record with a point of the batch.
+     *
+     * @param index the position in the batch.
+     * @param record the record to fill.
+     * @return the filled record.
+     */
+    public LasRecord toRecord( int index, LasRecord record ) {
+        record.x = x[index];
+        record.y = y[index];
+        record.z = z[index];
+        record.intensity = intensity[index];
+        record.classification = classification[index];
+        record.returnNumber = returnNumber[index];
+        record.numberOfReturns = numberOfReturns[index];
+        record.gpsTime = gpsTime[index];
+        record.color[0] = red[index];
+        record.color[1] = green[index];
+        record.color[2] = blue[index];
+        return record;
+    }
+
+}
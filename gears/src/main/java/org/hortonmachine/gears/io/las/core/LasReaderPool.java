@@ -0,0 +1,144 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.io.las.core;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * A pool of open readers of the same las file.
+ *
+ * <p>Readers keep a position, so they can't be shared between threads. Threads
+ * borrow a reader, use it and give it back, new readers are opened only when all
+ * the others are in use. The readers are memory mapped (see {@link Las#getMappedReader(File, CoordinateReferenceSystem)}),
+ * so several readers of the same file share the pages of the operating system cache.</p>
+ *
+ * <pre>
+ * ALasReader reader = pool.borrow();
+ * try {
+ *     ...
+ * } finally {
+ *     pool.release(reader);
+ * }
+ * </pre>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasReaderPool implements AutoCloseable {
+
+    private final File lasFile;
+    private final CoordinateReferenceSystem crs;
+    private final ConcurrentLinkedQueue<ALasReader> idleReaders = new ConcurrentLinkedQueue<>();
+    private volatile ILasHeader header;
+    private volatile boolean isClosed = false;
+
+    /**
+     * Create the pool, readers are opened on demand.
+     *
+     * @param lasFile the file to read.
+     * @param crs the {@link CoordinateReferenceSystem}.
+     */
+    public LasReaderPool( File lasFile, CoordinateReferenceSystem crs ) {
+        this.lasFile = lasFile;
+        this.crs = crs;
+    }
+
+    /**
+     * @return the las file.
+     */
+    public File getLasFile() {
+        return lasFile;
+    }
+
+    /**
+     * Get an open reader for the exclusive use of the calling thread.
+     *
+     * <p>The position of the reader is undefined, seek before reading.</p>
+     *
+     * @return the reader, to be released with {@link #release(ALasReader)}.
+     * @throws Exception
+     */
+    public ALasReader borrow() throws Exception {
+        if (isClosed) {
+            throw new IllegalStateException("The reader pool of " + lasFile + " is closed.");
+        }
+        ALasReader reader = idleReaders.poll();
+        if (reader == null) {
+            reader = ALasReader.getMappedReader(lasFile, crs);
+            reader.open();
+            if (header == null) {
+                header = reader.getHeader();
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * Give back a reader.
+     *
+     * @param reader the reader obtained through {@link #borrow()}.
+     */
+    public void release( ALasReader reader ) {
+        if (reader == null) {
+            return;
+        }
+        if (isClosed) {
+            closeQuietly(reader);
+        } else {
+            idleReaders.offer(reader);
+            if (isClosed && idleReaders.remove(reader)) {
+                // closed in the meantime
+                closeQuietly(reader);
+            }
+        }
+    }
+
+    /**
+     * @return the header of the file.
+     * @throws Exception
+     */
+    public ILasHeader getHeader() throws Exception {
+        if (header == null) {
+            release(borrow());
+        }
+        return header;
+    }
+
+    /**
+     * Close all the readers. Readers still in use are closed when released.
+     */
+    @Override
+    public void close() {
+        isClosed = true;
+        ALasReader reader;
+        while( (reader = idleReaders.poll()) != null ) {
+            closeQuietly(reader);
+        }
+    }
+
+    private static void closeQuietly( ALasReader reader ) {
+        try {
+            reader.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.io.las.core.v_1_0;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.hortonmachine.gears.io.las.core.ALasReader;
+import org.hortonmachine.gears.io.las.core.ILasHeader;
+import org.hortonmachine.gears.io.las.core.LasPointsBatch;
+import org.hortonmachine.gears.io.las.core.LasRecord;
+import org.hortonmachine.gears.utils.CrsUtilities;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Las record reader for las spec 1.0 that memory maps the point data.
+ *
+ * <p>The point data region is mapped in windows of at most 1GB and the fields are
+ * decoded with absolute reads from the mapped buffer, without copying the
+ * records. Random access and {@link #readBatch(LasPointsBatch, int)} only
+ * touch the pages they need.</p>
+ *
+ * <p>The header is parsed by {@link LasReaderBuffered}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasReaderMapped extends ALasReader {
+    private static final long WINDOW_BYTES = 1L << 30;
+
+    private final File lasFile;
+    private CoordinateReferenceSystem crs;
+    private LasHeader header;
+    private RandomAccessFile raf;
+    private FileChannel fc;
+    private boolean isOpen;
+
+    private double xScale;
+    private double yScale;
+    private double zScale;
+    private double xOffset;
+    private double yOffset;
+    private double zOffset;
+    private long offset;
+    private long records;
+    private int recordLength;
+    private byte pointDataFormat;
+    private long windowPoints;
+
+    private ByteBuffer window;
+    private long windowStart = -1;
+    private long windowEnd = -1;
+
+    private long nextPoint = 0;
+
+    public LasReaderMapped( File lasFile, CoordinateReferenceSystem crs ) throws Exception {
+        this.lasFile = lasFile;
+        if (crs != null) {
+            this.crs = crs;
+        } else {
+            try {
+                this.crs = CrsUtilities.readProjectionFile(lasFile.getAbsolutePath(), "las");
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public File getLasFile() {
+        return lasFile;
+    }
+
+    @Override
+    public void open() throws Exception {
+        close();
+
+        try (LasReaderBuffered headerReader = new LasReaderBuffered(lasFile, 1, crs)) {
+            headerReader.open();
+            header = (LasHeader) headerReader.getHeader();
+        }
+        if (header == null || header.recordLength <= 0) {
+            throw new IOException("Unable to read the header of: " + lasFile);
+        }
+
+        xScale = header.xScale;
+        yScale = header.yScale;
+        zScale = header.zScale;
+        xOffset = header.xOffset;
+        yOffset = header.yOffset;
+        zOffset = header.zOffset;
+        offset = header.offset;
+        recordLength = header.recordLength;
+        pointDataFormat = header.pointDataFormat;
+        windowPoints = Math.max(1, WINDOW_BYTES / recordLength);
+
+        raf = new RandomAccessFile(lasFile, "r");
+        fc = raf.getChannel();
+        // never map beyond the end of truncated files
+        long availableRecords = Math.max(0, (fc.size() - offset) / recordLength);
+        records = Math.min(header.records, availableRecords);
+
+        window = null;
+        windowStart = -1;
+        windowEnd = -1;
+        nextPoint = 0;
+        isOpen = true;
+    }
+
+    private void checkOpen() {
+        if (!isOpen) {
+            try {
+                open();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        // the mapped windows are released by the garbage collector
+        window = null;
+        windowStart = -1;
+        windowEnd = -1;
+        if (fc != null && fc.isOpen())
+            fc.close();
+        if (raf != null)
+            raf.close();
+        fc = null;
+        raf = null;
+        isOpen = false;
+    }
+
+    @Override
+    public ILasHeader getHeader() {
+        checkOpen();
+        return header;
+    }
+
+    @Override
+    public void setOverrideGpsTimeType( int type ) {
+        getHeader();
+        header.gpsTimeType = type;
+    }
+
+    /**
+     * @return the position in the current window of the given point, mapping a new window if necessary.
+     */
+    private int position( long point ) throws IOException {
+        if (point < windowStart || point >= windowEnd) {
+            if (point < 0 || point >= records) {
+                throw new IOException("Point " + point + " is outside of the file, which has " + records + " points.");
+            }
+            windowStart = point - point % windowPoints;
+            windowEnd = Math.min(records, windowStart + windowPoints);
+            window = fc.map(MapMode.READ_ONLY, offset + windowStart * recordLength, (windowEnd - windowStart) * recordLength);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return (int) ((point - windowStart) * recordLength);
+    }
+
+    private LasRecord decode( long point, LasRecord dot ) throws IOException {
+        int p = position(point);
+        ByteBuffer b = window;
+        dot.x = b.getInt(p) * xScale + xOffset;
+        dot.y = b.getInt(p + 4) * yScale + yOffset;
+        dot.z = b.getInt(p + 8) * zScale + zOffset;
+        dot.intensity = b.getShort(p + 12);
+        byte returns = b.get(p + 14);
+        dot.returnNumber = (short) (returns & 0x07);
+        dot.numberOfReturns = (short) ((returns >> 3) & 0x07);
+        dot.classification = b.get(p + 15);
+        // skip scan angle rank, file marker and point source id (4 bytes)
+        // records can be reused, so the fields missing in the format are cleared
+        if (pointDataFormat == 0) {
+            dot.gpsTime = 0;
+            dot.color[0] = 0;
+            dot.color[1] = 0;
+            dot.color[2] = 0;
+        } else if (pointDataFormat == 1) {
+            dot.gpsTime = b.getDouble(p + 20);
+            dot.color[0] = 0;
+            dot.color[1] = 0;
+            dot.color[2] = 0;
+        } else if (pointDataFormat == 2) {
+            dot.gpsTime = 0;
+            dot.color[0] = b.getShort(p + 20);
+            dot.color[1] = b.getShort(p + 22);
+            dot.color[2] = b.getShort(p + 24);
+        } else if (pointDataFormat == 3) {
+            dot.gpsTime = b.getDouble(p + 20);
+            dot.color[0] = b.getShort(p + 28);
+            dot.color[1] = b.getShort(p + 30);
+            dot.color[2] = b.getShort(p + 32);
+        }
+        return dot;
+    }
+
+    @Override
+    public boolean hasNextPoint() throws IOException {
+        return nextPoint < records;
+    }
+
+    @Override
+    public LasRecord getNextPoint() throws IOException {
+        return decode(nextPoint++, new LasRecord());
+    }
+
+    @Override
+    public int readBatch( LasPointsBatch batch, int maxPoints ) throws IOException {
+        int toRead = (int) Math.min(Math.min(maxPoints, batch.getCapacity()), records - nextPoint);
+        double[] xs = batch.x;
+        double[] ys = batch.y;
+        double[] zs = batch.z;
+        short[] intensities = batch.intensity;
+        byte[] classifications = batch.classification;
+        short[] returnNumbers = batch.returnNumber;
+        short[] numberOfReturns = batch.numberOfReturns;
+        boolean hasTime = pointDataFormat == 1 || pointDataFormat == 3;
+        int colorOffset = pointDataFormat == 2 ? 20 : (pointDataFormat == 3 ? 28 : -1);
+        for( int i = 0; i < toRead; i++ ) {
+            int p = position(nextPoint++);
+            ByteBuffer b = window;
+            xs[i] = b.getInt(p) * xScale + xOffset;
+            ys[i] = b.getInt(p + 4) * yScale + yOffset;
+            zs[i] = b.getInt(p + 8) * zScale + zOffset;
+            intensities[i] = b.getShort(p + 12);
+            byte returns = b.get(p + 14);
+            returnNumbers[i] = (short) (returns & 0x07);
+            numberOfReturns[i] = (short) ((returns >> 3) & 0x07);
+            classifications[i] = b.get(p + 15);
+            // batches are reused, so the columns missing in the format are cleared
+            batch.gpsTime[i] = hasTime ? b.getDouble(p + 20) : 0;
+            if (colorOffset > 0) {
+                batch.red[i] = b.getShort(p + colorOffset);
+                batch.green[i] = b.getShort(p + colorOffset + 2);
+                batch.blue[i] = b.getShort(p + colorOffset + 4);
+            } else {
+                batch.red[i] = 0;
+                batch.green[i] = 0;
+                batch.blue[i] = 0;
+            }
+        }
+        batch.setSize(Math.max(0, toRead));
+        return Math.max(0, toRead);
+    }
+
+    @Override
+    public LasRecord getPointAtAddress( long address ) throws IOException {
+        return decode((address - offset) / recordLength, new LasRecord());
+    }
+
+    @Override
+    public LasRecord getPointAt( long pointPosition ) throws IOException {
+        return decode(pointPosition, new LasRecord());
+    }
+
+    @Override
+    public LasRecord getPointAt( long pointPosition, LasRecord record ) throws IOException {
+        return decode(pointPosition, record);
+    }
+
+    @Override
+    public double[] readNextLasXYZAddress() throws IOException {
+        long point = nextPoint++;
+        int p = position(point);
+        ByteBuffer b = window;
+        double xd = b.getInt(p) * xScale + xOffset;
+        double yd = b.getInt(p + 4) * yScale + yOffset;
+        double zd = b.getInt(p + 8) * zScale + zOffset;
+        return new double[]{xd, yd, zd, offset + point * recordLength};
+    }
+
+    @Override
+    public void seek( long pointNumber ) throws IOException {
+        nextPoint = pointNumber;
+    }
+
+    @Override
+    public void rewind() throws IOException {
+        nextPoint = 0;
+    }
+
+}
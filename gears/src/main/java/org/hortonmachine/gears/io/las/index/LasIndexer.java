@@ -19,14 +19,13 @@ package org.hortonmachine.gears.io.las.index;
 
 import static java.lang.Math.round;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -44,12 +43,10 @@ import oms3.annotations.Name;
 import oms3.annotations.Status;
 import oms3.annotations.UI;
 
-import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.geotools.geometry.DirectPosition2D;
 import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
@@ -57,11 +54,12 @@ import org.geotools.referencing.CRS;
 import org.hortonmachine.gears.io.las.core.ALasReader;
 import org.hortonmachine.gears.io.las.core.ALasWriter;
 import org.hortonmachine.gears.io.las.core.ILasHeader;
+import org.hortonmachine.gears.io.las.core.LasPointsBatch;
 import org.hortonmachine.gears.io.las.core.LasRecord;
-import org.hortonmachine.gears.io.las.index.strtree.STRtreeJGT;
 import org.hortonmachine.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.hortonmachine.gears.libs.modules.HMConstants;
 import org.hortonmachine.gears.libs.modules.HMModel;
+import org.hortonmachine.gears.libs.modules.multiprocessing.GridBlockTask;
 import org.hortonmachine.gears.modules.utils.fileiterator.OmsFileIterator;
 import org.hortonmachine.gears.utils.CrsUtilities;
 import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
@@ -69,7 +67,6 @@ import org.hortonmachine.gears.utils.files.FileUtilities;
 import org.hortonmachine.gears.utils.geometry.GeometryUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.geometry.DirectPosition;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import org.locationtech.jts.geom.Coordinate;
@@ -92,6 +89,11 @@ public class LasIndexer extends HMModel {
 
     public static final String INDEX_LASFOLDER = "index.lasfolder";
 
+    /**
+     * The number of points read by each task when scanning a file.
+     */
+    private static final long SCAN_CHUNK_POINTS = 1 << 20;
+
     @Description("The folder containing the las files to index.")
     @UI(HMConstants.FOLDERIN_UI_HINT)
     @In
@@ -160,42 +162,77 @@ public class LasIndexer extends HMModel {
         iter.process();
 
         List<File> filesList = iter.filesList;
+        File mainIndex = new File(inFolder, pIndexname);
+
+        /*
+         * files already in the index and not modified since keep their entry
+         */
+        Map<String, Envelope> indexedEnvelopes = new HashMap<>();
+        if (mainIndex.exists()) {
+            if (crs == null) {
+                try {
+                    crs = CrsUtilities.readProjectionFile(mainIndex.getAbsolutePath(), "lasfolder");
+                } catch (Exception e) {
+                    // read from the headers
+                }
+            }
+            try {
+                PackedHilbertRtree previousIndex = OmsLasIndexReader.openIndex(mainIndex.getAbsolutePath());
+                for( int i = 0; i < previousIndex.size(); i++ ) {
+                    indexedEnvelopes.put(previousIndex.getName(i), previousIndex.getBounds(i));
+                }
+            } catch (Exception e) {
+                pm.errorMessage("Unable to read the existing index, it will be recreated: " + e.getLocalizedMessage());
+            }
+        }
+
         pm.beginTask("Creating readers index...", filesList.size());
-        STRtreeJGT mainTree = new STRtreeJGT();
-        for( File file : filesList ) {
-            try (ALasReader reader = ALasReader.getReader(file, crs)) {
-                reader.open();
-                ILasHeader header = reader.getHeader();
-                if (crs == null) {
-                    crs = header.getCrs();
+        Envelope[] filesEnvelopes = new Envelope[filesList.size()];
+        String[] filesNames = new String[filesList.size()];
+        int reused = 0;
+        for( int i = 0; i < filesList.size(); i++ ) {
+            File file = filesList.get(i);
+            File newLasFile = getNewLasFile(file);
+            filesNames[i] = newLasFile.getName();
+            Envelope indexedEnvelope = indexedEnvelopes.get(filesNames[i]);
+            if (indexedEnvelope != null && crs != null && isIndexed(file)) {
+                filesEnvelopes[i] = indexedEnvelope;
+                reused++;
+            } else {
+                try (ALasReader reader = ALasReader.getReader(file, crs)) {
+                    reader.open();
+                    ILasHeader header = reader.getHeader();
+                    if (crs == null) {
+                        crs = header.getCrs();
+                    }
+                    filesEnvelopes[i] = new Envelope(header.getDataEnvelope());
                 }
-                ReferencedEnvelope3D envelope = header.getDataEnvelope();
-                File newLasFile = getNewLasFile(file);
-                mainTree.insert(envelope, newLasFile.getName());
             }
             pm.worked(1);
         }
         pm.done();
+        if (reused > 0) {
+            pm.message("Files already indexed and unchanged: " + reused);
+        }
 
-        File mainIndex = new File(inFolder, pIndexname);
-        byte[] mainIndexBytes = serialize(mainTree);
-        dumpBytes(mainIndex, mainIndexBytes);
+        PackedHilbertRtree.write(mainIndex, filesEnvelopes, null, filesNames, PackedHilbertRtree.DEFAULT_NODE_SIZE);
 
         // write prj file
         CrsUtilities.writeProjectionFile(mainIndex.getAbsolutePath(), "lasfolder", crs);
 
         /*
-         * now the single files
+         * now the single files: in parallel if there are enough of them,
+         * else one after the other, each scanned in parallel
          */
         if (doOverview)
             envelopesQueue = new ConcurrentLinkedQueue<>();
-        if (pThreads > 1) {
+        if (pThreads > 1 && filesList.size() >= pThreads) {
             ExecutorService fixedThreadPool = Executors.newFixedThreadPool(pThreads);
             for( final File file : filesList ) {
                 Runnable runner = new Runnable(){
                     public void run() {
                         try {
-                            processFile(file, true);
+                            processFile(file, true, false);
                         } catch (Exception e) {
                             pm.errorMessage("Problems indexing file: " + file.getName());
                             e.printStackTrace();
@@ -213,7 +250,7 @@ public class LasIndexer extends HMModel {
             }
         } else {
             for( final File file : filesList ) {
-                processFile(file, false);
+                processFile(file, false, pThreads > 1);
             }
         }
 
@@ -238,12 +275,32 @@ public class LasIndexer extends HMModel {
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private void processFile( File file, boolean isMultiThreaded ) throws Exception {
+    /**
+     * Check if the indexed version of a file exists and is up to date.
+     * 
+     * <p>Indexes in the legacy serialized format are converted in place.</p>
+     */
+    private boolean isIndexed( File file ) throws Exception {
+        File newLasFile = getNewLasFile(file);
+        File indexFile = getNetIndexFile(file);
+        if (!indexFile.exists() || !newLasFile.exists() || newLasFile.lastModified() < file.lastModified()) {
+            return false;
+        }
+        if (!PackedHilbertRtree.isPacked(indexFile)) {
+            synchronized (this) {
+                if (!PackedHilbertRtree.isPacked(indexFile)) {
+                    OmsLasIndexReader.openIndex(indexFile.getAbsolutePath()).write(indexFile);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void processFile( File file, boolean isMultiThreaded, boolean doParallelScan ) throws Exception {
         String name = file.getName();
         File newLasFile = getNewLasFile(file);
         File indexFile = getNetIndexFile(file);
-        if (indexFile.exists() && newLasFile.exists()) {
+        if (isIndexed(file)) {
             pm.message("Index existing already for file: " + name);
             return;
         }
@@ -258,9 +315,9 @@ public class LasIndexer extends HMModel {
          * The geometry is calculated form the most external 
          * points in the 4 directions.
          */
-        CoordinateList pointsList = new CoordinateList();
+        ConcurrentLinkedQueue<Coordinate> hullPoints = new ConcurrentLinkedQueue<>();
 
-        try (ALasReader reader = ALasReader.getReader(file, crs)) {
+        try (ALasReader reader = ALasReader.getMappedReader(file, crs)) {
             reader.open();
             ILasHeader header = reader.getHeader();
             long recordsCount = header.getRecordsCount();
@@ -268,6 +325,12 @@ public class LasIndexer extends HMModel {
                 pm.errorMessage("No points found in: " + name);
                 return;
             }
+            // the las count is an unsigned 32 bit value, but the points are sorted in java arrays
+            if (recordsCount > Integer.MAX_VALUE) {
+                throw new ModelsIllegalargumentException("The file " + name + " has " + recordsCount
+                        + " points, more than the " + Integer.MAX_VALUE + " that can be indexed. Split it into smaller files.",
+                        this);
+            }
             ReferencedEnvelope3D envelope = header.getDataEnvelope();
             ReferencedEnvelope env2d = new ReferencedEnvelope(envelope);
             Envelope2D e = new Envelope2D(env2d);
@@ -300,31 +363,87 @@ public class LasIndexer extends HMModel {
             GridGeometry2D gridGeometry = CoverageUtilities.gridGeometryFromRegionValues(north, south, east, west, cols, rows,
                     reader.getHeader().getCrs());
 
-            List<LasRecord>[][] dotOnMatrix = new ArrayList[cols][rows];
+            /*
+             * assign every point to its tile, keeping only the tile index per point.
+             * The file is scanned by chunks, each with its own reader.
+             */
+            int tilesCount = cols * rows;
+            int[] pointTiles = new int[(int) recordsCount];
+            int chunks = (int) ((recordsCount + SCAN_CHUNK_POINTS - 1) / SCAN_CHUNK_POINTS);
+            long[] chunksRead = new long[chunks];
             if (!isMultiThreaded) {
-                pm.beginTask("Sorting points for " + name, (int) recordsCount);
+                pm.beginTask("Sorting points for " + name, chunks);
             } else {
                 pm.message("Sorting points for " + name + "...");
             }
-            while( reader.hasNextPoint() ) {
-                LasRecord dot = reader.getNextPoint();
-                DirectPosition wPoint = new DirectPosition2D(dot.x, dot.y);
-                GridCoordinates2D gridCoord = gridGeometry.worldToGrid(wPoint);
-                int x = gridCoord.x;
-                int y = gridCoord.y;
-                if (dotOnMatrix[x][y] == null) {
-                    dotOnMatrix[x][y] = new ArrayList<>();
-                }
-                dotOnMatrix[x][y].add(dot);
-                if (doOverview) {
-                    pointsList.add(new Coordinate(dot.x, dot.y));
+            double _west = west;
+            double _north = north;
+            double _xRes = xRes;
+            double _yRes = yRes;
+            int _cols = cols;
+            int _rows = rows;
+            GridBlockTask.processBlocks(doParallelScan, 0, 0, chunks, 1, 1, pm, ( chunkStart, r0, chunkEnd, r1 ) -> {
+                try (ALasReader chunkReader = ALasReader.getMappedReader(file, crs)) {
+                    chunkReader.open();
+                    LasPointsBatch batch = new LasPointsBatch();
+                    for( int chunk = chunkStart; chunk < chunkEnd; chunk++ ) {
+                        long from = chunk * SCAN_CHUNK_POINTS;
+                        long to = Math.min(recordsCount, from + SCAN_CHUNK_POINTS);
+                        CoordinateList chunkPoints = doOverview ? new CoordinateList() : null;
+                        chunkReader.seek(from);
+                        long index = from;
+                        int read;
+                        while( index < to && (read = chunkReader.readBatch(batch, (int) Math.min(to - index, batch.getCapacity()))) > 0 ) {
+                            for( int i = 0; i < read; i++ ) {
+                                int col = (int) Math.floor((batch.x[i] - _west) / _xRes);
+                                int row = (int) Math.floor((_north - batch.y[i]) / _yRes);
+                                col = Math.max(0, Math.min(_cols - 1, col));
+                                row = Math.max(0, Math.min(_rows - 1, row));
+                                pointTiles[(int) index++] = row * _cols + col;
+                                if (chunkPoints != null) {
+                                    chunkPoints.add(new Coordinate(batch.x[i], batch.y[i]), true);
+                                }
+                            }
+                        }
+                        chunksRead[chunk] = index - from;
+                        if (chunkPoints != null && chunkPoints.size() > 0) {
+                            // the hull of the hulls of the chunks is the hull of the file
+                            Geometry chunkHull = gf.createMultiPoint(chunkPoints.toCoordinateArray()).convexHull();
+                            hullPoints.addAll(Arrays.asList(chunkHull.getCoordinates()));
+                        }
+                        if (!isMultiThreaded)
+                            pm.worked(1);
+                    }
                 }
-                if (!isMultiThreaded)
-                    pm.worked(1);
-            }
+            });
             if (!isMultiThreaded)
                 pm.done();
 
+            // a truncated file has fewer points than declared in the header
+            int pointsNum = 0;
+            for( long chunkRead : chunksRead ) {
+                pointsNum += chunkRead;
+                if (chunkRead < SCAN_CHUNK_POINTS) {
+                    break;
+                }
+            }
+
+            /*
+             * sort the point positions by tile (stable, so the file order is kept inside a tile)
+             */
+            int[] tileStarts = new int[tilesCount + 1];
+            for( int p = 0; p < pointsNum; p++ ) {
+                tileStarts[pointTiles[p] + 1]++;
+            }
+            for( int i = 0; i < tilesCount; i++ ) {
+                tileStarts[i + 1] += tileStarts[i];
+            }
+            int[] sortedPoints = new int[pointsNum];
+            int[] tileFill = Arrays.copyOf(tileStarts, tilesCount);
+            for( int p = 0; p < pointsNum; p++ ) {
+                sortedPoints[tileFill[pointTiles[p]]++] = p;
+            }
+
             /*
              * now write indexed file plus index
              */
@@ -332,18 +451,21 @@ public class LasIndexer extends HMModel {
                 writer.setBounds(reader.getHeader());
                 writer.open();
 
-                int addedTiles = 0;
-                STRtreeJGT tree = new STRtreeJGT();
+                List<Envelope> tilesEnvelopes = new ArrayList<>();
+                List<double[]> tilesValues = new ArrayList<>();
                 if (!isMultiThreaded) {
                     pm.beginTask("Write and index new las...", cols);
                 } else {
                     pm.message("Write and index new las...");
                 }
                 long pointCount = 0;
+                LasRecord dot = new LasRecord();
                 for( int r = 0; r < rows; r++ ) {
                     for( int c = 0; c < cols; c++ ) {
-                        List<LasRecord> dotsList = dotOnMatrix[c][r];
-                        if (dotsList == null || dotsList.size() == 0) {
+                        int tile = r * cols + c;
+                        int start = tileStarts[tile];
+                        int end = tileStarts[tile + 1];
+                        if (start == end) {
                             continue;
                         }
                         Coordinate coord = CoverageUtilities.coordinateFromColRow(c, r, gridGeometry);
@@ -354,7 +476,8 @@ public class LasIndexer extends HMModel {
                         double avgIntensityValue = 0.0;
                         int count = 0;
 
-                        for( LasRecord dot : dotsList ) {
+                        for( int k = start; k < end; k++ ) {
+                            dot = reader.getPointAt(sortedPoints[k], dot);
                             writer.addPoint(dot);
                             pointCount++;
                             avgElevValue += dot.z;
@@ -363,8 +486,8 @@ public class LasIndexer extends HMModel {
                         }
                         avgElevValue /= count;
                         avgIntensityValue /= count;
-                        tree.insert(env, new double[]{tmpCount, pointCount, avgElevValue, avgIntensityValue});
-                        addedTiles++;
+                        tilesEnvelopes.add(env);
+                        tilesValues.add(new double[]{tmpCount, pointCount, avgElevValue, avgIntensityValue});
                     }
                     if (!isMultiThreaded)
                         pm.worked(1);
@@ -372,15 +495,15 @@ public class LasIndexer extends HMModel {
                 if (!isMultiThreaded)
                     pm.done();
 
-                byte[] serialized = serialize(tree);
-                dumpBytes(indexFile, serialized);
+                PackedHilbertRtree.write(indexFile, tilesEnvelopes.toArray(new Envelope[0]),
+                        tilesValues.toArray(new double[0][]), null, PackedHilbertRtree.DEFAULT_NODE_SIZE);
 
-                pm.message("Tiles added for " + name + ": " + addedTiles);
+                pm.message("Tiles added for " + name + ": " + tilesEnvelopes.size());
             }
         }
         if (doOverview) {
             pm.message("Create overview for " + name);
-            MultiPoint multiPoint = gf.createMultiPoint(pointsList.toCoordinateArray());
+            MultiPoint multiPoint = gf.createMultiPoint(hullPoints.toArray(new Coordinate[0]));
             Geometry polygon = multiPoint.convexHull();
             polygon.setUserData(name);
             envelopesQueue.add((Polygon) polygon);
@@ -423,19 +546,4 @@ public class LasIndexer extends HMModel {
     public void close() throws Exception {
     }
 
-    private static byte[] serialize( Object obj ) throws IOException {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-            ObjectOutputStream out = new ObjectOutputStream(bos);
-            out.writeObject(obj);
-            out.close();
-            return bos.toByteArray();
-        }
-    }
-
-    private static void dumpBytes( File file, byte[] bytes ) throws Exception {
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
-            raf.write(bytes);
-        }
-    }
-
 }
@@ -122,7 +122,7 @@ public class OmsLasIndexReader extends HMModel {
         GeometryFactory gf = GeometryUtilities.gf();
 
         File parentFolder = new File(inFile).getParentFile();
-        STRtreeJGT mainIndexTree = readIndex(inFile);
+        PackedHilbertRtree mainIndexTree = openIndex(inFile);
 
         List<Geometry> boundsList;
         if (!doBounds) {
@@ -174,14 +174,14 @@ public class OmsLasIndexReader extends HMModel {
                     if (!lasIndexFile.exists() || !lasFile.exists()) {
                         continue;
                     }
-                    ALasReader reader = ALasReader.getReader(lasFile, crs);
+                    ALasReader reader = ALasReader.getMappedReader(lasFile, crs);
                     reader.open();
                     try {
                         ILasHeader header = reader.getHeader();
 
                         if (!doBounds) {
                             // TODO check files
-                            STRtreeJGT lasIndex = readIndex(lasIndexFile.getAbsolutePath());
+                            PackedHilbertRtree lasIndex = openIndex(lasIndexFile.getAbsolutePath());
                             List lasIndexStoreInfoList = lasIndex.query(env);
                             pm.beginTask("Read data...", lasIndexStoreInfoList.size());
                             for( Object obj : lasIndexStoreInfoList ) {
@@ -231,6 +231,31 @@ public class OmsLasIndexReader extends HMModel {
         }
     }
 
+    /**
+     * Open a folder or file index.
+     * 
+     * <p>Packed indexes are memory mapped, so opening them doesn't depend on their size.
+     * Legacy serialized indexes are deserialized and converted in memory.</p>
+     * 
+     * @param path the path to the index file.
+     * @return the index.
+     * @throws Exception
+     */
+    public static PackedHilbertRtree openIndex( String path ) throws Exception {
+        File file = new File(path);
+        if (PackedHilbertRtree.isPacked(file)) {
+            return PackedHilbertRtree.open(file);
+        }
+        return PackedHilbertRtree.fromSTRtree(readIndex(path));
+    }
+
+    /**
+     * Read a legacy index serialized as {@link STRtreeJGT}.
+     * 
+     * @param path the path to the index file.
+     * @return the deserialized tree.
+     * @throws Exception
+     */
     public static STRtreeJGT readIndex( String path ) throws Exception {
         File file = new File(path);
         RandomAccessFile raf = null;
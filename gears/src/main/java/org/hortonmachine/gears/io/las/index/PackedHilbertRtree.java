@@ -0,0 +1,534 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.io.las.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hortonmachine.gears.io.las.index.strtree.STRtreeJGT;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+
+/**
+ * A static packed Hilbert R-tree stored in a flat binary layout.
+ *
+ * <p>Items are sorted by the Hilbert code of their envelope centers and packed
+ * bottom up into nodes of fixed size. The tree is written as arrays of primitives,
+ * so that a file can be memory mapped and queried without deserializing it: opening
+ * an index only reads the header, the pages needed by a query are loaded on demand.</p>
+ *
+ * <p>Each item has an envelope, a fixed number of double values (ex. the
+ * point range of a tile) and optionally a name (ex. a file name).</p>
+ *
+ * <p>The tree is immutable, all reads are absolute, so an instance can be
+ * queried by several threads at the same time.</p>
+ *
+ * <pre>
+ * header: magic, version, items, nodeSize, valuesSize, hasNames, levels, levelEnds[levels]
+ * boxes: minx, miny, maxx, maxy for each node, leaves first, root last
+ * children: the position of the first child of each internal node
+ * values: valuesSize doubles per item
+ * names: offsets[items + 1] followed by the UTF-8 bytes
+ * </pre>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class PackedHilbertRtree {
+
+    /**
+     * The default number of children per node.
+     */
+    public static final int DEFAULT_NODE_SIZE = 16;
+
+    private static final int MAGIC = 0x484D5052; // HMPR
+    private static final int VERSION = 1;
+    private static final int HILBERT_ORDER = 15;
+    private static final int HILBERT_MAX = (1 << HILBERT_ORDER) - 1;
+
+    private final ByteBuffer buffer;
+    private final int itemsCount;
+    private final int nodeSize;
+    private final int valuesSize;
+    private final boolean hasNames;
+    private final int[] levelEnds;
+    private final int nodesCount;
+    private final int boxesStart;
+    private final int childrenStart;
+    private final int valuesStart;
+    private final int namesStart;
+
+    private PackedHilbertRtree( ByteBuffer buffer ) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < 28 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a packed Hilbert R-tree.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported index version: " + buffer.getInt(4));
+        }
+        itemsCount = buffer.getInt(8);
+        nodeSize = buffer.getInt(12);
+        valuesSize = buffer.getInt(16);
+        hasNames = buffer.getInt(20) != 0;
+        int levels = buffer.getInt(24);
+        levelEnds = new int[levels];
+        for( int i = 0; i < levels; i++ ) {
+            levelEnds[i] = buffer.getInt(28 + i * 4);
+        }
+        nodesCount = levels == 0 ? 0 : levelEnds[levels - 1];
+        boxesStart = 28 + levels * 4;
+        childrenStart = boxesStart + nodesCount * 32;
+        valuesStart = childrenStart + (nodesCount - itemsCount) * 4;
+        namesStart = valuesStart + itemsCount * valuesSize * 8;
+    }
+
+    /**
+     * Check if a file contains a packed tree.
+     *
+     * @param file the file to check.
+     * @return <code>true</code> if the file starts with the packed tree header.
+     * @throws IOException
+     */
+    public static boolean isPacked( File file ) throws IOException {
+        if (file.length() < 28) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] magic = new byte[4];
+            raf.readFully(magic);
+            return ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+        }
+    }
+
+    /**
+     * Open a tree file by memory mapping it.
+     *
+     * @param file the file to open.
+     * @return the tree.
+     * @throws IOException if the file is not a packed tree.
+     */
+    public static PackedHilbertRtree open( File file ) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel fc = raf.getChannel()) {
+            // the mapping stays valid after the channel is closed
+            return new PackedHilbertRtree(fc.map(MapMode.READ_ONLY, 0, fc.size()));
+        }
+    }
+
+    /**
+     * Build a tree in memory.
+     *
+     * @param bounds the envelopes of the items.
+     * @param values the values of the items, all of the same length. Can be <code>null</code>.
+     * @param names the names of the items. Can be <code>null</code>.
+     * @param nodeSize the number of children per node.
+     * @return the tree.
+     */
+    public static PackedHilbertRtree build( Envelope[] bounds, double[][] values, String[] names, int nodeSize ) {
+        try {
+            return new PackedHilbertRtree(pack(bounds, values, names, nodeSize));
+        } catch (IOException e) {
+            // can't happen, the buffer has just been packed
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Build a tree and write it to file.
+     *
+     * @param file the file to write.
+     * @param bounds the envelopes of the items.
+     * @param values the values of the items, all of the same length. Can be <code>null</code>.
+     * @param names the names of the items. Can be <code>null</code>.
+     * @param nodeSize the number of children per node.
+     * @throws IOException
+     */
+    public static void write( File file, Envelope[] bounds, double[][] values, String[] names, int nodeSize ) throws IOException {
+        build(bounds, values, names, nodeSize).write(file);
+    }
+
+    /**
+     * Write the tree to file.
+     *
+     * @param file the file to write.
+     * @throws IOException
+     */
+    public void write( File file ) throws IOException {
+        ByteBuffer packed = buffer.duplicate();
+        packed.clear();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel fc = raf.getChannel()) {
+            fc.truncate(0);
+            while( packed.hasRemaining() ) {
+                fc.write(packed);
+            }
+        }
+    }
+
+    /**
+     * Convert a legacy serialized {@link STRtreeJGT} index.
+     *
+     * <p>Items of type <code>double[]</code> become values, all other items become names.</p>
+     *
+     * @param tree the tree to convert.
+     * @return the packed tree.
+     */
+    @SuppressWarnings("rawtypes")
+    public static PackedHilbertRtree fromSTRtree( STRtreeJGT tree ) {
+        List boundables = tree.queryBoundables(new Envelope(-Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE,
+                Double.MAX_VALUE));
+        int n = boundables.size();
+        Envelope[] bounds = new Envelope[n];
+        double[][] values = null;
+        String[] names = null;
+        for( int i = 0; i < n; i++ ) {
+            ItemBoundable boundable = (ItemBoundable) boundables.get(i);
+            bounds[i] = (Envelope) boundable.getBounds();
+            Object item = boundable.getItem();
+            if (item instanceof double[]) {
+                if (values == null) {
+                    values = new double[n][];
+                }
+                values[i] = (double[]) item;
+            } else {
+                if (names == null) {
+                    names = new String[n];
+                }
+                names[i] = String.valueOf(item);
+            }
+        }
+        return build(bounds, values, names, DEFAULT_NODE_SIZE);
+    }
+
+    private static ByteBuffer pack( Envelope[] bounds, double[][] values, String[] names, int nodeSize ) {
+        int n = bounds.length;
+        nodeSize = Math.max(2, nodeSize);
+        int valuesSize = 0;
+        if (values != null) {
+            for( double[] v : values ) {
+                if (v != null) {
+                    valuesSize = Math.max(valuesSize, v.length);
+                }
+            }
+        }
+
+        // sort the items along the Hilbert curve of their centers
+        Envelope total = new Envelope();
+        for( Envelope env : bounds ) {
+            total.expandToInclude(env);
+        }
+        double width = total.getWidth() > 0 ? total.getWidth() : 1;
+        double height = total.getHeight() > 0 ? total.getHeight() : 1;
+        long[] sortKeys = new long[n];
+        for( int i = 0; i < n; i++ ) {
+            Envelope env = bounds[i];
+            int hx = (int) (HILBERT_MAX * ((env.getMinX() + env.getMaxX()) / 2 - total.getMinX()) / width);
+            int hy = (int) (HILBERT_MAX * ((env.getMinY() + env.getMaxY()) / 2 - total.getMinY()) / height);
+            // code in the high bits, item index in the low ones
+            sortKeys[i] = ((long) hilbert(hx, hy) << 32) | i;
+        }
+        Arrays.sort(sortKeys);
+
+        // levels, from the leaves up to the root
+        List<Integer> ends = new ArrayList<>();
+        int levelCount = n;
+        int nodesCount = n;
+        ends.add(nodesCount);
+        while( levelCount > 1 ) {
+            levelCount = (levelCount + nodeSize - 1) / nodeSize;
+            nodesCount += levelCount;
+            ends.add(nodesCount);
+        }
+        if (n == 0) {
+            ends.clear();
+            nodesCount = 0;
+        }
+        int levels = ends.size();
+
+        byte[][] nameBytes = null;
+        int namesBytesLength = 0;
+        if (names != null) {
+            nameBytes = new byte[n][];
+            for( int i = 0; i < n; i++ ) {
+                String name = names[(int) sortKeys[i]];
+                nameBytes[i] = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+                namesBytesLength += nameBytes[i].length;
+            }
+        }
+
+        int boxesStart = 28 + levels * 4;
+        int childrenStart = boxesStart + nodesCount * 32;
+        int valuesStart = childrenStart + (nodesCount - n) * 4;
+        int namesStart = valuesStart + n * valuesSize * 8;
+        long size = namesStart + (names != null ? (n + 1) * 4L + namesBytesLength : 0);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many items for a single index: " + n);
+        }
+
+        ByteBuffer b = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(0, MAGIC);
+        b.putInt(4, VERSION);
+        b.putInt(8, n);
+        b.putInt(12, nodeSize);
+        b.putInt(16, valuesSize);
+        b.putInt(20, names != null ? 1 : 0);
+        b.putInt(24, levels);
+        for( int i = 0; i < levels; i++ ) {
+            b.putInt(28 + i * 4, ends.get(i));
+        }
+
+        // leaves
+        for( int i = 0; i < n; i++ ) {
+            int item = (int) sortKeys[i];
+            Envelope env = bounds[item];
+            putBox(b, boxesStart, i, env.getMinX(), env.getMinY(), env.getMaxX(), env.getMaxY());
+            if (valuesSize > 0) {
+                double[] v = values[item];
+                for( int k = 0; v != null && k < v.length; k++ ) {
+                    b.putDouble(valuesStart + (i * valuesSize + k) * 8, v[k]);
+                }
+            }
+        }
+
+        // internal nodes, each covering up to nodeSize nodes of the level below
+        int position = 0;
+        int nodeIndex = n;
+        for( int level = 0; level < levels - 1; level++ ) {
+            int end = ends.get(level);
+            while( position < end ) {
+                int first = position;
+                double minX = Double.POSITIVE_INFINITY;
+                double minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                for( int k = 0; k < nodeSize && position < end; k++, position++ ) {
+                    int p = boxesStart + position * 32;
+                    minX = Math.min(minX, b.getDouble(p));
+                    minY = Math.min(minY, b.getDouble(p + 8));
+                    maxX = Math.max(maxX, b.getDouble(p + 16));
+                    maxY = Math.max(maxY, b.getDouble(p + 24));
+                }
+                putBox(b, boxesStart, nodeIndex, minX, minY, maxX, maxY);
+                b.putInt(childrenStart + (nodeIndex - n) * 4, first);
+                nodeIndex++;
+            }
+        }
+
+        if (names != null) {
+            int offset = 0;
+            int bytesStart = namesStart + (n + 1) * 4;
+            for( int i = 0; i < n; i++ ) {
+                b.putInt(namesStart + i * 4, offset);
+                for( int k = 0; k < nameBytes[i].length; k++ ) {
+                    b.put(bytesStart + offset + k, nameBytes[i][k]);
+                }
+                offset += nameBytes[i].length;
+            }
+            b.putInt(namesStart + n * 4, offset);
+        }
+        return b;
+    }
+
+    private static void putBox( ByteBuffer b, int boxesStart, int node, double minX, double minY, double maxX, double maxY ) {
+        int p = boxesStart + node * 32;
+        b.putDouble(p, minX);
+        b.putDouble(p + 8, minY);
+        b.putDouble(p + 16, maxX);
+        b.putDouble(p + 24, maxY);
+    }
+
+    /**
+     * Hilbert code of a position in a 2^15 x 2^15 grid, which fits a positive int.
+     */
+    private static int hilbert( int x, int y ) {
+        int d = 0;
+        for( int s = 1 << (HILBERT_ORDER - 1); s > 0; s >>= 1 ) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = HILBERT_MAX - x;
+                    y = HILBERT_MAX - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * @return the number of items.
+     */
+    public int size() {
+        return itemsCount;
+    }
+
+    /**
+     * @return the number of values of each item.
+     */
+    public int getValuesSize() {
+        return valuesSize;
+    }
+
+    /**
+     * @return the envelope of all the items or <code>null</code> if the tree is empty.
+     */
+    public Envelope getBounds() {
+        if (nodesCount == 0) {
+            return null;
+        }
+        return getNodeBounds(nodesCount - 1);
+    }
+
+    /**
+     * @param item the item index.
+     * @return the envelope of the item.
+     */
+    public Envelope getBounds( int item ) {
+        return getNodeBounds(item);
+    }
+
+    private Envelope getNodeBounds( int node ) {
+        int p = boxesStart + node * 32;
+        return new Envelope(buffer.getDouble(p), buffer.getDouble(p + 16), buffer.getDouble(p + 8), buffer.getDouble(p + 24));
+    }
+
+    /**
+     * @param item the item index.
+     * @param index the value index.
+     * @return the value.
+     */
+    public double getValue( int item, int index ) {
+        return buffer.getDouble(valuesStart + (item * valuesSize + index) * 8);
+    }
+
+    /**
+     * @param item the item index.
+     * @return the values of the item.
+     */
+    public double[] getValues( int item ) {
+        double[] values = new double[valuesSize];
+        for( int k = 0; k < valuesSize; k++ ) {
+            values[k] = getValue(item, k);
+        }
+        return values;
+    }
+
+    /**
+     * @param item the item index.
+     * @return the name of the item or <code>null</code> if the tree has no names.
+     */
+    public String getName( int item ) {
+        if (!hasNames) {
+            return null;
+        }
+        int from = buffer.getInt(namesStart + item * 4);
+        int to = buffer.getInt(namesStart + (item + 1) * 4);
+        byte[] bytes = new byte[to - from];
+        int bytesStart = namesStart + (itemsCount + 1) * 4 + from;
+        for( int k = 0; k < bytes.length; k++ ) {
+            bytes[k] = buffer.get(bytesStart + k);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Find the items intersecting an envelope.
+     *
+     * @param searchEnv the envelope to search.
+     * @return the indexes of the items, in Hilbert order.
+     */
+    public int[] queryItems( Envelope searchEnv ) {
+        int[] found = new int[16];
+        int count = 0;
+        if (nodesCount == 0) {
+            return new int[0];
+        }
+        double minX = searchEnv.getMinX();
+        double minY = searchEnv.getMinY();
+        double maxX = searchEnv.getMaxX();
+        double maxY = searchEnv.getMaxY();
+
+        // stack of pairs of node position and level
+        int[] stack = new int[32];
+        int stackSize = 0;
+        int nodeIndex = nodesCount - 1;
+        int level = levelEnds.length - 1;
+        while( true ) {
+            int end = Math.min(nodeIndex + nodeSize, levelEnds[level]);
+            for( int pos = nodeIndex; pos < end; pos++ ) {
+                int p = boxesStart + pos * 32;
+                if (maxX < buffer.getDouble(p) || maxY < buffer.getDouble(p + 8) || minX > buffer.getDouble(p + 16)
+                        || minY > buffer.getDouble(p + 24)) {
+                    continue;
+                }
+                if (level == 0) {
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = pos;
+                } else {
+                    if (stackSize + 2 > stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[stackSize++] = buffer.getInt(childrenStart + (pos - itemsCount) * 4);
+                    stack[stackSize++] = level - 1;
+                }
+            }
+            if (stackSize == 0) {
+                break;
+            }
+            level = stack[--stackSize];
+            nodeIndex = stack[--stackSize];
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    /**
+     * Find the items intersecting an envelope.
+     *
+     * <p>This mirrors the results of {@link STRtreeJGT#query(Envelope)} on the legacy
+     * indexes: the names if the tree has names, else the values.</p>
+     *
+     * @param searchEnv the envelope to search.
+     * @return the list of names or values (<code>double[]</code>).
+     */
+    public List<Object> query( Envelope searchEnv ) {
+        int[] items = queryItems(searchEnv);
+        List<Object> result = new ArrayList<>(items.length);
+        for( int item : items ) {
+            if (hasNames) {
+                result.add(getName(item));
+            } else {
+                result.add(getValues(item));
+            }
+        }
+        return result;
+    }
+
+}
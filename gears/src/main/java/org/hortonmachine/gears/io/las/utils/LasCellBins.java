@@ -0,0 +1,291 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.io.las.utils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+import org.hortonmachine.gears.io.las.core.LasRecord;
+
+/**
+ * The points of a regular grid of cells, grouped by cell in primitive arrays.
+ *
+ * <p>The points are binned with a counting sort: the points of each cell are
+ * contiguous in the packed x, y and value arrays, between the offsets of the cell
+ * and of the next one. The cells are ordered by row from north, as the rasters,
+ * so that a horizontal run of cells is also a single range of points.</p>
+ *
+ * <p>The arrays are kept between calls of {@link #bin(List, ToDoubleFunction)}, so that
+ * the same bins can be reused for many tiles of the same size. Once binned, the
+ * points are only read, so the cells can be processed by many threads at once.</p>
+ *
+ * <pre>
+ * LasCellBins bins = new LasCellBins(west, north, xRes, yRes, cols, rows);
+ * bins.bin(points, null);
+ * for( int i = bins.getCellStart(col, row); i &lt; bins.getCellEnd(col, row); i++ ) {
+ *     double z = bins.getValue(i);
+ * }
+ * </pre>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LasCellBins {
+    /**
+     * The tolerance in cells for the points on the borders of the grid.
+     */
+    private static final double BORDER_TOLERANCE = 1E-6;
+
+    private final double west;
+    private final double north;
+    private final double xRes;
+    private final double yRes;
+    private final int cols;
+    private final int rows;
+    private final int[] cellStart;
+
+    private double[] xs = new double[0];
+    private double[] ys = new double[0];
+    private double[] values = new double[0];
+    private int[] ids = new int[0];
+    private int[] pointCells = new int[0];
+    private double[] pointValues = new double[0];
+    private int pointsNum = 0;
+
+    /**
+     * Create the bins of a grid.
+     *
+     * @param west the west bound of the grid.
+     * @param north the north bound of the grid.
+     * @param xRes the x resolution.
+     * @param yRes the y resolution.
+     * @param cols the number of columns.
+     * @param rows the number of rows.
+     */
+    public LasCellBins( double west, double north, double xRes, double yRes, int cols, int rows ) {
+        if (cols <= 0 || rows <= 0 || !(xRes > 0) || !(yRes > 0)) {
+            throw new IllegalArgumentException("The grid needs to have positive size and resolution.");
+        }
+        this.west = west;
+        this.north = north;
+        this.xRes = xRes;
+        this.yRes = yRes;
+        this.cols = cols;
+        this.rows = rows;
+        cellStart = new int[cols * rows + 1];
+    }
+
+    /**
+     * Group the points by cell, replacing the points of a previous binning.
+     *
+     * @param points the points to bin. Points outside of the grid are ignored.
+     * @param valueFunction the function that gives the value kept for each point. If <code>null</code>,
+     *          the elevation is used. Points with a NaN value are ignored.
+     * @return the number of binned points.
+     */
+    public int bin( List<LasRecord> points, ToDoubleFunction<LasRecord> valueFunction ) {
+        int size = points.size();
+        if (pointCells.length < size) {
+            pointCells = new int[size];
+            pointValues = new double[size];
+        }
+        int[] counts = cellStart;
+        Arrays.fill(counts, 0);
+        int count = 0;
+        for( int i = 0; i < size; i++ ) {
+            LasRecord dot = points.get(i);
+            int cell = getCell(dot.x, dot.y);
+            if (cell >= 0) {
+                double value = valueFunction == null ? dot.z : valueFunction.applyAsDouble(dot);
+                if (Double.isNaN(value)) {
+                    cell = -1;
+                } else {
+                    pointValues[i] = value;
+                    counts[cell + 1]++;
+                    count++;
+                }
+            }
+            pointCells[i] = cell;
+        }
+        for( int c = 1; c < counts.length; c++ ) {
+            counts[c] += counts[c - 1];
+        }
+
+        if (xs.length < count) {
+            xs = new double[count];
+            ys = new double[count];
+            values = new double[count];
+            ids = new int[count];
+        }
+        // the scatter moves each offset to the end of its cell, then they are shifted back by one cell
+        for( int i = 0; i < size; i++ ) {
+            int cell = pointCells[i];
+            if (cell < 0) {
+                continue;
+            }
+            LasRecord dot = points.get(i);
+            int index = cellStart[cell]++;
+            xs[index] = dot.x;
+            ys[index] = dot.y;
+            values[index] = pointValues[i];
+            ids[index] = i;
+        }
+        for( int c = cellStart.length - 1; c > 0; c-- ) {
+            cellStart[c] = cellStart[c - 1];
+        }
+        cellStart[0] = 0;
+        pointsNum = count;
+        return count;
+    }
+
+    /**
+     * Get the column of an x coordinate. The east border belongs to the last column,
+     * the points on the borders are matched with a small tolerance.
+     *
+     * @param x the x coordinate.
+     * @return the column or -1 if outside of the grid.
+     */
+    public int getCol( double x ) {
+        double col = (x - west) / xRes;
+        if (!(col > -BORDER_TOLERANCE) || col > cols + BORDER_TOLERANCE) {
+            return -1;
+        }
+        return Math.max(0, Math.min((int) col, cols - 1));
+    }
+
+    /**
+     * Get the row of a y coordinate. The south border belongs to the last row,
+     * the points on the borders are matched with a small tolerance.
+     *
+     * @param y the y coordinate.
+     * @return the row or -1 if outside of the grid.
+     */
+    public int getRow( double y ) {
+        double row = (north - y) / yRes;
+        if (!(row > -BORDER_TOLERANCE) || row > rows + BORDER_TOLERANCE) {
+            return -1;
+        }
+        return Math.max(0, Math.min((int) row, rows - 1));
+    }
+
+    /**
+     * Get the cell of a position.
+     *
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the index of the cell (<code>row * cols + col</code>) or -1 if outside of the grid.
+     */
+    public int getCell( double x, double y ) {
+        int col = getCol(x);
+        int row = getRow(y);
+        if (col < 0 || row < 0) {
+            return -1;
+        }
+        return row * cols + col;
+    }
+
+    /**
+     * @param col the column.
+     * @param row the row.
+     * @return the index of the first point of the cell.
+     */
+    public int getCellStart( int col, int row ) {
+        return cellStart[row * cols + col];
+    }
+
+    /**
+     * @param col the column.
+     * @param row the row.
+     * @return the index after the last point of the cell.
+     */
+    public int getCellEnd( int col, int row ) {
+        return cellStart[row * cols + col + 1];
+    }
+
+    /**
+     * @param col the column.
+     * @param row the row.
+     * @return the number of points in the cell.
+     */
+    public int getCellCount( int col, int row ) {
+        int cell = row * cols + col;
+        return cellStart[cell + 1] - cellStart[cell];
+    }
+
+    /**
+     * @param index the index of the binned point.
+     * @return the x coordinate of the point.
+     */
+    public double getX( int index ) {
+        return xs[index];
+    }
+
+    /**
+     * @param index the index of the binned point.
+     * @return the y coordinate of the point.
+     */
+    public double getY( int index ) {
+        return ys[index];
+    }
+
+    /**
+     * @param index the index of the binned point.
+     * @return the value of the point.
+     */
+    public double getValue( int index ) {
+        return values[index];
+    }
+
+    /**
+     * @param index the index of the binned point.
+     * @return the index of the point in the binned list.
+     */
+    public int getId( int index ) {
+        return ids[index];
+    }
+
+    /**
+     * @return the number of binned points.
+     */
+    public int getPointsNum() {
+        return pointsNum;
+    }
+
+    /**
+     * @return the x coordinate of the center of a column.
+     */
+    public double getCenterX( int col ) {
+        return west + (col + 0.5) * xRes;
+    }
+
+    /**
+     * @return the y coordinate of the center of a row.
+     */
+    public double getCenterY( int row ) {
+        return north - (row + 0.5) * yRes;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+}
@@ -42,12 +42,15 @@ import java.lang.reflect.Constructor;
 import java.util.HashMap;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridFormatFinder;
 import org.geotools.coverage.grid.io.UnknownFormat;
+import org.geotools.coverage.grid.io.imageio.geotiff.GeoTiffIIOMetadataDecoder;
 import org.geotools.coverage.processing.Operations;
+import org.geotools.gce.geotiff.GeoTiffReader;
 import org.geotools.gce.grassraster.GrassCoverageReader;
 import org.geotools.gce.grassraster.JGrassMapEnvironment;
 import org.geotools.gce.grassraster.JGrassRegion;
@@ -134,6 +137,10 @@ public class OmsRasterReader extends HMModel {
     @In
     public Integer pCols = null;
 
+    @Description(OMSRASTERREADER_DO_BLOCKS_DESCRIPTION)
+    @In
+    public boolean doBlocks = false;
+
     @Description(OMSRASTERREADER_OUT_RASTER_DESCRIPTION)
     @Out
     public GridCoverage2D outRaster = null;
@@ -157,6 +164,7 @@ public class OmsRasterReader extends HMModel {
     public static final String OMSRASTERREADER_P_ROWS_DESCRIPTION = "The optional requested numer of rows.";
     public static final String OMSRASTERREADER_P_COLS_DESCRIPTION = "The optional requested numer of cols.";
     public static final String OMSRASTERREADER_DO_LEGACY_GRASS_DESCRIPTION = "Optional flag to force a legacy GRASS driver usage.";
+    public static final String OMSRASTERREADER_DO_BLOCKS_DESCRIPTION = "Optional flag to read only the blocks of the requested region, from the best overview for the requested resolution, through a shared cache.";
     public static final String OMSRASTERREADER_OUT_RASTER_DESCRIPTION = "The read output raster map.";
 
     /**
@@ -217,7 +225,15 @@ public class OmsRasterReader extends HMModel {
                     }
                     originalEnvelope = rasterReader.getOriginalEnvelope();
                     if (!doEnvelope) {
-                        outRaster = rasterReader.read(generalParameter);
+                        GridCoverage2D blocksRaster = null;
+                        if (doBlocks && !file.toLowerCase().endsWith(".nc")) {
+                            blocksRaster = readBlocks(mapFile, rasterReader);
+                        }
+                        if (blocksRaster != null) {
+                            outRaster = blocksRaster;
+                        } else {
+                            outRaster = rasterReader.read(generalParameter);
+                        }
                         resample();
 //                        checkNovalues();
                     }
@@ -245,6 +261,50 @@ public class OmsRasterReader extends HMModel {
 
     }
 
+    /**
+     * Read only the blocks needed by the request.
+     *
+     * @return the coverage at the resolution of the chosen overview, or <code>null</code>
+     *          if the format can't be read by blocks.
+     */
+    private GridCoverage2D readBlocks( File mapFile, AbstractGridCoverage2DReader rasterReader ) throws Exception {
+        double w = originalEnvelope.getMinimum(0);
+        double s = originalEnvelope.getMinimum(1);
+        double e = originalEnvelope.getMaximum(0);
+        double n = originalEnvelope.getMaximum(1);
+        GridEnvelope2D gridRange = (GridEnvelope2D) rasterReader.getOriginalGridRange();
+        double xres = (e - w) / gridRange.width;
+        double yres = (n - s) / gridRange.height;
+        if (pBounds != null) {
+            n = pBounds[0];
+            s = pBounds[1];
+            w = pBounds[2];
+            e = pBounds[3];
+        }
+        if (pRes != null) {
+            xres = pRes[0];
+            yres = pRes[1];
+        } else if (pRowcol != null) {
+            xres = (e - w) / pRowcol[1];
+            yres = (n - s) / pRowcol[0];
+        }
+
+        double novalue = HMConstants.doubleNovalue;
+        if (rasterReader instanceof GeoTiffReader) {
+            GeoTiffIIOMetadataDecoder metadata = ((GeoTiffReader) rasterReader).getMetadata();
+            if (metadata.hasNoData()) {
+                novalue = metadata.getNoData();
+            }
+        }
+
+        RasterBlockReader blockReader = new RasterBlockReader(mapFile, rasterReader, RasterTileCache.getInstance());
+        GridCoverage2D coverage = blockReader.read(n, s, w, e, xres, yres, novalue);
+        if (coverage != null) {
+            pm.message("Read from overview level " + blockReader.getLevel() + ", " + RasterTileCache.getInstance());
+        }
+        return coverage;
+    }
+
     private void readGrass( File mapFile ) throws Exception {
         JGrassMapEnvironment mapEnvironment = new JGrassMapEnvironment(new File(file));
         CoordinateReferenceSystem crs = mapEnvironment.getCoordinateReferenceSystem();
@@ -397,6 +457,31 @@ public class OmsRasterReader extends HMModel {
         return geodata;
     }
 
+    /**
+     * Utility method to quickly read a region of a grid, decoding only the needed blocks.
+     * 
+     * <p>The best overview for the resolution of the region is used and the decoded
+     * blocks are cached, which makes it suitable for previews and estimates.</p>
+     * 
+     * @param path the path to the file.
+     * @param region the region to read.
+     * @return the read coverage.
+     * @throws Exception
+     */
+    public static GridCoverage2D readRaster( String path, RegionMap region ) throws Exception {
+        OmsRasterReader reader = new OmsRasterReader();
+        reader.file = path;
+        reader.pNorth = region.getNorth();
+        reader.pSouth = region.getSouth();
+        reader.pWest = region.getWest();
+        reader.pEast = region.getEast();
+        reader.pRows = region.getRows();
+        reader.pCols = region.getCols();
+        reader.doBlocks = true;
+        reader.process();
+        return reader.outRaster;
+    }
+
     public static ReferencedEnvelope readEnvelope( String path ) throws Exception {
         OmsRasterReader reader = new OmsRasterReader();
         reader.file = path;
@@ -0,0 +1,215 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.io.rasterreader;
+
+import java.awt.Rectangle;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
+import org.geotools.geometry.GeneralEnvelope;
+import org.hortonmachine.gears.utils.RegionMap;
+import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Reads the part of a raster that intersects a region, block by block.
+ *
+ * <p>The overview level is the coarsest one that still has a resolution at least as fine as
+ * the requested one. Only the blocks of that level that intersect the region are decoded,
+ * tiled images are read by their own tiles, the others by bands of rows. The decoded blocks
+ * go through the shared {@link RasterTileCache}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+class RasterBlockReader {
+    /**
+     * The number of rows of the blocks of images that are not tiled.
+     */
+    static final int STRIP_BLOCK_ROWS = 256;
+
+    private static final double RES_TOLERANCE = 1E-6;
+
+    private final File file;
+    private final AbstractGridCoverage2DReader coverageReader;
+    private final RasterTileCache cache;
+
+    private int level;
+
+    RasterBlockReader( File file, AbstractGridCoverage2DReader coverageReader, RasterTileCache cache ) {
+        this.file = file;
+        this.coverageReader = coverageReader;
+        this.cache = cache;
+    }
+
+    /**
+     * @return the overview level used by the last read.
+     */
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Read a region.
+     *
+     * <p>The returned coverage covers the cells of the chosen level that intersect
+     * the region, at the resolution of the level, so it usually needs to be resampled.</p>
+     *
+     * @param n the north of the region.
+     * @param s the south of the region.
+     * @param w the west of the region.
+     * @param e the east of the region.
+     * @param xres the requested resolution in x.
+     * @param yres the requested resolution in y.
+     * @param novalue the novalue to set in the coverage.
+     * @return the coverage or <code>null</code> if the file can't be read by blocks.
+     * @throws Exception
+     */
+    GridCoverage2D read( double n, double s, double w, double e, double xres, double yres, double novalue )
+            throws Exception {
+        GeneralEnvelope envelope = coverageReader.getOriginalEnvelope();
+        CoordinateReferenceSystem crs = envelope.getCoordinateReferenceSystem();
+        double west = envelope.getMinimum(0);
+        double south = envelope.getMinimum(1);
+        double east = envelope.getMaximum(0);
+        double north = envelope.getMaximum(1);
+        GridEnvelope2D gridRange = (GridEnvelope2D) coverageReader.getOriginalGridRange();
+        int cols = gridRange.width;
+        int rows = gridRange.height;
+
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            if (stream == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, false, true);
+                if (reader.getWidth(0) != cols || reader.getHeight(0) != rows) {
+                    // the image is not the one georeferenced by the coverage reader
+                    return null;
+                }
+
+                level = chooseLevel(reader, cols, rows, (east - west) / cols, (north - south) / rows, xres, yres);
+                int levelCols = reader.getWidth(level);
+                int levelRows = reader.getHeight(level);
+                double levelXres = (east - west) / levelCols;
+                double levelYres = (north - south) / levelRows;
+
+                // the cells of the level that intersect the region
+                int fromCol = clamp((int) Math.floor((w - west) / levelXres + RES_TOLERANCE), levelCols);
+                int toCol = clamp((int) Math.ceil((e - west) / levelXres - RES_TOLERANCE), levelCols);
+                int fromRow = clamp((int) Math.floor((north - n) / levelYres + RES_TOLERANCE), levelRows);
+                int toRow = clamp((int) Math.ceil((north - s) / levelYres - RES_TOLERANCE), levelRows);
+                if (toCol <= fromCol || toRow <= fromRow) {
+                    return null;
+                }
+
+                int blockCols;
+                int blockRows;
+                if (reader.isImageTiled(level)) {
+                    blockCols = reader.getTileWidth(level);
+                    blockRows = reader.getTileHeight(level);
+                } else {
+                    blockCols = levelCols;
+                    blockRows = STRIP_BLOCK_ROWS;
+                }
+
+                WritableRaster outRaster = null;
+                for( int blockRow = fromRow / blockRows; blockRow * blockRows < toRow; blockRow++ ) {
+                    for( int blockCol = fromCol / blockCols; blockCol * blockCols < toCol; blockCol++ ) {
+                        Rectangle blockRect = new Rectangle(blockCol * blockCols, blockRow * blockRows, blockCols, blockRows)
+                                .intersection(new Rectangle(0, 0, levelCols, levelRows));
+                        Raster block = getBlock(reader, blockCol, blockRow, blockRect);
+                        if (outRaster == null) {
+                            outRaster = block.createCompatibleWritableRaster(toCol - fromCol, toRow - fromRow);
+                        }
+                        Rectangle copyRect = blockRect.intersection(new Rectangle(fromCol, fromRow, toCol - fromCol, toRow - fromRow));
+                        Raster child = block.createChild(copyRect.x - blockRect.x, copyRect.y - blockRect.y, copyRect.width,
+                                copyRect.height, 0, 0, null);
+                        outRaster.setRect(copyRect.x - fromCol, copyRect.y - fromRow, child);
+                    }
+                }
+
+                RegionMap region = CoverageUtilities.makeRegionParamsMap(north - fromRow * levelYres, north - toRow * levelYres,
+                        west + fromCol * levelXres, west + toCol * levelXres, levelXres, levelYres, toCol - fromCol,
+                        toRow - fromRow);
+                return CoverageUtilities.buildCoverageWithNovalue(file.getName(), outRaster, region, crs, novalue);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private Raster getBlock( ImageReader reader, int blockCol, int blockRow, Rectangle blockRect ) throws Exception {
+        String key = RasterTileCache.getKey(file, level, blockCol, blockRow);
+        Raster block = cache.get(key);
+        if (block == null) {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(blockRect);
+            block = reader.read(level, param).getRaster();
+            cache.put(key, block);
+        }
+        return block;
+    }
+
+    /**
+     * Choose the coarsest level that is not coarser than the requested resolution.
+     */
+    private int chooseLevel( ImageReader reader, int cols, int rows, double baseXres, double baseYres, double xres,
+            double yres ) throws Exception {
+        double[][] levels = coverageReader.getResolutionLevels();
+        int numImages = reader.getNumImages(true);
+        int chosen = 0;
+        if (levels == null) {
+            return chosen;
+        }
+        for( int i = 1; i < levels.length && i < numImages; i++ ) {
+            double levelXres = levels[i][0];
+            double levelYres = levels[i][1];
+            if (levelXres > xres * (1 + RES_TOLERANCE) || levelYres > yres * (1 + RES_TOLERANCE)) {
+                break;
+            }
+            // overviews that are not internal images of the file (ex. external .ovr) are skipped
+            long expectedCols = Math.round(cols * baseXres / levelXres);
+            long expectedRows = Math.round(rows * baseYres / levelYres);
+            if (Math.abs(reader.getWidth(i) - expectedCols) > 1 || Math.abs(reader.getHeight(i) - expectedRows) > 1) {
+                break;
+            }
+            chosen = i;
+        }
+        return chosen;
+    }
+
+    private static int clamp( int value, int max ) {
+        return Math.max(0, Math.min(max, value));
+    }
+
+}
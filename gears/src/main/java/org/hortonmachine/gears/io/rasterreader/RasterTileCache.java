@@ -0,0 +1,234 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.io.rasterreader;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process wide, size bounded cache of decoded raster blocks.
+ *
+ * <p>The blocks are kept in least recently used order and evicted when the
+ * total size of their data exceeds the maximum. Cached rasters are shared,
+ * so they must never be modified.</p>
+ *
+ * <p>The keys contain the last modification time of the file, so blocks of
+ * a file that has been rewritten are never returned.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class RasterTileCache {
+    /**
+     * The default maximum size of the cache, 256MB.
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final RasterTileCache INSTANCE = new RasterTileCache(DEFAULT_MAX_BYTES);
+
+    private final LinkedHashMap<String, Raster> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long maxBytes;
+    private long sizeBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a cache. Modules should use the shared {@link #getInstance()}.
+     *
+     * @param maxBytes the maximum size of the cached data in bytes.
+     */
+    public RasterTileCache( long maxBytes ) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cache shared by all the readers of the process.
+     */
+    public static RasterTileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Create the key of a block.
+     *
+     * @param file the raster file.
+     * @param level the overview level, 0 for the full resolution.
+     * @param blockCol the column of the block.
+     * @param blockRow the row of the block.
+     * @return the key.
+     */
+    public static String getKey( File file, int level, int blockCol, int blockRow ) {
+        return file.getAbsolutePath() + "@" + file.lastModified() + "#" + level + "_" + blockCol + "_" + blockRow;
+    }
+
+    /**
+     * Get a block.
+     *
+     * @param key the key of the block.
+     * @return the raster or <code>null</code>, if the block is not cached.
+     */
+    public Raster get( String key ) {
+        Raster raster;
+        synchronized (tiles) {
+            raster = tiles.get(key);
+        }
+        if (raster == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return raster;
+    }
+
+    /**
+     * Add a block, evicting the least recently used ones if necessary.
+     *
+     * <p>Blocks bigger than the whole cache are not added.</p>
+     *
+     * @param key the key of the block.
+     * @param raster the raster of the block.
+     */
+    public void put( String key, Raster raster ) {
+        long bytes = getBytes(raster);
+        synchronized (tiles) {
+            if (bytes > maxBytes) {
+                return;
+            }
+            Raster previous = tiles.put(key, raster);
+            if (previous != null) {
+                sizeBytes -= getBytes(previous);
+            }
+            sizeBytes += bytes;
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry<String, Raster>> iterator = tiles.entrySet().iterator();
+        while( sizeBytes > maxBytes && iterator.hasNext() ) {
+            Entry<String, Raster> eldest = iterator.next();
+            sizeBytes -= getBytes(eldest.getValue());
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Change the maximum size of the cache.
+     *
+     * @param maxBytes the maximum size of the cached data in bytes.
+     */
+    public void setMaxBytes( long maxBytes ) {
+        synchronized (tiles) {
+            this.maxBytes = maxBytes;
+            evict();
+        }
+    }
+
+    /**
+     * @return the maximum size of the cached data in bytes.
+     */
+    public long getMaxBytes() {
+        synchronized (tiles) {
+            return maxBytes;
+        }
+    }
+
+    /**
+     * @return the current size of the cached data in bytes.
+     */
+    public long getSizeBytes() {
+        synchronized (tiles) {
+            return sizeBytes;
+        }
+    }
+
+    /**
+     * @return the number of cached blocks.
+     */
+    public int getTilesCount() {
+        synchronized (tiles) {
+            return tiles.size();
+        }
+    }
+
+    /**
+     * @return the number of requests that found the block.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests that didn't find the block.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of blocks removed to stay in the size limit.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the ratio of the requests that found the block.
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        if (total == 0) {
+            return 0;
+        }
+        return h / (double) total;
+    }
+
+    /**
+     * Remove all the blocks and reset the metrics.
+     */
+    public void clear() {
+        synchronized (tiles) {
+            tiles.clear();
+            sizeBytes = 0;
+        }
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    private static long getBytes( Raster raster ) {
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        long elementBytes = Math.max(1, DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8);
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * elementBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "RasterTileCache [tiles=" + getTilesCount() + ", bytes=" + getSizeBytes() + "/" + getMaxBytes() + ", hits="
+                + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+    }
+
+}
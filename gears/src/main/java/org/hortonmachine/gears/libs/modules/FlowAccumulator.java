@@ -0,0 +1,306 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.libs.modules;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.media.jai.iterator.RandomIter;
+
+import org.hortonmachine.gears.libs.modules.multiprocessing.GridBlockTask;
+import org.hortonmachine.gears.libs.monitor.DummyProgressMonitor;
+import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
+
+/**
+ * Topological accumulation of values along D8 flowdirections.
+ *
+ * <p>For every valid cell the result is the weight of the cell plus the
+ * accumulated values of all the cells draining into it:</p>
+ * <pre>
+ * acc(c) = w(c) + sum(acc(u)), for each u flowing into c
+ * </pre>
+ *
+ * <p>The number of entering cells (in-degree) is counted first. Starting from
+ * the sources (in-degree 0) each path is followed downstream, decrementing the
+ * in-degree of the cells it reaches. A path continues through a confluence only when
+ * the last entering cell has been done, so every cell is visited once.
+ * Sources are independent, so they are processed in parallel.</p>
+ *
+ * <p>Cells that are part of a loop (or downstream of one) never reach in-degree 0,
+ * they are left with novalue and can be retrieved through {@link #getLoopCells()}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class FlowAccumulator {
+
+    private static final int[] DCOL = new int[11];
+    private static final int[] DROW = new int[11];
+    static {
+        for( Direction direction : Direction.getOrderedDirs() ) {
+            DCOL[direction.getFlow()] = direction.col;
+            DROW[direction.getFlow()] = direction.row;
+        }
+    }
+
+    private final int cols;
+    private final int rows;
+    private final int[] flow;
+    private final int flowNovalue;
+    private boolean doParallel = true;
+    private IHMProgressMonitor pm = new DummyProgressMonitor();
+
+    private double[] weights;
+    private int[] loopCells = new int[0];
+
+    /**
+     * Constructor.
+     *
+     * @param cols the columns of the grid.
+     * @param rows the rows of the grid.
+     * @param flow the flowdirections in row major order.
+     * @param flowNovalue the novalue of the flowdirections.
+     */
+    public FlowAccumulator( int cols, int rows, int[] flow, int flowNovalue ) {
+        this.cols = cols;
+        this.rows = rows;
+        this.flow = flow;
+        this.flowNovalue = flowNovalue;
+    }
+
+    /**
+     * Read the flowdirections of a raster into a row major array.
+     *
+     * @param flowIter the flowdirections iterator.
+     * @param cols the columns of the grid.
+     * @param rows the rows of the grid.
+     * @param flowNovalue the novalue to use for invalid cells.
+     * @return the flow array.
+     */
+    public static int[] readFlow( RandomIter flowIter, int cols, int rows, int flowNovalue ) {
+        int[] flow = new int[cols * rows];
+        for( int r = 0; r < rows; r++ ) {
+            int index = r * cols;
+            for( int c = 0; c < cols; c++ ) {
+                double value = flowIter.getSampleDouble(c, r, 0);
+                if (HMConstants.isNovalue(value, flowNovalue)) {
+                    flow[index + c] = flowNovalue;
+                } else {
+                    flow[index + c] = (int) value;
+                }
+            }
+        }
+        return flow;
+    }
+
+    /**
+     * @param doParallel if <code>true</code>, independent paths are processed in parallel (default).
+     * @return the accumulator.
+     */
+    public FlowAccumulator setParallel( boolean doParallel ) {
+        this.doParallel = doParallel;
+        return this;
+    }
+
+    /**
+     * @param pm the monitor used to report progress and check for cancellation.
+     * @return the accumulator.
+     */
+    public FlowAccumulator setProgressMonitor( IHMProgressMonitor pm ) {
+        if (pm != null) {
+            this.pm = pm;
+        }
+        return this;
+    }
+
+    /**
+     * Accumulate the given weights downstream.
+     *
+     * @param weights the weights of the cells in row major order. If <code>null</code>,
+     *          every cell weights 1 and the result is the contributing area in cells.
+     *          Cells with a NaN weight are excluded: they neither receive nor pass on values.
+     * @param outNovalue the value to use for cells that are excluded, invalid or part of loops.
+     * @return the accumulated values in row major order.
+     * @throws Exception
+     */
+    public double[] accumulate( double[] weights, double outNovalue ) throws Exception {
+        this.weights = weights;
+        int size = cols * rows;
+        double[] acc = new double[size];
+        Arrays.fill(acc, outNovalue);
+        AtomicIntegerArray inDegree = new AtomicIntegerArray(size);
+
+        pm.beginTask("Counting entering cells...", rows);
+        GridBlockTask.processBlocks(doParallel, 0, 0, cols, rows, pm, ( colStart, rowStart, colEnd, rowEnd ) -> {
+            for( int r = rowStart; r < rowEnd; r++ ) {
+                for( int c = colStart; c < colEnd; c++ ) {
+                    int down = downstream(r * cols + c);
+                    if (down >= 0) {
+                        inDegree.incrementAndGet(down);
+                    }
+                }
+                if (colEnd == cols) {
+                    pm.worked(1);
+                }
+            }
+        });
+        pm.done();
+
+        // collect the sources before any in-degree is decremented
+        int sourcesCount = 0;
+        int[] sources = new int[1024];
+        for( int i = 0; i < size; i++ ) {
+            if (isActive(i) && inDegree.get(i) == 0) {
+                if (sourcesCount == sources.length) {
+                    sources = Arrays.copyOf(sources, sources.length * 2);
+                }
+                sources[sourcesCount++] = i;
+            }
+        }
+
+        int[] _sources = sources;
+        pm.beginTask("Accumulating downstream...", sourcesCount);
+        GridBlockTask.processBlocks(doParallel, 0, 0, sourcesCount, 1, pm, ( colStart, rowStart, colEnd, rowEnd ) -> {
+            for( int s = colStart; s < colEnd; s++ ) {
+                if (pm.isCanceled()) {
+                    return;
+                }
+                int current = _sources[s];
+                while( current >= 0 ) {
+                    acc[current] = weight(current) + upstreamSum(current, acc);
+                    int down = downstream(current);
+                    if (down < 0 || inDegree.decrementAndGet(down) != 0) {
+                        // the last entering cell continues the path
+                        break;
+                    }
+                    current = down;
+                }
+                pm.worked(1);
+            }
+        });
+        pm.done();
+
+        int loopCount = 0;
+        int[] loops = new int[16];
+        for( int i = 0; i < size; i++ ) {
+            if (isActive(i) && inDegree.get(i) > 0) {
+                if (loopCount == loops.length) {
+                    loops = Arrays.copyOf(loops, loops.length * 2);
+                }
+                loops[loopCount++] = i;
+            }
+        }
+        loopCells = Arrays.copyOf(loops, loopCount);
+        this.weights = null;
+        return acc;
+    }
+
+    /**
+     * @return the row major indexes of the cells that could not be accumulated
+     *          in the last run because they are part of a loop or downstream of one.
+     */
+    public int[] getLoopCells() {
+        return loopCells;
+    }
+
+    /**
+     * Find one cell index for each loop among the given cells.
+     *
+     * @param loopCells the cells to check, as returned by {@link #getLoopCells()}.
+     * @return for each loop the ordered indexes of its cells.
+     */
+    public int[][] findLoops( int[] loopCells ) {
+        int[] walkId = new int[cols * rows];
+        int[][] found = new int[0][];
+        int currentWalk = 0;
+        int[] path = new int[16];
+        for( int start : loopCells ) {
+            if (walkId[start] != 0) {
+                continue;
+            }
+            currentWalk++;
+            int pathLength = 0;
+            int current = start;
+            while( current >= 0 && walkId[current] == 0 ) {
+                walkId[current] = currentWalk;
+                if (pathLength == path.length) {
+                    path = Arrays.copyOf(path, path.length * 2);
+                }
+                path[pathLength++] = current;
+                current = downstream(current);
+            }
+            if (current >= 0 && walkId[current] == currentWalk) {
+                // closed on itself in this walk, extract the loop
+                int loopStart = 0;
+                while( path[loopStart] != current ) {
+                    loopStart++;
+                }
+                found = Arrays.copyOf(found, found.length + 1);
+                found[found.length - 1] = Arrays.copyOfRange(path, loopStart, pathLength);
+            }
+        }
+        return found;
+    }
+
+    private boolean isActive( int index ) {
+        return flow[index] != flowNovalue && (weights == null || !Double.isNaN(weights[index]));
+    }
+
+    private double weight( int index ) {
+        return weights == null ? 1.0 : weights[index];
+    }
+
+    /**
+     * @return the downstream cell index or -1 if the cell has no valid downstream cell.
+     */
+    private int downstream( int index ) {
+        if (!isActive(index)) {
+            return -1;
+        }
+        int f = flow[index];
+        if (f < 1 || f > 8) {
+            return -1;
+        }
+        int col = index % cols + DCOL[f];
+        int row = index / cols + DROW[f];
+        if (col < 0 || col >= cols || row < 0 || row >= rows) {
+            return -1;
+        }
+        int down = row * cols + col;
+        return isActive(down) ? down : -1;
+    }
+
+    private double upstreamSum( int index, double[] acc ) {
+        int col = index % cols;
+        int row = index / cols;
+        double sum = 0;
+        for( int f = 1; f <= 8; f++ ) {
+            // the neighbour in direction f flows here if it points back
+            int nCol = col + DCOL[f];
+            int nRow = row + DROW[f];
+            if (nCol < 0 || nCol >= cols || nRow < 0 || nRow >= rows) {
+                continue;
+            }
+            int neighbour = nRow * cols + nCol;
+            if (downstream(neighbour) == index) {
+                sum += acc[neighbour];
+            }
+        }
+        return sum;
+    }
+
+}
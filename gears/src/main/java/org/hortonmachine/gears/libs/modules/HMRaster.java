@@ -18,7 +18,16 @@ package org.hortonmachine.gears.libs.modules;
  */
 
 import java.awt.Point;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -36,6 +45,7 @@ import org.hortonmachine.gears.libs.monitor.DummyProgressMonitor;
 import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
 import org.hortonmachine.gears.utils.RegionMap;
 import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
+import org.hortonmachine.gears.utils.coverage.TiledDiskRandomIter;
 import org.hortonmachine.gears.utils.math.NumericsUtilities;
 import org.locationtech.jts.geom.Coordinate;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -63,6 +73,16 @@ public class HMRaster implements AutoCloseable {
     private double yRes;
     private GridCoverage2D originalCoverage;
 
+    /**
+     * Direct access to the backing data arrays, available only for single band
+     * double, float and int rasters. At most one of them is not null.
+     */
+    private double[] doubleData;
+    private float[] floatData;
+    private int[] intData;
+    private int dataOffset;
+    private int rowStride;
+
     /**
      * Support Rasters for the aggregation methods.
      */
@@ -134,6 +154,10 @@ public class HMRaster implements AutoCloseable {
         hmRaster.intNovalue = (int) HMConstants.getNovalue(coverage);
         hmRaster.shortNovalue = (short) HMConstants.getNovalue(coverage);
         hmRaster.iter = CoverageUtilities.getRandomIterator(coverage);
+        RenderedImage image = coverage.getRenderedImage();
+        if (image.getNumXTiles() == 1 && image.getNumYTiles() == 1) {
+            hmRaster.initArrayAccess(image.getTile(image.getMinTileX(), image.getMinTileY()));
+        }
         return hmRaster;
     }
 
@@ -195,6 +219,153 @@ public class HMRaster implements AutoCloseable {
         return crs;
     }
 
+    /**
+     * Enable the primitive array access if the raster is a single band
+     * double, float or int raster with a plain pixel interleaved layout.
+     */
+    private void initArrayAccess( Raster raster ) {
+        if (raster == null || raster.getNumBands() != 1 || raster.getMinX() != 0 || raster.getMinY() != 0
+                || raster.getWidth() != cols || raster.getHeight() != rows) {
+            return;
+        }
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (!(sampleModel instanceof ComponentSampleModel) || dataBuffer.getNumBanks() != 1) {
+            return;
+        }
+        ComponentSampleModel csm = (ComponentSampleModel) sampleModel;
+        if (csm.getPixelStride() != 1) {
+            return;
+        }
+        rowStride = csm.getScanlineStride();
+        // position of cell 0,0 in the bank
+        dataOffset = dataBuffer.getOffset() + csm.getBandOffsets()[0] - raster.getSampleModelTranslateY() * rowStride
+                - raster.getSampleModelTranslateX();
+        if (dataBuffer instanceof DataBufferDouble) {
+            doubleData = ((DataBufferDouble) dataBuffer).getData();
+        } else if (dataBuffer instanceof DataBufferFloat) {
+            floatData = ((DataBufferFloat) dataBuffer).getData();
+        } else if (dataBuffer instanceof DataBufferInt) {
+            intData = ((DataBufferInt) dataBuffer).getData();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the raster values can be accessed directly through 
+     *          {@link #getDoubleArray()}, {@link #getFloatArray()} or {@link #getIntArray()}.
+     */
+    public boolean hasArrayAccess() {
+        return doubleData != null || floatData != null || intData != null;
+    }
+
+    /**
+     * @return the backing array of a double raster or <code>null</code>. Use {@link #getArrayIndex(int, int)} to index it.
+     */
+    public double[] getDoubleArray() {
+        return doubleData;
+    }
+
+    /**
+     * @return the backing array of a float raster or <code>null</code>. Use {@link #getArrayIndex(int, int)} to index it.
+     */
+    public float[] getFloatArray() {
+        return floatData;
+    }
+
+    /**
+     * @return the backing array of an int raster or <code>null</code>. Use {@link #getArrayIndex(int, int)} to index it.
+     */
+    public int[] getIntArray() {
+        return intData;
+    }
+
+    /**
+     * Get the position of a cell in the backing array.
+     * 
+     * <p>No bounds check is done.</p>
+     * 
+     * @param col the column of the cell.
+     * @param row the row of the cell.
+     * @return the index in the backing array.
+     */
+    public int getArrayIndex( int col, int row ) {
+        return dataOffset + row * rowStride + col;
+    }
+
+    /**
+     * @return the distance between two vertically adjacent cells in the backing array.
+     */
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    /**
+     * Read a whole row of values.
+     * 
+     * @param row the row to read.
+     * @param buffer the buffer to fill. If <code>null</code> or too small, a new one is created.
+     * @return the buffer holding the row values.
+     */
+    public double[] readRow( int row, double[] buffer ) {
+        if (buffer == null || buffer.length < cols) {
+            buffer = new double[cols];
+        }
+        int index = getArrayIndex(0, row);
+        if (doubleData != null) {
+            System.arraycopy(doubleData, index, buffer, 0, cols);
+        } else if (floatData != null) {
+            for( int c = 0; c < cols; c++ ) {
+                buffer[c] = floatData[index + c];
+            }
+        } else if (intData != null) {
+            for( int c = 0; c < cols; c++ ) {
+                buffer[c] = intData[index + c];
+            }
+        } else {
+            for( int c = 0; c < cols; c++ ) {
+                buffer[c] = iter.getSampleDouble(c, row, 0);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * If the raster is writable, write a whole row of values.
+     * 
+     * @param row the row to write.
+     * @param buffer the values to write, at least as many as the columns.
+     * @throws IOException
+     */
+    public void writeRow( int row, double[] buffer ) throws IOException {
+        if (!isWritable) {
+            throw new IOException("The current HMRaster is not writable.");
+        }
+        int index = getArrayIndex(0, row);
+        if (doubleData != null) {
+            System.arraycopy(buffer, 0, doubleData, index, cols);
+        } else if (floatData != null) {
+            for( int c = 0; c < cols; c++ ) {
+                floatData[index + c] = (float) buffer[c];
+            }
+        } else if (intData != null) {
+            for( int c = 0; c < cols; c++ ) {
+                intData[index + c] = (int) buffer[c];
+            }
+        } else {
+            WritableRandomIter wIter = (WritableRandomIter) iter;
+            for( int c = 0; c < cols; c++ ) {
+                wIter.setSample(c, row, 0, buffer[c]);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the raster data are kept in a disk backed tiled storage.
+     */
+    public boolean isTiled() {
+        return iter instanceof TiledDiskRandomIter;
+    }
+
     /**
      * Check if a given value is a novalue for this raster.
      * 
@@ -233,6 +404,13 @@ public class HMRaster implements AutoCloseable {
      */
     public double getValue( int col, int row ) {
         if (isContained(col, row)) {
+            if (doubleData != null) {
+                return doubleData[dataOffset + row * rowStride + col];
+            } else if (floatData != null) {
+                return floatData[dataOffset + row * rowStride + col];
+            } else if (intData != null) {
+                return intData[dataOffset + row * rowStride + col];
+            }
             return iter.getSampleDouble(col, row, 0);
         } else {
             return novalue;
@@ -259,6 +437,13 @@ public class HMRaster implements AutoCloseable {
      */
     public int getIntValue( int col, int row ) {
         if (isContained(col, row)) {
+            if (intData != null) {
+                return intData[dataOffset + row * rowStride + col];
+            } else if (doubleData != null) {
+                return (int) doubleData[dataOffset + row * rowStride + col];
+            } else if (floatData != null) {
+                return (int) floatData[dataOffset + row * rowStride + col];
+            }
             return iter.getSample(col, row, 0);
         } else {
             return intNovalue;
@@ -285,6 +470,9 @@ public class HMRaster implements AutoCloseable {
      */
     public short getShortValue( int col, int row ) {
         if (isContained(col, row)) {
+            if (hasArrayAccess()) {
+                return (short) getIntValue(col, row);
+            }
             return (short) iter.getSample(col, row, 0);
         } else {
             return shortNovalue;
@@ -315,7 +503,15 @@ public class HMRaster implements AutoCloseable {
             throw new IOException("The current HMRaster is not writable.");
         }
         if (isContained(col, row)) {
-            ((WritableRandomIter) iter).setSample(col, row, 0, value);
+            if (doubleData != null) {
+                doubleData[dataOffset + row * rowStride + col] = value;
+            } else if (floatData != null) {
+                floatData[dataOffset + row * rowStride + col] = (float) value;
+            } else if (intData != null) {
+                intData[dataOffset + row * rowStride + col] = (int) value;
+            } else {
+                ((WritableRandomIter) iter).setSample(col, row, 0, value);
+            }
         }
     }
 
@@ -324,7 +520,15 @@ public class HMRaster implements AutoCloseable {
             throw new IOException("The current HMRaster is not writable.");
         }
         if (isContained(col, row)) {
-            ((WritableRandomIter) iter).setSample(col, row, 0, value);
+            if (intData != null) {
+                intData[dataOffset + row * rowStride + col] = value;
+            } else if (doubleData != null) {
+                doubleData[dataOffset + row * rowStride + col] = value;
+            } else if (floatData != null) {
+                floatData[dataOffset + row * rowStride + col] = value;
+            } else {
+                ((WritableRandomIter) iter).setSample(col, row, 0, value);
+            }
         }
     }
 
@@ -333,7 +537,15 @@ public class HMRaster implements AutoCloseable {
             throw new IOException("The current HMRaster is not writable.");
         }
         if (isContained(col, row)) {
-            ((WritableRandomIter) iter).setSample(col, row, 0, value);
+            if (intData != null) {
+                intData[dataOffset + row * rowStride + col] = value;
+            } else if (doubleData != null) {
+                doubleData[dataOffset + row * rowStride + col] = value;
+            } else if (floatData != null) {
+                floatData[dataOffset + row * rowStride + col] = value;
+            } else {
+                ((WritableRandomIter) iter).setSample(col, row, 0, value);
+            }
         }
     }
 
@@ -416,6 +628,11 @@ public class HMRaster implements AutoCloseable {
     /**
      * Build a geotools gridCoverage.
      * 
+     * <p>For tiled rasters the coverage reads its data from the disk storage on demand.
+     * It takes a share of the storage, so it stays valid after the raster is closed. The
+     * storage file is deleted once the raster is closed and the coverage is disposed (or
+     * when the JVM exits).</p>
+     * 
      * @param name an optional name to give the coverage.
      * @return the gridCoverage.
      * @throws IOException
@@ -427,6 +644,10 @@ public class HMRaster implements AutoCloseable {
         if (!isWritable) {
             throw new IOException("The current HMRaster is not writable.");
         }
+        if (isTiled()) {
+            RenderedImage image = ((TiledDiskRandomIter) iter).getRenderedImage();
+            return CoverageUtilities.buildCoverageWithNovalue(name, image, regionMap, crs, novalue);
+        }
         return CoverageUtilities.buildCoverageWithNovalue(name, writableRaster, regionMap, crs, novalue);
     }
 
@@ -667,6 +888,14 @@ public class HMRaster implements AutoCloseable {
 
         private double[][] dataMatrix = null;
 
+        private boolean doTiled = false;
+
+        private int tileSize = TiledDiskRandomIter.DEFAULT_TILE_SIZE;
+
+        private int tileCacheSize = TiledDiskRandomIter.DEFAULT_CACHE_SIZE;
+
+        private File tilesFolder = null;
+
         public HMRasterWritableBuilder setName( String name ) {
             this.name = name;
             return this;
@@ -732,6 +961,84 @@ public class HMRaster implements AutoCloseable {
             return this;
         }
 
+        /**
+         * Use a disk backed tiled storage instead of an in-memory raster.
+         * 
+         * <p>This allows to process rasters that do not fit in the heap. Only
+         * a bounded number of tiles is kept in memory at any time.</p>
+         * 
+         * @param doTiled if <code>true</code>, the tiled storage is used.
+         * @return the builder.
+         */
+        public HMRasterWritableBuilder setDoTiled( boolean doTiled ) {
+            this.doTiled = doTiled;
+            return this;
+        }
+
+        /**
+         * @param tileSize the tile side in cells for the tiled storage.
+         * @return the builder.
+         */
+        public HMRasterWritableBuilder setTileSize( int tileSize ) {
+            this.tileSize = tileSize;
+            return this;
+        }
+
+        /**
+         * @param tileCacheSize the max number of tiles kept in memory by the tiled storage.
+         * @return the builder.
+         */
+        public HMRasterWritableBuilder setTileCacheSize( int tileCacheSize ) {
+            this.tileCacheSize = tileCacheSize;
+            return this;
+        }
+
+        /**
+         * @param tilesFolder the folder in which the tiled storage file is created. Defaults to the temp folder.
+         * @return the builder.
+         */
+        public HMRasterWritableBuilder setTilesFolder( File tilesFolder ) {
+            this.tilesFolder = tilesFolder;
+            return this;
+        }
+
+        private void createStorage( HMRaster hmRaster ) {
+            Class< ? > dataClass;
+            double initial;
+            if (doInteger) {
+                dataClass = Integer.class;
+                initial = initialIntValue != null ? initialIntValue : hmRaster.intNovalue;
+            } else if (doShort) {
+                dataClass = Short.class;
+                initial = initialShortValue != null ? initialShortValue : hmRaster.shortNovalue;
+            } else {
+                dataClass = Double.class;
+                initial = initialValue != null ? initialValue : hmRaster.novalue;
+            }
+
+            if (doTiled) {
+                try {
+                    hmRaster.iter = new TiledDiskRandomIter(hmRaster.cols, hmRaster.rows, dataClass, initial, tileSize,
+                            tileCacheSize, tilesFolder);
+                } catch (IOException e) {
+                    throw new ModelsRuntimeException("Unable to create the tiled raster storage: " + e.getMessage(), this);
+                }
+            } else {
+                if (doInteger) {
+                    hmRaster.writableRaster = CoverageUtilities.createWritableRaster(hmRaster.cols, hmRaster.rows, Integer.class,
+                            null, (int) initial);
+                } else if (doShort) {
+                    hmRaster.writableRaster = CoverageUtilities.createWritableRaster(hmRaster.cols, hmRaster.rows, Short.class,
+                            null, (short) initial);
+                } else {
+                    hmRaster.writableRaster = CoverageUtilities.createWritableRaster(hmRaster.cols, hmRaster.rows, Double.class,
+                            null, initial);
+                }
+                hmRaster.iter = CoverageUtilities.getWritableRandomIterator(hmRaster.writableRaster);
+                hmRaster.initArrayAccess(hmRaster.writableRaster);
+            }
+        }
+
         public HMRaster build() {
             if (template != null) {
                 HMRaster hmRaster = new HMRaster();
@@ -748,17 +1055,7 @@ public class HMRaster implements AutoCloseable {
                 hmRaster.intNovalue = noValue != null ? noValue.intValue() : (int) template.getNovalue();
                 hmRaster.shortNovalue = noValue != null ? noValue.shortValue() : (short) template.getNovalue();
 
-                if (doInteger) {
-                    hmRaster.writableRaster = CoverageUtilities.createWritableRaster(hmRaster.cols, hmRaster.rows, Integer.class,
-                            null, initialIntValue != null ? initialIntValue : hmRaster.intNovalue);
-                } else if (doShort) {
-                    hmRaster.writableRaster = CoverageUtilities.createWritableRaster(hmRaster.cols, hmRaster.rows, Short.class,
-                            null, initialShortValue != null ? initialShortValue : hmRaster.shortNovalue);
-                } else {
-                    hmRaster.writableRaster = CoverageUtilities.createWritableRaster(hmRaster.cols, hmRaster.rows, Double.class,
-                            null, initialValue != null ? initialValue : hmRaster.novalue);
-                }
-                hmRaster.iter = CoverageUtilities.getWritableRandomIterator(hmRaster.writableRaster);
+                createStorage(hmRaster);
 
                 if (copyValues) {
 //                    RandomIter inIter = CoverageUtilities.getRandomIterator(template);
@@ -798,17 +1095,7 @@ public class HMRaster implements AutoCloseable {
                 hmRaster.intNovalue = noValue != null ? noValue.intValue() : HMConstants.intNovalue;
                 hmRaster.shortNovalue = noValue != null ? noValue.shortValue() : HMConstants.shortNovalue;
 
-                if (doInteger) {
-                    hmRaster.writableRaster = CoverageUtilities.createWritableRaster(hmRaster.cols, hmRaster.rows, Integer.class,
-                            null, initialIntValue != null ? initialIntValue : hmRaster.intNovalue);
-                } else if (doShort) {
-                    hmRaster.writableRaster = CoverageUtilities.createWritableRaster(hmRaster.cols, hmRaster.rows, Short.class,
-                            null, initialShortValue != null ? initialShortValue : hmRaster.shortNovalue);
-                } else {
-                    hmRaster.writableRaster = CoverageUtilities.createWritableRaster(hmRaster.cols, hmRaster.rows, Double.class,
-                            null, initialValue != null ? initialValue : hmRaster.novalue);
-                }
-                hmRaster.iter = CoverageUtilities.getWritableRandomIterator(hmRaster.writableRaster);
+                createStorage(hmRaster);
 
                 if (dataMatrix != null) {
                     for( int r = 0; r < hmRaster.rows; r++ ) {
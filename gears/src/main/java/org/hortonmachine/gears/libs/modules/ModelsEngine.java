@@ -52,6 +52,7 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.DirectPosition2D;
 import org.hortonmachine.gears.i18n.GearsMessageHandler;
 import org.hortonmachine.gears.libs.exceptions.ModelsIllegalargumentException;
+import org.hortonmachine.gears.libs.exceptions.ModelsRuntimeException;
 import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
 import org.hortonmachine.gears.utils.RegionMap;
 import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
@@ -1174,10 +1175,6 @@ public class ModelsEngine {
      */
     public static WritableRaster sumDownstream( RandomIter flowIter, RandomIter mapToSumIter, int width, int height,
             Double upperThreshold, Double lowerThreshold, IHMProgressMonitor pm ) {
-        final int[] point = new int[2];
-        WritableRaster summedMapWR = CoverageUtilities.createWritableRaster(width, height, null, null, null);
-        WritableRandomIter summedMapIter = RandomIterFactory.createWritable(summedMapWR, null);
-
         double uThres = Double.POSITIVE_INFINITY;
         if (upperThreshold != null) {
             uThres = upperThreshold;
@@ -1187,55 +1184,34 @@ public class ModelsEngine {
             lThres = lowerThreshold;
         }
 
-        pm.beginTask("Calculating downstream sum...", height);
+        int[] flow = FlowAccumulator.readFlow(flowIter, width, height, HMConstants.intNovalue);
+        // values out of the thresholds are excluded from the sum and interrupt the paths
+        double[] weights = new double[width * height];
         for( int r = 0; r < height; r++ ) {
             for( int c = 0; c < width; c++ ) {
+                int index = r * width + c;
                 double mapToSumValue = mapToSumIter.getSampleDouble(c, r, 0);
-                if (!isNovalue(flowIter.getSampleDouble(c, r, 0)) && //
-                        mapToSumValue < uThres && //
-                        mapToSumValue > lThres //
-                ) {
-                    point[0] = c;
-                    point[1] = r;
-                    while( flowIter.getSampleDouble(point[0], point[1], 0) < 9 && //
-                            !isNovalue(flowIter.getSampleDouble(point[0], point[1], 0))
-                            && (checkRange(mapToSumIter.getSampleDouble(point[0], point[1], 0), uThres, lThres)) ) {
-
-                        double sumValue = summedMapIter.getSampleDouble(point[0], point[1], 0)
-                                + mapToSumIter.getSampleDouble(c, r, 0);
-
-                        summedMapIter.setSample(point[0], point[1], 0, sumValue);
-
-                        // FlowNode flowNode = new FlowNode(flowIter, width, height, point[0],
-                        // point[1]);
-                        // FlowNode downStreamNode = flowNode.goDownstream();
-                        // if (downStreamNode != null) {
-                        // if (!downStreamNode.isMarkedAsOutlet()) {
-                        // point[0] = downStreamNode.col;
-                        // point[1] = downStreamNode.row;
-                        // }
-                        // } else {
-                        // return null;
-                        // }
-                        if (!go_downstream(point, flowIter.getSampleDouble(point[0], point[1], 0)))
-                            return null;
-                    }
-
-                    if (!isNovalue(flowIter.getSampleDouble(point[0], point[1], 0))) {
-                        double summedMapValue = summedMapIter.getSampleDouble(point[0], point[1], 0);
-                        if (!isNovalue(summedMapValue)) {
-                            double sumValue = summedMapValue + mapToSumIter.getSampleDouble(c, r, 0);
-                            summedMapIter.setSample(point[0], point[1], 0, sumValue);
-                        }
+                if (checkRange(mapToSumValue, uThres, lThres)) {
+                    if (flow[index] != HMConstants.intNovalue && flow[index] < 1) {
+                        // not a valid flowdirection
+                        return null;
                     }
+                    weights[index] = mapToSumValue;
                 } else {
-                    summedMapIter.setSample(c, r, 0, doubleNovalue);
+                    weights[index] = Double.NaN;
                 }
             }
-            pm.worked(1);
         }
-        pm.done();
 
+        double[] summed;
+        try {
+            summed = new FlowAccumulator(width, height, flow, HMConstants.intNovalue).setProgressMonitor(pm).accumulate(weights,
+                    doubleNovalue);
+        } catch (Exception e) {
+            throw new ModelsRuntimeException("Error while summing downstream: " + e.getMessage(), "ModelsEngine");
+        }
+        WritableRaster summedMapWR = CoverageUtilities.createWritableRaster(width, height, null, null, null);
+        summedMapWR.setSamples(0, 0, width, height, 0, summed);
         return summedMapWR;
     }
 
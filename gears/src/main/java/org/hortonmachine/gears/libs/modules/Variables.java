@@ -32,6 +32,7 @@ public interface Variables {
     public String TYPE_DOUBLE = "DOUBLE";
 
     public String TPS = "TPS";
+    public String TPS_BLOCKS = "TPS by blocks";
     public String IDW = "IDW";
     public String LDW = "LDW";
     public String BIVARIATE = "BIVARIATE";
@@ -42,6 +43,10 @@ public interface Variables {
     public String BILINEAR = "bilinear";
     public String BICUBIC = "bicubic";
 
+    public String PYRAMID_MEAN = "mean";
+    public String PYRAMID_NEAREST = "nearest";
+    public String PYRAMID_MODE = "mode";
+
     public String INTERSECTION = "intersection";
     public String UNION = "union";
     public String DIFFERENCE = "difference";
@@ -55,6 +60,10 @@ public interface Variables {
     public String HORN = "Horn";
     public String EVANS = "Evans";
 
+    public String PITS_CLASSIC = "classic";
+    public String PITS_PRIORITY_FLOOD = "priority flood";
+    public String PITS_PRIORITY_FLOOD_TILED = "priority flood tiled";
+
     public String FIXED_NETWORK = "with fixed network";
 
     public String CAP_ROUND = "round";
@@ -19,6 +19,7 @@
 package org.hortonmachine.gears.libs.modules.multiprocessing;
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -69,6 +70,13 @@ public abstract class ExecutionPlanner {
      */
     public static final BlockingExecutorService defaultExecutor; 
     
+    /**
+     * The pool used for the recursive block processing of grids (see {@link GridBlockTask}).
+     * <p/>
+     * Set this to change the default.
+     */
+    public static ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+
     /**
      * Set this to change the default planner for all modules.
      */
@@ -98,6 +106,13 @@ public abstract class ExecutionPlanner {
     }
     
     
+    /**
+     * @return <code>true</code> if this planner executes tasks on multiple threads.
+     */
+    public boolean isParallel() {
+        return true;
+    }
+
     /**
      * Submits the given task for execution.
      * <p/>
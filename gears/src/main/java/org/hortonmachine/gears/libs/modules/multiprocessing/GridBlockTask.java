@@ -0,0 +1,202 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.libs.modules.multiprocessing;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
+
+/**
+ * A {@link RecursiveAction} that splits a grid region in blocks until they are
+ * small enough and then hands them to a {@link BlockCalculator}.
+ * 
+ * <p>Only one task object is created per block, so the cost of the scheduling does not
+ * depend on the number of cells. Idle threads steal the pending halves of the splits.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GridBlockTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The minimum number of cells under which a block is not split any more, when the default block size is used.
+     */
+    public static final int MIN_BLOCK_CELLS = 4096;
+
+    private final int colStart;
+    private final int rowStart;
+    private final int colEnd;
+    private final int rowEnd;
+    private final long maxBlockCells;
+    private final BlockCalculator calculator;
+    private final IHMProgressMonitor pm;
+
+    /**
+     * Calculator of a grid block.
+     */
+    @FunctionalInterface
+    public interface BlockCalculator {
+        /**
+         * Process a block of the grid.
+         * 
+         * @param colStart the first column (inclusive).
+         * @param rowStart the first row (inclusive).
+         * @param colEnd the last column (exclusive).
+         * @param rowEnd the last row (exclusive).
+         */
+        void calculateBlock( int colStart, int rowStart, int colEnd, int rowEnd ) throws Exception;
+    }
+
+    /**
+     * @param colStart the first column (inclusive).
+     * @param rowStart the first row (inclusive).
+     * @param colEnd the last column (exclusive).
+     * @param rowEnd the last row (exclusive).
+     * @param maxBlockCells the max number of cells of a block that is not split any more.
+     * @param pm the monitor used to check for cancellation. Can be <code>null</code>.
+     * @param calculator the block calculator.
+     */
+    public GridBlockTask( int colStart, int rowStart, int colEnd, int rowEnd, long maxBlockCells, IHMProgressMonitor pm,
+            BlockCalculator calculator ) {
+        this.colStart = colStart;
+        this.rowStart = rowStart;
+        this.colEnd = colEnd;
+        this.rowEnd = rowEnd;
+        this.maxBlockCells = Math.max(maxBlockCells, 1);
+        this.pm = pm;
+        this.calculator = calculator;
+    }
+
+    /**
+     * Get a block size that gives each thread several blocks to allow for load balancing.
+     * 
+     * @param cols the columns of the grid.
+     * @param rows the rows of the grid.
+     * @param parallelism the number of threads.
+     * @return the max number of cells for a block.
+     */
+    public static long getDefaultMaxBlockCells( int cols, int rows, int parallelism ) {
+        return Math.max(MIN_BLOCK_CELLS, (long) cols * rows / (parallelism * 8L));
+    }
+
+    /**
+     * Process a grid region by blocks.
+     * 
+     * <p>If parallel, the region is split recursively on the {@link ExecutionPlanner#forkJoinPool},
+     * else the whole region is passed as a single block to the calculator in the current thread.</p>
+     * 
+     * @param parallel if <code>true</code>, blocks are processed in parallel.
+     * @param colStart the first column (inclusive).
+     * @param rowStart the first row (inclusive).
+     * @param colEnd the last column (exclusive).
+     * @param rowEnd the last row (exclusive).
+     * @param pm the monitor used to check for cancellation. Can be <code>null</code>.
+     * @param calculator the block calculator.
+     * @throws Exception the first exception thrown by the calculator.
+     */
+    public static void processBlocks( boolean parallel, int colStart, int rowStart, int colEnd, int rowEnd, IHMProgressMonitor pm,
+            BlockCalculator calculator ) throws Exception {
+        long maxBlockCells = getDefaultMaxBlockCells(colEnd - colStart, rowEnd - rowStart,
+                ExecutionPlanner.forkJoinPool.getParallelism());
+        processBlocks(parallel, colStart, rowStart, colEnd, rowEnd, maxBlockCells, pm, calculator);
+    }
+
+    /**
+     * Process a grid region by blocks of a given maximum size.
+     * 
+     * <p>Use this when the blocks are coarse units of work, ex. a row of tiles in which
+     * every cell is a whole tile: with <code>maxBlockCells</code> set to 1 each tile
+     * is passed to the calculator on its own.</p>
+     * 
+     * @param parallel if <code>true</code>, blocks are processed in parallel.
+     * @param colStart the first column (inclusive).
+     * @param rowStart the first row (inclusive).
+     * @param colEnd the last column (exclusive).
+     * @param rowEnd the last row (exclusive).
+     * @param maxBlockCells the max number of cells of a block that is not split any more.
+     * @param pm the monitor used to check for cancellation. Can be <code>null</code>.
+     * @param calculator the block calculator.
+     * @throws Exception the first exception thrown by the calculator.
+     */
+    public static void processBlocks( boolean parallel, int colStart, int rowStart, int colEnd, int rowEnd, long maxBlockCells,
+            IHMProgressMonitor pm, BlockCalculator calculator ) throws Exception {
+        if (colEnd <= colStart || rowEnd <= rowStart) {
+            return;
+        }
+        if (!parallel) {
+            if (pm == null || !pm.isCanceled()) {
+                calculator.calculateBlock(colStart, rowStart, colEnd, rowEnd);
+            }
+            return;
+        }
+
+        ForkJoinPool pool = ExecutionPlanner.forkJoinPool;
+        try {
+            pool.invoke(new GridBlockTask(colStart, rowStart, colEnd, rowEnd, maxBlockCells, pm, calculator));
+        } catch (GridBlockException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    @Override
+    protected void compute() {
+        if (pm != null && pm.isCanceled()) {
+            return;
+        }
+        int width = colEnd - colStart;
+        int height = rowEnd - rowStart;
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if ((long) width * height <= maxBlockCells || (width == 1 && height == 1)) {
+            try {
+                calculator.calculateBlock(colStart, rowStart, colEnd, rowEnd);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new GridBlockException(e);
+            }
+            return;
+        }
+        // split on rows first, which keeps row bands contiguous in memory
+        GridBlockTask first;
+        GridBlockTask second;
+        if (height > 1 && height * 4 >= width) {
+            int midRow = rowStart + height / 2;
+            first = new GridBlockTask(colStart, rowStart, colEnd, midRow, maxBlockCells, pm, calculator);
+            second = new GridBlockTask(colStart, midRow, colEnd, rowEnd, maxBlockCells, pm, calculator);
+        } else {
+            int midCol = colStart + width / 2;
+            first = new GridBlockTask(colStart, rowStart, midCol, rowEnd, maxBlockCells, pm, calculator);
+            second = new GridBlockTask(midCol, rowStart, colEnd, rowEnd, maxBlockCells, pm, calculator);
+        }
+        invokeAll(first, second);
+    }
+
+    /**
+     * Wraps checked exceptions thrown by a {@link BlockCalculator}.
+     */
+    public static class GridBlockException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public GridBlockException( Exception cause ) {
+            super(cause);
+        }
+    }
+}
@@ -17,6 +17,8 @@
  */
 package org.hortonmachine.gears.libs.modules.multiprocessing;
 
+import org.hortonmachine.gears.libs.modules.multiprocessing.GridBlockTask.BlockCalculator;
+
 /**
  * A multiprocessing class for grid loops (nested for over matrix).
  *
@@ -29,11 +31,39 @@ public abstract class GridMultiProcessing extends MultiProcessing {
     }
     /**
      * Loops through all rows and cols of the given grid.
+     * 
+     * <p>The grid is processed in blocks (see {@link #processGridBlocks(int, int, boolean, BlockCalculator)}),
+     * so no task object is created per cell.</p>
      */
     protected void processGrid( int cols, int rows, boolean ignoreBorder, Calculator calculator ) throws Exception {
-        ExecutionPlanner planner = createDefaultPlanner();
-        planner.setNumberOfTasks(rows * cols);
+        processGridBlocks(cols, rows, ignoreBorder, ( colStart, rowStart, colEnd, rowEnd ) -> {
+            for( int r = rowStart; r < rowEnd; r++ ) {
+                if (pm.isCanceled()) {
+                    return;
+                }
+                for( int c = colStart; c < colEnd; c++ ) {
+                    calculator.calculate(c, r);
+                }
+            }
+        });
+    }
 
+    /**
+     * Processes the given grid by blocks.
+     * 
+     * <p>If the default planner is parallel, the grid is split recursively on the 
+     * {@link ExecutionPlanner#forkJoinPool}, else the whole grid is passed as a 
+     * single block to the calculator in the current thread.</p>
+     * 
+     * <p>Processing stops as soon as the progress monitor is canceled.</p>
+     * 
+     * @param cols the columns of the grid.
+     * @param rows the rows of the grid.
+     * @param ignoreBorder if <code>true</code>, the outer ring of cells is not processed.
+     * @param calculator the calculator called for every block.
+     * @throws Exception the first exception thrown by the calculator.
+     */
+    protected void processGridBlocks( int cols, int rows, boolean ignoreBorder, BlockCalculator calculator ) throws Exception {
         int startC = 0;
         int startR = 0;
         int endC = cols;
@@ -44,17 +74,7 @@ public abstract class GridMultiProcessing extends MultiProcessing {
             endC = cols - 1;
             endR = rows - 1;
         }
-        for( int r = startR; r < endR; r++ ) {
-            for( int c = startC; c < endC; c++ ) {
-                int _c = c, _r = r;
-                planner.submit(() -> {
-                    if (!pm.isCanceled()) {
-                        calculator.calculate(_c, _r);
-                    }
-                });
-            }
-        }
-        planner.join();
+        GridBlockTask.processBlocks(createDefaultPlanner().isParallel(), startC, startR, endC, endR, pm, calculator);
     }
 
     @FunctionalInterface
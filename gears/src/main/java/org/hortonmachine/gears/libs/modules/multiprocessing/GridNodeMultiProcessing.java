@@ -64,22 +64,18 @@ public abstract class GridNodeMultiProcessing extends MultiProcessing {
         
         double novalue = HMConstants.getNovalue(inElev);
 
-        ExecutionPlanner planner = createDefaultPlanner();
-        planner.setNumberOfTasks(rows * cols);
-
-        // Cycling into the valid region.
-        for( int r = 0; r < rows; r++ ) {
-            for( int c = 0; c < cols; c++ ) {
-                int _c = c, _r = r;
-                planner.submit(() -> {
-                    if (!pm.isCanceled()) {
-                        GridNode node = new GridNode(elevationIter, cols, rows, xRes, yRes, _c, _r, novalue);
-                        calculator.calculate(node);
+        GridBlockTask.processBlocks(createDefaultPlanner().isParallel(), 0, 0, cols, rows, pm,
+                ( colStart, rowStart, colEnd, rowEnd ) -> {
+                    for( int r = rowStart; r < rowEnd; r++ ) {
+                        if (pm.isCanceled()) {
+                            return;
+                        }
+                        for( int c = colStart; c < colEnd; c++ ) {
+                            GridNode node = new GridNode(elevationIter, cols, rows, xRes, yRes, c, r, novalue);
+                            calculator.calculate(node);
+                        }
                     }
                 });
-            }
-        }
-        planner.join();
     }
 
     @FunctionalInterface
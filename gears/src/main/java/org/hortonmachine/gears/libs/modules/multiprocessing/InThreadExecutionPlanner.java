@@ -42,6 +42,12 @@ public class InThreadExecutionPlanner
     }
 
 
+    @Override
+    public boolean isParallel() {
+        return false;
+    }
+
+
     @Override
     public void join() throws Exception {
         if (exc != null) {
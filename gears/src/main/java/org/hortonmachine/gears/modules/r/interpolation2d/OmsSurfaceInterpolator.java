@@ -37,40 +37,44 @@ import static org.hortonmachine.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_
 import static org.hortonmachine.gears.libs.modules.HMConstants.isNovalue;
 import static org.hortonmachine.gears.libs.modules.Variables.IDW;
 import static org.hortonmachine.gears.libs.modules.Variables.TPS;
+import static org.hortonmachine.gears.libs.modules.Variables.TPS_BLOCKS;
 
 import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.RandomIterFactory;
-import javax.media.jai.iterator.WritableRandomIter;
 
-import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.geometry.DirectPosition2D;
 import org.hortonmachine.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.hortonmachine.gears.libs.modules.HMConstants;
 import org.hortonmachine.gears.libs.modules.HMModel;
 import org.hortonmachine.gears.modules.r.interpolation2d.core.IDWInterpolator;
 import org.hortonmachine.gears.modules.r.interpolation2d.core.ISurfaceInterpolator;
+import org.hortonmachine.gears.modules.r.interpolation2d.core.TPSBlockInterpolator;
 import org.hortonmachine.gears.modules.r.interpolation2d.core.TPSInterpolator;
 import org.hortonmachine.gears.utils.RegionMap;
 import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
 import org.hortonmachine.gears.utils.geometry.EGeometryType;
+import org.hortonmachine.gears.utils.geometry.PointsKdTree;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.geometry.DirectPosition;
-import org.opengis.referencing.operation.TransformException;
 
 import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.index.strtree.STRtree;
 
 import oms3.annotations.Author;
 import oms3.annotations.Description;
@@ -113,7 +117,7 @@ public class OmsSurfaceInterpolator extends HMModel {
     public String fCat;
 
     @Description(OMSSURFACEINTERPOLATOR_P_MODE_DESCRIPTION)
-    @UI("combo:" + TPS + "," + IDW)
+    @UI("combo:" + TPS + "," + TPS_BLOCKS + "," + IDW)
     @In
     public String pMode = TPS;
 
@@ -130,22 +134,42 @@ public class OmsSurfaceInterpolator extends HMModel {
     @Out
     public GridCoverage2D outRaster = null;
 
+    /**
+     * The side in cells of the blocks of the TPS by blocks mode.
+     */
+    public static final int BLOCK_SIZE = 16;
+
+    /**
+     * The max number of control points of a block, blocks with more are split.
+     */
+    public static final int MAX_BLOCK_POINTS = 1000;
+
+    /**
+     * The max number of rows of the bands processed by the workers.
+     */
+    public static final int MAX_BAND_ROWS = 32;
+
     private ISurfaceInterpolator interpolator;
 
-    private STRtree coordinatesSpatialTree;
+    private RegionMap regionMap;
 
-    private GridGeometry2D gridGeometry;
+    private final AtomicLong solvedSystems = new AtomicLong();
+    private final AtomicLong reusedSystems = new AtomicLong();
+
+    private Coordinate[] controlPoints;
+
+    private PointsKdTree controlPointsTree;
 
     @Execute
     public void process() throws Exception {
         checkNull(inGrid);
 
-        gridGeometry = inGrid.getGridGeometry();
-        RegionMap regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(inGrid);
+        GridGeometry2D gridGeometry = inGrid.getGridGeometry();
+        regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(inGrid);
         final int cols = regionMap.getCols();
         int rows = regionMap.getRows();
 
-        coordinatesSpatialTree = new STRtree();
+        List<Coordinate> coordinatesList = new ArrayList<>();
         if (inVector != null) {
             checkNull(fCat);
             GeometryDescriptor geometryDescriptor = inVector.getSchema().getGeometryDescriptor();
@@ -153,46 +177,46 @@ public class OmsSurfaceInterpolator extends HMModel {
                 throw new ModelsIllegalargumentException("The geometry has to be a point geometry.", this, pm);
             }
             SimpleFeatureIterator featureIterator = inVector.features();
-            Coordinate[] coordinates = new Coordinate[inVector.size()];
-
-            int index = 0;
-            pm.beginTask("Indexing control points...", coordinates.length);
+            pm.beginTask("Indexing control points...", inVector.size());
             while( featureIterator.hasNext() ) {
                 SimpleFeature feature = featureIterator.next();
                 Geometry geometry = (Geometry) feature.getDefaultGeometry();
-                coordinates[index] = geometry.getCoordinate();
+                Coordinate coordinate = geometry.getCoordinate();
                 double value = ((Number) feature.getAttribute(fCat)).doubleValue();
-                coordinates[index].z = value;
-
-                Envelope env = new Envelope(coordinates[index]);
-                coordinatesSpatialTree.insert(env, coordinates[index]);
-
+                coordinate.z = value;
+                coordinatesList.add(coordinate);
                 pm.worked(1);
             }
+            featureIterator.close();
             pm.done();
-            pm.message("Indexed control points: " + coordinates.length);
+            pm.message("Indexed control points: " + coordinatesList.size());
         } else {
             // create it from grid
-            pm.beginTask("Indexing control points...", cols);
+            pm.beginTask("Indexing control points...", rows);
             RandomIter inIter = CoverageUtilities.getRandomIterator(inGrid);
-            int count = 0;
             for( int r = 0; r < rows; r++ ) {
                 for( int c = 0; c < cols; c++ ) {
                     double value = inIter.getSampleDouble(c, r, 0);
                     if (!HMConstants.isNovalue(value)) {
                         Coordinate coordinate = CoverageUtilities.coordinateFromColRow(c, r, gridGeometry);
                         coordinate.z = value;
-                        Envelope env = new Envelope(coordinate);
-                        coordinatesSpatialTree.insert(env, coordinate);
-                        count++;
+                        coordinatesList.add(coordinate);
                     }
                 }
                 pm.worked(1);
             }
+            inIter.done();
             pm.done();
-            pm.message("Indexed control points (from input grid): " + count);
+            pm.message("Indexed control points (from input grid): " + coordinatesList.size());
+        }
+        controlPoints = coordinatesList.toArray(new Coordinate[0]);
+        double[] xs = new double[controlPoints.length];
+        double[] ys = new double[controlPoints.length];
+        for( int i = 0; i < controlPoints.length; i++ ) {
+            xs[i] = controlPoints[i].x;
+            ys[i] = controlPoints[i].y;
         }
-        coordinatesSpatialTree.build();
+        controlPointsTree = new PointsKdTree(xs, ys);
 
         if (pMode.equals(IDW)) {
             interpolator = new IDWInterpolator(0, pBuffer);
@@ -201,88 +225,209 @@ public class OmsSurfaceInterpolator extends HMModel {
         }
 
         WritableRaster interpolatedWR = CoverageUtilities.createWritableRaster(cols, rows, null, null, HMConstants.doubleNovalue);
-        final WritableRandomIter interpolatedIter = RandomIterFactory.createWritable(interpolatedWR, null);
-
-        boolean doMultiThread = pMaxThreads > 1;
-
-        ExecutorService fixedThreadPool = null;
-        if (doMultiThread)
-            fixedThreadPool = Executors.newFixedThreadPool(pMaxThreads);
-
-        pm.beginTask("Performing interpolation...", rows);
 
-        final double[] eval = new double[1];
-        for( int r = 0; r < rows; r++ ) {
-            final int row = r;
-            if (doMultiThread) {
-                Runnable runner = new Runnable(){
-                    public void run() {
-                        processing(cols, coordinatesSpatialTree, interpolatedIter, eval, row);
-                    }
-                };
-                fixedThreadPool.execute(runner);
-            } else {
-                processing(cols, coordinatesSpatialTree, interpolatedIter, eval, row);
-            }
-        }
-
-        if (doMultiThread) {
+        boolean doBlocks = pMode.equals(TPS_BLOCKS);
+        int threads = Math.max(1, pMaxThreads);
+        // blocks mode: bands of one row of blocks, else enough bands for all threads to balance the load
+        int bandRows = doBlocks ? BLOCK_SIZE : Math.max(1, Math.min(MAX_BAND_ROWS, rows / (threads * 4)));
+        int bandsNum = (rows + bandRows - 1) / bandRows;
+        AtomicInteger nextBand = new AtomicInteger();
+        solvedSystems.set(0);
+        reusedSystems.set(0);
+
+        pm.beginTask("Performing interpolation...", bandsNum);
+        if (threads == 1) {
+            new BandWorker(interpolatedWR, bandRows, bandsNum, nextBand, doBlocks).call();
+        } else {
+            ExecutorService fixedThreadPool = Executors.newFixedThreadPool(threads);
             try {
-                fixedThreadPool.shutdown();
-                fixedThreadPool.awaitTermination(30, TimeUnit.DAYS);
+                List<Future<Void>> futures = new ArrayList<>();
+                for( int i = 0; i < threads; i++ ) {
+                    futures.add(fixedThreadPool.submit(new BandWorker(interpolatedWR, bandRows, bandsNum, nextBand, doBlocks)));
+                }
+                for( Future<Void> future : futures ) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        }
+                        throw new RuntimeException(cause);
+                    }
+                }
+            } finally {
                 fixedThreadPool.shutdownNow();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
             }
         }
         pm.done();
+        if (doBlocks) {
+            pm.message("Solved spline systems: " + solvedSystems.get() + ", reused: " + reusedSystems.get());
+        }
 
         outRaster = CoverageUtilities.buildCoverage("interpolatedraster", interpolatedWR, regionMap,
                 inGrid.getCoordinateReferenceSystem());
-
     }
-    private void processing( final int cols, final STRtree tree, final WritableRandomIter interpolatedIter, final double[] eval,
-            final int row ) {
-        try {
-            for( int c = 0; c < cols; c++ ) {
-                final DirectPosition gridToWorld = gridGeometry.gridToWorld(new GridCoordinates2D(c, row));
-                // System.out.println(row + "/" + c);
-                boolean doProcess = true;
-                if (inMask != null) {
-                    inMask.evaluate(gridToWorld, eval);
-                    if (isNovalue(eval[0])) {
-                        doProcess = false;
+
+    /**
+     * A worker that takes bands of rows until all are done.
+     *
+     * <p>Each band is interpolated into a buffer owned by the worker and then copied to its
+     * rows of the output raster. Bands don't overlap, so no lock is needed on the output,
+     * and the query buffers are reused for all the cells of the worker.</p>
+     */
+    private class BandWorker implements Callable<Void> {
+        private final WritableRaster outWR;
+        private final int bandRows;
+        private final int bandsNum;
+        private final AtomicInteger nextBand;
+        private final boolean doBlocks;
+        private final int cols;
+        private final double[] bandValues;
+
+        private final PointsKdTree.QueryBuffer queryBuffer = new PointsKdTree.QueryBuffer();
+        private final List<Coordinate> neighbours = new ArrayList<>();
+        private final Coordinate currentCoord = new Coordinate();
+        private final DirectPosition2D maskPosition = new DirectPosition2D();
+        private final double[] maskValue = new double[1];
+        private final TPSBlockInterpolator blockInterpolator = new TPSBlockInterpolator();
+
+        BandWorker( WritableRaster outWR, int bandRows, int bandsNum, AtomicInteger nextBand, boolean doBlocks ) {
+            this.outWR = outWR;
+            this.bandRows = bandRows;
+            this.bandsNum = bandsNum;
+            this.nextBand = nextBand;
+            this.doBlocks = doBlocks;
+            cols = outWR.getWidth();
+            bandValues = new double[bandRows * cols];
+        }
+
+        @Override
+        public Void call() throws Exception {
+            int rows = outWR.getHeight();
+            int band;
+            while( (band = nextBand.getAndIncrement()) < bandsNum ) {
+                if (pm.isCanceled()) {
+                    break;
+                }
+                int fromRow = band * bandRows;
+                int toRow = Math.min(rows, fromRow + bandRows);
+                Arrays.fill(bandValues, HMConstants.doubleNovalue);
+                if (doBlocks) {
+                    for( int fromCol = 0; fromCol < cols; fromCol += BLOCK_SIZE ) {
+                        processBlock(fromCol, fromRow, Math.min(cols, fromCol + BLOCK_SIZE), toRow, fromRow);
+                    }
+                } else {
+                    for( int r = fromRow; r < toRow; r++ ) {
+                        processRow(r, fromRow);
                     }
                 }
+                outWR.setSamples(0, fromRow, cols, toRow - fromRow, 0, bandValues);
+                pm.worked(1);
+            }
+            solvedSystems.addAndGet(blockInterpolator.getSolvedCount());
+            reusedSystems.addAndGet(blockInterpolator.getReusedCount());
+            return null;
+        }
 
-                if (doProcess) {
-                    final Coordinate currentCoord = new Coordinate();
-                    final double[] coord = gridToWorld.getCoordinate();
-                    currentCoord.x = coord[0];
-                    currentCoord.y = coord[1];
+        private boolean isMasked( double x, double y ) {
+            if (inMask == null) {
+                return false;
+            }
+            maskPosition.setLocation(x, y);
+            inMask.evaluate((DirectPosition) maskPosition, maskValue);
+            return isNovalue(maskValue[0]);
+        }
 
-                    final Envelope env = new Envelope(currentCoord.x - pBuffer, currentCoord.x + pBuffer,
-                            currentCoord.y - pBuffer, currentCoord.y + pBuffer);
+        private void processRow( int row, int bandFromRow ) {
+            double y = regionMap.getNorth() - (row + 0.5) * regionMap.getYres();
+            int offset = (row - bandFromRow) * cols;
+            for( int c = 0; c < cols; c++ ) {
+                double x = regionMap.getWest() + (c + 0.5) * regionMap.getXres();
+                if (isMasked(x, y)) {
+                    continue;
+                }
+                int found = controlPointsTree.query(x - pBuffer, x + pBuffer, y - pBuffer, y + pBuffer, queryBuffer);
+                // we need at least 3 points
+                if (found < 4) {
+                    continue;
+                }
+                neighbours.clear();
+                for( int i = 0; i < found; i++ ) {
+                    neighbours.add(controlPoints[queryBuffer.get(i)]);
+                }
+                currentCoord.x = x;
+                currentCoord.y = y;
+                bandValues[offset + c] = interpolator.getValue(neighbours, currentCoord);
+            }
+        }
 
-                    @SuppressWarnings("unchecked")
-                    final List<Coordinate> result = tree.query(env);
-                    // System.out.println(row + "/" + c + " = " + result.size());
+        /**
+         * Interpolate a block solving a single spline.
+         */
+        private void processBlock( int fromCol, int fromRow, int toCol, int toRow, int bandFromRow ) {
+            double west = regionMap.getWest();
+            double north = regionMap.getNorth();
+            double xres = regionMap.getXres();
+            double yres = regionMap.getYres();
+
+            double minX = west + (fromCol + 0.5) * xres;
+            double maxX = west + (toCol - 0.5) * xres;
+            double maxY = north - (fromRow + 0.5) * yres;
+            double minY = north - (toRow - 0.5) * yres;
+            int found = controlPointsTree.query(minX - pBuffer, maxX + pBuffer, minY - pBuffer, maxY + pBuffer, queryBuffer);
+            if (found < 4) {
+                return;
+            }
+            if (found > MAX_BLOCK_POINTS && (toCol - fromCol > 1 || toRow - fromRow > 1)) {
+                // too dense for a single system, split in four
+                int midCol = Math.max(fromCol + 1, (fromCol + toCol) / 2);
+                int midRow = Math.max(fromRow + 1, (fromRow + toRow) / 2);
+                processBlock(fromCol, fromRow, midCol, midRow, bandFromRow);
+                if (midCol < toCol)
+                    processBlock(midCol, fromRow, toCol, midRow, bandFromRow);
+                if (midRow < toRow)
+                    processBlock(fromCol, midRow, midCol, toRow, bandFromRow);
+                if (midCol < toCol && midRow < toRow)
+                    processBlock(midCol, midRow, toCol, toRow, bandFromRow);
+                return;
+            }
+            neighbours.clear();
+            for( int i = 0; i < found; i++ ) {
+                neighbours.add(controlPoints[queryBuffer.get(i)]);
+            }
 
-                    // we need at least 3 points
-                    if (result.size() < 4) {
+            boolean isPrepared = false;
+            boolean isSolved = false;
+            for( int r = fromRow; r < toRow; r++ ) {
+                double y = north - (r + 0.5) * yres;
+                int offset = (r - bandFromRow) * cols;
+                for( int c = fromCol; c < toCol; c++ ) {
+                    double x = west + (c + 0.5) * xres;
+                    if (isMasked(x, y)) {
+                        continue;
+                    }
+                    // same rule as the cell by cell mode, at least 4 points around the cell
+                    int count = 0;
+                    for( Coordinate point : neighbours ) {
+                        if (Math.abs(point.x - x) <= pBuffer && Math.abs(point.y - y) <= pBuffer && ++count >= 4) {
+                            break;
+                        }
+                    }
+                    if (count < 4) {
                         continue;
                     }
 
-                    final double value = interpolator.getValue(result.toArray(new Coordinate[0]), currentCoord);
-                    synchronized (interpolatedIter) {
-                        interpolatedIter.setSample(c, row, 0, value);
+                    if (!isPrepared) {
+                        isSolved = blockInterpolator.setControlPoints(neighbours);
+                        isPrepared = true;
                     }
+                    if (!isSolved) {
+                        return;
+                    }
+                    bandValues[offset + c] = blockInterpolator.getValue(x, y);
                 }
-
             }
-            pm.worked(1);
-        } catch (TransformException e) {
-            e.printStackTrace();
         }
     }
 }
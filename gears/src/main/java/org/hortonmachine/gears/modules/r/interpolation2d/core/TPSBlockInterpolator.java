@@ -0,0 +1,209 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.modules.r.interpolation2d.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.utils.math.matrixes.ColumnVector;
+import org.hortonmachine.gears.utils.math.matrixes.LinearSystem;
+import org.hortonmachine.gears.utils.math.matrixes.MatrixException;
+import org.locationtech.jts.geom.Coordinate;
+
+/**
+ * Thin plate spline that is solved once for a set of control points and then
+ * evaluated in many positions.
+ *
+ * <p>This is meant to interpolate blocks of cells: the control points of the
+ * whole neighbourhood of the block are used to solve the system through a LU
+ * decomposition, the weights are then used for all the cells of the block.
+ * If the next block has the same control points, the weights are reused
+ * without solving again.</p>
+ *
+ * <p>The coordinates are shifted to the centroid of the control points, which
+ * keeps the system well conditioned also with large projected coordinates.</p>
+ *
+ * <p>The instances are not threadsafe, use one per thread.</p>
+ *
+ * <p><b>Note that this implementation works only with metric data.</b></p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ * @see TPSInterpolator
+ */
+public class TPSBlockInterpolator {
+
+    private List<Coordinate> controlPoints = new ArrayList<>();
+    private double[] weights;
+    private double centerX;
+    private double centerY;
+
+    private long solvedCount = 0;
+    private long reusedCount = 0;
+
+    /**
+     * Set the control points to use and solve the spline system if they changed.
+     *
+     * @param newControlPoints the control points.
+     * @return <code>true</code> if the system could be solved.
+     */
+    public boolean setControlPoints( List<Coordinate> newControlPoints ) {
+        List<Coordinate> sorted = new ArrayList<>(newControlPoints);
+        // sort to recognize the same set of points coming in a different order
+        sorted.sort(( c1, c2 ) -> {
+            int compare = Double.compare(c1.x, c2.x);
+            if (compare == 0) {
+                compare = Double.compare(c1.y, c2.y);
+            }
+            return compare;
+        });
+        if (isSame(sorted)) {
+            reusedCount++;
+            return weights != null;
+        }
+        controlPoints = sorted;
+        solvedCount++;
+        weights = solve(sorted);
+        return weights != null;
+    }
+
+    private boolean isSame( List<Coordinate> sorted ) {
+        if (sorted.size() != controlPoints.size()) {
+            return false;
+        }
+        for( int i = 0; i < sorted.size(); i++ ) {
+            if (sorted.get(i) != controlPoints.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private double[] solve( List<Coordinate> points ) {
+        int n = points.size();
+        if (n < 3) {
+            return null;
+        }
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        centerX = 0;
+        centerY = 0;
+        for( Coordinate c : points ) {
+            centerX += c.x;
+            centerY += c.y;
+        }
+        centerX /= n;
+        centerY /= n;
+        for( int i = 0; i < n; i++ ) {
+            xs[i] = points.get(i).x - centerX;
+            ys[i] = points.get(i).y - centerY;
+        }
+
+        // K and P submatrixes, the O submatrix stays at 0
+        double[][] matrix = new double[n + 3][n + 3];
+        for( int i = 0; i < n; i++ ) {
+            for( int j = i + 1; j < n; j++ ) {
+                double u = functionU(distance(xs[i], ys[i], xs[j], ys[j]));
+                matrix[i][j] = u;
+                matrix[j][i] = u;
+            }
+            matrix[i][n] = 1;
+            matrix[i][n + 1] = xs[i];
+            matrix[i][n + 2] = ys[i];
+            matrix[n][i] = 1;
+            matrix[n + 1][i] = xs[i];
+            matrix[n + 2][i] = ys[i];
+        }
+        ColumnVector values = new ColumnVector(n + 3);
+        for( int i = 0; i < n; i++ ) {
+            values.set(i, points.get(i).z);
+        }
+
+        try {
+            LinearSystem system = new LinearSystem(matrix);
+            ColumnVector solution = system.solve(values, false);
+            double[] w = new double[n + 3];
+            for( int i = 0; i < w.length; i++ ) {
+                w[i] = solution.at(i);
+                if (Double.isNaN(w[i]) || Double.isInfinite(w[i])) {
+                    return null;
+                }
+            }
+            return w;
+        } catch (MatrixException e) {
+            // singular, ex. all the points on a line
+            return null;
+        }
+    }
+
+    /**
+     * Evaluate the spline of the current control points.
+     *
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the interpolated value or novalue if the system couldn't be solved.
+     */
+    public double getValue( double x, double y ) {
+        if (weights == null) {
+            return HMConstants.doubleNovalue;
+        }
+        int n = controlPoints.size();
+        double px = x - centerX;
+        double py = y - centerY;
+        double sum = weights[n] + weights[n + 1] * px + weights[n + 2] * py;
+        for( int i = 0; i < n; i++ ) {
+            Coordinate c = controlPoints.get(i);
+            sum += weights[i] * functionU(distance(px, py, c.x - centerX, c.y - centerY));
+        }
+        return sum;
+    }
+
+    /**
+     * @return the number of systems solved.
+     */
+    public long getSolvedCount() {
+        return solvedCount;
+    }
+
+    /**
+     * @return the number of times the previous solution could be reused.
+     */
+    public long getReusedCount() {
+        return reusedCount;
+    }
+
+    private static double distance( double x1, double y1, double x2, double y2 ) {
+        double dx = x1 - x2;
+        double dy = y1 - y2;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Calculates U function for distance.
+     *
+     * @param distance distance
+     * @return log(distance)*distance<sup>2</sup> or 0 if distance = 0
+     */
+    private static double functionU( double distance ) {
+        if (distance == 0) {
+            return 0;
+        }
+        return distance * distance * Math.log(distance);
+    }
+
+}
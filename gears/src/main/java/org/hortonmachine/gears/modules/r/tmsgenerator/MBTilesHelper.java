@@ -12,6 +12,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 
 import javax.imageio.ImageIO;
 
@@ -19,6 +20,7 @@ import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.hortonmachine.dbs.mbtiles.MBTilesDb.Tile;
 import org.hortonmachine.gears.libs.exceptions.ModelsRuntimeException;
 import org.hortonmachine.gears.utils.images.ImageUtilities;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -115,6 +117,8 @@ public class MBTilesHelper implements AutoCloseable {
 
     public void close() {
         try {
+            if (batchStatement != null)
+                batchStatement.close();
             if (connection != null)
                 connection.close();
         } catch (SQLException e) {
@@ -263,6 +267,31 @@ public class MBTilesHelper implements AutoCloseable {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Add already encoded tiles in a single transaction.
+     * 
+     * <p>The insert statement is prepared once and reused for all the calls.</p>
+     * 
+     * @param tiles the tiles to add.
+     * @throws SQLException
+     */
+    public synchronized void addTiles( List<Tile> tiles ) throws SQLException {
+        if (batchStatement == null) {
+            batchStatement = connection.prepareStatement(insertTileSql);
+        }
+        for( Tile tile : tiles ) {
+            batchStatement.setInt(1, tile.z);
+            batchStatement.setInt(2, tile.x);
+            batchStatement.setInt(3, tile.y);
+            batchStatement.setBytes(4, tile.imageBytes);
+            batchStatement.addBatch();
+        }
+        batchStatement.executeBatch();
+        connection.commit();
+        addedTiles += tiles.size();
+    }
+
     /**
      * Get a Tile image from the database.
      * 
@@ -272,7 +301,7 @@ public class MBTilesHelper implements AutoCloseable {
      * @return
      * @throws Exception
      */
-    public BufferedImage getTile( int x, int y, int z ) throws Exception {
+    public synchronized BufferedImage getTile( int x, int y, int z ) throws Exception {
         try (PreparedStatement statement = connection.prepareStatement(SELECTQUERY)) {
             statement.setInt(1, z);
             statement.setInt(2, x);
@@ -21,6 +21,7 @@ import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_AUTHORC
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_AUTHORNAMES;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_DESCRIPTION;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_DOCUMENTATION;
+import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_DO_CACHE_VECTORS_DESCRIPTION;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_DO_LENIENT_DESCRIPTION;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_IN_PATH_DESCRIPTION;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_IN_RASTER_BOUNDS_DESCRIPTION;
@@ -31,6 +32,7 @@ import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_KEYWORD
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_LABEL;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_LICENSE;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_NAME;
+import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_P_CACHE_VECTORS_LIMIT_DESCRIPTION;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_P_CHECK_COLOR_DESCRIPTION;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_P_EAST_DESCRIPTION;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_P_EPSG_DESCRIPTION;
@@ -42,13 +44,20 @@ import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_P_NORTH
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_P_SOUTH_DESCRIPTION;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_P_WEST_DESCRIPTION;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSTMSGENERATOR_STATUS;
+import static org.hortonmachine.gears.libs.modules.Variables.PYRAMID_MEAN;
+import static org.hortonmachine.gears.libs.modules.Variables.PYRAMID_MODE;
+import static org.hortonmachine.gears.libs.modules.Variables.PYRAMID_NEAREST;
 import static org.hortonmachine.gears.modules.r.tmsgenerator.MBTilesHelper.TILESIZE;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.nio.file.Files;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
 
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -183,6 +192,23 @@ public class OmsTmsGenerator extends HMModel {
     @In
     public boolean doMbtiles = false;
 
+    @Description(OMSTMSGENERATOR_DO_CACHE_VECTORS_DESCRIPTION)
+    @In
+    public boolean doCacheVectors = false;
+
+    @Description(OMSTMSGENERATOR_P_CACHE_VECTORS_LIMIT_DESCRIPTION)
+    @In
+    public int pCacheVectorsLimit = 1000000;
+
+    @Description("Render only the max zoom level from the data and build the lower levels from the tiles of the level above. With inZoomLimitVector the level pZoomLimit is also rendered, to have the whole area below it.")
+    @In
+    public boolean doPyramid = false;
+
+    @Description("The downsampling used to build the lower levels in pyramid mode.")
+    @UI("combo:" + PYRAMID_MEAN + "," + PYRAMID_NEAREST + "," + PYRAMID_MODE)
+    @In
+    public String pPyramidResampling = PYRAMID_MEAN;
+
     @Description(OMSTMSGENERATOR_IN_PATH_DESCRIPTION)
     @In
     public String inPath;
@@ -194,6 +220,8 @@ public class OmsTmsGenerator extends HMModel {
 
     private MBTilesHelper mbtilesHelper;
 
+    private TilesBatchWriter tilesWriter;
+
     public CoordinateReferenceSystem dataCrs;
 
     private volatile boolean cancelModule = false;
@@ -228,8 +256,11 @@ public class OmsTmsGenerator extends HMModel {
 
                 format = pImagetype == 0 ? "png" : "jpg";
                 mbtilesHelper.open(dbFile);
-                mbtilesHelper.createTables(false);
+                // in pyramid mode the tiles are read back while building the lower levels
+                mbtilesHelper.createTables(doPyramid);
                 mbtilesHelper.fillMetadata(n, s, w, e, pName, format, pMinzoom, pMaxzoom);
+                // the rendering threads encode, a single thread writes in batches
+                tilesWriter = TilesBatchWriter.forMBTiles(mbtilesHelper, pm);
             }
 
             int threads = getDefaultThreadsNum();
@@ -280,6 +311,8 @@ public class OmsTmsGenerator extends HMModel {
             final File baseFolder = new File(inFolder, pName);
 
             final ImageGenerator imgGen = new ImageGenerator(pm, mercatorCrs);
+            // the tiles are drawn by many threads
+            imgGen.setRendererPool(true);
             if (inWMS != null) {
                 imgGen.setWMS(inWMS);
             }
@@ -316,7 +349,38 @@ public class OmsTmsGenerator extends HMModel {
 
             final GlobalMercator mercator = new GlobalMercator();
 
+            TilesDownsampler downsampler = null;
+            int pyramidLimitZoom = -1;
+            if (doPyramid) {
+                downsampler = new TilesDownsampler(pPyramidResampling);
+                if (zoomLimitGeometry != null) {
+                    // the levels above the limit only cover the geometry, the ones below can't be built from them
+                    int limitZoom = (int) Math.floor(pZoomLimit);
+                    if (limitZoom >= pMinzoom && limitZoom < pMaxzoom) {
+                        pyramidLimitZoom = limitZoom;
+                    }
+                }
+            }
+
+            if (doCacheVectors && inVectors != null) {
+                // the tiles of the lowest rendered level cover the areas of all the others
+                int cacheZoom = pMinzoom;
+                if (doPyramid) {
+                    cacheZoom = pyramidLimitZoom != -1 ? pyramidLimitZoom : pMaxzoom;
+                }
+                int[] llTileNumber = mercator.MetersToTile(w, s, cacheZoom);
+                int[] urTileNumber = mercator.MetersToTile(e, n, cacheZoom);
+                double[] llTileBounds = mercator.TileBounds(llTileNumber[0], llTileNumber[1], cacheZoom);
+                double[] urTileBounds = mercator.TileBounds(urTileNumber[0], urTileNumber[1], cacheZoom);
+                ReferencedEnvelope tilesBounds = new ReferencedEnvelope(llTileBounds[0], urTileBounds[2], llTileBounds[1],
+                        urTileBounds[3], mercatorCrs);
+                imgGen.cacheFeatures(tilesBounds, pCacheVectorsLimit);
+            }
+
             for( int z = pMinzoom; z <= pMaxzoom; z++ ) {
+                if (doPyramid && z != pMaxzoom && z != pyramidLimitZoom) {
+                    continue;
+                }
                 checkCancel();
 
                 // get ul and lr tile number
@@ -376,7 +440,7 @@ public class OmsTmsGenerator extends HMModel {
                                             BufferedImage image = imgGen.getImageWithCheck(tmpBounds, TILESIZE, TILESIZE, 0.0,
                                                     pCheckcolor);
                                             if (image != null) {
-                                                mbtilesHelper.addTile(x, y, zz, image, fformat);
+                                                tilesWriter.addTile(x, y, zz, image, fformat);
                                             }
                                         } catch (Exception e) {
                                             pm.errorMessage(e.getMessage());
@@ -443,9 +507,23 @@ public class OmsTmsGenerator extends HMModel {
                 // pm.message("Total boundary wanted: " + mercatorBounds);
 
             }
+            imgGen.clearFeatureCache();
+
+            if (doPyramid) {
+                for( int z = pMaxzoom - 1; z >= pMinzoom && !cancelModule; z-- ) {
+                    if (z == pyramidLimitZoom) {
+                        // rendered from the data
+                        continue;
+                    }
+                    checkCancel();
+                    buildPyramidLevel(z, mercator, w, s, e, n, downsampler, baseFolder, ext, threads);
+                }
+            }
 
             if (mbtilesHelper != null) {
-                mbtilesHelper.createIndexes();
+                tilesWriter.close();
+                if (!doPyramid)
+                    mbtilesHelper.createIndexes();
                 mbtilesHelper.close();
             } else {
                 CoordinateReferenceSystem latLongCrs = CrsUtilities.getCrsFromEpsg(EPSG_LATLONG, null);
@@ -466,6 +544,103 @@ public class OmsTmsGenerator extends HMModel {
             }
         } catch (ModelsUserCancelException e) {
             pm.errorMessage(ModelsUserCancelException.DEFAULTMESSAGE);
+            if (tilesWriter != null) {
+                tilesWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Build a zoom level downsampling the tiles of the level above.
+     */
+    private void buildPyramidLevel( final int z, GlobalMercator mercator, double w, double s, double e, double n,
+            final TilesDownsampler downsampler, final File baseFolder, final String ext, int threads ) throws Exception {
+        if (tilesWriter != null) {
+            // the tiles of the level above have to be in the database to be read back
+            tilesWriter.close();
+            tilesWriter = TilesBatchWriter.forMBTiles(mbtilesHelper, pm);
+        }
+
+        int[] llTileNumber = mercator.MetersToTile(w, s, z);
+        int[] urTileNumber = mercator.MetersToTile(e, n, z);
+        int startXTile = llTileNumber[0];
+        int startYTile = llTileNumber[1];
+        int endXTile = urTileNumber[0];
+        int endYTile = urTileNumber[1];
+
+        final AtomicInteger tileNum = new AtomicInteger();
+        ExecutorService fixedThreadPool = Executors.newFixedThreadPool(threads);
+        pm.beginTask("Building tiles at zoom level: " + z + " from zoom level: " + (z + 1),
+                (endXTile - startXTile + 1) * (endYTile - startYTile + 1));
+        for( int i = startXTile; i <= endXTile; i++ ) {
+            for( int j = startYTile; j <= endYTile; j++ ) {
+                final int x = i;
+                final int y = j;
+                Runnable runner = new Runnable(){
+                    public void run() {
+                        if (!cancelModule && !pm.isCanceled()) {
+                            try {
+                                File imageFile = null;
+                                if (mbtilesHelper == null) {
+                                    imageFile = new File(baseFolder, z + "/" + x + "/" + y + "." + ext);
+                                }
+                                if (imageFile == null || !imageFile.exists()) {
+                                    // tms rows grow to the north, so the upper children have the higher row
+                                    int childZoom = z + 1;
+                                    BufferedImage[] children = {//
+                                            readTile(2 * x, 2 * y + 1, childZoom, baseFolder, ext), //
+                                            readTile(2 * x + 1, 2 * y + 1, childZoom, baseFolder, ext), //
+                                            readTile(2 * x, 2 * y, childZoom, baseFolder, ext), //
+                                            readTile(2 * x + 1, 2 * y, childZoom, baseFolder, ext)};
+                                    BufferedImage image = downsampler.downsample(children, TILESIZE);
+                                    if (image != null) {
+                                        tileNum.incrementAndGet();
+                                        if (mbtilesHelper != null) {
+                                            tilesWriter.addTile(x, y, z, image, ext);
+                                        } else {
+                                            File imageFolder = imageFile.getParentFile();
+                                            imageFolder.mkdirs();
+                                            if (!imageFolder.isDirectory()) {
+                                                throw new ModelsIOException("Unable to create folder:" + imageFolder,
+                                                        OmsTmsGenerator.this);
+                                            }
+                                            new File(imageFolder, ".nomedia").createNewFile();
+                                            Files.write(imageFile.toPath(), TilesBatchWriter.encode(image, ext));
+                                        }
+                                    }
+                                }
+                            } catch (Exception ex) {
+                                pm.errorMessage(ex.getMessage());
+                                cancelModule = true;
+                            }
+                        }
+                        pm.worked(1);
+                    }
+                };
+                fixedThreadPool.execute(runner);
+            }
+        }
+        try {
+            fixedThreadPool.shutdown();
+            while( !fixedThreadPool.isTerminated() ) {
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException exx) {
+            exx.printStackTrace();
+        }
+        pm.done();
+
+        pm.message("Zoom level: " + z + " has " + tileNum + " tiles.");
+    }
+
+    private BufferedImage readTile( int x, int y, int z, File baseFolder, String ext ) throws Exception {
+        if (mbtilesHelper != null) {
+            return mbtilesHelper.getTile(x, y, z);
+        }
+        File imageFile = new File(baseFolder, z + "/" + x + "/" + y + "." + ext);
+        if (!imageFile.exists()) {
+            return null;
         }
+        return ImageIO.read(imageFile);
     }
 }
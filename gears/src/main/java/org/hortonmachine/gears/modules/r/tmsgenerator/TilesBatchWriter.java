@@ -0,0 +1,310 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.modules.r.tmsgenerator;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.imageio.ImageIO;
+
+import org.hortonmachine.dbs.geopackage.GeopackageCommonDb;
+import org.hortonmachine.dbs.mbtiles.MBTilesDb;
+import org.hortonmachine.dbs.mbtiles.MBTilesDb.Tile;
+import org.hortonmachine.dbs.utils.SqlName;
+import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
+
+/**
+ * A tiles sink that writes to the database from a single thread.
+ *
+ * <p>The tiles are encoded by the threads that add them and are put in a bounded
+ * queue. A writer thread takes them from the queue and inserts them in batches,
+ * each batch in one transaction. When the queue is full the producers wait, so
+ * the memory used is limited also when rendering is faster than writing.</p>
+ *
+ * <pre>
+ * try (TilesBatchWriter writer = TilesBatchWriter.forMBTiles(mbtilesHelper, pm)) {
+ *     // from any thread
+ *     writer.addTile(x, y, z, image, "png");
+ * }
+ * </pre>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TilesBatchWriter implements AutoCloseable {
+    /**
+     * The default number of tiles inserted in one transaction.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    /**
+     * The default number of encoded tiles that can wait to be written.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 2000;
+
+    /**
+     * The database side of the writer, called only from the writer thread.
+     */
+    public static interface ITilesBatchConsumer {
+        /**
+         * Insert a batch of tiles.
+         *
+         * @param tiles the tiles.
+         * @throws Exception
+         */
+        void insertTiles( List<Tile> tiles ) throws Exception;
+    }
+
+    private static final Tile END_OF_TILES = new Tile();
+
+    private final ITilesBatchConsumer consumer;
+    private final BlockingQueue<Tile> queue;
+    private final int batchSize;
+    private final IHMProgressMonitor pm;
+    private final Thread writerThread;
+
+    private volatile Exception writeException;
+    private volatile long writtenTiles = 0;
+    private long startTime;
+    private long endTime;
+    private boolean closed = false;
+
+    /**
+     * Create a writer with the default batch and queue sizes.
+     *
+     * @param consumer the consumer that inserts the batches.
+     * @param pm the progress monitor used to report the throughput, can be <code>null</code>.
+     */
+    public TilesBatchWriter( ITilesBatchConsumer consumer, IHMProgressMonitor pm ) {
+        this(consumer, DEFAULT_BATCH_SIZE, DEFAULT_QUEUE_SIZE, pm);
+    }
+
+    /**
+     * Create a writer.
+     *
+     * @param consumer the consumer that inserts the batches.
+     * @param batchSize the max number of tiles inserted in one transaction.
+     * @param queueSize the max number of tiles waiting to be written.
+     * @param pm the progress monitor used to report the throughput, can be <code>null</code>.
+     */
+    public TilesBatchWriter( ITilesBatchConsumer consumer, int batchSize, int queueSize, IHMProgressMonitor pm ) {
+        if (batchSize < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("The batch and queue sizes need to be positive.");
+        }
+        this.consumer = consumer;
+        this.batchSize = batchSize;
+        this.pm = pm;
+        queue = new ArrayBlockingQueue<>(queueSize);
+
+        writerThread = new Thread(this::writeLoop, "tiles-batch-writer");
+        writerThread.setDaemon(true);
+        startTime = System.nanoTime();
+        writerThread.start();
+    }
+
+    /**
+     * Create a writer for a mbtiles database opened through the {@link MBTilesHelper}.
+     *
+     * @param helper the helper, with the tables already created.
+     * @param pm the progress monitor.
+     * @return the writer.
+     */
+    public static TilesBatchWriter forMBTiles( MBTilesHelper helper, IHMProgressMonitor pm ) {
+        return new TilesBatchWriter(helper::addTiles, pm);
+    }
+
+    /**
+     * Create a writer for a {@link MBTilesDb}.
+     *
+     * @param mbtilesDb the database, with the tables already created.
+     * @param pm the progress monitor.
+     * @return the writer.
+     */
+    public static TilesBatchWriter forMBTiles( MBTilesDb mbtilesDb, IHMProgressMonitor pm ) {
+        return new TilesBatchWriter(mbtilesDb::addTilesInBatch, pm);
+    }
+
+    /**
+     * Create a writer for an existing tiles table of a geopackage.
+     *
+     * @param geopackageDb the geopackage.
+     * @param tableName the tiles table.
+     * @param pm the progress monitor.
+     * @return the writer.
+     */
+    public static TilesBatchWriter forGeopackage( GeopackageCommonDb geopackageDb, SqlName tableName, IHMProgressMonitor pm ) {
+        return new TilesBatchWriter(tiles -> {
+            List<GeopackageCommonDb.Tile> gpkgTiles = new ArrayList<>(tiles.size());
+            for( Tile tile : tiles ) {
+                GeopackageCommonDb.Tile gpkgTile = new GeopackageCommonDb.Tile();
+                gpkgTile.x = tile.x;
+                gpkgTile.y = tile.y;
+                gpkgTile.z = tile.z;
+                gpkgTile.imageBytes = tile.imageBytes;
+                gpkgTiles.add(gpkgTile);
+            }
+            geopackageDb.putTiles(tableName, gpkgTiles);
+        }, pm);
+    }
+
+    /**
+     * Encode an image and queue it to be written.
+     *
+     * <p>The encoding happens in the calling thread. This can be called from many threads.</p>
+     *
+     * @param x the tile x.
+     * @param y the tile y.
+     * @param z the zoom level.
+     * @param image the image of the tile.
+     * @param format the image format (png, jpg).
+     * @throws Exception if the encoding fails or if the writing has already failed.
+     */
+    public void addTile( int x, int y, int z, BufferedImage image, String format ) throws Exception {
+        addTile(x, y, z, encode(image, format));
+    }
+
+    /**
+     * Encode a tile image.
+     *
+     * <p>Since jpg has no transparency, images with alpha are first drawn on white.</p>
+     *
+     * @param image the image.
+     * @param format the image format (png, jpg).
+     * @return the encoded image.
+     * @throws IOException
+     */
+    public static byte[] encode( BufferedImage image, String format ) throws IOException {
+        if (image.getColorModel().hasAlpha() && (format.equalsIgnoreCase("jpg") || format.equalsIgnoreCase("jpeg"))) {
+            BufferedImage rgbImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = rgbImage.createGraphics();
+            g2d.setColor(Color.WHITE);
+            g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g2d.drawImage(image, 0, 0, null);
+            g2d.dispose();
+            image = rgbImage;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, baos)) {
+            throw new IOException("No image writer available for the format: " + format);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Queue an already encoded tile to be written.
+     *
+     * @param x the tile x.
+     * @param y the tile y.
+     * @param z the zoom level.
+     * @param imageBytes the encoded image.
+     * @throws Exception if the writing has already failed.
+     */
+    public void addTile( int x, int y, int z, byte[] imageBytes ) throws Exception {
+        checkWriteException();
+        Tile tile = new Tile();
+        tile.x = x;
+        tile.y = y;
+        tile.z = z;
+        tile.imageBytes = imageBytes;
+        queue.put(tile);
+    }
+
+    private void writeLoop() {
+        List<Tile> batch = new ArrayList<>(batchSize);
+        boolean finished = false;
+        while( !finished ) {
+            try {
+                Tile tile = queue.take();
+                batch.clear();
+                while( tile != null ) {
+                    if (tile == END_OF_TILES) {
+                        finished = true;
+                        break;
+                    }
+                    batch.add(tile);
+                    if (batch.size() == batchSize) {
+                        break;
+                    }
+                    tile = queue.poll();
+                }
+                // after a failure the queue is still drained, to not block the producers
+                if (!batch.isEmpty() && writeException == null) {
+                    consumer.insertTiles(batch);
+                    writtenTiles += batch.size();
+                }
+            } catch (InterruptedException e) {
+                writeException = e;
+                finished = true;
+            } catch (Exception e) {
+                writeException = e;
+            }
+        }
+        endTime = System.nanoTime();
+    }
+
+    private void checkWriteException() throws Exception {
+        Exception e = writeException;
+        if (e != null) {
+            throw new Exception("An error occurred while writing the tiles: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the number of tiles written so far.
+     */
+    public long getWrittenTiles() {
+        return writtenTiles;
+    }
+
+    /**
+     * @return the tiles written per second, from the creation of the writer to its closing (or to now if still open).
+     */
+    public double getTilesPerSecond() {
+        long end = closed ? endTime : System.nanoTime();
+        double seconds = (end - startTime) / 1E9;
+        if (seconds <= 0) {
+            return 0;
+        }
+        return writtenTiles / seconds;
+    }
+
+    /**
+     * Write the tiles still in the queue and stop the writer thread.
+     *
+     * @throws Exception if the writing failed.
+     */
+    @Override
+    public void close() throws Exception {
+        if (closed) {
+            return;
+        }
+        queue.put(END_OF_TILES);
+        writerThread.join();
+        closed = true;
+        if (pm != null) {
+            pm.message(String.format("Written %d tiles at %.1f tiles/s.", writtenTiles, getTilesPerSecond()));
+        }
+        checkWriteException();
+    }
+
+}
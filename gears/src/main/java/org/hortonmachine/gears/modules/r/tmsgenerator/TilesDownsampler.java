@@ -0,0 +1,168 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.modules.r.tmsgenerator;
+
+import static org.hortonmachine.gears.libs.modules.Variables.PYRAMID_MEAN;
+import static org.hortonmachine.gears.libs.modules.Variables.PYRAMID_MODE;
+import static org.hortonmachine.gears.libs.modules.Variables.PYRAMID_NEAREST;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Builds a tile from the four tiles of the zoom level above.
+ *
+ * <p>The four children cover the parent tile, each one a quarter of it. Every
+ * pixel of the parent comes from a block of 2x2 pixels of a child:</p>
+ * <ul>
+ * <li>{@value org.hortonmachine.gears.libs.modules.Variables#PYRAMID_MEAN}: the mean of the colors, weighted by their alpha;</li>
+ * <li>{@value org.hortonmachine.gears.libs.modules.Variables#PYRAMID_NEAREST}: the upper left pixel;</li>
+ * <li>{@value org.hortonmachine.gears.libs.modules.Variables#PYRAMID_MODE}: the most frequent color,
+ *          which keeps the colors of categorized maps.</li>
+ * </ul>
+ *
+ * <p>Missing children are considered transparent.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TilesDownsampler {
+
+    private final String mode;
+
+    /**
+     * @param mode the downsampling mode.
+     */
+    public TilesDownsampler( String mode ) {
+        if (!PYRAMID_MEAN.equals(mode) && !PYRAMID_NEAREST.equals(mode) && !PYRAMID_MODE.equals(mode)) {
+            throw new IllegalArgumentException("Unsupported downsampling mode: " + mode);
+        }
+        this.mode = mode;
+    }
+
+    /**
+     * Build the parent tile.
+     *
+     * @param children the children tiles in the order upper left, upper right, lower left, lower right.
+     *          Missing tiles are <code>null</code>.
+     * @param tileSize the size of the tiles.
+     * @return the parent tile or <code>null</code> if all the children are missing.
+     */
+    public BufferedImage downsample( BufferedImage[] children, int tileSize ) {
+        if (children.length != 4) {
+            throw new IllegalArgumentException("Four children tiles are needed.");
+        }
+        int half = tileSize / 2;
+        int[] parentPixels = new int[tileSize * tileSize];
+        int[] childPixels = new int[tileSize * tileSize];
+        boolean hasData = false;
+        for( int c = 0; c < 4; c++ ) {
+            BufferedImage child = children[c];
+            if (child == null) {
+                continue;
+            }
+            if (child.getWidth() != tileSize || child.getHeight() != tileSize) {
+                throw new IllegalArgumentException("The child tiles need to be of " + tileSize + " pixels.");
+            }
+            hasData = true;
+            child.getRGB(0, 0, tileSize, tileSize, childPixels, 0, tileSize);
+
+            int offsetX = (c % 2) * half;
+            int offsetY = (c / 2) * half;
+            for( int y = 0; y < half; y++ ) {
+                int row = 2 * y * tileSize;
+                int parentRow = (offsetY + y) * tileSize + offsetX;
+                for( int x = 0; x < half; x++ ) {
+                    int index = row + 2 * x;
+                    int p1 = childPixels[index];
+                    int p2 = childPixels[index + 1];
+                    int p3 = childPixels[index + tileSize];
+                    int p4 = childPixels[index + tileSize + 1];
+                    parentPixels[parentRow + x] = combine(p1, p2, p3, p4);
+                }
+            }
+        }
+        if (!hasData) {
+            return null;
+        }
+        BufferedImage parent = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+        parent.setRGB(0, 0, tileSize, tileSize, parentPixels, 0, tileSize);
+        return parent;
+    }
+
+    private int combine( int p1, int p2, int p3, int p4 ) {
+        switch( mode ) {
+        case PYRAMID_NEAREST:
+            return p1;
+        case PYRAMID_MODE:
+            return mode(p1, p2, p3, p4);
+        default:
+            return mean(p1, p2, p3, p4);
+        }
+    }
+
+    private static int mode( int p1, int p2, int p3, int p4 ) {
+        // with ties the first pixel wins
+        int best = p1;
+        int bestCount = count(p1, p1, p2, p3, p4);
+        if (bestCount >= 2) {
+            return best;
+        }
+        int count = count(p2, p1, p2, p3, p4);
+        if (count > bestCount) {
+            best = p2;
+            bestCount = count;
+        }
+        count = count(p3, p1, p2, p3, p4);
+        if (count > bestCount) {
+            best = p3;
+        }
+        return best;
+    }
+
+    private static int count( int value, int p1, int p2, int p3, int p4 ) {
+        int count = 0;
+        if (value == p1)
+            count++;
+        if (value == p2)
+            count++;
+        if (value == p3)
+            count++;
+        if (value == p4)
+            count++;
+        return count;
+    }
+
+    private static int mean( int p1, int p2, int p3, int p4 ) {
+        int a1 = p1 >>> 24;
+        int a2 = p2 >>> 24;
+        int a3 = p3 >>> 24;
+        int a4 = p4 >>> 24;
+        int alphaSum = a1 + a2 + a3 + a4;
+        if (alphaSum == 0) {
+            return 0;
+        }
+        // weighted by alpha, so that transparent pixels don't darken the colors
+        int r = ((p1 >> 16 & 0xFF) * a1 + (p2 >> 16 & 0xFF) * a2 + (p3 >> 16 & 0xFF) * a3 + (p4 >> 16 & 0xFF) * a4
+                + alphaSum / 2) / alphaSum;
+        int g = ((p1 >> 8 & 0xFF) * a1 + (p2 >> 8 & 0xFF) * a2 + (p3 >> 8 & 0xFF) * a3 + (p4 >> 8 & 0xFF) * a4 + alphaSum / 2)
+                / alphaSum;
+        int b = ((p1 & 0xFF) * a1 + (p2 & 0xFF) * a2 + (p3 & 0xFF) * a3 + (p4 & 0xFF) * a4 + alphaSum / 2) / alphaSum;
+        int a = (alphaSum + 2) / 4;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+}
@@ -0,0 +1,506 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.modules.v.vectoroverlayoperators;
+
+import static org.hortonmachine.gears.libs.modules.Variables.DIFFERENCE;
+import static org.hortonmachine.gears.libs.modules.Variables.INTERSECTION;
+import static org.hortonmachine.gears.libs.modules.Variables.SYMDIFFERENCE;
+import static org.hortonmachine.gears.libs.modules.Variables.UNION;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.hortonmachine.gears.libs.exceptions.ModelsIllegalargumentException;
+import org.hortonmachine.gears.libs.exceptions.ModelsRuntimeException;
+import org.hortonmachine.gears.libs.modules.ThreadedRunnable;
+import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
+import org.hortonmachine.gears.utils.features.FeatureUtilities;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.geom.util.GeometryFixer;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.operation.overlayng.OverlayNG;
+import org.locationtech.jts.operation.overlayng.OverlayNGRobust;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Feature by feature overlay of two vector layers.
+ * 
+ * <p>Instead of overlaying the whole layers at once, the features of the second layer that can
+ * touch a feature of the first are found through an {@link STRtree} and each feature is overlaid
+ * only with those, with {@link OverlayNGRobust}. The results keep the attributes of the features
+ * they come from:</p>
+ * <ul>
+ * <li>intersection: a feature for each intersecting pair, with the attributes of both;</li>
+ * <li>difference: the part of each feature of the first layer that is not covered by the second;</li>
+ * <li>symmetric difference: the differences of both layers, each with the attributes of its layer;</li>
+ * <li>union: the intersections plus the symmetric difference.</li>
+ * </ul>
+ * <p>The union of a single layer dissolves all its features, without attributes.</p>
+ * 
+ * <p>The features are processed in parallel in groups. If a tile size is set, the groups are
+ * the tiles of a regular grid and each feature belongs to the tile that contains the lower left
+ * corner of its envelope. The geometries are never cut at the tiles borders, so each pair is
+ * overlaid exactly once and there are no seams to stitch. The results are added to the output
+ * collection as each group is done.</p>
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class FeatureOverlayEngine {
+
+    /**
+     * The number of features in a group when no tiling is used.
+     */
+    private static final int GROUP_SIZE = 200;
+
+    private static final String SECOND_LAYER_SUFFIX = "_2";
+
+    private final String type;
+    private final boolean allowHoles;
+    private Double tileSize;
+    private int threadsNum = 1;
+
+    private final GeometryFactory gf = new GeometryFactory();
+    private SimpleFeatureType outputType;
+
+    /**
+     * Create the engine.
+     * 
+     * @param type the overlay type, one of {@link org.hortonmachine.gears.libs.modules.Variables#INTERSECTION},
+     *          UNION, DIFFERENCE or SYMDIFFERENCE.
+     * @param allowHoles if <code>false</code>, the holes of the resulting polygons are removed.
+     */
+    public FeatureOverlayEngine( String type, boolean allowHoles ) {
+        if (!INTERSECTION.equals(type) && !UNION.equals(type) && !DIFFERENCE.equals(type) && !SYMDIFFERENCE.equals(type)) {
+            throw new ModelsIllegalargumentException("The overlay type is not supported: " + type, this);
+        }
+        this.type = type;
+        this.allowHoles = allowHoles;
+    }
+
+    /**
+     * @param tileSize the size of the tiles in which the features are grouped, in map units.
+     *          If <code>null</code> or not positive, the features are grouped by their order.
+     */
+    public void setTileSize( Double tileSize ) {
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * @param threadsNum the number of threads to use.
+     */
+    public void setThreadsNum( int threadsNum ) {
+        this.threadsNum = Math.max(1, threadsNum);
+    }
+
+    /**
+     * @return the type of the features created by the last overlay.
+     */
+    public SimpleFeatureType getOutputType() {
+        return outputType;
+    }
+
+    /**
+     * Overlay two layers.
+     * 
+     * @param map1 the first layer.
+     * @param map2 the second layer, can be <code>null</code> only for the union.
+     * @param outMap the collection to which the results are added.
+     * @param pm the progress monitor.
+     * @throws Exception
+     */
+    public void overlay( SimpleFeatureCollection map1, SimpleFeatureCollection map2, DefaultFeatureCollection outMap,
+            IHMProgressMonitor pm ) throws Exception {
+        if (map2 == null && !UNION.equals(type)) {
+            throw new ModelsIllegalargumentException("The second layer is needed for the " + type + " overlay.", this);
+        }
+        CoordinateReferenceSystem crs = map1.getSchema().getCoordinateReferenceSystem();
+
+        pm.message("Preparing geometry layers...");
+        OverlayLayer layer1 = new OverlayLayer(map1);
+        if (map2 == null) {
+            outputType = createType(crs, layer1.dimension, null, null);
+            dissolve(layer1, outMap, pm);
+            return;
+        }
+        OverlayLayer layer2 = new OverlayLayer(map2);
+        if (layer1.geometries.length == 0 || layer2.geometries.length == 0) {
+            outputType = createType(crs, layer1.dimension, layer1, type.equals(DIFFERENCE) ? null : layer2);
+            if (!type.equals(INTERSECTION)) {
+                // nothing to overlay, the non empty layer is kept as is
+                overlayLayers(layer1, layer2, outMap, pm);
+            }
+            return;
+        }
+
+        if (!type.equals(INTERSECTION) && !type.equals(DIFFERENCE) && layer1.dimension != layer2.dimension) {
+            throw new ModelsIllegalargumentException(
+                    "The " + type + " overlay needs layers of the same geometry dimension.", this);
+        }
+        int dimension = type.equals(INTERSECTION) ? Math.min(layer1.dimension, layer2.dimension) : layer1.dimension;
+        outputType = createType(crs, dimension, layer1, type.equals(DIFFERENCE) ? null : layer2);
+        overlayLayers(layer1, layer2, outMap, pm);
+    }
+
+    private void overlayLayers( OverlayLayer layer1, OverlayLayer layer2, DefaultFeatureCollection outMap,
+            IHMProgressMonitor pm ) throws Exception {
+        int dimension = getDimension(outputType);
+        boolean doIntersection = type.equals(INTERSECTION) || type.equals(UNION);
+        boolean doDifference = !type.equals(INTERSECTION);
+        boolean doSecondDifference = type.equals(SYMDIFFERENCE) || type.equals(UNION);
+
+        List<int[]> groups1 = getGroups(layer1);
+        List<int[]> groups2 = doSecondDifference ? getGroups(layer2) : new ArrayList<>();
+        int groupsNum = groups1.size() + groups2.size();
+
+        ThreadedRunnable< ? > tRun = new ThreadedRunnable<>(threadsNum, pm);
+        tRun.setWorkLoad("Performing overlay operation... (groups = " + groupsNum + ", cores = " + threadsNum + ")",
+                groupsNum);
+        List<Exception> errors = new ArrayList<>();
+        for( int g = 0; g < groupsNum; g++ ) {
+            boolean isFirst = g < groups1.size();
+            int[] group = isFirst ? groups1.get(g) : groups2.get(g - groups1.size());
+            OverlayLayer main = isFirst ? layer1 : layer2;
+            OverlayLayer other = isFirst ? layer2 : layer1;
+            tRun.executeRunnable(() -> {
+                try {
+                    SimpleFeatureBuilder builder = new SimpleFeatureBuilder(outputType);
+                    List<SimpleFeature> groupFeatures = new ArrayList<>();
+                    for( int index : group ) {
+                        Geometry geometry = main.geometries[index];
+                        List<Integer> candidates = other.getIntersecting(geometry);
+                        if (isFirst && doIntersection) {
+                            for( int otherIndex : candidates ) {
+                                Geometry intersection = OverlayNGRobust.overlay(geometry, other.geometries[otherIndex],
+                                        OverlayNG.INTERSECTION);
+                                addFeatures(builder, intersection, dimension, layer1, index, layer2, otherIndex,
+                                        groupFeatures);
+                            }
+                        }
+                        if ((isFirst && doDifference) || !isFirst) {
+                            Geometry difference = geometry;
+                            if (!candidates.isEmpty()) {
+                                List<Geometry> overlapping = new ArrayList<>(candidates.size());
+                                for( int otherIndex : candidates ) {
+                                    overlapping.add(other.geometries[otherIndex]);
+                                }
+                                Geometry cover = overlapping.size() == 1
+                                        ? overlapping.get(0)
+                                        : OverlayNGRobust.union(overlapping);
+                                difference = OverlayNGRobust.overlay(geometry, cover, OverlayNG.DIFFERENCE);
+                            }
+                            if (isFirst) {
+                                addFeatures(builder, difference, dimension, layer1, index, layer2, -1, groupFeatures);
+                            } else {
+                                addFeatures(builder, difference, dimension, layer1, -1, layer2, index, groupFeatures);
+                            }
+                        }
+                    }
+                    synchronized (outMap) {
+                        outMap.addAll(groupFeatures);
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                } finally {
+                    tRun.worked(1);
+                }
+            });
+        }
+        tRun.waitAndClose();
+        if (!errors.isEmpty()) {
+            throw new ModelsRuntimeException("Error during the overlay: " + errors.get(0).getLocalizedMessage(), this);
+        }
+    }
+
+    /**
+     * Dissolve a layer, merging the union of each group into the final one.
+     */
+    private void dissolve( OverlayLayer layer, DefaultFeatureCollection outMap, IHMProgressMonitor pm ) throws Exception {
+        List<int[]> groups = getGroups(layer);
+        List<Geometry> groupUnions = new ArrayList<>();
+        ThreadedRunnable< ? > tRun = new ThreadedRunnable<>(threadsNum, pm);
+        tRun.setWorkLoad("Performing overlay operation... (groups = " + groups.size() + ", cores = " + threadsNum + ")",
+                groups.size());
+        List<Exception> errors = new ArrayList<>();
+        for( int[] group : groups ) {
+            tRun.executeRunnable(() -> {
+                try {
+                    List<Geometry> geometries = new ArrayList<>(group.length);
+                    for( int index : group ) {
+                        geometries.add(layer.geometries[index]);
+                    }
+                    Geometry union = OverlayNGRobust.union(geometries);
+                    synchronized (groupUnions) {
+                        groupUnions.add(union);
+                    }
+                } catch (Exception e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                } finally {
+                    tRun.worked(1);
+                }
+            });
+        }
+        tRun.waitAndClose();
+        if (!errors.isEmpty()) {
+            throw new ModelsRuntimeException("Error during the overlay: " + errors.get(0).getLocalizedMessage(), this);
+        }
+        if (groupUnions.isEmpty()) {
+            return;
+        }
+
+        pm.message("Merging the groups...");
+        // the union of the groups merges the geometries across the tiles borders
+        Geometry union = OverlayNGRobust.union(groupUnions);
+        List<Geometry> parts = new ArrayList<>();
+        extractParts(union, layer.dimension, parts);
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(outputType);
+        for( int i = 0; i < parts.size(); i++ ) {
+            builder.addAll(new Object[]{parts.get(i), i});
+            outMap.add(builder.buildFeature("overlay." + i));
+        }
+    }
+
+    /**
+     * Group the features of a layer, by tile or by their order.
+     */
+    private List<int[]> getGroups( OverlayLayer layer ) {
+        List<int[]> groups = new ArrayList<>();
+        int[] indexes = layer.validIndexes;
+        if (tileSize == null || !(tileSize > 0) || layer.bounds.isNull()) {
+            for( int start = 0; start < indexes.length; start += GROUP_SIZE ) {
+                int end = Math.min(start + GROUP_SIZE, indexes.length);
+                int[] group = new int[end - start];
+                System.arraycopy(indexes, start, group, 0, group.length);
+                groups.add(group);
+            }
+            return groups;
+        }
+
+        Map<Long, List<Integer>> tiles = new TreeMap<>();
+        long cols = (long) Math.floor(layer.bounds.getWidth() / tileSize) + 1;
+        for( int index : indexes ) {
+            Envelope envelope = layer.geometries[index].getEnvelopeInternal();
+            long col = (long) Math.floor((envelope.getMinX() - layer.bounds.getMinX()) / tileSize);
+            long row = (long) Math.floor((envelope.getMinY() - layer.bounds.getMinY()) / tileSize);
+            tiles.computeIfAbsent(row * cols + col, k -> new ArrayList<>()).add(index);
+        }
+        for( List<Integer> tile : tiles.values() ) {
+            groups.add(tile.stream().mapToInt(Integer::intValue).toArray());
+        }
+        return groups;
+    }
+
+    /**
+     * Add the parts of a result, with the attributes of the features it comes from. An index of -1
+     * gives empty attributes for that layer.
+     */
+    private void addFeatures( SimpleFeatureBuilder builder, Geometry geometry, int dimension, OverlayLayer layer1, int index1,
+            OverlayLayer layer2, int index2, List<SimpleFeature> groupFeatures ) {
+        List<Geometry> parts = new ArrayList<>();
+        extractParts(geometry, dimension, parts);
+        boolean withSecondAttributes = !type.equals(DIFFERENCE);
+        for( int p = 0; p < parts.size(); p++ ) {
+            List<Object> values = new ArrayList<>(outputType.getAttributeCount());
+            values.add(parts.get(p));
+            layer1.addAttributes(index1, values);
+            if (withSecondAttributes) {
+                layer2.addAttributes(index2, values);
+            }
+            builder.addAll(values);
+            groupFeatures.add(builder.buildFeature("overlay." + index1 + "." + index2 + "." + p));
+        }
+    }
+
+    /**
+     * Extract the single non empty parts of a given dimension, removing the holes if needed.
+     */
+    private void extractParts( Geometry geometry, int dimension, List<Geometry> parts ) {
+        for( int i = 0; i < geometry.getNumGeometries(); i++ ) {
+            Geometry part = geometry.getGeometryN(i);
+            if (part != geometry) {
+                extractParts(part, dimension, parts);
+                continue;
+            }
+            if (part.isEmpty() || part.getDimension() != dimension) {
+                continue;
+            }
+            if (part instanceof Polygon && !allowHoles) {
+                part = gf.createPolygon(((Polygon) part).getExteriorRing().getCoordinates());
+            }
+            parts.add(part);
+        }
+    }
+
+    private SimpleFeatureType createType( CoordinateReferenceSystem crs, int dimension, OverlayLayer layer1,
+            OverlayLayer layer2 ) {
+        SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
+        b.setName("overlay");
+        b.setCRS(crs);
+        switch (dimension) {
+            case 0:
+                b.add("the_geom", Point.class);
+                break;
+            case 1:
+                b.add("the_geom", LineString.class);
+                break;
+            default:
+                b.add("the_geom", Polygon.class);
+                break;
+        }
+        if (layer1 == null) {
+            b.add("id", Integer.class);
+            return b.buildFeatureType();
+        }
+        Set<String> names = new HashSet<>();
+        names.add("the_geom");
+        for( OverlayLayer layer : new OverlayLayer[]{layer1, layer2} ) {
+            if (layer == null) {
+                continue;
+            }
+            for( AttributeDescriptor descriptor : layer.attributeDescriptors ) {
+                String name = descriptor.getLocalName();
+                while( names.contains(name) ) {
+                    name = name + SECOND_LAYER_SUFFIX;
+                }
+                names.add(name);
+                b.add(name, descriptor.getType().getBinding());
+            }
+        }
+        return b.buildFeatureType();
+    }
+
+    private static int getDimension( SimpleFeatureType type ) {
+        Class< ? > binding = type.getGeometryDescriptor().getType().getBinding();
+        if (binding == Point.class) {
+            return 0;
+        } else if (binding == LineString.class) {
+            return 1;
+        }
+        return 2;
+    }
+
+    /**
+     * The geometries of a layer with their index and attributes.
+     */
+    private static class OverlayLayer {
+        final List<SimpleFeature> features;
+        final Geometry[] geometries;
+        final int[] validIndexes;
+        final Envelope bounds = new Envelope();
+        final STRtree tree = new STRtree();
+        final List<AttributeDescriptor> attributeDescriptors = new ArrayList<>();
+        final int[] attributeIndexes;
+        int dimension = 2;
+
+        OverlayLayer( SimpleFeatureCollection collection ) {
+            features = FeatureUtilities.featureCollectionToList(collection);
+            geometries = new Geometry[features.size()];
+
+            SimpleFeatureType schema = collection.getSchema();
+            List<Integer> indexes = new ArrayList<>();
+            for( int i = 0; i < schema.getAttributeCount(); i++ ) {
+                AttributeDescriptor descriptor = schema.getDescriptor(i);
+                if (descriptor != schema.getGeometryDescriptor()) {
+                    attributeDescriptors.add(descriptor);
+                    indexes.add(i);
+                }
+            }
+            attributeIndexes = indexes.stream().mapToInt(Integer::intValue).toArray();
+
+            List<Integer> valid = new ArrayList<>();
+            boolean dimensionSet = false;
+            for( int i = 0; i < geometries.length; i++ ) {
+                Geometry geometry = (Geometry) features.get(i).getDefaultGeometry();
+                if (geometry == null || geometry.isEmpty()) {
+                    continue;
+                }
+                if (!geometry.isValid()) {
+                    geometry = GeometryFixer.fix(geometry);
+                    if (geometry.isEmpty()) {
+                        continue;
+                    }
+                }
+                if (!dimensionSet) {
+                    dimension = geometry.getDimension();
+                    dimensionSet = true;
+                }
+                geometries[i] = geometry;
+                valid.add(i);
+                Envelope envelope = geometry.getEnvelopeInternal();
+                bounds.expandToInclude(envelope);
+                tree.insert(envelope, i);
+            }
+            validIndexes = valid.stream().mapToInt(Integer::intValue).toArray();
+            // build before the parallel queries
+            tree.build();
+        }
+
+        /**
+         * @return the indexes of the geometries that intersect a geometry.
+         */
+        @SuppressWarnings("unchecked")
+        List<Integer> getIntersecting( Geometry geometry ) {
+            List<Integer> intersecting = new ArrayList<>();
+            if (validIndexes.length == 0) {
+                return intersecting;
+            }
+            List<Integer> candidates = tree.query(geometry.getEnvelopeInternal());
+            if (candidates.isEmpty()) {
+                return intersecting;
+            }
+            PreparedGeometry prepared = PreparedGeometryFactory.prepare(geometry);
+            for( int candidate : candidates ) {
+                if (prepared.intersects(geometries[candidate])) {
+                    intersecting.add(candidate);
+                }
+            }
+            // keep the order of the layer, independent of the tree
+            intersecting.sort(null);
+            return intersecting;
+        }
+
+        void addAttributes( int index, List<Object> values ) {
+            SimpleFeature feature = index < 0 ? null : features.get(index);
+            for( int attributeIndex : attributeIndexes ) {
+                values.add(feature == null ? null : feature.getAttribute(attributeIndex));
+            }
+        }
+    }
+
+}
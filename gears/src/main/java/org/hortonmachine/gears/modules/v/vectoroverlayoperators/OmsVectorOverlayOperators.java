@@ -32,8 +32,6 @@ import static org.hortonmachine.gears.modules.v.vectoroverlayoperators.OmsVector
 import static org.hortonmachine.gears.modules.v.vectoroverlayoperators.OmsVectorOverlayOperators.OMSVECTOROVERLAYOPERATORS_NAME;
 import static org.hortonmachine.gears.modules.v.vectoroverlayoperators.OmsVectorOverlayOperators.OMSVECTOROVERLAYOPERATORS_STATUS;
 
-import java.util.List;
-
 import oms3.annotations.Author;
 import oms3.annotations.Description;
 import oms3.annotations.Documentation;
@@ -49,23 +47,7 @@ import oms3.annotations.UI;
 
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.DefaultFeatureCollection;
-import org.geotools.feature.simple.SimpleFeatureBuilder;
-import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
-import org.hortonmachine.gears.libs.exceptions.ModelsIllegalargumentException;
-import org.hortonmachine.gears.libs.exceptions.ModelsRuntimeException;
 import org.hortonmachine.gears.libs.modules.HMModel;
-import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
-import org.hortonmachine.gears.utils.features.FeatureUtilities;
-import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.feature.simple.SimpleFeatureType;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-
-import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.GeometryCollection;
-import org.locationtech.jts.geom.LineString;
-import org.locationtech.jts.geom.Point;
-import org.locationtech.jts.geom.Polygon;
 
 @Description(OMSVECTOROVERLAYOPERATORS_DESCRIPTION)
 @Documentation(OMSVECTOROVERLAYOPERATORS_DOCUMENTATION)
@@ -95,12 +77,20 @@ public class OmsVectorOverlayOperators extends HMModel {
     @In
     public boolean doAllowHoles = true;
 
+    @Description(OMSVECTOROVERLAYOPERATORS_pTileSize_DESCRIPTION)
+    @In
+    public Double pTileSize = null;
+
+    @Description(OMSVECTOROVERLAYOPERATORS_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = getDefaultThreadsNum();
+
     @Description(OMSVECTOROVERLAYOPERATORS_outMap_DESCRIPTION)
     @Out
     public SimpleFeatureCollection outMap = null;
     
     // VARS DOCS START
-    public static final String OMSVECTOROVERLAYOPERATORS_DESCRIPTION = "A module that performs overlay operations on a pure geometric layer. The resulting feature layer does not consider original attributes tables.";
+    public static final String OMSVECTOROVERLAYOPERATORS_DESCRIPTION = "A module that performs overlay operations feature by feature. The resulting features keep the attributes of the features they come from, the union of a single layer dissolves it without attributes.";
     public static final String OMSVECTOROVERLAYOPERATORS_DOCUMENTATION = "";
     public static final String OMSVECTOROVERLAYOPERATORS_KEYWORDS = "JTS, Overlay, Union, Intersect, SymDifference, Difference";
     public static final String OMSVECTOROVERLAYOPERATORS_LABEL = VECTORPROCESSING;
@@ -113,6 +103,8 @@ public class OmsVectorOverlayOperators extends HMModel {
     public static final String OMSVECTOROVERLAYOPERATORS_inMap2_DESCRIPTION = "The second vector map.";
     public static final String OMSVECTOROVERLAYOPERATORS_pType_DESCRIPTION = "The overlay type to perform.";
     public static final String OMSVECTOROVERLAYOPERATORS_outMap_DESCRIPTION = "The resulting vector map.";
+    public static final String OMSVECTOROVERLAYOPERATORS_pTileSize_DESCRIPTION = "The optional size of the tiles in which the features are grouped for the parallel processing, in map units.";
+    public static final String OMSVECTOROVERLAYOPERATORS_pMaxThreads_DESCRIPTION = "The number of threads to use.";
     private static final String doAllowHoles_DESCRIPTION = "Allow holes in the result.";
     // VARS DOCS STOP
 
@@ -124,93 +116,12 @@ public class OmsVectorOverlayOperators extends HMModel {
             checkNull(inMap1, inMap2);
         }
 
-        CoordinateReferenceSystem crs = inMap1.getSchema().getCoordinateReferenceSystem();
-
         outMap = new DefaultFeatureCollection();
 
-        SimpleFeatureBuilder builder = null;
-
-        pm.message("Preparing geometry layers...");
-
-        List<Geometry> geoms1 = FeatureUtilities.featureCollectionToGeometriesList(inMap1, false, null);
-        GeometryCollection geometryCollection1 = new GeometryCollection(geoms1.toArray(new Geometry[geoms1.size()]), gf);
-        Geometry g1 = geometryCollection1.buffer(0);
-
-        Geometry g2 = null;
-        if (inMap2 != null) {
-            List<Geometry> geoms2 = FeatureUtilities.featureCollectionToGeometriesList(inMap2, false, null);
-            GeometryCollection geometryCollection2 = new GeometryCollection(geoms2.toArray(new Geometry[geoms2.size()]), gf);
-            g2 = geometryCollection2.buffer(0);
-        }
-
-        pm.beginTask("Performing overlay operation...", IHMProgressMonitor.UNKNOWN);
-        Geometry resultingGeometryCollection = null;
-        switch (pType) {
-            case INTERSECTION:
-                resultingGeometryCollection = g1.intersection(g2);
-                break;
-            case UNION:
-                if (inMap2 != null) {
-                    resultingGeometryCollection = g1.union(g2);
-                } else {
-                    resultingGeometryCollection = g1.union();
-                }
-                break;
-            case DIFFERENCE:
-                resultingGeometryCollection = g1.difference(g2);
-                break;
-            case SYMDIFFERENCE:
-                resultingGeometryCollection = g1.symDifference(g2);
-                break;
-            default:
-                throw new ModelsIllegalargumentException("The overlay type is not supported: " + pType, this, pm);
-        }
-        pm.done();
-
-        pm.message("Preparing final layer...");
-        int numGeometries = resultingGeometryCollection.getNumGeometries();
-        for( int i = 0; i < numGeometries; i++ ) {
-            Geometry geometryN = resultingGeometryCollection.getGeometryN(i);
-            int numGeometries2 = geometryN.getNumGeometries();
-            for( int j = 0; j < numGeometries2; j++ ) {
-                Geometry geometryN2 = geometryN.getGeometryN(j);
-
-                if (builder == null) {
-                    SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
-                    b.setName("overlay");
-                    b.setCRS(crs);
-                    if (geometryN2 instanceof Polygon) {
-                        b.add("the_geom", Polygon.class);
-                    } else if (geometryN2 instanceof LineString) {
-                        b.add("the_geom", LineString.class);
-                    } else if (geometryN2 instanceof Point) {
-                        b.add("the_geom", Point.class);
-                    } else {
-                        throw new ModelsRuntimeException("An unexpected geometry type has been created: "
-                                + geometryN2.getGeometryType(), this);
-                    }
-                    b.add("id", Integer.class);
-                    SimpleFeatureType type = b.buildFeatureType();
-                    builder = new SimpleFeatureBuilder(type);
-                }
-                
-                if (geometryN2 instanceof Polygon && !doAllowHoles) {
-                    // remove holes
-                    Polygon polygon = (Polygon) geometryN2;
-                    LineString exteriorRing = polygon.getExteriorRing();
-                    
-                    Coordinate[] coordinates = exteriorRing.getCoordinates();
-                    
-                    geometryN2 = gf.createPolygon(coordinates);
-                }
-
-                Object[] values = new Object[]{geometryN2, i};
-                builder.addAll(values);
-                SimpleFeature feature = builder.buildFeature(null);
-                ((DefaultFeatureCollection) outMap).add(feature);
-            }
-        }
-
+        FeatureOverlayEngine engine = new FeatureOverlayEngine(pType, doAllowHoles);
+        engine.setTileSize(pTileSize);
+        engine.setThreadsNum(pMaxThreads);
+        engine.overlay(inMap1, inMap2, (DefaultFeatureCollection) outMap, pm);
     }
 
 }
@@ -0,0 +1,157 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.utils;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary min heap of long values (ex. cell indexes) ordered by a double priority.
+ *
+ * <p>Values and priorities are kept in primitive arrays, so no object is created
+ * per entry. Entries with the same priority are returned in no particular order.</p>
+ *
+ * <p>The class is not thread safe.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class LongPriorityQueue {
+
+    private long[] values;
+    private double[] priorities;
+    private int size = 0;
+
+    /**
+     * Create the queue.
+     *
+     * @param initialCapacity the initial capacity, the queue grows as needed.
+     */
+    public LongPriorityQueue( int initialCapacity ) {
+        initialCapacity = Math.max(initialCapacity, 16);
+        values = new long[initialCapacity];
+        priorities = new double[initialCapacity];
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param value the value to add.
+     * @param priority its priority, lower priorities are polled first.
+     */
+    public void add( long value, double priority ) {
+        if (size == values.length) {
+            int newCapacity = values.length + (values.length >> 1);
+            values = Arrays.copyOf(values, newCapacity);
+            priorities = Arrays.copyOf(priorities, newCapacity);
+        }
+        int index = size++;
+        // sift up
+        while( index > 0 ) {
+            int parent = (index - 1) >>> 1;
+            if (priorities[parent] <= priority) {
+                break;
+            }
+            values[index] = values[parent];
+            priorities[index] = priorities[parent];
+            index = parent;
+        }
+        values[index] = value;
+        priorities[index] = priority;
+    }
+
+    /**
+     * @return the priority of the head of the queue.
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    public double peekPriority() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return priorities[0];
+    }
+
+    /**
+     * @return the value of the head of the queue, without removing it.
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    public long peek() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return values[0];
+    }
+
+    /**
+     * Remove the head of the queue.
+     *
+     * @return the value with the lowest priority.
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    public long poll() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        long head = values[0];
+        size--;
+        if (size > 0) {
+            long value = values[size];
+            double priority = priorities[size];
+            // sift down
+            int index = 0;
+            int half = size >>> 1;
+            while( index < half ) {
+                int child = 2 * index + 1;
+                int right = child + 1;
+                if (right < size && priorities[right] < priorities[child]) {
+                    child = right;
+                }
+                if (priority <= priorities[child]) {
+                    break;
+                }
+                values[index] = values[child];
+                priorities[index] = priorities[child];
+                index = child;
+            }
+            values[index] = value;
+            priorities[index] = priority;
+        }
+        return head;
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return <code>true</code> if the queue has no entries.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove all entries, keeping the allocated capacity.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+}
@@ -1035,8 +1035,8 @@ public class CoverageUtilities {
         double north = envelopeParams.north;
         Envelope2D writeEnvelope = new Envelope2D(crs, west, south, east - west, north - south);
 
-        final GridSampleDimension[] bands = RenderedSampleDimension.create(name, renderedImage.getData(), null, null, null, null,
-                null);
+        // scan the image tile by tile, getData() would copy it all into a single raster
+        final GridSampleDimension[] bands = RenderedSampleDimension.create(name, renderedImage, null, null, null, null, null);
 
         GridCoverageFactory factory = CoverageFactoryFinder.getGridCoverageFactory(null);
 
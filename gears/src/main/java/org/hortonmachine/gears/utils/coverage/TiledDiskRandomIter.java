@@ -0,0 +1,626 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.utils.coverage;
+
+import java.awt.Point;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.RasterFactory;
+import javax.media.jai.iterator.WritableRandomIter;
+
+import org.hortonmachine.gears.libs.exceptions.ModelsRuntimeException;
+
+/**
+ * A single band {@link WritableRandomIter} that keeps its data in a file on disk instead of the heap.
+ *
+ * <p>The raster is split in square tiles that are stored one after the other in
+ * the backing file. Tiles are read on demand into a bounded cache that evicts
+ * the least recently used ones. Modified tiles are written back to the file when
+ * they are evicted and on {@link #flush()}.</p>
+ *
+ * <p>Tiles that have never been touched are not written to disk and are read
+ * as filled with the initial value.</p>
+ *
+ * <p>The iterator can be shared between threads. Tiles are guarded by a fixed set
+ * of striped locks, so threads working on different tiles don't wait on each other.
+ * The file is accessed through positional reads and writes, using a pool of io buffers
+ * that never grows beyond the number of threads doing io at the same time.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TiledDiskRandomIter implements WritableRandomIter {
+
+    /**
+     * The default tile side in cells.
+     */
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    /**
+     * The default number of tiles kept in memory.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 64;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final int cols;
+    private final int rows;
+    private final int tileSize;
+    private final int tileCols;
+    private final int tileRows;
+    private final int bytesPerCell;
+    private final Class< ? > dataClass;
+    private final double initialValue;
+    private final int tileBytes;
+    private final int maxTiles;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    /**
+     * The tiles that have been written to disk at least once, guarded by the tile lock.
+     */
+    private final boolean[] onDiskTiles;
+    private final ConcurrentHashMap<Integer, Tile> cache;
+    private final ReentrantLock[] locks;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffersPool = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Access counter for the eviction order. Races between threads only blur the order.
+     */
+    private long accessClock = 0;
+
+    /**
+     * The iterator and its images that still use the backing file, guarded by the locks array.
+     */
+    private int owners = 1;
+    private boolean released = false;
+
+    private static class Tile {
+        final int index;
+        final double[] data;
+        boolean dirty = false;
+        long lastAccess;
+
+        Tile( int index, double[] data ) {
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Create a new tiled iterator.
+     *
+     * @param cols the columns of the raster.
+     * @param rows the rows of the raster.
+     * @param dataClass the class of the stored values, one of {@link Double}, {@link Float}, {@link Integer}, {@link Short}.
+     * @param initialValue the value cells have before they are set.
+     * @param tileSize the tile side in cells.
+     * @param cacheSize the maximum number of tiles to keep in memory.
+     * @param storageFolder the folder in which to create the backing file. If <code>null</code>, the system temp folder is used.
+     * @throws IOException
+     */
+    public TiledDiskRandomIter( int cols, int rows, Class< ? > dataClass, double initialValue, int tileSize, int cacheSize,
+            File storageFolder ) throws IOException {
+        if (tileSize < 1 || cacheSize < 1) {
+            throw new IllegalArgumentException("Tile size and cache size need to be positive.");
+        }
+        this.cols = cols;
+        this.rows = rows;
+        this.tileSize = tileSize;
+        this.dataClass = dataClass;
+        this.initialValue = initialValue;
+        tileCols = (int) Math.ceil(cols / (double) tileSize);
+        tileRows = (int) Math.ceil(rows / (double) tileSize);
+
+        if (dataClass == Double.class) {
+            bytesPerCell = 8;
+        } else if (dataClass == Float.class || dataClass == Integer.class) {
+            bytesPerCell = 4;
+        } else if (dataClass == Short.class) {
+            bytesPerCell = 2;
+        } else {
+            throw new IllegalArgumentException("Unsupported data class: " + dataClass);
+        }
+        long bytes = (long) tileSize * tileSize * bytesPerCell;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The tile size is too large: " + tileSize);
+        }
+        tileBytes = (int) bytes;
+
+        file = File.createTempFile("hmtiled_", ".raw", storageFolder);
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        onDiskTiles = new boolean[tileCols * tileRows];
+        cache = new ConcurrentHashMap<Integer, Tile>(cacheSize * 2);
+        maxTiles = cacheSize;
+        locks = new ReentrantLock[LOCK_STRIPES];
+        for( int i = 0; i < locks.length; i++ ) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @return the file backing the raster data.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the tile side in cells.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return the class of the stored values.
+     */
+    public Class< ? > getDataClass() {
+        return dataClass;
+    }
+
+    private ReentrantLock lockFor( int tileIndex ) {
+        return locks[tileIndex % LOCK_STRIPES];
+    }
+
+    /**
+     * Get a tile, loading it if necessary. The caller needs to hold the lock of the tile.
+     */
+    private Tile getTile( int tileIndex ) {
+        Tile tile = cache.get(tileIndex);
+        if (tile == null) {
+            try {
+                tile = loadTile(tileIndex);
+                tile.lastAccess = ++accessClock;
+                cache.put(tileIndex, tile);
+                if (cache.size() > maxTiles) {
+                    evictTiles(tileIndex);
+                }
+            } catch (IOException e) {
+                throw new ModelsRuntimeException("Unable to read tile " + tileIndex + " from " + file, this);
+            }
+        } else {
+            tile.lastAccess = ++accessClock;
+        }
+        return tile;
+    }
+
+    /**
+     * Evict the least recently used tiles until the cache is back to its size.
+     *
+     * <p>Tiles whose lock is held by another thread are skipped, so that locks are never
+     * waited for while holding the lock of the current tile. The cache can therefore
+     * exceed its size for a while, the next load will try again.</p>
+     *
+     * @param keepIndex the index of the tile that is being used by the caller.
+     */
+    private void evictTiles( int keepIndex ) throws IOException {
+        int attempts = cache.size();
+        while( cache.size() > maxTiles && attempts-- > 0 ) {
+            Tile eldest = null;
+            for( Tile tile : cache.values() ) {
+                if (tile.index != keepIndex && (eldest == null || tile.lastAccess < eldest.lastAccess)) {
+                    eldest = tile;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            ReentrantLock lock = lockFor(eldest.index);
+            if (lock.tryLock()) {
+                try {
+                    // write back before releasing the lock, else another thread could read stale data from disk
+                    if (cache.remove(eldest.index, eldest) && eldest.dirty) {
+                        writeTile(eldest);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = buffersPool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(tileBytes).order(ByteOrder.nativeOrder());
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private Tile loadTile( int tileIndex ) throws IOException {
+        double[] data = new double[tileSize * tileSize];
+        if (onDiskTiles[tileIndex]) {
+            ByteBuffer buffer = borrowBuffer();
+            try {
+                long position = (long) tileIndex * tileBytes;
+                while( buffer.hasRemaining() ) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Tile " + tileIndex + " is truncated in " + file);
+                    }
+                }
+                buffer.flip();
+                if (dataClass == Double.class) {
+                    buffer.asDoubleBuffer().get(data);
+                } else if (dataClass == Float.class) {
+                    for( int i = 0; i < data.length; i++ ) {
+                        data[i] = buffer.getFloat();
+                    }
+                } else if (dataClass == Integer.class) {
+                    for( int i = 0; i < data.length; i++ ) {
+                        data[i] = buffer.getInt();
+                    }
+                } else {
+                    for( int i = 0; i < data.length; i++ ) {
+                        data[i] = buffer.getShort();
+                    }
+                }
+            } finally {
+                buffersPool.offer(buffer);
+            }
+        } else {
+            Arrays.fill(data, initialValue);
+        }
+        return new Tile(tileIndex, data);
+    }
+
+    /**
+     * Write a tile to disk. The caller needs to hold the lock of the tile.
+     */
+    private void writeTile( Tile tile ) throws IOException {
+        ByteBuffer buffer = borrowBuffer();
+        try {
+            double[] data = tile.data;
+            if (dataClass == Double.class) {
+                buffer.asDoubleBuffer().put(data);
+                buffer.position(tileBytes);
+            } else if (dataClass == Float.class) {
+                for( int i = 0; i < data.length; i++ ) {
+                    buffer.putFloat((float) data[i]);
+                }
+            } else if (dataClass == Integer.class) {
+                for( int i = 0; i < data.length; i++ ) {
+                    buffer.putInt((int) data[i]);
+                }
+            } else {
+                for( int i = 0; i < data.length; i++ ) {
+                    buffer.putShort((short) data[i]);
+                }
+            }
+            buffer.flip();
+            long position = (long) tile.index * tileBytes;
+            while( buffer.hasRemaining() ) {
+                channel.write(buffer, position + buffer.position());
+            }
+        } finally {
+            buffersPool.offer(buffer);
+        }
+        onDiskTiles[tile.index] = true;
+        tile.dirty = false;
+    }
+
+    private int tileIndex( int x, int y ) {
+        return (y / tileSize) * tileCols + (x / tileSize);
+    }
+
+    private int indexInTile( int x, int y ) {
+        return (y % tileSize) * tileSize + (x % tileSize);
+    }
+
+    private double read( int x, int y ) {
+        int tileIndex = tileIndex(x, y);
+        ReentrantLock lock = lockFor(tileIndex);
+        lock.lock();
+        try {
+            return getTile(tileIndex).data[indexInTile(x, y)];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write( int x, int y, double value ) {
+        if (dataClass == Integer.class) {
+            value = (int) value;
+        } else if (dataClass == Short.class) {
+            value = (short) value;
+        } else if (dataClass == Float.class) {
+            value = (float) value;
+        }
+        int tileIndex = tileIndex(x, y);
+        ReentrantLock lock = lockFor(tileIndex);
+        lock.lock();
+        try {
+            Tile tile = getTile(tileIndex);
+            tile.data[indexInTile(x, y)] = value;
+            tile.dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copy the values of a tile into a raster that has the tile bounds.
+     */
+    private void copyTile( int tileIndex, WritableRaster raster ) {
+        ReentrantLock lock = lockFor(tileIndex);
+        lock.lock();
+        try {
+            raster.setSamples(raster.getMinX(), raster.getMinY(), tileSize, tileSize, 0, getTile(tileIndex).data);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write all modified tiles back to the backing file.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        for( Tile tile : cache.values() ) {
+            ReentrantLock lock = lockFor(tile.index);
+            lock.lock();
+            try {
+                if (tile.dirty && cache.get(tile.index) == tile) {
+                    writeTile(tile);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Get an image view of the data.
+     *
+     * <p>The image has the same tiling of the iterator and reads its tiles from
+     * the iterator on demand, so the raster is never materialized in memory.</p>
+     *
+     * <p>The image shares the ownership of the backing file: the file is deleted
+     * only once {@link #done()} has been called and every image has been disposed.</p>
+     *
+     * @return the image.
+     */
+    public PlanarImage getRenderedImage() {
+        synchronized (locks) {
+            if (owners == 0) {
+                throw new ModelsRuntimeException("The tiled storage has already been released.", this);
+            }
+            owners++;
+        }
+        int dataType;
+        if (dataClass == Double.class) {
+            dataType = DataBuffer.TYPE_DOUBLE;
+        } else if (dataClass == Float.class) {
+            dataType = DataBuffer.TYPE_FLOAT;
+        } else if (dataClass == Integer.class) {
+            dataType = DataBuffer.TYPE_INT;
+        } else {
+            dataType = DataBuffer.TYPE_SHORT;
+        }
+        SampleModel sampleModel = new ComponentSampleModel(dataType, tileSize, tileSize, 1, tileSize, new int[]{0});
+        ColorModel colorModel = PlanarImage.createColorModel(sampleModel);
+        ImageLayout layout = new ImageLayout(0, 0, cols, rows, 0, 0, tileSize, tileSize, sampleModel, colorModel);
+        return new TilesImage(layout);
+    }
+
+    /**
+     * An image that reads its tiles from the iterator and releases it on dispose.
+     */
+    private class TilesImage extends PlanarImage {
+        private boolean disposed = false;
+
+        TilesImage( ImageLayout layout ) {
+            super(layout, null, null);
+        }
+
+        @Override
+        public Raster getTile( int tileX, int tileY ) {
+            if (tileX < 0 || tileX >= tileCols || tileY < 0 || tileY >= tileRows) {
+                return null;
+            }
+            WritableRaster raster = RasterFactory.createWritableRaster(sampleModel, new Point(tileX * tileSize, tileY * tileSize));
+            copyTile(tileY * tileCols + tileX, raster);
+            return raster;
+        }
+
+        @Override
+        public synchronized void dispose() {
+            if (!disposed) {
+                disposed = true;
+                release();
+            }
+            super.dispose();
+        }
+    }
+
+    @Override
+    public int getSample( int x, int y, int b ) {
+        return (int) read(x, y);
+    }
+
+    @Override
+    public float getSampleFloat( int x, int y, int b ) {
+        return (float) read(x, y);
+    }
+
+    @Override
+    public double getSampleDouble( int x, int y, int b ) {
+        return read(x, y);
+    }
+
+    @Override
+    public int[] getPixel( int x, int y, int[] iArray ) {
+        if (iArray == null) {
+            iArray = new int[1];
+        }
+        iArray[0] = getSample(x, y, 0);
+        return iArray;
+    }
+
+    @Override
+    public float[] getPixel( int x, int y, float[] fArray ) {
+        if (fArray == null) {
+            fArray = new float[1];
+        }
+        fArray[0] = getSampleFloat(x, y, 0);
+        return fArray;
+    }
+
+    @Override
+    public double[] getPixel( int x, int y, double[] dArray ) {
+        if (dArray == null) {
+            dArray = new double[1];
+        }
+        dArray[0] = getSampleDouble(x, y, 0);
+        return dArray;
+    }
+
+    @Override
+    public void setSample( int x, int y, int b, int s ) {
+        write(x, y, s);
+    }
+
+    @Override
+    public void setSample( int x, int y, int b, float s ) {
+        write(x, y, s);
+    }
+
+    @Override
+    public void setSample( int x, int y, int b, double s ) {
+        write(x, y, s);
+    }
+
+    @Override
+    public void setPixel( int x, int y, int[] iArray ) {
+        write(x, y, iArray[0]);
+    }
+
+    @Override
+    public void setPixel( int x, int y, float[] fArray ) {
+        write(x, y, fArray[0]);
+    }
+
+    @Override
+    public void setPixel( int x, int y, double[] dArray ) {
+        write(x, y, dArray[0]);
+    }
+
+    /**
+     * Releases the iterator.
+     *
+     * <p>If no image of the data is around, the cache is cleared and the backing file
+     * is closed and deleted. Else the modified tiles are written back to the file and the
+     * file is kept until the last image is disposed.</p>
+     */
+    @Override
+    public void done() {
+        synchronized (locks) {
+            if (released) {
+                return;
+            }
+            released = true;
+        }
+        if (!release()) {
+            try {
+                // the images read back from disk from now on, free the heap
+                flush();
+                cache.clear();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Drop one owner of the backing file, deleting the file when no owner is left.
+     *
+     * @return <code>true</code> if the file has been deleted.
+     */
+    private boolean release() {
+        synchronized (locks) {
+            owners--;
+            if (owners > 0) {
+                return false;
+            }
+        }
+        // all the locks, taken in order, so that no tile io is running
+        for( ReentrantLock lock : locks ) {
+            lock.lock();
+        }
+        try {
+            cache.clear();
+            buffersPool.clear();
+            try {
+                if (channel != null) {
+                    channel.close();
+                    raf.close();
+                    channel = null;
+                    raf = null;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            file.delete();
+        } finally {
+            for( ReentrantLock lock : locks ) {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of columns.
+     */
+    public int getCols() {
+        return cols;
+    }
+
+    /**
+     * @return the number of rows.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.utils.geometry;
+
+import java.util.Arrays;
+
+/**
+ * A static 2D k-d tree of points kept in primitive arrays.
+ *
+ * <p>The tree is implicit: the points are reordered so that every range of the
+ * arrays has its median in the middle, alternating the x and y axis at every
+ * level. No node objects are created and the queries don't allocate, they
+ * write the ids of the found points in a {@link QueryBuffer} that can be
+ * reused by the caller.</p>
+ *
+ * <p>Queries only read the tree, so they can run concurrently, each thread
+ * with its own buffer.</p>
+ *
+ * <pre>
+ * PointsKdTree tree = new PointsKdTree(xs, ys);
+ * PointsKdTree.QueryBuffer buffer = new PointsKdTree.QueryBuffer();
+ * tree.query(minX, maxX, minY, maxY, buffer);
+ * for( int i = 0; i &lt; buffer.size(); i++ ) {
+ *     int id = buffer.get(i); // the index in the original arrays
+ * }
+ * </pre>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class PointsKdTree {
+    private static final int LEAF_SIZE = 8;
+
+    private final double[] xs;
+    private final double[] ys;
+    private final int[] ids;
+
+    /**
+     * Build the tree.
+     *
+     * @param xs the x coordinates of the points, not modified.
+     * @param ys the y coordinates of the points, not modified.
+     */
+    public PointsKdTree( double[] xs, double[] ys ) {
+        if (xs.length != ys.length) {
+            throw new IllegalArgumentException("The coordinate arrays need to have the same length.");
+        }
+        this.xs = xs.clone();
+        this.ys = ys.clone();
+        ids = new int[xs.length];
+        for( int i = 0; i < ids.length; i++ ) {
+            ids[i] = i;
+        }
+        build(0, ids.length, 0);
+    }
+
+    /**
+     * @return the number of points.
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    private void build( int from, int to, int depth ) {
+        while( to - from > LEAF_SIZE ) {
+            int mid = (from + to) >>> 1;
+            select(from, to - 1, mid, depth % 2 == 0 ? xs : ys);
+            build(from, mid, depth + 1);
+            // the right part in the loop, to limit the recursion
+            from = mid + 1;
+            depth++;
+        }
+    }
+
+    /**
+     * Partition the range so that the k-th element is in its sorted position.
+     */
+    private void select( int left, int right, int k, double[] values ) {
+        while( right > left ) {
+            double pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while( i <= j ) {
+                while( values[i] < pivot ) {
+                    i++;
+                }
+                while( values[j] > pivot ) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap( int i, int j ) {
+        double tmp = xs[i];
+        xs[i] = xs[j];
+        xs[j] = tmp;
+        tmp = ys[i];
+        ys[i] = ys[j];
+        ys[j] = tmp;
+        int tmpId = ids[i];
+        ids[i] = ids[j];
+        ids[j] = tmpId;
+    }
+
+    /**
+     * Find the points inside a rectangle (borders included).
+     *
+     * @param minX the min x.
+     * @param maxX the max x.
+     * @param minY the min y.
+     * @param maxY the max y.
+     * @param result the buffer to which the ids of the found points are added. It is cleared first.
+     * @return the number of points found.
+     */
+    public int query( double minX, double maxX, double minY, double maxY, QueryBuffer result ) {
+        result.clear();
+        query(0, ids.length, 0, minX, maxX, minY, maxY, 0, 0, -1, result);
+        return result.size();
+    }
+
+    /**
+     * Find the points inside a circle (border included).
+     *
+     * @param x the x of the center.
+     * @param y the y of the center.
+     * @param radius the radius.
+     * @param result the buffer to which the ids of the found points are added. It is cleared first.
+     * @return the number of points found.
+     */
+    public int queryRadius( double x, double y, double radius, QueryBuffer result ) {
+        result.clear();
+        query(0, ids.length, 0, x - radius, x + radius, y - radius, y + radius, x, y, radius * radius, result);
+        return result.size();
+    }
+
+    /**
+     * Traverse the tree collecting the points in the rectangle and, if the
+     * squared radius is not negative, also in the circle.
+     */
+    private void query( int from, int to, int depth, double minX, double maxX, double minY, double maxY, double cx, double cy,
+            double radius2, QueryBuffer result ) {
+        while( to - from > LEAF_SIZE ) {
+            int mid = (from + to) >>> 1;
+            check(mid, minX, maxX, minY, maxY, cx, cy, radius2, result);
+            boolean isX = depth % 2 == 0;
+            double split = isX ? xs[mid] : ys[mid];
+            double min = isX ? minX : minY;
+            double max = isX ? maxX : maxY;
+            boolean doLeft = min <= split;
+            boolean doRight = max >= split;
+            depth++;
+            if (doLeft && doRight) {
+                query(from, mid, depth, minX, maxX, minY, maxY, cx, cy, radius2, result);
+                from = mid + 1;
+            } else if (doLeft) {
+                to = mid;
+            } else if (doRight) {
+                from = mid + 1;
+            } else {
+                return;
+            }
+        }
+        for( int i = from; i < to; i++ ) {
+            check(i, minX, maxX, minY, maxY, cx, cy, radius2, result);
+        }
+    }
+
+    private void check( int i, double minX, double maxX, double minY, double maxY, double cx, double cy, double radius2,
+            QueryBuffer result ) {
+        double x = xs[i];
+        double y = ys[i];
+        if (x < minX || x > maxX || y < minY || y > maxY) {
+            return;
+        }
+        if (radius2 >= 0) {
+            double dx = x - cx;
+            double dy = y - cy;
+            if (dx * dx + dy * dy > radius2) {
+                return;
+            }
+        }
+        result.add(ids[i]);
+    }
+
+    /**
+     * A growing buffer of point ids, to be reused between queries.
+     */
+    public static class QueryBuffer {
+        private int[] ids = new int[64];
+        private int size = 0;
+
+        /**
+         * Remove all the ids.
+         */
+        public void clear() {
+            size = 0;
+        }
+
+        void add( int id ) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+            ids[size++] = id;
+        }
+
+        /**
+         * @return the number of ids.
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param index the position in the buffer.
+         * @return the id of the point, i.e. its index in the arrays used to build the tree.
+         */
+        public int get( int index ) {
+            return ids[index];
+        }
+    }
+
+}
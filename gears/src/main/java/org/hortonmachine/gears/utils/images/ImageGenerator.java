@@ -35,6 +35,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.stream.Stream;
 
 import javax.imageio.ImageIO;
@@ -46,7 +47,11 @@ import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridFormatFinder;
 import org.geotools.data.FileDataStore;
 import org.geotools.data.FileDataStoreFinder;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.collection.SpatialIndexFeatureCollection;
+import org.geotools.data.collection.SpatialIndexFeatureSource;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.filter.text.ecql.ECQL;
@@ -74,6 +79,10 @@ import org.hortonmachine.gears.utils.files.FileUtilities;
 import org.hortonmachine.gears.utils.geometry.GeometryUtilities;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
 import org.opengis.geometry.DirectPosition;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -90,6 +99,8 @@ import org.opengis.referencing.operation.TransformException;
  * imgGen.dumpPngImage(imagePath, bounds, 300, 300, 100);
  * </pre>
  * 
+ * <p>To draw from many threads, enable the {@link #setRendererPool(boolean) renderer pool}.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  * @since 0.7.3
  */
@@ -114,6 +125,18 @@ public class ImageGenerator {
 
     private StreamingRenderer renderer;
 
+    private boolean doRendererPool = false;
+    private final ConcurrentLinkedQueue<PooledRenderer> idleRenderers = new ConcurrentLinkedQueue<>();
+    private final List<PooledRenderer> pooledRenderers = new ArrayList<>();
+
+    // the vector layers as read from file, kept to be able to cache their features
+    private final List<SimpleFeatureSource> featureSources = new ArrayList<>();
+    private final List<Filter> featureSourceFilters = new ArrayList<>();
+    private final List<Style> featureStyles = new ArrayList<>();
+    private final List<Integer> featureLayerIndexes = new ArrayList<>();
+    private final List<Layer> sourceFeatureLayers = new ArrayList<>();
+    private boolean isFeatureCacheActive = false;
+
     private File shapesFile;
 
     private CoordinateReferenceSystem forceCrs;
@@ -125,6 +148,20 @@ public class ImageGenerator {
         sf = CommonFactoryFinder.getStyleFactory(null);
     }
 
+    /**
+     * Enable or disable the renderer pool.
+     * 
+     * <p>By default a single renderer is used by {@link #drawImage(ReferencedEnvelope, int, int, double)}, 
+     * which can therefore draw one image at a time. With the pool each drawing thread takes 
+     * its own {@link MapContent} and {@link StreamingRenderer} and gives them back when done.
+     * They all share the same layers, so the data sources and the styles are opened only once.</p>
+     * 
+     * @param doRendererPool if <code>true</code>, images are drawn concurrently.
+     */
+    public void setRendererPool( boolean doRendererPool ) {
+        this.doRendererPool = doRendererPool;
+    }
+
     /**
      * Add a new coverage file path.
      * 
@@ -349,10 +386,12 @@ public class ImageGenerator {
             FileDataStore store = FileDataStoreFinder.getDataStore(new File(featurePath));
             SimpleFeatureSource featureSource = store.getFeatureSource();
             SimpleFeatureCollection featureCollection;
+            Filter sourceFilter = null;
             if (filter.length() == 0) {
                 featureCollection = featureSource.getFeatures();
             } else {
-                featureCollection = featureSource.getFeatures(ECQL.toFilter(filter));
+                sourceFilter = ECQL.toFilter(filter);
+                featureCollection = featureSource.getFeatures(sourceFilter);
             }
             // if (crs == null) {
             // crs = featureSource.getSchema().getCoordinateReferenceSystem();
@@ -367,6 +406,11 @@ public class ImageGenerator {
             }
 
             FeatureLayer layer = new FeatureLayer(featureCollection, style);
+            featureSources.add(featureSource);
+            featureSourceFilters.add(sourceFilter);
+            featureStyles.add(style);
+            featureLayerIndexes.add(layers.size());
+            sourceFeatureLayers.add(layer);
             layers.add(layer);
 
             if (maxExtent == null) {
@@ -409,6 +453,161 @@ public class ImageGenerator {
         throw new IllegalArgumentException("Could not find layer " + layerName);
     }
 
+    /**
+     * Cache in memory the features of the vector layers that intersect the given bounds.
+     * 
+     * <p>The features are read once from their files and kept in a spatial index, so the 
+     * tiles, which mostly need the same features of their neighbours and of the other zoom 
+     * levels, don't read them again. A new call replaces the current cache, 
+     * {@link #clearFeatureCache()} goes back to reading from the files.</p>
+     * 
+     * <p>Layers with more features than the limit inside the bounds are not cached and are 
+     * still read from their files, to keep the used memory bounded.</p>
+     * 
+     * <p><b>This has to be called when no image is being drawn.</b></p>
+     * 
+     * @param cacheBounds the bounds of all the tiles that will be drawn.
+     * @param maxFeatures the max number of features to cache per layer.
+     * @return the number of cached layers.
+     * @throws Exception
+     */
+    public synchronized int cacheFeatures( ReferencedEnvelope cacheBounds, int maxFeatures ) throws Exception {
+        clearFeatureCache();
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+        int cachedCount = 0;
+        for( int i = 0; i < featureSources.size(); i++ ) {
+            SimpleFeatureSource featureSource = featureSources.get(i);
+            SimpleFeatureType schema = featureSource.getSchema();
+            ReferencedEnvelope bounds = cacheBounds;
+            CoordinateReferenceSystem featuresCrs = schema.getCoordinateReferenceSystem();
+            if (featuresCrs != null && cacheBounds.getCoordinateReferenceSystem() != null) {
+                bounds = cacheBounds.transform(featuresCrs, true);
+            }
+            Filter filter = ff.bbox(ff.property(schema.getGeometryDescriptor().getLocalName()), bounds.getMinX(),
+                    bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY(), null);
+            Filter sourceFilter = featureSourceFilters.get(i);
+            if (sourceFilter != null) {
+                filter = ff.and(sourceFilter, filter);
+            }
+
+            List<SimpleFeature> features = new ArrayList<>();
+            boolean isOverLimit = false;
+            try (SimpleFeatureIterator iterator = featureSource.getFeatures(filter).features()) {
+                while( iterator.hasNext() ) {
+                    if (features.size() >= maxFeatures) {
+                        isOverLimit = true;
+                        break;
+                    }
+                    features.add(iterator.next());
+                }
+            }
+            if (isOverLimit) {
+                monitor.message("Not caching the layer " + schema.getTypeName() + ", it has more than " + maxFeatures
+                        + " features in the area.");
+                continue;
+            }
+            SpatialIndexFeatureCollection cachedFeatures = new SpatialIndexFeatureCollection(
+                    new ListFeatureCollection(schema, features));
+            FeatureLayer cachedLayer = new FeatureLayer(new SpatialIndexFeatureSource(cachedFeatures), featureStyles.get(i));
+            layers.set(featureLayerIndexes.get(i), cachedLayer);
+            cachedCount++;
+        }
+        isFeatureCacheActive = cachedCount > 0;
+        resetRenderers();
+        return cachedCount;
+    }
+
+    /**
+     * Remove the features cached by {@link #cacheFeatures(ReferencedEnvelope, int)}.
+     * 
+     * <p><b>This has to be called when no image is being drawn.</b></p>
+     */
+    public synchronized void clearFeatureCache() {
+        if (!isFeatureCacheActive) {
+            return;
+        }
+        resetRenderers();
+        for( int i = 0; i < featureLayerIndexes.size(); i++ ) {
+            int index = featureLayerIndexes.get(i);
+            Layer sourceLayer = sourceFeatureLayers.get(i);
+            if (layers.get(index) != sourceLayer) {
+                layers.get(index).dispose();
+                layers.set(index, sourceLayer);
+            }
+        }
+        isFeatureCacheActive = false;
+    }
+
+    /**
+     * Drop the renderers, so that they are created again with the current layers.
+     */
+    private synchronized void resetRenderers() {
+        synchronized (pooledRenderers) {
+            for( PooledRenderer pooledRenderer : pooledRenderers ) {
+                releaseLayers(pooledRenderer.content);
+            }
+            pooledRenderers.clear();
+            idleRenderers.clear();
+        }
+        if (content != null) {
+            releaseLayers(content);
+            content = null;
+            renderer = null;
+        }
+    }
+
+    /**
+     * Dispose a map content without disposing the layers, which are shared.
+     */
+    private static void releaseLayers( MapContent mapContent ) {
+        for( Layer layer : new ArrayList<>(mapContent.layers()) ) {
+            mapContent.removeLayer(layer);
+        }
+        mapContent.dispose();
+    }
+
+    private PooledRenderer acquireRenderer() {
+        PooledRenderer pooledRenderer = idleRenderers.poll();
+        if (pooledRenderer == null) {
+            MapContent pooledContent = new MapContent();
+            pooledContent.setTitle("dump");
+            if (forceCrs != null) {
+                pooledContent.getViewport().setCoordinateReferenceSystem(forceCrs);
+            }
+            synchronized (synchronizedLayers) {
+                for( Layer layer : synchronizedLayers ) {
+                    pooledContent.addLayer(layer);
+                }
+            }
+            StreamingRenderer pooledStreamingRenderer = new StreamingRenderer();
+            pooledStreamingRenderer.setMapContent(pooledContent);
+            pooledRenderer = new PooledRenderer(pooledContent, pooledStreamingRenderer);
+            synchronized (pooledRenderers) {
+                pooledRenderers.add(pooledRenderer);
+            }
+        }
+        return pooledRenderer;
+    }
+
+    private void releaseRenderer( PooledRenderer pooledRenderer ) {
+        synchronized (pooledRenderers) {
+            // renderers of the layers before a reset are not reused
+            if (pooledRenderers.contains(pooledRenderer)) {
+                idleRenderers.offer(pooledRenderer);
+            }
+        }
+    }
+
+    private static class PooledRenderer {
+        final MapContent content;
+        final StreamingRenderer renderer;
+
+        PooledRenderer( MapContent content, StreamingRenderer renderer ) {
+            this.content = content;
+            this.renderer = renderer;
+        }
+    }
+
     private synchronized void checkMapContent() {
         if (content == null) {
             content = new MapContent();
@@ -433,7 +632,8 @@ public class ImageGenerator {
      * @return the image.
      */
     public BufferedImage drawImage( ReferencedEnvelope ref, int imageWidth, int imageHeight, double buffer ) {
-        checkMapContent();
+        if (!doRendererPool)
+            checkMapContent();
 
         if (buffer > 0.0)
             ref.expandBy(buffer, buffer);
@@ -451,15 +651,25 @@ public class ImageGenerator {
         g2d.fillRect(0, 0, imageWidth, imageHeight);
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-        synchronized (renderer) {
-            renderer.paint(g2d, imageBounds, newRef);
+        if (doRendererPool) {
+            PooledRenderer pooledRenderer = acquireRenderer();
+            try {
+                pooledRenderer.renderer.paint(g2d, imageBounds, newRef);
+            } finally {
+                releaseRenderer(pooledRenderer);
+            }
+        } else {
+            synchronized (renderer) {
+                renderer.paint(g2d, imageBounds, newRef);
+            }
         }
 
         return dumpImage;
     }
 
     public void drawImage( Graphics2D g2d, ReferencedEnvelope ref, int imageWidth, int imageHeight, double buffer ) {
-        checkMapContent();
+        if (!doRendererPool)
+            checkMapContent();
 
         if (buffer > 0.0)
             ref.expandBy(buffer, buffer);
@@ -477,15 +687,27 @@ public class ImageGenerator {
         g2d.fillRect(0, 0, imageWidth, imageHeight);
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-        synchronized (renderer) {
-            content.getViewport().setBounds(newRef);
-            renderer.paint(g2d, imageBounds, newRef);
+        if (doRendererPool) {
+            PooledRenderer pooledRenderer = acquireRenderer();
+            try {
+                pooledRenderer.content.getViewport().setBounds(newRef);
+                pooledRenderer.renderer.paint(g2d, imageBounds, newRef);
+            } finally {
+                releaseRenderer(pooledRenderer);
+            }
+        } else {
+            synchronized (renderer) {
+                content.getViewport().setBounds(newRef);
+                renderer.paint(g2d, imageBounds, newRef);
+            }
         }
     }
 
     /**
      * Draw the map on an image creating a new MapContent.
      * 
+     * <p>With the renderer pool enabled, a pooled MapContent is used instead.</p>
+     * 
      * @param bounds the area of interest.
      * @param imageWidth the width of the image to produce.
      * @param imageHeight the height of the image to produce.
@@ -493,22 +715,32 @@ public class ImageGenerator {
      * @return the image.
      */
     public BufferedImage drawImageWithNewMapContent( ReferencedEnvelope ref, int imageWidth, int imageHeight, double buffer ) {
-        MapContent content = new MapContent();
-        content.setTitle("dump");
+        PooledRenderer pooledRenderer = null;
+        StreamingRenderer renderer;
+        if (doRendererPool) {
+            pooledRenderer = acquireRenderer();
+            if (forceCrs != null) {
+                pooledRenderer.content.getViewport().setBounds(ref);
+            }
+            renderer = pooledRenderer.renderer;
+        } else {
+            MapContent content = new MapContent();
+            content.setTitle("dump");
 
-        if (forceCrs != null) {
-            content.getViewport().setCoordinateReferenceSystem(forceCrs);
-            content.getViewport().setBounds(ref);
-        }
+            if (forceCrs != null) {
+                content.getViewport().setCoordinateReferenceSystem(forceCrs);
+                content.getViewport().setBounds(ref);
+            }
 
-        synchronized (synchronizedLayers) {
-            for( Layer layer : synchronizedLayers ) {
-                content.addLayer(layer);
+            synchronized (synchronizedLayers) {
+                for( Layer layer : synchronizedLayers ) {
+                    content.addLayer(layer);
+                }
             }
-        }
 
-        StreamingRenderer renderer = new StreamingRenderer();
-        renderer.setMapContent(content);
+            renderer = new StreamingRenderer();
+            renderer.setMapContent(content);
+        }
 
         if (buffer > 0.0) {
             ref = new ReferencedEnvelope(ref);
@@ -533,12 +765,26 @@ public class ImageGenerator {
         Graphics2D g2d = dumpImage.createGraphics();
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-        renderer.paint(g2d, imageBounds, ref);
+        try {
+            renderer.paint(g2d, imageBounds, ref);
+        } finally {
+            if (pooledRenderer != null) {
+                releaseRenderer(pooledRenderer);
+            }
+        }
 
         return dumpImage;
     }
 
     public void dispose() {
+        clearFeatureCache();
+        synchronized (pooledRenderers) {
+            for( PooledRenderer pooledRenderer : pooledRenderers ) {
+                releaseLayers(pooledRenderer.content);
+            }
+            pooledRenderers.clear();
+            idleRenderers.clear();
+        }
         if (content != null)
             content.dispose();
     }
@@ -0,0 +1,208 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears;
+
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.WritableRandomIter;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.libs.modules.HMRaster;
+import org.hortonmachine.gears.utils.CrsUtilities;
+import org.hortonmachine.gears.utils.RegionMap;
+import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
+
+/**
+ * Speed benchmark of the cell access of {@link HMRaster}.
+ *
+ * <p>Not a unit test (it is not run by the build), launch it by hand:</p>
+ *
+ * <pre>
+ * java ... org.hortonmachine.gears.HMRasterBenchmark [cells per side] [repetitions]
+ * </pre>
+ *
+ * <p>A 3x3 mean filter is run on a random double grid in three ways: through the JAI
+ * iterators (the path HMRaster used before the array access), through the
+ * {@link HMRaster#getValue(int, int)} and {@link HMRaster#setValue(int, int, double)} cell methods,
+ * and on the backing arrays. The best time of the repetitions is printed with the speedup
+ * over the iterators and the sum of the output, which has to be the same for all the runs.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class HMRasterBenchmark {
+
+    private static final double NOVALUE_FRACTION = 0.05;
+    private static final double NV = HMConstants.doubleNovalue;
+
+    private interface Filter {
+        double run() throws Exception;
+    }
+
+    public static void main( String[] args ) throws Exception {
+        int side = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        GridCoverage2D inCoverage = createGrid(side);
+        System.out.println("Grid of " + side + "x" + side + " cells, " + (int) (NOVALUE_FRACTION * 100) + "% novalues");
+
+        HMRaster inRaster = HMRaster.fromGridCoverage(inCoverage);
+        HMRaster outRaster = new HMRaster.HMRasterWritableBuilder().setTemplate(inCoverage).build();
+        if (!inRaster.hasArrayAccess() || !outRaster.hasArrayAccess()) {
+            throw new IllegalStateException("The rasters don't have array access.");
+        }
+        RandomIter inIter = CoverageUtilities.getRandomIterator(inCoverage);
+        WritableRaster outWR = CoverageUtilities.createWritableRaster(side, side, null, null, NV);
+        WritableRandomIter outIter = CoverageUtilities.getWritableRandomIterator(outWR);
+
+        String[] names = {"iterator", "get/setValue", "array"};
+        Filter[] filters = {//
+                () -> filterIterator(inIter, outIter, side), //
+                () -> filterCells(inRaster, outRaster), //
+                () -> filterArrays(inRaster, outRaster)};
+
+        // warm up
+        for( Filter filter : filters ) {
+            filter.run();
+        }
+
+        System.out.println("access\tseconds\tspeedup\toutput sum");
+        double iteratorSeconds = -1;
+        for( int i = 0; i < filters.length; i++ ) {
+            double bestSeconds = Double.POSITIVE_INFINITY;
+            double sum = 0;
+            for( int r = 0; r < repetitions; r++ ) {
+                long start = System.nanoTime();
+                sum = filters[i].run();
+                bestSeconds = Math.min(bestSeconds, (System.nanoTime() - start) / 1E9);
+            }
+            if (iteratorSeconds < 0) {
+                iteratorSeconds = bestSeconds;
+            }
+            System.out.printf("%s\t%.3f\t%.2f\t%.6f%n", names[i], bestSeconds, iteratorSeconds / bestSeconds, sum);
+        }
+
+        inIter.done();
+        outIter.done();
+        inRaster.close();
+        outRaster.close();
+    }
+
+    private static double filterIterator( RandomIter inIter, WritableRandomIter outIter, int side ) {
+        double sum = 0;
+        for( int row = 0; row < side; row++ ) {
+            for( int col = 0; col < side; col++ ) {
+                double total = 0;
+                int count = 0;
+                for( int r = Math.max(0, row - 1); r <= Math.min(side - 1, row + 1); r++ ) {
+                    for( int c = Math.max(0, col - 1); c <= Math.min(side - 1, col + 1); c++ ) {
+                        double value = inIter.getSampleDouble(c, r, 0);
+                        if (!HMConstants.isNovalue(value, NV)) {
+                            total += value;
+                            count++;
+                        }
+                    }
+                }
+                double mean = count > 0 ? total / count : NV;
+                outIter.setSample(col, row, 0, mean);
+                if (count > 0) {
+                    sum += mean;
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static double filterCells( HMRaster inRaster, HMRaster outRaster ) throws Exception {
+        int cols = inRaster.getCols();
+        int rows = inRaster.getRows();
+        double sum = 0;
+        for( int row = 0; row < rows; row++ ) {
+            for( int col = 0; col < cols; col++ ) {
+                double total = 0;
+                int count = 0;
+                for( int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++ ) {
+                    for( int c = Math.max(0, col - 1); c <= Math.min(cols - 1, col + 1); c++ ) {
+                        double value = inRaster.getValue(c, r);
+                        if (!inRaster.isNovalue(value)) {
+                            total += value;
+                            count++;
+                        }
+                    }
+                }
+                double mean = count > 0 ? total / count : NV;
+                outRaster.setValue(col, row, mean);
+                if (count > 0) {
+                    sum += mean;
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static double filterArrays( HMRaster inRaster, HMRaster outRaster ) {
+        int cols = inRaster.getCols();
+        int rows = inRaster.getRows();
+        double[] inData = inRaster.getDoubleArray();
+        double[] outData = outRaster.getDoubleArray();
+        double sum = 0;
+        for( int row = 0; row < rows; row++ ) {
+            int outIndex = outRaster.getArrayIndex(0, row);
+            for( int col = 0; col < cols; col++ ) {
+                double total = 0;
+                int count = 0;
+                int minCol = Math.max(0, col - 1);
+                int maxCol = Math.min(cols - 1, col + 1);
+                for( int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++ ) {
+                    int index = inRaster.getArrayIndex(minCol, r);
+                    for( int c = minCol; c <= maxCol; c++, index++ ) {
+                        double value = inData[index];
+                        if (!HMConstants.isNovalue(value, NV)) {
+                            total += value;
+                            count++;
+                        }
+                    }
+                }
+                double mean = count > 0 ? total / count : NV;
+                outData[outIndex + col] = mean;
+                if (count > 0) {
+                    sum += mean;
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static GridCoverage2D createGrid( int side ) throws Exception {
+        Random random = new Random(42);
+        WritableRaster raster = CoverageUtilities.createWritableRaster(side, side, null, null, NV);
+        for( int r = 0; r < side; r++ ) {
+            for( int c = 0; c < side; c++ ) {
+                if (random.nextDouble() >= NOVALUE_FRACTION) {
+                    raster.setSample(c, r, 0, 1000 + 50 * Math.sin(c / 40.0) * Math.cos(r / 60.0) + random.nextDouble());
+                }
+            }
+        }
+        RegionMap region = CoverageUtilities.makeRegionParamsMap(5100000 + side, 5100000, 650000, 650000 + side, 1.0, 1.0,
+                side, side);
+        return CoverageUtilities.buildCoverage("random", raster, region, CrsUtilities.getCrsFromEpsg("EPSG:32632"));
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.hortonmachine.gears;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.hortonmachine.gears.libs.modules.multiprocessing.GridBlockTask;
+import org.hortonmachine.gears.utils.HMTestCase;
+
+/**
+ * Test {@link GridBlockTask}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestGridBlockTask extends HMTestCase {
+
+    public void testEveryCellVisitedOnce() throws Exception {
+        int[][] sizes = {{1, 1}, {1, 97}, {97, 1}, {13, 7}, {101, 67}, {257, 131}};
+        long[] blockSizes = {1, 3, 10, 4096};
+        for( int[] size : sizes ) {
+            int cols = size[0];
+            int rows = size[1];
+            for( long maxBlockCells : blockSizes ) {
+                for( boolean parallel : new boolean[]{false, true} ) {
+                    // a region that doesn't start at the origin
+                    int colStart = 3;
+                    int rowStart = 5;
+                    AtomicIntegerArray visits = new AtomicIntegerArray(cols * rows);
+                    GridBlockTask.processBlocks(parallel, colStart, rowStart, colStart + cols, rowStart + rows, maxBlockCells,
+                            null, ( c0, r0, c1, r1 ) -> {
+                                assertTrue(parallel || (long) (c1 - c0) * (r1 - r0) == (long) cols * rows);
+                                assertTrue(!parallel || (long) (c1 - c0) * (r1 - r0) <= maxBlockCells);
+                                for( int r = r0; r < r1; r++ ) {
+                                    for( int c = c0; c < c1; c++ ) {
+                                        visits.incrementAndGet((r - rowStart) * cols + c - colStart);
+                                    }
+                                }
+                            });
+                    for( int i = 0; i < visits.length(); i++ ) {
+                        assertEquals(cols + "x" + rows + " block " + maxBlockCells + " cell " + i, 1, visits.get(i));
+                    }
+                }
+            }
+        }
+
+        // the default block size
+        AtomicIntegerArray visits = new AtomicIntegerArray(301 * 211);
+        GridBlockTask.processBlocks(true, 0, 0, 301, 211, null, ( c0, r0, c1, r1 ) -> {
+            for( int r = r0; r < r1; r++ ) {
+                for( int c = c0; c < c1; c++ ) {
+                    visits.incrementAndGet(r * 301 + c);
+                }
+            }
+        });
+        for( int i = 0; i < visits.length(); i++ ) {
+            assertEquals(1, visits.get(i));
+        }
+    }
+
+    public void testExceptionPropagates() throws Exception {
+        Exception checked = new Exception("failing block");
+        try {
+            GridBlockTask.processBlocks(true, 0, 0, 100, 100, 10, null, ( c0, r0, c1, r1 ) -> {
+                if (c0 <= 50 && 50 < c1 && r0 <= 50 && 50 < r1) {
+                    throw checked;
+                }
+            });
+            fail("The block exception should propagate.");
+        } catch (Exception e) {
+            assertSame(checked, e);
+        }
+
+        IllegalStateException unchecked = new IllegalStateException("failing block");
+        try {
+            GridBlockTask.processBlocks(true, 0, 0, 100, 100, 10, null, ( c0, r0, c1, r1 ) -> {
+                if (c0 <= 50 && 50 < c1 && r0 <= 50 && 50 < r1) {
+                    throw unchecked;
+                }
+            });
+            fail("The block exception should propagate.");
+        } catch (IllegalStateException e) {
+            // the fork join pool may rethrow a copy that wraps the original
+            assertTrue(e == unchecked || e.getCause() == unchecked);
+        }
+
+        try {
+            GridBlockTask.processBlocks(false, 0, 0, 100, 100, 10, null, ( c0, r0, c1, r1 ) -> {
+                throw checked;
+            });
+            fail("The block exception should propagate.");
+        } catch (Exception e) {
+            assertSame(checked, e);
+        }
+    }
+}
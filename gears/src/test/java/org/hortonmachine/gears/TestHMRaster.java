@@ -1,5 +1,6 @@
 package org.hortonmachine.gears;
 
+import java.awt.image.RenderedImage;
 import java.util.List;
 
 import org.geotools.coverage.grid.GridCoverage2D;
@@ -201,4 +202,97 @@ public class TestHMRaster extends HMTestCase {
         checkMatrixEqual(workingRaster.buildCoverage().getRenderedImage(), expected, DELTA);
     }
 
+    public void testTiledStorage() throws Exception {
+        double[][] mapData = HMTestMaps.mapData;
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        RegionMap envelopeParams = HMTestMaps.getEnvelopeparams();
+
+        // tiny tiles and cache to force evictions and write back
+        try (HMRaster tiled = new HMRaster.HMRasterWritableBuilder().setRegion(envelopeParams).setCrs(crs).setDoTiled(true)
+                .setTileSize(3).setTileCacheSize(2).setData(mapData).build()) {
+            assertTrue(tiled.isTiled());
+            for( int r = 0; r < mapData.length; r++ ) {
+                for( int c = 0; c < mapData[0].length; c++ ) {
+                    assertEquals(mapData[r][c], tiled.getValue(c, r), DELTA);
+                }
+            }
+
+            tiled.processByRow(null, null, ( row, cols, rows ) -> {
+                for( int col = 0; col < cols; col++ ) {
+                    double value = tiled.getValue(col, row);
+                    if (!tiled.isNovalue(value)) {
+                        tiled.setValue(col, row, value + 1.0);
+                    }
+                }
+            }, true);
+
+            double[][] expected = new double[mapData.length][mapData[0].length];
+            for( int r = 0; r < mapData.length; r++ ) {
+                for( int c = 0; c < mapData[0].length; c++ ) {
+                    double value = mapData[r][c];
+                    expected[r][c] = HMConstants.isNovalue(value) ? value : value + 1.0;
+                }
+            }
+            // the coverage is a view on the tiles, not a copy
+            RenderedImage image = tiled.buildCoverage().getRenderedImage();
+            assertEquals(3, image.getTileWidth());
+            assertEquals(3, image.getTileHeight());
+            checkMatrixEqual(image, expected, DELTA);
+        }
+    }
+
+    public void testTiledCoverageAfterClose() throws Exception {
+        double[][] mapData = HMTestMaps.mapData;
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        RegionMap envelopeParams = HMTestMaps.getEnvelopeparams();
+
+        GridCoverage2D coverage;
+        try (HMRaster tiled = new HMRaster.HMRasterWritableBuilder().setRegion(envelopeParams).setCrs(crs).setDoTiled(true)
+                .setTileSize(3).setTileCacheSize(2).setData(mapData).build()) {
+            coverage = tiled.buildCoverage();
+        }
+        // the coverage owns a share of the storage, so it outlives the raster
+        checkMatrixEqual(coverage.getRenderedImage(), mapData, DELTA);
+        coverage.dispose(true);
+    }
+
+    public void testArrayAccess() throws Exception {
+        double[][] mapData = HMTestMaps.mapData;
+        int rows = mapData.length;
+        int cols = mapData[0].length;
+
+        try (HMRaster elev = HMRaster.fromGridCoverage(inElev)) {
+            assertTrue(elev.hasArrayAccess());
+            double[] data = elev.getDoubleArray();
+            double[] rowBuffer = new double[cols];
+            for( int r = 0; r < rows; r++ ) {
+                elev.readRow(r, rowBuffer);
+                for( int c = 0; c < cols; c++ ) {
+                    assertEquals(mapData[r][c], data[elev.getArrayIndex(c, r)], DELTA);
+                    assertEquals(mapData[r][c], rowBuffer[c], DELTA);
+                    assertEquals(mapData[r][c], elev.getValue(c, r), DELTA);
+                }
+            }
+        }
+
+        try (HMRaster intRaster = new HMRaster.HMRasterWritableBuilder().setTemplate(inElev).setDoInteger(true)
+                .setInitialValue(3).build()) {
+            assertNotNull(intRaster.getIntArray());
+            assertNull(intRaster.getDoubleArray());
+
+            double[] rowBuffer = intRaster.readRow(2, null);
+            for( int c = 0; c < cols; c++ ) {
+                assertEquals(3.0, rowBuffer[c], DELTA);
+                rowBuffer[c] = c + 0.4;
+            }
+            intRaster.writeRow(2, rowBuffer);
+            intRaster.setValue(1, 1, 7.0);
+            for( int c = 0; c < cols; c++ ) {
+                assertEquals(c, intRaster.getIntValue(c, 2));
+            }
+            assertEquals(7, intRaster.getIntValue(1, 1));
+            assertEquals(7, intRaster.buildCoverage().getRenderedImage().getData().getSample(1, 1, 0));
+        }
+    }
+
 }
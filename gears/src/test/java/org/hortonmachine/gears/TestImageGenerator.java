@@ -0,0 +1,197 @@
+package org.hortonmachine.gears;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.hortonmachine.gears.io.vectorwriter.OmsVectorWriter;
+import org.hortonmachine.gears.utils.HMTestCase;
+import org.hortonmachine.gears.utils.files.FileUtilities;
+import org.hortonmachine.gears.utils.geometry.GeometryUtilities;
+import org.hortonmachine.gears.utils.images.ImageGenerator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Test {@link ImageGenerator} with the renderer pool and the features cache.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestImageGenerator extends HMTestCase {
+
+    private static final int TILE_SIZE = 64;
+
+    private File polygonsFile;
+    private File linesFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        // features of a layer don't overlap, so the drawing order inside a layer doesn't matter
+        List<Geometry> polygons = new ArrayList<>();
+        List<Geometry> lines = new ArrayList<>();
+        for( int i = 0; i < 5; i++ ) {
+            for( int j = 0; j < 5; j++ ) {
+                double x = i * 2.0;
+                double y = j * 2.0;
+                polygons.add(GeometryUtilities.gf().createPolygon(new Coordinate[]{new Coordinate(x, y),
+                        new Coordinate(x + 1.2, y), new Coordinate(x + 1.2, y + 1.2), new Coordinate(x, y + 1.2),
+                        new Coordinate(x, y)}));
+            }
+            lines.add(GeometryUtilities.gf()
+                    .createLineString(new Coordinate[]{new Coordinate(i * 2.0 + 1.6, -0.5), new Coordinate(i * 2.0 + 1.6, 9.5)}));
+        }
+        polygonsFile = writeShapefile("testimggen_polygons", Polygon.class, polygons);
+        linesFile = writeShapefile("testimggen_lines", LineString.class, lines);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteShapefile(polygonsFile);
+        deleteShapefile(linesFile);
+    }
+
+    public void testPooledRenderingUnderConcurrency() throws Exception {
+        List<ReferencedEnvelope> tiles = getTiles();
+
+        ImageGenerator serialGenerator = getGenerator(false);
+        List<BufferedImage> expected = new ArrayList<>();
+        for( ReferencedEnvelope tile : tiles ) {
+            expected.add(serialGenerator.drawImage(new ReferencedEnvelope(tile), TILE_SIZE, TILE_SIZE, 0.0));
+        }
+        serialGenerator.dispose();
+
+        ImageGenerator pooledGenerator = getGenerator(true);
+        try {
+            assertImagesEqual(expected, drawConcurrently(pooledGenerator, tiles));
+        } finally {
+            pooledGenerator.dispose();
+        }
+    }
+
+    public void testCachedRenderingIsUnchanged() throws Exception {
+        List<ReferencedEnvelope> tiles = getTiles();
+
+        ImageGenerator generator = getGenerator(true);
+        try {
+            List<BufferedImage> uncached = drawConcurrently(generator, tiles);
+
+            ReferencedEnvelope cacheBounds = new ReferencedEnvelope(DefaultGeographicCRS.WGS84);
+            for( ReferencedEnvelope tile : tiles ) {
+                cacheBounds.expandToInclude(tile);
+            }
+
+            // over the limit nothing is cached
+            assertEquals(0, generator.cacheFeatures(cacheBounds, 0));
+            assertImagesEqual(uncached, drawConcurrently(generator, tiles));
+
+            assertEquals(2, generator.cacheFeatures(cacheBounds, Integer.MAX_VALUE));
+            assertImagesEqual(uncached, drawConcurrently(generator, tiles));
+
+            generator.clearFeatureCache();
+            assertImagesEqual(uncached, drawConcurrently(generator, tiles));
+        } finally {
+            generator.dispose();
+        }
+    }
+
+    private ImageGenerator getGenerator( boolean doPool ) throws Exception {
+        ImageGenerator generator = new ImageGenerator(pm, DefaultGeographicCRS.WGS84);
+        generator.setRendererPool(doPool);
+        generator.addFeaturePath(polygonsFile.getAbsolutePath(), null);
+        generator.addFeaturePath(linesFile.getAbsolutePath(), null);
+        generator.setLayers();
+        return generator;
+    }
+
+    private List<ReferencedEnvelope> getTiles() {
+        List<ReferencedEnvelope> tiles = new ArrayList<>();
+        for( int i = 0; i < 4; i++ ) {
+            for( int j = 0; j < 4; j++ ) {
+                double x = -0.5 + i * 2.5;
+                double y = -0.5 + j * 2.5;
+                tiles.add(new ReferencedEnvelope(x, x + 2.5, y, y + 2.5, DefaultGeographicCRS.WGS84));
+            }
+        }
+        return tiles;
+    }
+
+    private List<BufferedImage> drawConcurrently( ImageGenerator generator, List<ReferencedEnvelope> tiles )
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<BufferedImage>> futures = new ArrayList<>();
+            for( ReferencedEnvelope tile : tiles ) {
+                futures.add(executor.submit(() -> generator.drawImage(new ReferencedEnvelope(tile), TILE_SIZE, TILE_SIZE, 0.0)));
+            }
+            List<BufferedImage> images = new ArrayList<>();
+            for( Future<BufferedImage> future : futures ) {
+                images.add(future.get());
+            }
+            return images;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void assertImagesEqual( List<BufferedImage> expected, List<BufferedImage> images ) {
+        assertEquals(expected.size(), images.size());
+        boolean somethingDrawn = false;
+        for( int i = 0; i < expected.size(); i++ ) {
+            BufferedImage e = expected.get(i);
+            BufferedImage image = images.get(i);
+            int background = e.getRGB(0, 0);
+            for( int y = 0; y < TILE_SIZE; y++ ) {
+                for( int x = 0; x < TILE_SIZE; x++ ) {
+                    int rgb = e.getRGB(x, y);
+                    assertEquals("tile " + i + " at " + x + "/" + y, rgb, image.getRGB(x, y));
+                    if (rgb != background) {
+                        somethingDrawn = true;
+                    }
+                }
+            }
+        }
+        assertTrue(somethingDrawn);
+    }
+
+    private File writeShapefile( String name, Class< ? extends Geometry> geometryClass, List<Geometry> geometries )
+            throws Exception {
+        SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
+        b.setName(name);
+        b.setCRS(DefaultGeographicCRS.WGS84);
+        b.add("the_geom", geometryClass);
+        b.add("id", Integer.class);
+        SimpleFeatureType type = b.buildFeatureType();
+
+        DefaultFeatureCollection collection = new DefaultFeatureCollection();
+        for( int i = 0; i < geometries.size(); i++ ) {
+            SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+            builder.addAll(new Object[]{geometries.get(i), i});
+            collection.add(builder.buildFeature(name + "." + i));
+        }
+
+        File tmpShape = File.createTempFile(name, ".shp");
+        tmpShape.delete();
+        OmsVectorWriter.writeVector(tmpShape.getAbsolutePath(), collection);
+        return tmpShape;
+    }
+
+    private void deleteShapefile( File shapeFile ) {
+        if (shapeFile == null)
+            return;
+        for( String ext : new String[]{"shp", "shx", "dbf", "prj", "fix", "qix"} ) {
+            FileUtilities.substituteExtention(shapeFile, ext).delete();
+        }
+    }
+}
@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.hortonmachine.gears.modules.r.interpolation2d.core.TPSBlockInterpolator;
+import org.hortonmachine.gears.modules.r.interpolation2d.core.TPSInterpolator;
 import org.hortonmachine.gears.utils.HMTestCase;
 import org.hortonmachine.gears.utils.geometry.GeometryUtilities;
 import org.hortonmachine.gears.utils.math.interpolation.Interpolator;
@@ -170,4 +172,35 @@ public class TestInterpolators extends HMTestCase {
         assertEquals(0.31888318, interp.getA0(), 0.0001);
     }
 
+    public void testTPSBlockInterpolator() throws Exception {
+        List<Coordinate> controlPoints = new ArrayList<Coordinate>();
+        for( int i = 0; i < 30; i++ ) {
+            double x = (i * 7) % 11 + 0.3 * i;
+            double y = (i * 5) % 13 + 0.1 * i;
+            controlPoints.add(new Coordinate(x, y, 100 + Math.sin(i) * 5));
+        }
+
+        TPSBlockInterpolator blockInterpolator = new TPSBlockInterpolator();
+        assertTrue(blockInterpolator.setControlPoints(controlPoints));
+        // the spline passes through the control points
+        for( Coordinate c : controlPoints ) {
+            assertEquals(c.z, blockInterpolator.getValue(c.x, c.y), 0.000001);
+        }
+
+        // same result as the cell by cell interpolator
+        TPSInterpolator interpolator = new TPSInterpolator();
+        double[][] positions = {{3.3, 4.4}, {7.1, 2.0}, {10.5, 11.2}};
+        for( double[] position : positions ) {
+            double expected = interpolator.getValue(controlPoints, new Coordinate(position[0], position[1]));
+            assertEquals(expected, blockInterpolator.getValue(position[0], position[1]), 0.000001);
+        }
+
+        // the same points in a different order reuse the solved system
+        List<Coordinate> shuffled = new ArrayList<Coordinate>(controlPoints);
+        Collections.reverse(shuffled);
+        assertTrue(blockInterpolator.setControlPoints(shuffled));
+        assertEquals(1, blockInterpolator.getSolvedCount());
+        assertEquals(1, blockInterpolator.getReusedCount());
+    }
+
 }
@@ -1,11 +1,14 @@
 package org.hortonmachine.gears;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.hortonmachine.gears.io.las.core.LasRecord;
 import org.hortonmachine.gears.io.las.utils.EGpsWeekDays;
 import org.hortonmachine.gears.io.las.utils.GpsTimeConverter;
+import org.hortonmachine.gears.io.las.utils.LasCellBins;
 import org.hortonmachine.gears.io.las.utils.LasUtils;
 import org.hortonmachine.gears.io.las.utils.LasUtils.VALUETYPE;
 import org.hortonmachine.gears.libs.modules.HMConstants;
@@ -146,4 +149,63 @@ public class TestLasUtilities extends HMTestCase {
         assertEquals(131.8103148957786, lastVisiblePointData[9], DELTA);
     }
 
+    public void testCellBins() throws Exception {
+        Random random = new Random(3);
+        List<LasRecord> points = new ArrayList<>();
+        for( int i = 0; i < 2000; i++ ) {
+            LasRecord dot = new LasRecord();
+            // some outside of the grid and some on the borders
+            dot.x = random.nextInt(120) / 10.0 - 1;
+            dot.y = random.nextInt(120) / 10.0 - 1;
+            dot.z = i;
+            dot.intensity = (short) (i % 3);
+            points.add(dot);
+        }
+        // grid of 10x10 meters from 0,0 to 10,10
+        LasCellBins bins = new LasCellBins(0, 10, 1, 1, 10, 10);
+        for( int round = 0; round < 2; round++ ) {
+            // intensity 0 is considered novalue
+            int binned = bins.bin(points, dot -> dot.intensity == 0 ? Double.NaN : dot.z);
+
+            int expectedBinned = 0;
+            for( int r = 0; r < 10; r++ ) {
+                for( int c = 0; c < 10; c++ ) {
+                    List<Double> expected = new ArrayList<>();
+                    for( LasRecord dot : points ) {
+                        int col = Math.min((int) dot.x, 9);
+                        int row = Math.min((int) (10 - dot.y), 9);
+                        if (dot.x >= 0 && dot.x <= 10 && dot.y >= 0 && dot.y <= 10 && col == c && row == r
+                                && dot.intensity != 0) {
+                            expected.add(dot.z);
+                        }
+                    }
+                    expectedBinned += expected.size();
+
+                    List<Double> cellValues = new ArrayList<>();
+                    for( int index = bins.getCellStart(c, r); index < bins.getCellEnd(c, r); index++ ) {
+                        cellValues.add(bins.getValue(index));
+                        LasRecord dot = points.get(bins.getId(index));
+                        assertEquals(dot.x, bins.getX(index), DELTA);
+                        assertEquals(dot.y, bins.getY(index), DELTA);
+                    }
+                    assertEquals(expected.size(), bins.getCellCount(c, r));
+                    // the points keep their order in the cells
+                    assertEquals(expected, cellValues);
+                }
+            }
+            assertEquals(expectedBinned, binned);
+            assertEquals(binned, bins.getPointsNum());
+
+            // bin again a part of the points in the same bins
+            points = points.subList(0, 1000);
+        }
+
+        assertEquals(-1, bins.getCell(-0.1, 5));
+        assertEquals(-1, bins.getCell(5, 10.1));
+        assertEquals(9, bins.getCell(10, 10));
+        assertEquals(90, bins.getCell(0, 0));
+        assertEquals(0.5, bins.getCenterX(0), DELTA);
+        assertEquals(9.5, bins.getCenterY(0), DELTA);
+    }
+
 }
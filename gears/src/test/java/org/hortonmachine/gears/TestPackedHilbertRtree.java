@@ -0,0 +1,185 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.hortonmachine.gears.io.las.index.OmsLasIndexReader;
+import org.hortonmachine.gears.io.las.index.PackedHilbertRtree;
+import org.hortonmachine.gears.io.las.index.strtree.STRtreeJGT;
+import org.hortonmachine.gears.utils.HMTestCase;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Test {@link PackedHilbertRtree}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestPackedHilbertRtree extends HMTestCase {
+
+    private static final int COUNT = 1000;
+
+    private Envelope[] bounds;
+    private double[][] values;
+    private String[] names;
+
+    protected void setUp() throws Exception {
+        Random random = new Random(11);
+        bounds = new Envelope[COUNT];
+        values = new double[COUNT][];
+        names = new String[COUNT];
+        for( int i = 0; i < COUNT; i++ ) {
+            double x = random.nextDouble() * 1000;
+            double y = random.nextDouble() * 1000;
+            // some degenerate envelopes too, as single point tiles
+            double w = i % 10 == 0 ? 0 : random.nextDouble() * 30;
+            double h = i % 10 == 0 ? 0 : random.nextDouble() * 30;
+            bounds[i] = new Envelope(x, x + w, y, y + h);
+            values[i] = new double[]{i, random.nextInt(1000), random.nextDouble()};
+            names[i] = "tile_" + i + ".las";
+        }
+    }
+
+    public void testQueriesAgainstBruteForce() throws Exception {
+        for( int nodeSize : new int[]{2, 5, PackedHilbertRtree.DEFAULT_NODE_SIZE} ) {
+            PackedHilbertRtree tree = PackedHilbertRtree.build(bounds, values, null, nodeSize);
+            assertEquals(COUNT, tree.size());
+            assertEquals(3, tree.getValuesSize());
+            checkQueries(tree, new Random(5));
+        }
+    }
+
+    public void testWriteReadRoundTrip() throws Exception {
+        PackedHilbertRtree tree = PackedHilbertRtree.build(bounds, values, names, 8);
+
+        File file = File.createTempFile("hm-", ".lasfolder");
+        file.deleteOnExit();
+        tree.write(file);
+        assertTrue(PackedHilbertRtree.isPacked(file));
+
+        PackedHilbertRtree readTree = PackedHilbertRtree.open(file);
+        assertEquals(tree.size(), readTree.size());
+        assertEquals(tree.getValuesSize(), readTree.getValuesSize());
+        assertEquals(tree.getBounds(), readTree.getBounds());
+        for( int item = 0; item < tree.size(); item++ ) {
+            assertEquals(tree.getBounds(item), readTree.getBounds(item));
+            assertEquals(tree.getName(item), readTree.getName(item));
+            double[] itemValues = readTree.getValues(item);
+            int index = (int) itemValues[0];
+            assertEquals(names[index], readTree.getName(item));
+            assertEquals(bounds[index], readTree.getBounds(item));
+            for( int k = 0; k < itemValues.length; k++ ) {
+                assertEquals(values[index][k], itemValues[k], DELTA);
+            }
+        }
+        checkQueries(readTree, new Random(6));
+
+        // names are what the query returns when present
+        Envelope searchEnv = new Envelope(400, 600, 400, 600);
+        TreeSet<String> expected = new TreeSet<>();
+        for( int i = 0; i < COUNT; i++ ) {
+            if (bounds[i].intersects(searchEnv)) {
+                expected.add(names[i]);
+            }
+        }
+        TreeSet<String> found = new TreeSet<>();
+        for( Object name : readTree.query(searchEnv) ) {
+            found.add((String) name);
+        }
+        assertEquals(expected, found);
+    }
+
+    public void testLegacyConversion() throws Exception {
+        // tiles index, as written by the legacy indexer
+        STRtreeJGT valuesTree = new STRtreeJGT();
+        for( int i = 0; i < COUNT; i++ ) {
+            valuesTree.insert(bounds[i], values[i]);
+        }
+        File valuesFile = serialize(valuesTree);
+        assertFalse(PackedHilbertRtree.isPacked(valuesFile));
+        PackedHilbertRtree packedValues = OmsLasIndexReader.openIndex(valuesFile.getAbsolutePath());
+        assertEquals(COUNT, packedValues.size());
+        checkQueries(packedValues, new Random(7));
+
+        // folder index, with file names as items
+        STRtreeJGT namesTree = new STRtreeJGT();
+        for( int i = 0; i < COUNT; i++ ) {
+            namesTree.insert(bounds[i], names[i]);
+        }
+        File namesFile = serialize(namesTree);
+        STRtreeJGT legacyTree = OmsLasIndexReader.readIndex(namesFile.getAbsolutePath());
+        PackedHilbertRtree packedNames = OmsLasIndexReader.openIndex(namesFile.getAbsolutePath());
+        assertEquals(COUNT, packedNames.size());
+        Random random = new Random(8);
+        for( int q = 0; q < 100; q++ ) {
+            Envelope searchEnv = randomEnvelope(random);
+            TreeSet<Object> expected = new TreeSet<>(legacyTree.query(searchEnv));
+            TreeSet<Object> found = new TreeSet<>(packedNames.query(searchEnv));
+            assertEquals(expected, found);
+        }
+    }
+
+    public void testEmptyTree() throws Exception {
+        PackedHilbertRtree tree = PackedHilbertRtree.build(new Envelope[0], null, null, 4);
+        assertEquals(0, tree.size());
+        assertNull(tree.getBounds());
+        assertEquals(0, tree.queryItems(new Envelope(0, 10, 0, 10)).length);
+    }
+
+    private void checkQueries( PackedHilbertRtree tree, Random random ) {
+        for( int q = 0; q < 100; q++ ) {
+            Envelope searchEnv = randomEnvelope(random);
+            TreeSet<Integer> expected = new TreeSet<>();
+            for( int i = 0; i < COUNT; i++ ) {
+                if (bounds[i].intersects(searchEnv)) {
+                    expected.add(i);
+                }
+            }
+            TreeSet<Integer> found = new TreeSet<>();
+            for( int item : tree.queryItems(searchEnv) ) {
+                assertTrue(found.add((int) tree.getValue(item, 0)));
+            }
+            assertEquals(expected, found);
+
+            List<Object> result = tree.query(searchEnv);
+            assertEquals(expected.size(), result.size());
+        }
+    }
+
+    private Envelope randomEnvelope( Random random ) {
+        double x = random.nextDouble() * 1100 - 50;
+        double y = random.nextDouble() * 1100 - 50;
+        double d = random.nextDouble() * 200;
+        return new Envelope(x, x + d, y, y + d);
+    }
+
+    private File serialize( STRtreeJGT tree ) throws Exception {
+        File file = File.createTempFile("hm-", ".lasfolder");
+        file.deleteOnExit();
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
+            out.writeObject(tree);
+        }
+        return file;
+    }
+
+}
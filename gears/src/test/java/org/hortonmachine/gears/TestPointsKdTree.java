@@ -0,0 +1,82 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.hortonmachine.gears.utils.HMTestCase;
+import org.hortonmachine.gears.utils.geometry.PointsKdTree;
+
+/**
+ * Test {@link PointsKdTree}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestPointsKdTree extends HMTestCase {
+
+    public void testQueriesAgainstBruteForce() throws Exception {
+        Random random = new Random(3);
+        int n = 5000;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for( int i = 0; i < n; i++ ) {
+            // on a coarse grid, to have many duplicated coordinates
+            xs[i] = random.nextInt(1000) / 10.0;
+            ys[i] = random.nextInt(1000) / 10.0;
+        }
+        PointsKdTree tree = new PointsKdTree(xs, ys);
+        assertEquals(n, tree.size());
+
+        PointsKdTree.QueryBuffer buffer = new PointsKdTree.QueryBuffer();
+        for( int q = 0; q < 100; q++ ) {
+            double x = random.nextDouble() * 100;
+            double y = random.nextDouble() * 100;
+            double d = random.nextDouble() * 20;
+
+            tree.query(x, x + d, y, y + d, buffer);
+            TreeSet<Integer> expected = new TreeSet<>();
+            for( int i = 0; i < n; i++ ) {
+                if (xs[i] >= x && xs[i] <= x + d && ys[i] >= y && ys[i] <= y + d) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(expected, toSet(buffer));
+
+            tree.queryRadius(x, y, d, buffer);
+            expected.clear();
+            for( int i = 0; i < n; i++ ) {
+                double dx = xs[i] - x;
+                double dy = ys[i] - y;
+                if (dx * dx + dy * dy <= d * d) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(expected, toSet(buffer));
+        }
+    }
+
+    private TreeSet<Integer> toSet( PointsKdTree.QueryBuffer buffer ) {
+        TreeSet<Integer> set = new TreeSet<>();
+        for( int i = 0; i < buffer.size(); i++ ) {
+            assertTrue(set.add(buffer.get(i)));
+        }
+        return set;
+    }
+
+}
@@ -17,12 +17,14 @@
  */
 package org.hortonmachine.gears;
 
+import java.awt.image.RenderedImage;
 import java.io.File;
 import java.net.URISyntaxException;
 import java.net.URL;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.hortonmachine.gears.io.rasterreader.OmsRasterReader;
+import org.hortonmachine.gears.io.rasterreader.RasterTileCache;
 import org.hortonmachine.gears.utils.CrsUtilities;
 import org.hortonmachine.gears.utils.HMTestCase;
 import org.hortonmachine.gears.utils.RegionMap;
@@ -102,4 +104,78 @@ public class TestRasterFormats extends HMTestCase {
 
     }
 
+    public void testTiffBlocks() throws Exception {
+        File file = getFile("formats/tiff/test.tif");
+        GridCoverage2D raster = OmsRasterReader.readRaster(file.getAbsolutePath());
+        RegionMap regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(raster);
+
+        RasterTileCache cache = RasterTileCache.getInstance();
+        cache.clear();
+        GridCoverage2D blocksRaster = OmsRasterReader.readRaster(file.getAbsolutePath(), regionMap);
+        long misses = cache.getMisses();
+        assertTrue(misses > 0);
+        assertEquals(0, cache.getHits());
+
+        RegionMap blocksRegionMap = CoverageUtilities.getRegionParamsFromGridCoverage(blocksRaster);
+        assertEquals(regionMap.getCols(), blocksRegionMap.getCols());
+        assertEquals(regionMap.getRows(), blocksRegionMap.getRows());
+        assertEquals(regionMap.getWest(), blocksRegionMap.getWest(), DELTA);
+        assertEquals(regionMap.getSouth(), blocksRegionMap.getSouth(), DELTA);
+
+        RenderedImage image = raster.getRenderedImage();
+        RenderedImage blocksImage = blocksRaster.getRenderedImage();
+        for( int r = 0; r < regionMap.getRows(); r++ ) {
+            for( int c = 0; c < regionMap.getCols(); c++ ) {
+                assertEquals(image.getData().getSampleDouble(c, r, 0), blocksImage.getData().getSampleDouble(c, r, 0), DELTA);
+            }
+        }
+
+        // the second read only uses the cache
+        OmsRasterReader.readRaster(file.getAbsolutePath(), regionMap);
+        assertEquals(misses, cache.getMisses());
+        assertEquals(misses, cache.getHits());
+
+        // shrinking the cache evicts the blocks
+        long size = cache.getSizeBytes();
+        cache.setMaxBytes(size / 2);
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getSizeBytes() <= size / 2);
+        cache.setMaxBytes(RasterTileCache.DEFAULT_MAX_BYTES);
+        cache.clear();
+    }
+
+    public void testTiffOverviewLevel() throws Exception {
+        // test.tif has internal overviews of 15x13, 8x7, 4x4, 2x2 and 1x1 cells
+        File file = getFile("formats/tiff/test.tif");
+        GridCoverage2D raster = OmsRasterReader.readRaster(file.getAbsolutePath());
+        RegionMap regionMap = CoverageUtilities.getRegionParamsFromGridCoverage(raster);
+        double n = regionMap.getNorth();
+        double s = regionMap.getSouth();
+        double w = regionMap.getWest();
+        double e = regionMap.getEast();
+
+        RasterTileCache cache = RasterTileCache.getInstance();
+        int[][] levelsGrids = {{15, 13}, {8, 7}, {1, 1}};
+        int[] expectedLevels = {1, 2, 5};
+        for( int i = 0; i < expectedLevels.length; i++ ) {
+            int cols = levelsGrids[i][0];
+            int rows = levelsGrids[i][1];
+            RegionMap coarseRegion = CoverageUtilities.makeRegionParamsMap(n, s, w, e, (e - w) / cols, (n - s) / rows, cols,
+                    rows);
+
+            cache.clear();
+            GridCoverage2D coarseRaster = OmsRasterReader.readRaster(file.getAbsolutePath(), coarseRegion);
+            RegionMap coarseRegionMap = CoverageUtilities.getRegionParamsFromGridCoverage(coarseRaster);
+            assertEquals(cols, coarseRegionMap.getCols());
+            assertEquals(rows, coarseRegionMap.getRows());
+
+            // only the blocks of the expected overview level have been decoded
+            int level = expectedLevels[i];
+            assertEquals(1, cache.getTilesCount());
+            assertNotNull(cache.get(RasterTileCache.getKey(file, level, 0, 0)));
+            assertNull(cache.get(RasterTileCache.getKey(file, 0, 0, 0)));
+        }
+        cache.clear();
+    }
+
 }
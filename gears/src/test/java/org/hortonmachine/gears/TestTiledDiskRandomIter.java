@@ -0,0 +1,69 @@
+package org.hortonmachine.gears;
+
+import java.awt.image.Raster;
+import java.io.File;
+import java.util.stream.IntStream;
+
+import javax.media.jai.PlanarImage;
+
+import org.hortonmachine.gears.utils.HMTestCase;
+import org.hortonmachine.gears.utils.coverage.TiledDiskRandomIter;
+/**
+ * Test {@link TiledDiskRandomIter}.
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestTiledDiskRandomIter extends HMTestCase {
+
+    private static final int COLS = 11;
+    private static final int ROWS = 7;
+
+    public void testParallelWritesWithEvictions() throws Exception {
+        // non divisible sizes and a tiny cache, to force evictions from all the threads
+        TiledDiskRandomIter iter = new TiledDiskRandomIter(COLS, ROWS, Double.class, -1.0, 3, 2, null);
+        try {
+            IntStream.range(0, ROWS).parallel().forEach(row -> {
+                for( int col = 0; col < COLS; col++ ) {
+                    iter.setSample(col, row, 0, value(col, row));
+                }
+            });
+            IntStream.range(0, ROWS).parallel().forEach(row -> {
+                for( int col = 0; col < COLS; col++ ) {
+                    assertEquals(value(col, row), iter.getSampleDouble(col, row, 0), DELTA);
+                }
+            });
+        } finally {
+            iter.done();
+        }
+        assertFalse(iter.getFile().exists());
+    }
+
+    public void testImageOwnsTheFile() throws Exception {
+        TiledDiskRandomIter iter = new TiledDiskRandomIter(COLS, ROWS, Float.class, 0.0, 3, 2, null);
+        for( int row = 0; row < ROWS; row++ ) {
+            for( int col = 0; col < COLS; col++ ) {
+                iter.setSample(col, row, 0, value(col, row));
+            }
+        }
+        PlanarImage image = iter.getRenderedImage();
+        assertEquals(3, image.getTileWidth());
+
+        iter.done();
+        // the image still needs the data
+        assertTrue(iter.getFile().exists());
+        Raster data = image.getData();
+        for( int row = 0; row < ROWS; row++ ) {
+            for( int col = 0; col < COLS; col++ ) {
+                assertEquals(value(col, row), data.getSampleDouble(col, row, 0), DELTA);
+            }
+        }
+
+        image.dispose();
+        assertFalse(iter.getFile().exists());
+    }
+
+    private static double value( int col, int row ) {
+        return row * 100.0 + col + 0.5;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears;
+
+import java.awt.image.BufferedImage;
+
+import org.hortonmachine.gears.libs.modules.Variables;
+import org.hortonmachine.gears.modules.r.tmsgenerator.TilesDownsampler;
+import org.hortonmachine.gears.utils.HMTestCase;
+
+/**
+ * Test {@link TilesDownsampler}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestTilesDownsampler extends HMTestCase {
+
+    private static final int SIZE = 4;
+    private static final int RED = 0xFFFF0000;
+    private static final int BLUE = 0xFF0000FF;
+
+    public void testQuadrantsAndModes() throws Exception {
+        // upper left child: a 2x2 block of 3 red and 1 blue pixels, the rest blue
+        BufferedImage upperLeft = createTile(BLUE);
+        upperLeft.setRGB(0, 0, RED);
+        upperLeft.setRGB(1, 0, RED);
+        upperLeft.setRGB(0, 1, RED);
+        BufferedImage lowerRight = createTile(RED);
+        BufferedImage[] children = {upperLeft, null, null, lowerRight};
+
+        BufferedImage nearest = new TilesDownsampler(Variables.PYRAMID_NEAREST).downsample(children, SIZE);
+        assertEquals(RED, nearest.getRGB(0, 0));
+        assertEquals(BLUE, nearest.getRGB(1, 0));
+        assertEquals(RED, nearest.getRGB(3, 3));
+        // missing children are transparent
+        assertEquals(0, nearest.getRGB(3, 0));
+        assertEquals(0, nearest.getRGB(0, 3));
+
+        BufferedImage mode = new TilesDownsampler(Variables.PYRAMID_MODE).downsample(children, SIZE);
+        assertEquals(RED, mode.getRGB(0, 0));
+
+        BufferedImage mean = new TilesDownsampler(Variables.PYRAMID_MEAN).downsample(children, SIZE);
+        int pixel = mean.getRGB(0, 0);
+        assertEquals(0xFF, pixel >>> 24);
+        assertEquals(191, pixel >> 16 & 0xFF);
+        assertEquals(64, pixel & 0xFF);
+    }
+
+    public void testMeanIgnoresTransparentColors() throws Exception {
+        BufferedImage child = createTile(0x00000000);
+        child.setRGB(0, 0, RED);
+        BufferedImage parent = new TilesDownsampler(Variables.PYRAMID_MEAN).downsample(new BufferedImage[]{child, null, null, null},
+                SIZE);
+        int pixel = parent.getRGB(0, 0);
+        // a quarter of the alpha, but still fully red
+        assertEquals(64, pixel >>> 24);
+        assertEquals(0xFF, pixel >> 16 & 0xFF);
+        assertEquals(0, pixel & 0xFF);
+    }
+
+    public void testNoChildren() throws Exception {
+        assertNull(new TilesDownsampler(Variables.PYRAMID_MEAN).downsample(new BufferedImage[4], SIZE));
+    }
+
+    private BufferedImage createTile( int argb ) {
+        BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+        for( int y = 0; y < SIZE; y++ ) {
+            for( int x = 0; x < SIZE; x++ ) {
+                image.setRGB(x, y, argb);
+            }
+        }
+        return image;
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.modules;
+
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.libs.modules.Variables;
+import org.hortonmachine.gears.libs.monitor.DummyProgressMonitor;
+import org.hortonmachine.gears.modules.r.interpolation2d.OmsSurfaceInterpolator;
+import org.hortonmachine.gears.utils.CrsUtilities;
+import org.hortonmachine.gears.utils.RegionMap;
+import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
+
+/**
+ * Thread scaling benchmark of the {@link OmsSurfaceInterpolator}.
+ *
+ * <p>Not a unit test (it is not run by the build), launch it by hand:</p>
+ *
+ * <pre>
+ * java ... org.hortonmachine.gears.modules.SurfaceInterpolatorBenchmark [cells per side] [max threads]
+ * </pre>
+ *
+ * <p>A grid with values in a fraction of the cells is filled by interpolation,
+ * with 1, 2, 4 ... up to the max threads, printing time and speedup.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SurfaceInterpolatorBenchmark {
+
+    private static final double VALUED_CELLS_FRACTION = 0.05;
+
+    public static void main( String[] args ) throws Exception {
+        int side = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+        GridCoverage2D inGrid = createSparseGrid(side);
+        System.out.println("Grid of " + side + "x" + side + " cells, " + (int) (VALUED_CELLS_FRACTION * 100) + "% with values");
+
+        for( String mode : new String[]{Variables.IDW, Variables.TPS_BLOCKS} ) {
+            // warm up
+            run(inGrid, mode, 1);
+
+            System.out.println(mode);
+            System.out.println("threads\tseconds\tspeedup");
+            double singleSeconds = -1;
+            for( int threads = 1; threads <= maxThreads; threads *= 2 ) {
+                double seconds = run(inGrid, mode, threads);
+                if (singleSeconds < 0) {
+                    singleSeconds = seconds;
+                }
+                System.out.printf("%d\t%.2f\t%.2f%n", threads, seconds, singleSeconds / seconds);
+            }
+        }
+    }
+
+    private static double run( GridCoverage2D inGrid, String mode, int threads ) throws Exception {
+        OmsSurfaceInterpolator interpolator = new OmsSurfaceInterpolator();
+        interpolator.inGrid = inGrid;
+        interpolator.pMode = mode;
+        interpolator.pBuffer = 4.0;
+        interpolator.pMaxThreads = threads;
+        interpolator.pm = new DummyProgressMonitor();
+        long start = System.nanoTime();
+        interpolator.process();
+        return (System.nanoTime() - start) / 1E9;
+    }
+
+    private static GridCoverage2D createSparseGrid( int side ) throws Exception {
+        Random random = new Random(42);
+        WritableRaster raster = CoverageUtilities.createWritableRaster(side, side, null, null, HMConstants.doubleNovalue);
+        for( int r = 0; r < side; r++ ) {
+            for( int c = 0; c < side; c++ ) {
+                if (random.nextDouble() < VALUED_CELLS_FRACTION) {
+                    double value = 1000 + 50 * Math.sin(c / 40.0) * Math.cos(r / 60.0) + random.nextDouble();
+                    raster.setSample(c, r, 0, value);
+                }
+            }
+        }
+        // 0.5 m cells in a metric crs, like a lidar surface
+        RegionMap region = CoverageUtilities.makeRegionParamsMap(5100000 + side * 0.5, 5100000, 650000, 650000 + side * 0.5,
+                0.5, 0.5, side, side);
+        return CoverageUtilities.buildCoverage("sparse", raster, region, CrsUtilities.getCrsFromEpsg("EPSG:32632"));
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.modules;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.hortonmachine.gears.io.las.ALasDataManager;
+import org.hortonmachine.gears.io.las.LasPointFilter;
+import org.hortonmachine.gears.io.las.core.LasRecord;
+import org.hortonmachine.gears.io.las.index.LasIndexer;
+import org.hortonmachine.gears.utils.HMTestCase;
+import org.hortonmachine.gears.utils.files.FileUtilities;
+import org.hortonmachine.gears.utils.geometry.GeometryUtilities;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+
+/**
+ * Test the streaming point queries of the las data managers.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestLasDataManager extends HMTestCase {
+
+    private static final String LAS_NAME = "las/1.2-with-color.las";
+
+    private File lasFile;
+
+    protected void setUp() throws Exception {
+        URL lasUrl = this.getClass().getClassLoader().getResource(LAS_NAME);
+        lasFile = new File(lasUrl.toURI());
+    }
+
+    public void testLasFileVisit() throws Exception {
+        try (ALasDataManager streamManager = ALasDataManager.getDataManager(lasFile, null, 0, null);
+                ALasDataManager indexManager = ALasDataManager.getDataManager(lasFile, null, 0, null)) {
+            streamManager.open();
+            indexManager.open();
+            // the first manager scans the file, the second one has it in its index
+            checkVisits(streamManager, indexManager);
+            checkVisits(indexManager, indexManager);
+        }
+    }
+
+    public void testLasFolderVisit() throws Exception {
+        File folder = Files.createTempDirectory("hm-lasfolder").toFile();
+        try {
+            FileUtilities.copyFile(lasFile, new File(folder, lasFile.getName()));
+            File prjFile = new File(lasFile.getParentFile(), "1.2-with-color.prj");
+            FileUtilities.copyFile(prjFile, new File(folder, prjFile.getName()));
+
+            LasIndexer indexer = new LasIndexer();
+            indexer.inFolder = folder.getAbsolutePath();
+            indexer.pCellsize = 100;
+            indexer.pm = pm;
+            indexer.process();
+
+            File indexFile = new File(folder, LasIndexer.INDEX_LASFOLDER);
+            try (ALasDataManager folderManager = ALasDataManager.getDataManager(indexFile, null, 0,
+                    DefaultGeographicCRS.WGS84)) {
+                folderManager.open();
+                checkVisits(folderManager, folderManager);
+            }
+        } finally {
+            FileUtilities.deleteFileOrDir(folder);
+        }
+    }
+
+    private void checkVisits( ALasDataManager manager, ALasDataManager referenceManager ) throws Exception {
+        Envelope envelope = referenceManager.getOverallEnvelope();
+        // a diamond inside the data, so that both envelope and geometry cut some points
+        double w = envelope.getWidth();
+        double h = envelope.getHeight();
+        double cx = envelope.getMinX() + w / 2;
+        double cy = envelope.getMinY() + h / 2;
+        Geometry diamond = GeometryUtilities.gf().createPolygon(new Coordinate[]{new Coordinate(cx - w / 3, cy),
+                new Coordinate(cx, cy + h / 3), new Coordinate(cx + w / 3, cy), new Coordinate(cx, cy - h / 3),
+                new Coordinate(cx - w / 3, cy)});
+
+        for( boolean doOnlyEnvelope : new boolean[]{true, false} ) {
+            List<LasRecord> expected = referenceManager.getPointsInGeometry(diamond, doOnlyEnvelope);
+            assertTrue(expected.size() > 0);
+
+            // no filter
+            List<LasRecord> visited = new ArrayList<>();
+            assertTrue(manager.visitPointsInGeometry(diamond, doOnlyEnvelope, null, visited::add));
+            assertEquals(toKeys(expected), toKeys(visited));
+
+            // attribute filter on a part of the elevation range and the first class found
+            double minZ = Double.POSITIVE_INFINITY;
+            double maxZ = Double.NEGATIVE_INFINITY;
+            for( LasRecord dot : expected ) {
+                minZ = Math.min(minZ, dot.z);
+                maxZ = Math.max(maxZ, dot.z);
+            }
+            LasPointFilter filter = new LasPointFilter().setZRange(minZ, (minZ + maxZ) / 2)
+                    .setClasses(expected.get(0).classification);
+            List<LasRecord> expectedFiltered = new ArrayList<>();
+            for( LasRecord dot : expected ) {
+                if (filter.accept(dot)) {
+                    expectedFiltered.add(dot);
+                }
+            }
+            visited.clear();
+            assertTrue(manager.visitPointsInGeometry(diamond, doOnlyEnvelope, filter, visited::add));
+            assertEquals(toKeys(expectedFiltered), toKeys(visited));
+
+            // early stop
+            int stopAt = Math.min(5, expected.size());
+            AtomicInteger count = new AtomicInteger();
+            boolean completed = manager.visitPointsInGeometry(diamond, doOnlyEnvelope, null,
+                    dot -> count.incrementAndGet() < stopAt);
+            assertFalse(completed);
+            assertEquals(stopAt, count.get());
+        }
+    }
+
+    private List<String> toKeys( List<LasRecord> points ) {
+        List<String> keys = new ArrayList<>(points.size());
+        for( LasRecord dot : points ) {
+            keys.add(String.format("%.3f %.3f %.3f %d %d %d %d", dot.x, dot.y, dot.z, dot.intensity, dot.classification,
+                    dot.returnNumber, dot.numberOfReturns));
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+}
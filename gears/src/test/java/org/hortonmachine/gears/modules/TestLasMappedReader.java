@@ -0,0 +1,114 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.modules;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.hortonmachine.gears.io.las.core.ALasReader;
+import org.hortonmachine.gears.io.las.core.Las;
+import org.hortonmachine.gears.io.las.core.LasPointsBatch;
+import org.hortonmachine.gears.io.las.core.LasRecord;
+import org.hortonmachine.gears.io.las.core.v_1_0.LasReaderBuffered;
+import org.hortonmachine.gears.io.las.utils.LasUtils;
+import org.hortonmachine.gears.utils.HMTestCase;
+/**
+ * Checks the mapped las reader against the buffered one.
+ */
+public class TestLasMappedReader extends HMTestCase {
+
+    private static final String[] FILES = {"las/1.0_0.las", "las/1.0_1.las", "las/1.1_0.las", "las/1.1_1.las",
+            "las/1.2_0.las", "las/1.2_1.las", "las/1.2_2.las", "las/1.2_3.las", "las/1.2-with-color.las"};
+
+    public void testSinglePoints() throws Exception {
+        for( String name : FILES ) {
+            File lasFile = fileFromName(name);
+            try (LasReaderBuffered bufferedReader = new LasReaderBuffered(lasFile, null);
+                    ALasReader mappedReader = Las.getMappedReader(lasFile, null)) {
+                bufferedReader.open();
+                mappedReader.open();
+
+                long count = bufferedReader.getHeader().getRecordsCount();
+                // a dirty record, as reused by the callers
+                LasRecord dot = dirtyRecord();
+                for( long i = 0; i < count; i++ ) {
+                    LasRecord expected = bufferedReader.getPointAt(i);
+                    mappedReader.getPointAt(i, dot);
+                    assertRecordEquals(name, expected, dot);
+                }
+            }
+        }
+    }
+
+    public void testRecycledBatches() throws Exception {
+        // a small batch, dirtied with values no fixture carries, to check that nothing leaks
+        LasPointsBatch batch = new LasPointsBatch(3);
+        for( String name : FILES ) {
+            Arrays.fill(batch.gpsTime, -1.0);
+            Arrays.fill(batch.red, (short) -1);
+            Arrays.fill(batch.green, (short) -1);
+            Arrays.fill(batch.blue, (short) -1);
+
+            File lasFile = fileFromName(name);
+            try (LasReaderBuffered bufferedReader = new LasReaderBuffered(lasFile, null);
+                    ALasReader mappedReader = Las.getMappedReader(lasFile, null)) {
+                bufferedReader.open();
+                mappedReader.open();
+
+                long count = 0;
+                int read;
+                while( (read = mappedReader.readBatch(batch)) > 0 ) {
+                    assertEquals(read, batch.getSize());
+                    for( int i = 0; i < read; i++ ) {
+                        assertTrue(bufferedReader.hasNextPoint());
+                        LasRecord expected = bufferedReader.getNextPoint();
+                        assertRecordEquals(name, expected, batch.toRecord(i));
+                        count++;
+                    }
+                }
+                assertFalse(bufferedReader.hasNextPoint());
+                assertEquals(bufferedReader.getHeader().getRecordsCount(), count);
+            }
+        }
+    }
+
+    private LasRecord dirtyRecord() {
+        LasRecord dot = new LasRecord();
+        dot.gpsTime = -1.0;
+        dot.color[0] = -1;
+        dot.color[1] = -1;
+        dot.color[2] = -1;
+        return dot;
+    }
+
+    private void assertRecordEquals( String name, LasRecord expected, LasRecord dot ) {
+        assertTrue(name, LasUtils.lasRecordEqual(expected, dot));
+        assertEquals(name, expected.gpsTime, dot.gpsTime, DELTA);
+        assertEquals(name, expected.color[0], dot.color[0]);
+        assertEquals(name, expected.color[1], dot.color[1]);
+        assertEquals(name, expected.color[2], dot.color[2]);
+    }
+
+    private File fileFromName( String name ) throws URISyntaxException {
+        URL lasUrl = this.getClass().getClassLoader().getResource(name);
+        return new File(lasUrl.toURI());
+    }
+
+}
@@ -0,0 +1,168 @@
+package org.hortonmachine.gears.modules;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.hortonmachine.dbs.mbtiles.MBTilesDb.Tile;
+import org.hortonmachine.gears.modules.r.tmsgenerator.TilesBatchWriter;
+import org.hortonmachine.gears.modules.r.tmsgenerator.TilesBatchWriter.ITilesBatchConsumer;
+import org.hortonmachine.gears.utils.HMTestCase;
+
+/**
+ * Test {@link TilesBatchWriter} with a consumer that only records the batches.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestTilesBatchWriter extends HMTestCase {
+
+    /**
+     * Records the x of the tiles of every batch. The first batch can be held
+     * until {@link #release()}, so that the following tiles pile up in the queue.
+     */
+    private static class RecordingConsumer implements ITilesBatchConsumer {
+        private final List<List<Integer>> batches = new ArrayList<>();
+        private final CountDownLatch firstBatchEntered = new CountDownLatch(1);
+        private final CountDownLatch firstBatchReleased;
+
+        RecordingConsumer( boolean holdFirstBatch ) {
+            firstBatchReleased = new CountDownLatch(holdFirstBatch ? 1 : 0);
+        }
+
+        @Override
+        public void insertTiles( List<Tile> tiles ) throws Exception {
+            List<Integer> batch = new ArrayList<>();
+            for( Tile tile : tiles ) {
+                batch.add(tile.x);
+            }
+            synchronized (batches) {
+                batches.add(batch);
+            }
+            firstBatchEntered.countDown();
+            firstBatchReleased.await();
+        }
+
+        void awaitFirstBatch() throws InterruptedException {
+            assertTrue(firstBatchEntered.await(10, TimeUnit.SECONDS));
+        }
+
+        void release() {
+            firstBatchReleased.countDown();
+        }
+
+        List<List<Integer>> getBatches() {
+            synchronized (batches) {
+                return new ArrayList<>(batches);
+            }
+        }
+    }
+
+    public void testBatchBoundaries() throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer(true);
+        TilesBatchWriter writer = new TilesBatchWriter(consumer, 3, 20, null);
+        writer.addTile(0, 0, 1, new byte[]{0});
+        consumer.awaitFirstBatch();
+        // the writer is busy with the first tile, the others wait in the queue
+        for( int x = 1; x <= 10; x++ ) {
+            writer.addTile(x, 0, 1, new byte[]{(byte) x});
+        }
+        consumer.release();
+        writer.close();
+
+        List<List<Integer>> batches = consumer.getBatches();
+        assertEquals(5, batches.size());
+        assertEquals(list(0), batches.get(0));
+        assertEquals(list(1, 2, 3), batches.get(1));
+        assertEquals(list(4, 5, 6), batches.get(2));
+        assertEquals(list(7, 8, 9), batches.get(3));
+        assertEquals(list(10), batches.get(4));
+        assertEquals(11, writer.getWrittenTiles());
+    }
+
+    public void testCloseFlushesTheLastBatch() throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer(true);
+        TilesBatchWriter writer = new TilesBatchWriter(consumer, 100, 20, null);
+        writer.addTile(0, 0, 1, new byte[]{0});
+        consumer.awaitFirstBatch();
+        for( int x = 1; x <= 4; x++ ) {
+            writer.addTile(x, 0, 1, new byte[]{(byte) x});
+        }
+
+        // the partial batch is still queued when closing
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                // release anyway
+            }
+            consumer.release();
+        });
+        releaser.start();
+        writer.close();
+        releaser.join();
+
+        List<List<Integer>> batches = consumer.getBatches();
+        assertEquals(2, batches.size());
+        assertEquals(list(0), batches.get(0));
+        assertEquals(list(1, 2, 3, 4), batches.get(1));
+        assertEquals(5, writer.getWrittenTiles());
+
+        // closing again does nothing
+        writer.close();
+        assertEquals(2, consumer.getBatches().size());
+    }
+
+    public void testConsumerFailureDoesNotBlockProducers() throws Exception {
+        Exception failure = new Exception("disk full");
+        TilesBatchWriter writer = new TilesBatchWriter(tiles -> {
+            throw failure;
+        }, 2, 2, null);
+
+        ExecutorService producers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for( int p = 0; p < 4; p++ ) {
+                int y = p;
+                futures.add(producers.submit(() -> {
+                    int added = 0;
+                    try {
+                        for( int x = 0; x < 200; x++ ) {
+                            writer.addTile(x, y, 1, new byte[]{1});
+                            added++;
+                        }
+                    } catch (Exception e) {
+                        // the failure is reported to the producers that come later
+                        assertSame(failure, e.getCause());
+                    }
+                    return added;
+                }));
+            }
+            // with the small queue the producers would hang if the failed writer stopped draining it
+            for( Future<Integer> future : futures ) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            producers.shutdownNow();
+        }
+
+        try {
+            writer.close();
+            fail("The consumer failure should be rethrown.");
+        } catch (Exception e) {
+            assertSame(failure, e.getCause());
+        }
+        assertEquals(0, writer.getWrittenTiles());
+    }
+
+    private static List<Integer> list( Integer... values ) {
+        List<Integer> list = new ArrayList<>();
+        for( Integer value : values ) {
+            list.add(value);
+        }
+        return list;
+    }
+}
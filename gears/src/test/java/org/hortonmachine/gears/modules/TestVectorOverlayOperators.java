@@ -0,0 +1,153 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com 
+ * 
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.gears.modules;
+
+import static org.hortonmachine.gears.libs.modules.Variables.DIFFERENCE;
+import static org.hortonmachine.gears.libs.modules.Variables.INTERSECTION;
+import static org.hortonmachine.gears.libs.modules.Variables.SYMDIFFERENCE;
+import static org.hortonmachine.gears.libs.modules.Variables.UNION;
+
+import java.util.List;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.hortonmachine.gears.modules.v.vectoroverlayoperators.OmsVectorOverlayOperators;
+import org.hortonmachine.gears.utils.HMTestCase;
+import org.hortonmachine.gears.utils.features.FeatureUtilities;
+import org.hortonmachine.gears.utils.geometry.GeometryUtilities;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Test {@link OmsVectorOverlayOperators}.
+ * 
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestVectorOverlayOperators extends HMTestCase {
+
+    /**
+     * Three squares of 2x2 in a row, overlaid by a 4x2 rectangle.
+     */
+    private SimpleFeatureCollection squares = createCollection(new String[]{"name", "value"},
+            new Envelope[]{new Envelope(0, 2, 0, 2), new Envelope(2, 4, 0, 2), new Envelope(4, 6, 0, 2)},
+            new Object[][]{{"a", 1}, {"b", 2}, {"c", 3}});
+    private SimpleFeatureCollection rectangle = createCollection(new String[]{"name"},
+            new Envelope[]{new Envelope(1, 5, 1, 3)}, new Object[][]{{"r"}});
+
+    public void testIntersection() throws Exception {
+        for( Double tileSize : new Double[]{null, 1.5} ) {
+            List<SimpleFeature> features = overlay(INTERSECTION, rectangle, tileSize);
+            assertEquals(3, features.size());
+            assertEquals(4.0, getArea(features), DELTA);
+            for( SimpleFeature feature : features ) {
+                // the attributes of both layers, the name of the second is renamed
+                assertEquals("r", feature.getAttribute("name_2"));
+                double expectedArea = feature.getAttribute("name").equals("b") ? 2.0 : 1.0;
+                assertEquals(expectedArea, ((Geometry) feature.getDefaultGeometry()).getArea(), DELTA);
+            }
+        }
+    }
+
+    public void testDifference() throws Exception {
+        for( Double tileSize : new Double[]{null, 1.5} ) {
+            List<SimpleFeature> features = overlay(DIFFERENCE, rectangle, tileSize);
+            assertEquals(3, features.size());
+            assertEquals(8.0, getArea(features), DELTA);
+            assertEquals(3, features.get(0).getAttributeCount());
+        }
+    }
+
+    public void testSymDifferenceAndUnion() throws Exception {
+        for( Double tileSize : new Double[]{null, 1.5} ) {
+            List<SimpleFeature> features = overlay(SYMDIFFERENCE, rectangle, tileSize);
+            assertEquals(4, features.size());
+            assertEquals(12.0, getArea(features), DELTA);
+            int fromRectangle = 0;
+            for( SimpleFeature feature : features ) {
+                if (feature.getAttribute("name") == null) {
+                    assertEquals("r", feature.getAttribute("name_2"));
+                    assertEquals(4.0, ((Geometry) feature.getDefaultGeometry()).getArea(), DELTA);
+                    fromRectangle++;
+                }
+            }
+            assertEquals(1, fromRectangle);
+
+            features = overlay(UNION, rectangle, tileSize);
+            assertEquals(7, features.size());
+            // the pieces cover the union of the layers without overlapping
+            assertEquals(16.0, getArea(features), DELTA);
+        }
+    }
+
+    public void testDissolve() throws Exception {
+        for( Double tileSize : new Double[]{null, 1.5} ) {
+            List<SimpleFeature> features = overlay(UNION, null, tileSize);
+            assertEquals(1, features.size());
+            Geometry geometry = (Geometry) features.get(0).getDefaultGeometry();
+            assertEquals(12.0, geometry.getArea(), DELTA);
+            assertEquals(new Envelope(0, 6, 0, 2), geometry.getEnvelopeInternal());
+        }
+    }
+
+    private List<SimpleFeature> overlay( String type, SimpleFeatureCollection second, Double tileSize ) throws Exception {
+        OmsVectorOverlayOperators overlay = new OmsVectorOverlayOperators();
+        overlay.pm = pm;
+        overlay.inMap1 = squares;
+        overlay.inMap2 = second;
+        overlay.pType = type;
+        overlay.pTileSize = tileSize;
+        overlay.pMaxThreads = 2;
+        overlay.process();
+        return FeatureUtilities.featureCollectionToList(overlay.outMap);
+    }
+
+    private double getArea( List<SimpleFeature> features ) {
+        double area = 0;
+        for( SimpleFeature feature : features ) {
+            area += ((Geometry) feature.getDefaultGeometry()).getArea();
+        }
+        return area;
+    }
+
+    private SimpleFeatureCollection createCollection( String[] names, Envelope[] envelopes, Object[][] attributes ) {
+        SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
+        b.setName("test");
+        b.setCRS(DefaultGeographicCRS.WGS84);
+        b.add("the_geom", Polygon.class);
+        for( int i = 0; i < names.length; i++ ) {
+            b.add(names[i], attributes[0][i].getClass());
+        }
+        SimpleFeatureType type = b.buildFeatureType();
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+
+        DefaultFeatureCollection collection = new DefaultFeatureCollection();
+        for( int i = 0; i < envelopes.length; i++ ) {
+            builder.add(GeometryUtilities.gf().toGeometry(envelopes[i]));
+            builder.addAll(attributes[i]);
+            collection.add(builder.buildFeature(type.getTypeName() + "." + i));
+        }
+        return collection;
+    }
+
+}
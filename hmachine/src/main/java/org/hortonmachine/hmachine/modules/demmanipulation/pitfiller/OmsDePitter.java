@@ -18,6 +18,9 @@
 package org.hortonmachine.hmachine.modules.demmanipulation.pitfiller;
 
 import static org.hortonmachine.gears.libs.modules.HMConstants.DEMMANIPULATION;
+import static org.hortonmachine.gears.libs.modules.Variables.PITS_CLASSIC;
+import static org.hortonmachine.gears.libs.modules.Variables.PITS_PRIORITY_FLOOD;
+import static org.hortonmachine.gears.libs.modules.Variables.PITS_PRIORITY_FLOOD_TILED;
 
 import java.awt.image.WritableRaster;
 import java.util.ArrayList;
@@ -31,8 +34,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 import javax.media.jai.iterator.WritableRandomIter;
 
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.hortonmachine.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.hortonmachine.gears.libs.modules.GridNode;
 import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.libs.modules.multiprocessing.ExecutionPlanner;
 import org.hortonmachine.gears.libs.modules.multiprocessing.GridMultiProcessing;
 import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
 import org.hortonmachine.gears.utils.BitMatrix;
@@ -49,6 +54,7 @@ import oms3.annotations.License;
 import oms3.annotations.Name;
 import oms3.annotations.Out;
 import oms3.annotations.Status;
+import oms3.annotations.UI;
 
 @Description(OmsDePitter.OMSDEPITTER_DESCRIPTION)
 @Author(name = OmsDePitter.OMSDEPITTER_AUTHORNAMES, contact = OmsDePitter.OMSDEPITTER_AUTHORCONTACTS)
@@ -62,6 +68,11 @@ public class OmsDePitter extends GridMultiProcessing {
     @In
     public GridCoverage2D inElev;
 
+    @Description(OMSDEPITTER_pMode_DESCRIPTION)
+    @UI("combo:" + PITS_CLASSIC + "," + PITS_PRIORITY_FLOOD + "," + PITS_PRIORITY_FLOOD_TILED)
+    @In
+    public String pMode = PITS_CLASSIC;
+
     @Description(OMSDEPITTER_outPit_DESCRIPTION)
     @Out
     public GridCoverage2D outPit = null;
@@ -87,10 +98,13 @@ public class OmsDePitter extends GridMultiProcessing {
     public static final String OMSDEPITTER_AUTHORNAMES = "Andrea Antonello, Silvia Franceschi";
     public static final String OMSDEPITTER_AUTHORCONTACTS = "http://www.hydrologis.com";
     public static final String OMSDEPITTER_inElev_DESCRIPTION = "The map of digital elevation model (DEM).";
+    public static final String OMSDEPITTER_pMode_DESCRIPTION = "The depitting algorithm: the classic pit by pit filling, the priority flood or the priority flood by parallel tiles for large DEMs.";
     public static final String OMSDEPITTER_outPit_DESCRIPTION = "The depitted elevation map.";
     public static final String OMSDEPITTER_outPitPoints_DESCRIPTION = "The shapefile of handled pits.";
     public static final String OMSDEPITTER_outFlow_DESCRIPTION = "The map of D8 flowdirections.";
 
+    private static final int MIN_BAND_ROWS = 64;
+
     private final float delta = 2E-6f;
     private boolean verbose = true;
 
@@ -120,71 +134,23 @@ public class OmsDePitter extends GridMultiProcessing {
         WritableRaster pitRaster = CoverageUtilities.renderedImage2DoubleWritableRaster(inElev.getRenderedImage(), false);
         WritableRandomIter pitIter = CoverageUtilities.getWritableRandomIterator(pitRaster);
         try {
-
-            ConcurrentLinkedQueue<GridNode> pitsList = getPitsList(cols, rows, xRes, yRes, pitIter);
-
-            AtomicInteger count = new AtomicInteger();
-            // int count = 0;
-            int iteration = 1;
-            while( pitsList.size() > 0 ) {
-                if (pm.isCanceled()) {
-                    return;
-                }
-
-                int pitCount = pitsList.size();
-                BitMatrix allPitsPositions = new BitMatrix(cols, rows);
-
-                // List<GridNode> processedNodesInPit = new ArrayList<>();
-
-                int shownCount = pitCount;
-                if (!verbose) {
-                    shownCount = IHMProgressMonitor.UNKNOWN;
-                }
-                pm.beginTask("Processing " + pitCount + " pits (iteration N." + iteration++ + ")... ", shownCount);
-                if (doParallel) {
-                    pitsList.parallelStream().forEach(originalPitNode -> {
-                        int _count = count.incrementAndGet();
-                        if (pm.isCanceled()) {
-                            return;
-                        }
-                        processPitNode(originalPitNode, allPitsPositions, _count, pitIter);
-                    });
+            if (pMode.equals(PITS_CLASSIC)) {
+                depitClassic(pitIter);
+            } else if (pMode.equals(PITS_PRIORITY_FLOOD) || pMode.equals(PITS_PRIORITY_FLOOD_TILED)) {
+                double[] elev = pitRaster.getSamples(0, 0, cols, rows, 0, (double[]) null);
+                PriorityFloodFiller filler = new PriorityFloodFiller(elev, cols, rows, novalue, delta).setProgressMonitor(pm);
+                if (pMode.equals(PITS_PRIORITY_FLOOD)) {
+                    filler.fill();
                 } else {
-                    pitsList.stream().forEach(originalPitNode -> {
-                        int _count = count.incrementAndGet();
-                        if (pm.isCanceled()) {
-                            return;
-                        }
-                        processPitNode(originalPitNode, allPitsPositions, _count, pitIter);
-                    });
-                }
-                // for( GridNode originalPitNode : pitsList ) {
-                // count++;
-                // if (pm.isCanceled()) {
-                // return;
-                // }
-                // processPitNode(originalPitNode, allPitsPositions, count, pitIter);
-                // }
-                pm.done();
-
-                // if (true && iteration < 3) {
-                // outPit = CoverageUtilities.buildCoverage("pitfiller", pitRaster, regionMap,
-                // inElev.getCoordinateReferenceSystem());
-                // OmsRasterWriter.writeRaster("/home/hydrologis/Dropbox/hydrologis/lavori/2017_06_mapzone/test/dtm_test2_pit_"
-                // + iteration + ".tiff", outPit);
-                // }
-
-                pitsList = getPitsList(cols, rows, xRes, yRes, pitIter, allPitsPositions);
-
-                int size = pitsList.size();
-                if (verbose) {
-                    pm.message("Left pits: " + size);
-                    pm.message("---------------------------------------------------------------------");
+                    int threads = doParallel ? ExecutionPlanner.forkJoinPool.getParallelism() : 1;
+                    filler.fillTiled(doParallel, Math.max(MIN_BAND_ROWS, rows / (threads * 4)));
                 }
-                if (size < 10000) {
-                    verbose = false;
-                }
-
+                pitRaster.setSamples(0, 0, cols, rows, 0, elev);
+            } else {
+                throw new ModelsIllegalargumentException("Unknown depitting mode: " + pMode, this, pm);
+            }
+            if (pm.isCanceled()) {
+                return;
             }
 
             outPit = CoverageUtilities.buildCoverageWithNovalue("pitfiller", pitRaster, regionMap,
@@ -271,6 +237,74 @@ public class OmsDePitter extends GridMultiProcessing {
         }
     }
 
+    private void depitClassic( WritableRandomIter pitIter ) {
+        ConcurrentLinkedQueue<GridNode> pitsList = getPitsList(cols, rows, xRes, yRes, pitIter);
+
+        AtomicInteger count = new AtomicInteger();
+        // int count = 0;
+        int iteration = 1;
+        while( pitsList.size() > 0 ) {
+            if (pm.isCanceled()) {
+                return;
+            }
+
+            int pitCount = pitsList.size();
+            BitMatrix allPitsPositions = new BitMatrix(cols, rows);
+
+            // List<GridNode> processedNodesInPit = new ArrayList<>();
+
+            int shownCount = pitCount;
+            if (!verbose) {
+                shownCount = IHMProgressMonitor.UNKNOWN;
+            }
+            pm.beginTask("Processing " + pitCount + " pits (iteration N." + iteration++ + ")... ", shownCount);
+            if (doParallel) {
+                pitsList.parallelStream().forEach(originalPitNode -> {
+                    int _count = count.incrementAndGet();
+                    if (pm.isCanceled()) {
+                        return;
+                    }
+                    processPitNode(originalPitNode, allPitsPositions, _count, pitIter);
+                });
+            } else {
+                pitsList.stream().forEach(originalPitNode -> {
+                    int _count = count.incrementAndGet();
+                    if (pm.isCanceled()) {
+                        return;
+                    }
+                    processPitNode(originalPitNode, allPitsPositions, _count, pitIter);
+                });
+            }
+            // for( GridNode originalPitNode : pitsList ) {
+            // count++;
+            // if (pm.isCanceled()) {
+            // return;
+            // }
+            // processPitNode(originalPitNode, allPitsPositions, count, pitIter);
+            // }
+            pm.done();
+
+            // if (true && iteration < 3) {
+            // outPit = CoverageUtilities.buildCoverage("pitfiller", pitRaster, regionMap,
+            // inElev.getCoordinateReferenceSystem());
+            // OmsRasterWriter.writeRaster("/home/hydrologis/Dropbox/hydrologis/lavori/2017_06_mapzone/test/dtm_test2_pit_"
+            // + iteration + ".tiff", outPit);
+            // }
+
+            pitsList = getPitsList(cols, rows, xRes, yRes, pitIter, allPitsPositions);
+
+            int size = pitsList.size();
+            if (verbose) {
+                pm.message("Left pits: " + size);
+                pm.message("---------------------------------------------------------------------");
+            }
+            if (size < 10000) {
+                verbose = false;
+            }
+
+        }
+    }
+
     private void processPitNode( GridNode originalPitNode, BitMatrix allPitsPositions, int count, WritableRandomIter pitIter ) {
         if (allPitsPositions.isMarked(originalPitNode.col, originalPitNode.row)) {
             if (verbose)
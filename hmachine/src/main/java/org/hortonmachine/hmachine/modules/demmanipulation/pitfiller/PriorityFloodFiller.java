@@ -0,0 +1,612 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.hmachine.modules.demmanipulation.pitfiller;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.libs.modules.multiprocessing.GridBlockTask;
+import org.hortonmachine.gears.libs.monitor.DummyProgressMonitor;
+import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
+import org.hortonmachine.gears.utils.BitMatrix;
+import org.hortonmachine.gears.utils.LongPriorityQueue;
+
+/**
+ * Priority-Flood depression filling.
+ *
+ * <p>The DEM is flooded inwards from its border (the raster edges and the cells
+ * touching novalues), always expanding from the lowest cell reached so far. Cells
+ * lower than the cell they are reached from are raised to its elevation plus
+ * a small epsilon, so that every filled cell keeps a downhill path to the border
+ * and flowdirections are defined also on the filled areas and on flats.</p>
+ *
+ * <p>Two variants are available:</p>
+ * <ul>
+ * <li>{@link #fill()}: the sequential Priority-Flood+&epsilon; (Barnes et al., 2014),
+ *     using a primitive heap, a FIFO for the cells inside depressions and a {@link BitMatrix}
+ *     as closed set.</li>
+ * <li>{@link #fillTiled(boolean, int)}: the DEM is split in row bands that are flooded
+ *     independently from their own perimeter (Barnes, 2016). Every band perimeter cell
+ *     starts a watershed label, the spill elevations between labels (also across
+ *     band boundaries) form a small graph from which the final fill level of each label
+ *     is found. Filled areas are then given a gradient towards their outlets.</li>
+ * </ul>
+ *
+ * <p>Elevations are processed in place, in row major order.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class PriorityFloodFiller {
+
+    private static final int[] DCOL = {1, 1, 0, -1, -1, -1, 0, 1};
+    private static final int[] DROW = {0, -1, -1, -1, 0, 1, 1, 1};
+
+    /**
+     * The label of the cells that drain directly out of the DEM.
+     */
+    private static final int OCEAN = 1;
+
+    private final double[] elev;
+    private final int cols;
+    private final int rows;
+    private final double novalue;
+    private final double epsilon;
+    private IHMProgressMonitor pm = new DummyProgressMonitor();
+
+    /**
+     * Constructor.
+     *
+     * @param elev the elevations in row major order, modified in place.
+     * @param cols the columns of the grid.
+     * @param rows the rows of the grid.
+     * @param novalue the novalue of the elevations.
+     * @param epsilon the increment given to filled cells along the path towards their outlet.
+     */
+    public PriorityFloodFiller( double[] elev, int cols, int rows, double novalue, double epsilon ) {
+        this.elev = elev;
+        this.cols = cols;
+        this.rows = rows;
+        this.novalue = novalue;
+        this.epsilon = epsilon;
+    }
+
+    /**
+     * @param pm the monitor used to report progress and check for cancellation.
+     * @return the filler.
+     */
+    public PriorityFloodFiller setProgressMonitor( IHMProgressMonitor pm ) {
+        if (pm != null) {
+            this.pm = pm;
+        }
+        return this;
+    }
+
+    /**
+     * Fill the depressions with the sequential Priority-Flood+&epsilon;.
+     */
+    public void fill() {
+        BitMatrix closed = new BitMatrix(cols, rows);
+        LongPriorityQueue open = new LongPriorityQueue(2 * (cols + rows));
+        IntFifo pit = new IntFifo(1024);
+
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                int index = r * cols + c;
+                if (isValid(index) && isBorder(c, r)) {
+                    closed.mark(c, r);
+                    open.add(index, elev[index]);
+                }
+            }
+        }
+
+        pm.beginTask("Flooding depressions...", rows);
+        int processed = 0;
+        while( !open.isEmpty() || !pit.isEmpty() ) {
+            int current;
+            if (!pit.isEmpty()) {
+                current = pit.poll();
+            } else {
+                current = (int) open.poll();
+            }
+            double level = elev[current];
+            int col = current % cols;
+            int row = current / cols;
+            for( int d = 0; d < 8; d++ ) {
+                int nCol = col + DCOL[d];
+                int nRow = row + DROW[d];
+                if (nCol < 0 || nCol >= cols || nRow < 0 || nRow >= rows || closed.isMarked(nCol, nRow)) {
+                    continue;
+                }
+                int neighbour = nRow * cols + nCol;
+                if (!isValid(neighbour)) {
+                    continue;
+                }
+                closed.mark(nCol, nRow);
+                if (elev[neighbour] <= level) {
+                    elev[neighbour] = level + epsilon;
+                    pit.add(neighbour);
+                } else {
+                    open.add(neighbour, elev[neighbour]);
+                }
+            }
+            if (++processed % cols == 0) {
+                if (pm.isCanceled()) {
+                    return;
+                }
+                pm.worked(1);
+            }
+        }
+        pm.done();
+    }
+
+    /**
+     * Fill the depressions processing the DEM by row bands.
+     *
+     * @param doParallel if <code>true</code>, the bands are processed in parallel.
+     * @param bandRows the number of rows of each band.
+     * @throws Exception
+     */
+    public void fillTiled( boolean doParallel, int bandRows ) throws Exception {
+        int _bandRows = Math.max(1, bandRows);
+        int bandCount = (rows + _bandRows - 1) / _bandRows;
+        int[] labels = new int[cols * rows];
+        AtomicInteger labelCounter = new AtomicInteger(OCEAN);
+        SpillEdges[] bandEdges = new SpillEdges[bandCount];
+
+        pm.beginTask("Flooding bands...", bandCount);
+        GridBlockTask.processBlocks(doParallel, 0, 0, bandCount, 1, 1, pm, ( bandStart, r0, bandEnd, r1 ) -> {
+            for( int b = bandStart; b < bandEnd; b++ ) {
+                bandEdges[b] = floodBand(b * _bandRows, Math.min(rows, (b + 1) * _bandRows), labels, labelCounter);
+                pm.worked(1);
+            }
+        });
+        pm.done();
+        if (pm.isCanceled()) {
+            return;
+        }
+
+        // join the graphs of the bands and stitch the band boundaries
+        SpillEdges edges = new SpillEdges(1024);
+        for( SpillEdges bandEdge : bandEdges ) {
+            edges.addAll(bandEdge);
+        }
+        for( int b = 1; b < bandCount; b++ ) {
+            int upperRow = b * _bandRows - 1;
+            for( int c = 0; c < cols; c++ ) {
+                int upper = upperRow * cols + c;
+                if (!isValid(upper)) {
+                    continue;
+                }
+                for( int dc = -1; dc <= 1; dc++ ) {
+                    int lowerCol = c + dc;
+                    if (lowerCol < 0 || lowerCol >= cols) {
+                        continue;
+                    }
+                    int lower = upper + cols + dc;
+                    if (isValid(lower)) {
+                        edges.add(labels[upper], labels[lower], Math.max(elev[upper], elev[lower]));
+                    }
+                }
+            }
+        }
+
+        double[] fillLevels = solveSpillGraph(edges, labelCounter.get() + 1);
+
+        GridBlockTask.processBlocks(doParallel, 0, 0, bandCount, 1, 1, pm, ( bandStart, r0, bandEnd, r1 ) -> {
+            int start = bandStart * _bandRows * cols;
+            int end = Math.min(rows, bandEnd * _bandRows) * cols;
+            for( int i = start; i < end; i++ ) {
+                if (isValid(i)) {
+                    double level = fillLevels[labels[i]];
+                    if (level > elev[i]) {
+                        elev[i] = level;
+                    }
+                }
+            }
+        });
+
+        resolveFlats(doParallel, _bandRows, bandCount);
+    }
+
+    /**
+     * Flood a band from its perimeter, raising the enclosed depressions and labelling the cells.
+     *
+     * @return the spill edges between the labels found inside the band.
+     */
+    private SpillEdges floodBand( int startRow, int endRow, int[] labels, AtomicInteger labelCounter ) {
+        int bandRows = endRow - startRow;
+        BitMatrix closed = new BitMatrix(cols, bandRows);
+        LongPriorityQueue open = new LongPriorityQueue(2 * (cols + bandRows));
+        IntFifo pit = new IntFifo(1024);
+        SpillEdges edges = new SpillEdges(256);
+
+        for( int r = startRow; r < endRow; r++ ) {
+            boolean perimeterRow = r == startRow || r == endRow - 1;
+            for( int c = 0; c < cols; c++ ) {
+                int index = r * cols + c;
+                if (!isValid(index)) {
+                    continue;
+                }
+                if (isBorder(c, r)) {
+                    labels[index] = OCEAN;
+                } else if (!perimeterRow) {
+                    continue;
+                }
+                closed.mark(c, r - startRow);
+                open.add(index, elev[index]);
+            }
+        }
+
+        while( !open.isEmpty() || !pit.isEmpty() ) {
+            int current;
+            if (!pit.isEmpty()) {
+                current = pit.poll();
+            } else {
+                current = (int) open.poll();
+            }
+            if (labels[current] == 0) {
+                // a band perimeter cell not reached by other labels starts a new watershed
+                labels[current] = labelCounter.incrementAndGet();
+            }
+            int label = labels[current];
+            double level = elev[current];
+            int col = current % cols;
+            int row = current / cols;
+            for( int d = 0; d < 8; d++ ) {
+                int nCol = col + DCOL[d];
+                int nRow = row + DROW[d];
+                if (nCol < 0 || nCol >= cols || nRow < startRow || nRow >= endRow) {
+                    continue;
+                }
+                int neighbour = nRow * cols + nCol;
+                if (!isValid(neighbour)) {
+                    continue;
+                }
+                if (closed.isMarked(nCol, nRow - startRow)) {
+                    int neighbourLabel = labels[neighbour];
+                    if (neighbourLabel != 0 && neighbourLabel != label) {
+                        edges.add(label, neighbourLabel, Math.max(level, elev[neighbour]));
+                    }
+                    continue;
+                }
+                closed.mark(nCol, nRow - startRow);
+                labels[neighbour] = label;
+                if (elev[neighbour] <= level) {
+                    elev[neighbour] = level;
+                    pit.add(neighbour);
+                } else {
+                    open.add(neighbour, elev[neighbour]);
+                }
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Find for every label the lowest level at which it spills into the ocean,
+     * i.e. the minimax path from the ocean over the spill graph.
+     */
+    private double[] solveSpillGraph( SpillEdges edges, int labelsCount ) {
+        // adjacency lists in compressed form
+        int[] offsets = new int[labelsCount + 1];
+        long[] keys = edges.keys;
+        for( int i = 0; i < keys.length; i++ ) {
+            if (keys[i] != 0) {
+                offsets[(int) (keys[i] >>> 32) + 1]++;
+                offsets[(int) keys[i] + 1]++;
+            }
+        }
+        for( int i = 0; i < labelsCount; i++ ) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] targets = new int[offsets[labelsCount]];
+        double[] weights = new double[offsets[labelsCount]];
+        int[] position = Arrays.copyOf(offsets, labelsCount);
+        for( int i = 0; i < keys.length; i++ ) {
+            if (keys[i] != 0) {
+                int a = (int) (keys[i] >>> 32);
+                int b = (int) keys[i];
+                targets[position[a]] = b;
+                weights[position[a]++] = edges.weights[i];
+                targets[position[b]] = a;
+                weights[position[b]++] = edges.weights[i];
+            }
+        }
+
+        double[] fillLevels = new double[labelsCount];
+        Arrays.fill(fillLevels, Double.POSITIVE_INFINITY);
+        fillLevels[0] = Double.NEGATIVE_INFINITY;
+        fillLevels[OCEAN] = Double.NEGATIVE_INFINITY;
+        LongPriorityQueue queue = new LongPriorityQueue(labelsCount);
+        queue.add(OCEAN, Double.NEGATIVE_INFINITY);
+        while( !queue.isEmpty() ) {
+            double level = queue.peekPriority();
+            int label = (int) queue.poll();
+            if (level > fillLevels[label]) {
+                // already reached at a lower level
+                continue;
+            }
+            for( int i = offsets[label]; i < offsets[label + 1]; i++ ) {
+                int target = targets[i];
+                double targetLevel = Math.max(level, weights[i]);
+                if (targetLevel < fillLevels[target]) {
+                    fillLevels[target] = targetLevel;
+                    queue.add(target, targetLevel);
+                }
+            }
+        }
+        for( int i = 0; i < labelsCount; i++ ) {
+            if (Double.isInfinite(fillLevels[i])) {
+                // not connected to the border, leave the band filling as is
+                fillLevels[i] = Double.NEGATIVE_INFINITY;
+            }
+        }
+        return fillLevels;
+    }
+
+    /**
+     * Give the flat areas a gradient of epsilon per cell towards their outlets.
+     *
+     * <p>The outlets of a flat are the cells with the same elevation that have a lower
+     * neighbour or lie on the border. From them a breadth first visit raises every
+     * cell of the flat by its distance times epsilon.</p>
+     */
+    private void resolveFlats( boolean doParallel, int bandRows, int bandCount ) throws Exception {
+        int[][] bandOutlets = new int[bandCount][];
+        GridBlockTask.processBlocks(doParallel, 0, 0, bandCount, 1, 1, pm, ( bandStart, r0, bandEnd, r1 ) -> {
+            for( int b = bandStart; b < bandEnd; b++ ) {
+                int count = 0;
+                int[] outlets = new int[64];
+                int endRow = Math.min(rows, (b + 1) * bandRows);
+                for( int r = b * bandRows; r < endRow; r++ ) {
+                    for( int c = 0; c < cols; c++ ) {
+                        int index = r * cols + c;
+                        if (isValid(index) && isDrain(c, r) && hasFlatNeighbour(c, r)) {
+                            if (count == outlets.length) {
+                                outlets = Arrays.copyOf(outlets, count * 2);
+                            }
+                            outlets[count++] = index;
+                        }
+                    }
+                }
+                bandOutlets[b] = Arrays.copyOf(outlets, count);
+            }
+        });
+
+        int layerSize = 0;
+        for( int[] outlets : bandOutlets ) {
+            layerSize += outlets.length;
+        }
+        int[] layer = new int[Math.max(16, layerSize)];
+        double[] layerBase = new double[layer.length];
+        BitMatrix visited = new BitMatrix(cols, rows);
+        layerSize = 0;
+        for( int[] outlets : bandOutlets ) {
+            for( int index : outlets ) {
+                visited.mark(index % cols, index / cols);
+                layer[layerSize] = index;
+                layerBase[layerSize++] = elev[index];
+            }
+        }
+
+        int[] nextLayer = new int[layer.length];
+        double[] nextLayerBase = new double[layer.length];
+        int distance = 0;
+        pm.beginTask("Resolving flat areas...", IHMProgressMonitor.UNKNOWN);
+        while( layerSize > 0 ) {
+            if (pm.isCanceled()) {
+                return;
+            }
+            distance++;
+            int nextSize = 0;
+            for( int i = 0; i < layerSize; i++ ) {
+                int current = layer[i];
+                double base = layerBase[i];
+                int col = current % cols;
+                int row = current / cols;
+                for( int d = 0; d < 8; d++ ) {
+                    int nCol = col + DCOL[d];
+                    int nRow = row + DROW[d];
+                    if (nCol < 0 || nCol >= cols || nRow < 0 || nRow >= rows || visited.isMarked(nCol, nRow)) {
+                        continue;
+                    }
+                    int neighbour = nRow * cols + nCol;
+                    if (elev[neighbour] != base || isDrain(nCol, nRow)) {
+                        continue;
+                    }
+                    visited.mark(nCol, nRow);
+                    elev[neighbour] = base + distance * epsilon;
+                    if (nextSize == nextLayer.length) {
+                        nextLayer = Arrays.copyOf(nextLayer, nextSize * 2);
+                        nextLayerBase = Arrays.copyOf(nextLayerBase, nextSize * 2);
+                    }
+                    nextLayer[nextSize] = neighbour;
+                    nextLayerBase[nextSize++] = base;
+                }
+            }
+            int[] tmpLayer = layer;
+            double[] tmpBase = layerBase;
+            layer = nextLayer;
+            layerBase = nextLayerBase;
+            nextLayer = tmpLayer;
+            nextLayerBase = tmpBase;
+            layerSize = nextSize;
+        }
+        pm.done();
+    }
+
+    private boolean isValid( int index ) {
+        return !HMConstants.isNovalue(elev[index], novalue);
+    }
+
+    /**
+     * @return <code>true</code> if the cell is on the raster edge or touches a novalue.
+     */
+    private boolean isBorder( int col, int row ) {
+        if (col == 0 || row == 0 || col == cols - 1 || row == rows - 1) {
+            return true;
+        }
+        for( int d = 0; d < 8; d++ ) {
+            if (!isValid((row + DROW[d]) * cols + col + DCOL[d])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return <code>true</code> if water can leave the cell, i.e. it is on the border or has a lower neighbour.
+     */
+    private boolean isDrain( int col, int row ) {
+        if (isBorder(col, row)) {
+            return true;
+        }
+        double value = elev[row * cols + col];
+        for( int d = 0; d < 8; d++ ) {
+            if (elev[(row + DROW[d]) * cols + col + DCOL[d]] < value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasFlatNeighbour( int col, int row ) {
+        double value = elev[row * cols + col];
+        for( int d = 0; d < 8; d++ ) {
+            int nCol = col + DCOL[d];
+            int nRow = row + DROW[d];
+            if (nCol < 0 || nCol >= cols || nRow < 0 || nRow >= rows) {
+                continue;
+            }
+            if (elev[nRow * cols + nCol] == value && !isDrain(nCol, nRow)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A growing FIFO queue of ints.
+     */
+    private static class IntFifo {
+        private int[] data;
+        private int head = 0;
+        private int size = 0;
+
+        IntFifo( int initialCapacity ) {
+            data = new int[initialCapacity];
+        }
+
+        void add( int value ) {
+            if (size == data.length) {
+                int[] newData = new int[data.length * 2];
+                for( int i = 0; i < size; i++ ) {
+                    newData[i] = data[(head + i) % data.length];
+                }
+                data = newData;
+                head = 0;
+            }
+            data[(head + size) % data.length] = value;
+            size++;
+        }
+
+        int poll() {
+            int value = data[head];
+            head = (head + 1) % data.length;
+            size--;
+            return value;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    /**
+     * The lowest spill elevation between pairs of labels, kept in an open addressing hash.
+     */
+    private static class SpillEdges {
+        private long[] keys;
+        private double[] weights;
+        private int size = 0;
+
+        SpillEdges( int initialCapacity ) {
+            int capacity = Integer.highestOneBit(Math.max(16, initialCapacity) - 1) << 1;
+            keys = new long[capacity];
+            weights = new double[capacity];
+        }
+
+        void add( int label1, int label2, double weight ) {
+            if (label1 == label2) {
+                return;
+            }
+            // labels start from OCEAN, so a key is never 0
+            long key = ((long) Math.min(label1, label2) << 32) | Math.max(label1, label2);
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while( keys[slot] != 0 ) {
+                if (keys[slot] == key) {
+                    if (weight < weights[slot]) {
+                        weights[slot] = weight;
+                    }
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            weights[slot] = weight;
+            if (++size * 2 > keys.length) {
+                rehash();
+            }
+        }
+
+        void addAll( SpillEdges other ) {
+            for( int i = 0; i < other.keys.length; i++ ) {
+                long key = other.keys[i];
+                if (key != 0) {
+                    add((int) (key >>> 32), (int) key, other.weights[i]);
+                }
+            }
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            double[] oldWeights = weights;
+            keys = new long[oldKeys.length * 2];
+            weights = new double[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for( int i = 0; i < oldKeys.length; i++ ) {
+                if (oldKeys[i] != 0) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while( keys[slot] != 0 ) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    weights[slot] = oldWeights[i];
+                }
+            }
+        }
+
+        private static int hash( long key ) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+}
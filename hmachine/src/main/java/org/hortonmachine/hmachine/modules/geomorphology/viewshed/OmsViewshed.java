@@ -20,10 +20,16 @@ package org.hortonmachine.hmachine.modules.geomorphology.viewshed;
 import static org.hortonmachine.gears.libs.modules.HMConstants.GEOMORPHOLOGY;
 
 import java.awt.image.WritableRaster;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.jai.iterator.RandomIter;
-import javax.media.jai.iterator.WritableRandomIter;
 
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
@@ -79,17 +85,34 @@ public class OmsViewshed extends HMModel {
     @In
     public double pHeight = 2.0;
 
+    @Description(DESCR_pMaxDistance)
+    @Unit("m")
+    @In
+    public double pMaxDistance = -1;
+
+    @Description(DESCR_doXdraw)
+    @In
+    public boolean doXdraw = false;
+
+    @Description(DESCR_pMaxThreads)
+    @In
+    public int pMaxThreads = getDefaultThreadsNum();
+
     @Description(DESCR_outViewshed)
     @Out
     public GridCoverage2D outViewshed = null;
 
     /**
-     * If a listener is added here, every viewpoint will also be calculated separately, using the same raster. 
+     * If a listener is added here, every viewpoint will also be calculated separately, using the same raster.
+     * In that case the viewpoints are processed one at a time in the calling thread.
      */
     public ViewpointProcessingListener singleViewpointProcessListener = null;
 
     public static final String DOC = "Calculate a viewshed raster, with values based on the visibility by the supplied view points.";
     public static final String DESCR_outViewshed = "Output viewshed raster.";
+    public static final String DESCR_pMaxThreads = "The max number of threads to use for the cumulative viewshed.";
+    public static final String DESCR_doXdraw = "Interpolate the max view angles along the lines of sight (xdraw).";
+    public static final String DESCR_pMaxDistance = "The max distance from the viewpoints to consider (if <= 0 the whole raster is used).";
     public static final String DESCR_pHeight = "Default height above the elevation model to use if no station's height field is available.";
     public static final String DESCR_pField = "Name of the field containing the station's height above the elevation model";
     public static final String DESCR_inViewPoints = "Input viewpoints collection.";
@@ -116,449 +139,301 @@ public class OmsViewshed extends HMModel {
 
         double novalue = HMConstants.getNovalue(inRaster);
 
-        RandomIter inIter = CoverageUtilities.getRandomIterator(inRaster);
-
         WritableRaster outViewshedWR = CoverageUtilities.createWritableRaster(cols, rows, null, null, novalue);
-        WritableRandomIter outViewshedIter = CoverageUtilities.getWritableRandomIterator(outViewshedWR);
-        WritableRaster tmpViewshedWR = null;
-        WritableRandomIter tmpViewshedIter = null;
+
+        List<Viewpoint> viewpoints = getViewpoints(cols, rows, novalue);
+
         if (singleViewpointProcessListener != null) {
-            tmpViewshedWR = CoverageUtilities.createWritableRaster(cols, rows, null, null, novalue);
-            tmpViewshedIter = CoverageUtilities.getWritableRandomIterator(tmpViewshedWR);
+            processSingleViewpoints(viewpoints, regionMap, novalue, outViewshedWR);
+        } else {
+            processCumulative(viewpoints, regionMap, novalue, outViewshedWR);
         }
 
-        WritableRaster viewAngleWR = CoverageUtilities.createWritableRaster(cols, rows, null, null, novalue);
-        WritableRandomIter viewAngleIter = CoverageUtilities.getWritableRandomIterator(viewAngleWR);
-        WritableRaster maxViewAngleWR = CoverageUtilities.createWritableRaster(cols, rows, null, null, novalue);
-        WritableRandomIter maxViewAngleIter = CoverageUtilities.getWritableRandomIterator(maxViewAngleWR);
-
-        List<SimpleFeature> viewPoints = FeatureUtilities.featureCollectionToList(inViewPoints);
+        outViewshed = CoverageUtilities.buildCoverageWithNovalue(KEYWORDS, outViewshedWR, regionMap,
+                inRaster.getCoordinateReferenceSystem(), novalue);
+    }
 
+    private List<Viewpoint> getViewpoints( int cols, int rows, double novalue ) throws Exception {
+        List<SimpleFeature> viewPointFeatures = FeatureUtilities.featureCollectionToList(inViewPoints);
         GridGeometry2D gg = inRaster.getGridGeometry();
-        try {
-            boolean isFirst = true;
-            pm.beginTask("Processing viewpoints...", viewPoints.size());
-            for( SimpleFeature feature : viewPoints ) {
-                Geometry geom = (Geometry) feature.getDefaultGeometry();
-                Coordinate viewPoint3D = geom.getCoordinate();
-                int[] stationColRow = CoverageUtilities.colRowFromCoordinate(viewPoint3D, gg, null);
-                int stationCol = stationColRow[0];
-                int stationRow = stationColRow[1];
-                if (stationCol - 1 < 0 || stationCol + 1 >= cols || stationRow - 1 < 0 || stationRow + 1 >= rows) {
-                    pm.errorMessage("Ignoring viewpoint on border.");
-                    continue;
-                }
+        List<Viewpoint> viewpoints = new ArrayList<>();
+        boolean isFirst = true;
+        for( SimpleFeature feature : viewPointFeatures ) {
+            Geometry geom = (Geometry) feature.getDefaultGeometry();
+            Coordinate viewPoint3D = geom.getCoordinate();
+            int[] stationColRow = CoverageUtilities.colRowFromCoordinate(viewPoint3D, gg, null);
+            int stationCol = stationColRow[0];
+            int stationRow = stationColRow[1];
+            if (stationCol - 1 < 0 || stationCol + 1 >= cols || stationRow - 1 < 0 || stationRow + 1 >= rows) {
+                pm.errorMessage("Ignoring viewpoint on border.");
+                continue;
+            }
 
-                double tmpZ = pHeight;
-                if (pField != null) {
-                    Object fieldObj = feature.getAttribute(pField);
-                    if (fieldObj instanceof Number) {
-                        Number elevNum = (Number) fieldObj;
-                        tmpZ = elevNum.doubleValue();
-                    } else if (isFirst) {
-                        pm.errorMessage(
-                                "Using default height value " + pHeight + ", since field: " + pField + " does not exist.");
-                    }
+            double tmpZ = pHeight;
+            if (pField != null) {
+                Object fieldObj = feature.getAttribute(pField);
+                if (fieldObj instanceof Number) {
+                    Number elevNum = (Number) fieldObj;
+                    tmpZ = elevNum.doubleValue();
+                } else if (isFirst) {
+                    pm.errorMessage("Using default height value " + pHeight + ", since field: " + pField + " does not exist.");
                 }
-                viewPoint3D.z = tmpZ;
-
-                if (singleViewpointProcessListener != null) {
-                    if (!isFirst) {
-                        // in this case clear the raster to hold one viewpoint result at a time
-                        for( int row = 0; row < rows; row++ ) {
-                            for( int col = 0; col < cols; col++ ) {
-                                tmpViewshedIter.setSample(col, row, 0, novalue);
-                            }
+            }
+            isFirst = false;
+            viewPoint3D.z = tmpZ;
+
+            double value = CoverageUtilities.getValue(inRaster, viewPoint3D.x, viewPoint3D.y);
+            if (HMConstants.isNovalue(value, novalue)) {
+                pm.errorMessage("Ignoring viewpoint " + viewPoint3D + " since no elevation value available.");
+                continue;
+            }
+            viewpoints.add(new Viewpoint(viewPoint3D, stationCol, stationRow, value + tmpZ));
+        }
+        return viewpoints;
+    }
+
+    /**
+     * Calculate the viewpoints one by one, passing each viewshed to the listener.
+     * 
+     * <p>Only the window of the previous viewpoint is cleared from the reusable raster.</p>
+     */
+    private void processSingleViewpoints( List<Viewpoint> viewpoints, RegionMap regionMap, double novalue,
+            WritableRaster outViewshedWR ) {
+        int cols = regionMap.getCols();
+        int rows = regionMap.getRows();
+        WritableRaster tmpViewshedWR = CoverageUtilities.createWritableRaster(cols, rows, null, null, novalue);
+        RandomIter inIter = CoverageUtilities.getRandomIterator(inRaster);
+        ViewshedCalculator calculator = new ViewshedCalculator(regionMap, novalue, pMaxDistance, doXdraw);
+        int[] window = null;
+        try {
+            pm.beginTask("Processing viewpoints...", viewpoints.size());
+            for( Viewpoint viewpoint : viewpoints ) {
+                if (window != null) {
+                    // clear the raster to hold one viewpoint result at a time
+                    for( int row = window[1]; row <= window[3]; row++ ) {
+                        for( int col = window[0]; col <= window[2]; col++ ) {
+                            tmpViewshedWR.setSample(col, row, 0, novalue);
                         }
                     }
-                    calculateViewshed(viewPoint3D, stationColRow, cols, rows, novalue, inIter, tmpViewshedIter, viewAngleIter,
-                            maxViewAngleIter, gg);
-                    singleViewpointProcessListener.processViewPoint(viewPoint3D, tmpViewshedWR);
-                    for( int r = 0; r < rows; r++ ) {
-                        for( int c = 0; c < cols; c++ ) {
-                            double tmpValue = tmpViewshedIter.getSampleDouble(c, r, 0);
-                            double finalValue = outViewshedIter.getSampleDouble(c, r, 0);
-                            if (HMConstants.isNovalue(tmpValue, novalue)) {
-                                tmpValue = 0;
-                            }
+                }
+                pm.message("Working on viewpoint: " + viewpoint.coordinate);
+                calculator.calculate(inIter, viewpoint.col, viewpoint.row, viewpoint.coordinate.x, viewpoint.coordinate.y,
+                        viewpoint.z, ( col, row ) -> {
+                            tmpViewshedWR.setSample(col, row, 0, 1);
+                            double finalValue = outViewshedWR.getSampleDouble(col, row, 0);
                             if (HMConstants.isNovalue(finalValue, novalue)) {
                                 finalValue = 0;
                             }
-                            outViewshedIter.setSample(c, r, 0, tmpValue + finalValue);
-                        }
-                    }
-                } else {
-                    calculateViewshed(viewPoint3D, stationColRow, cols, rows, novalue, inIter, outViewshedIter, viewAngleIter,
-                            maxViewAngleIter, gg);
-                }
-
-                isFirst = false;
+                            outViewshedWR.setSample(col, row, 0, finalValue + 1);
+                        });
+                window = calculator.getLastWindow();
+                singleViewpointProcessListener.processViewPoint(viewpoint.coordinate, tmpViewshedWR);
+                pm.worked(1);
             }
             pm.done();
-
         } finally {
             inIter.done();
-            viewAngleIter.done();
-            maxViewAngleIter.done();
-            if (tmpViewshedIter != null)
-                tmpViewshedIter.done();
-            outViewshedIter.done();
         }
-
-        outViewshed = CoverageUtilities.buildCoverageWithNovalue(KEYWORDS, outViewshedWR, regionMap,
-                inRaster.getCoordinateReferenceSystem(), novalue);
-//        dumpRaster(CoverageUtilities.buildCoverageWithNovalue("viewangle", viewAngleWR, regionMap,
-//                inRaster.getCoordinateReferenceSystem(), novalue), "/home/hydrologis/data/DTM_calvello/viewangle.asc");
-//        dumpRaster(
-//                CoverageUtilities.buildCoverageWithNovalue("maxviewangle", maxViewAngleWR, regionMap,
-//                        inRaster.getCoordinateReferenceSystem(), novalue),
-//                "/home/hydrologis/data/DTM_calvello/viewangle_max.asc");
     }
 
-    private void calculateViewshed( Coordinate viewPoint3D, int[] stationColRow, int cols, int rows, double novalue,
-            RandomIter inIter, WritableRandomIter outViewshedIter, WritableRandomIter viewAngleIter,
-            WritableRandomIter maxViewAngleIter, GridGeometry2D gg ) {
-        double value = CoverageUtilities.getValue(inRaster, viewPoint3D.x, viewPoint3D.y);
-        if (!HMConstants.isNovalue(value, novalue)) {
-            pm.message("Working on viewpoint: " + viewPoint3D);
-            double stationX = viewPoint3D.x;
-            double stationY = viewPoint3D.y;
-            double stationZ = value + viewPoint3D.z;
-
-            int stationCol = stationColRow[0];
-            int stationRow = stationColRow[1];
-
-            for( int row = 0; row < rows; row++ ) {
-                for( int col = 0; col < cols; col++ ) {
-                    double z = inIter.getSampleDouble(col, row, 0);
-                    if (!HMConstants.isNovalue(z, novalue)) {
-                        Coordinate worldC = CoverageUtilities.coordinateFromColRow(col, row, gg);
-                        double x = worldC.x;
-                        double y = worldC.y;
-                        double dZ = z - stationZ;
-                        double dist = Math.sqrt((x - stationX) * (x - stationX) + (y - stationY) * (y - stationY));
-                        if (dist != 0.0) {
-                            double viewAngleValue = dZ / dist * 1000;
-                            viewAngleIter.setSample(col, row, 0, viewAngleValue);
-                        }
-                    } else {
-                        viewAngleIter.setSample(col, row, 0, novalue);
-                    }
-                }
+    /**
+     * Calculate the cumulative viewshed in parallel.
+     * 
+     * <p>The viewpoints are sorted by position and taken in chunks by the workers, so 
+     * that the windows of a worker are close to each other. Each worker counts the visible cells 
+     * in its own tiles, allocated only where its viewpoints see, and the counts are summed 
+     * into the output at the end.</p>
+     */
+    private void processCumulative( List<Viewpoint> viewpoints, RegionMap regionMap, double novalue,
+            WritableRaster outViewshedWR ) throws Exception {
+        int cols = regionMap.getCols();
+        int rows = regionMap.getRows();
+        viewpoints.sort(( v1, v2 ) -> {
+            int compare = Integer.compare(v1.row / CountsTiles.TILE_SIZE, v2.row / CountsTiles.TILE_SIZE);
+            if (compare == 0) {
+                compare = Integer.compare(v1.col, v2.col);
             }
+            return compare;
+        });
+
+        int threads = Math.max(1, Math.min(pMaxThreads, viewpoints.size()));
+        int memoryThreads = getMaxWorkersByMemory(cols, rows, regionMap);
+        if (memoryThreads < threads) {
+            pm.message("Not enough memory for " + threads + " threads, using " + memoryThreads + ".");
+            threads = memoryThreads;
+        }
+        int chunkSize = Math.max(1, viewpoints.size() / (threads * 8));
+        AtomicInteger nextViewpoint = new AtomicInteger();
+        List<ViewpointsWorker> workers = new ArrayList<>();
+        for( int i = 0; i < threads; i++ ) {
+            workers.add(new ViewpointsWorker(viewpoints, chunkSize, nextViewpoint, regionMap, novalue));
+        }
 
-            // perform the simple scan lines.
-            for( int row = stationRow - 1; row <= stationRow + 1; row++ ) {
-                for( int col = stationCol - 1; col <= stationCol + 1; col++ ) {
-                    maxViewAngleIter.setSample(col, row, 0, viewAngleIter.getSampleDouble(col, row, 0));
+        pm.beginTask("Processing viewpoints...", viewpoints.size());
+        if (threads == 1) {
+            workers.get(0).call();
+        } else {
+            ExecutorService fixedThreadPool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Void>> futures = new ArrayList<>();
+                for( ViewpointsWorker worker : workers ) {
+                    futures.add(fixedThreadPool.submit(worker));
                 }
-            }
-
-            double maxVA = viewAngleIter.getSampleDouble(stationCol, stationRow - 1, 0);
-            for( int row = stationRow - 2; row >= 0; row-- ) {
-                double z = viewAngleIter.getSampleDouble(stationCol, row, 0);
-                if (!HMConstants.isNovalue(z, novalue)) {
-                    if (z > maxVA) {
-                        maxVA = z;
+                for( Future<Void> future : futures ) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        }
+                        throw new RuntimeException(cause);
                     }
-                    maxViewAngleIter.setSample(stationCol, row, 0, maxVA);
                 }
+            } finally {
+                fixedThreadPool.shutdownNow();
             }
+        }
+        pm.done();
 
-            maxVA = viewAngleIter.getSampleDouble(stationCol, stationRow + 1, 0);
-            for( int row = stationRow + 2; row < rows; row++ ) {
-                double z = viewAngleIter.getSampleDouble(stationCol, row, 0);
-                if (!HMConstants.isNovalue(z, novalue)) {
-                    if (z > maxVA) {
-                        maxVA = z;
-                    }
-                    maxViewAngleIter.setSample(stationCol, row, 0, maxVA);
-                }
-            }
+        for( ViewpointsWorker worker : workers ) {
+            worker.counts.addTo(outViewshedWR, novalue);
+        }
+    }
 
-            maxVA = viewAngleIter.getSampleDouble(stationCol + 1, stationRow, 0);
-            for( int col = stationCol + 2; col < cols - 1; col++ ) {
-                double z = viewAngleIter.getSampleDouble(col, stationRow, 0);
-                if (!HMConstants.isNovalue(z, novalue)) {
-                    if (z > maxVA) {
-                        maxVA = z;
-                    }
-                    maxViewAngleIter.setSample(col, stationRow, 0, maxVA);
-                }
-            }
+    /**
+     * Get the number of workers that fit in the free heap. Each worker keeps the scratch 
+     * arrays of a window (the whole raster if there is no max distance) and, in the worst 
+     * case, counts for all the cells of the raster.
+     */
+    private int getMaxWorkersByMemory( int cols, int rows, RegionMap regionMap ) {
+        long windowCells;
+        if (pMaxDistance > 0) {
+            long windowSide = 2L * ((long) Math.ceil(pMaxDistance / Math.min(regionMap.getXres(), regionMap.getYres())) + 1) + 1;
+            windowCells = Math.min(windowSide, cols) * Math.min(windowSide, rows);
+        } else {
+            windowCells = (long) cols * rows;
+        }
+        long workerBytes = windowCells * 2 * Double.BYTES + (long) cols * rows * Integer.BYTES;
+        Runtime runtime = Runtime.getRuntime();
+        long freeBytes = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        // leave some space for the rest of the processing
+        long workers = (long) (freeBytes * 0.8) / Math.max(1, workerBytes);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, workers));
+    }
 
-            maxVA = viewAngleIter.getSampleDouble(stationCol - 1, stationRow, 0);
-            for( int col = stationCol - 2; col >= 0; col-- ) {
-                double z = viewAngleIter.getSampleDouble(col, stationRow, 0);
-                if (!HMConstants.isNovalue(z, novalue)) {
-                    if (z > maxVA) {
-                        maxVA = z;
-                    }
-                    maxViewAngleIter.setSample(col, stationRow, 0, maxVA);
-                }
-            }
+    private static class Viewpoint {
+        private final Coordinate coordinate;
+        private final int col;
+        private final int row;
+        private final double z;
+
+        Viewpoint( Coordinate coordinate, int col, int row, double z ) {
+            this.coordinate = coordinate;
+            this.col = col;
+            this.row = row;
+            this.z = z;
+        }
+    }
 
-            // solve the first triangular facet
-            int vertCount = 0;
-            for( int row = stationRow - 2; row >= 0; row-- ) {
-                vertCount++;
-                int horizCount = 0;
-                for( int col = stationCol + 1; col <= stationCol + vertCount; col++ ) {
-                    if (col >= 0 && col < cols) {
-                        double va = viewAngleIter.getSampleDouble(col, row, 0);
-                        if (!HMConstants.isNovalue(va, novalue)) {
-                            horizCount++;
-                            double tva;
-                            if (horizCount != vertCount) {
-                                double t1 = maxViewAngleIter.getSampleDouble(col - 1, row + 1, 0);
-                                double t2 = maxViewAngleIter.getSampleDouble(col, row + 1, 0);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngleIter.getSampleDouble(col - 1, row + 1, 0);
-                            }
-                            if (tva > va) {
-                                maxViewAngleIter.setSample(col, row, 0, tva);
-                            } else {
-                                maxViewAngleIter.setSample(col, row, 0, va);
-                            }
-                        }
-                    } else {
-                        break;
-                    }
-                }
-            }
+    /**
+     * A worker that takes chunks of viewpoints until all are done.
+     */
+    private class ViewpointsWorker implements Callable<Void> {
+        private final List<Viewpoint> viewpoints;
+        private final int chunkSize;
+        private final AtomicInteger nextViewpoint;
+        private final ViewshedCalculator calculator;
+        private final CountsTiles counts;
+
+        ViewpointsWorker( List<Viewpoint> viewpoints, int chunkSize, AtomicInteger nextViewpoint, RegionMap regionMap,
+                double novalue ) {
+            this.viewpoints = viewpoints;
+            this.chunkSize = chunkSize;
+            this.nextViewpoint = nextViewpoint;
+            calculator = new ViewshedCalculator(regionMap, novalue, pMaxDistance, doXdraw);
+            counts = new CountsTiles(regionMap.getCols(), regionMap.getRows());
+        }
 
-            // solve the second triangular facet
-            vertCount = 1;
-            for( int row = stationRow - 2; row >= 0; row-- ) {
-                vertCount++;
-                int horizCount = 0;
-                for( int col = stationCol - 1; col >= stationCol - vertCount; col-- ) {
-                    if (col >= 0 && col < cols) {
-                        double va = viewAngleIter.getSampleDouble(col, row, 0);
-                        if (!HMConstants.isNovalue(va, novalue)) {
-                            horizCount++;
-                            double tva;
-                            if (horizCount != vertCount) {
-                                double t1 = maxViewAngleIter.getSampleDouble(col + 1, row + 1, 0);
-                                double t2 = maxViewAngleIter.getSampleDouble(col, row + 1, 0);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngleIter.getSampleDouble(col + 1, row + 1, 0);
-                            }
-                            if (tva > va) {
-                                maxViewAngleIter.setSample(col, row, 0, tva);
-                            } else {
-                                maxViewAngleIter.setSample(col, row, 0, va);
-                            }
-                        }
-                    } else {
+        @Override
+        public Void call() throws Exception {
+            RandomIter inIter = CoverageUtilities.getRandomIterator(inRaster);
+            try {
+                int from;
+                while( (from = nextViewpoint.getAndAdd(chunkSize)) < viewpoints.size() ) {
+                    if (pm.isCanceled()) {
                         break;
                     }
-                }
-            }
-
-            // solve the third triangular facet
-            vertCount = 1;
-            for( int row = stationRow + 2; row < rows; row++ ) {
-                vertCount++;
-                int horizCount = 0;
-                for( int col = stationCol - 1; col >= stationCol - vertCount; col-- ) {
-                    if (col >= 0 && col < cols) {
-                        double va = viewAngleIter.getSampleDouble(col, row, 0);
-                        if (!HMConstants.isNovalue(va, novalue)) {
-                            horizCount++;
-                            double tva;
-                            if (horizCount != vertCount) {
-                                double t1 = maxViewAngleIter.getSampleDouble(col + 1, row - 1, 0);
-                                double t2 = maxViewAngleIter.getSampleDouble(col, row - 1, 0);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngleIter.getSampleDouble(col + 1, row - 1, 0);
-                            }
-                            if (tva > va) {
-                                maxViewAngleIter.setSample(col, row, 0, tva);
-                            } else {
-                                maxViewAngleIter.setSample(col, row, 0, va);
-                            }
-                        }
-                    } else {
-                        break;
+                    int to = Math.min(viewpoints.size(), from + chunkSize);
+                    for( int i = from; i < to; i++ ) {
+                        Viewpoint viewpoint = viewpoints.get(i);
+                        calculator.calculate(inIter, viewpoint.col, viewpoint.row, viewpoint.coordinate.x,
+                                viewpoint.coordinate.y, viewpoint.z, counts::increment);
                     }
-                }
-            }
-
-            // solve the fourth triangular facet
-            vertCount = 1;
-            for( int row = stationRow + 2; row < rows; row++ ) {
-                vertCount++;
-                int horizCount = 0;
-                for( int col = stationCol + 1; col <= stationCol + vertCount; col++ ) {
-                    if (col >= 0 && col < cols) {
-                        double va = viewAngleIter.getSampleDouble(col, row, 0);
-                        if (!HMConstants.isNovalue(va, novalue)) {
-                            horizCount++;
-                            double tva;
-                            if (horizCount != vertCount) {
-                                double t1 = maxViewAngleIter.getSampleDouble(col - 1, row - 1, 0);
-                                double t2 = maxViewAngleIter.getSampleDouble(col, row - 1, 0);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngleIter.getSampleDouble(col - 1, row - 1, 0);
-                            }
-                            if (tva > va) {
-                                maxViewAngleIter.setSample(col, row, 0, tva);
-                            } else {
-                                maxViewAngleIter.setSample(col, row, 0, va);
-                            }
-                        }
-                    } else {
-                        break;
+                    // the monitors are not threadsafe
+                    synchronized (pm) {
+                        pm.worked(to - from);
                     }
                 }
+            } finally {
+                inIter.done();
             }
+            return null;
+        }
+    }
 
-            // solve the fifth triangular facet
-            vertCount = 1;
-            for( int col = stationCol + 2; col < cols; col++ ) {
-                vertCount++;
-                int horizCount = 0;
-                for( int row = stationRow - 1; row >= stationRow - vertCount; row-- ) {
-                    if (row >= 0 && row < rows) {
-                        double va = viewAngleIter.getSampleDouble(col, row, 0);
-                        if (!HMConstants.isNovalue(va, novalue)) {
-                            horizCount++;
-                            double tva;
-                            if (horizCount != vertCount) {
-                                double t1 = maxViewAngleIter.getSampleDouble(col - 1, row + 1, 0);
-                                double t2 = maxViewAngleIter.getSampleDouble(col - 1, row, 0);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngleIter.getSampleDouble(col - 1, row + 1, 0);
-                            }
-                            if (tva > va) {
-                                maxViewAngleIter.setSample(col, row, 0, tva);
-                            } else {
-                                maxViewAngleIter.setSample(col, row, 0, va);
-                            }
-                        }
-                    } else {
-                        break;
-                    }
-                }
-            }
+    /**
+     * Visibility counts kept in tiles that are allocated at the first visible cell.
+     */
+    private static class CountsTiles {
+        private static final int TILE_SIZE = 256;
+
+        private final int cols;
+        private final int rows;
+        private final int tileCols;
+        private final int[][] tiles;
+
+        CountsTiles( int cols, int rows ) {
+            this.cols = cols;
+            this.rows = rows;
+            tileCols = (cols + TILE_SIZE - 1) / TILE_SIZE;
+            int tileRows = (rows + TILE_SIZE - 1) / TILE_SIZE;
+            tiles = new int[tileCols * tileRows][];
+        }
 
-            // solve the sixth triangular facet
-            vertCount = 1;
-            for( int col = stationCol + 2; col < cols; col++ ) {
-                vertCount++;
-                int horizCount = 0;
-                for( int row = stationRow + 1; row <= stationRow + vertCount; row++ ) {
-                    if (row >= 0 && row < rows) {
-                        double va = viewAngleIter.getSampleDouble(col, row, 0);
-                        if (!HMConstants.isNovalue(va, novalue)) {
-                            horizCount++;
-                            double tva;
-                            if (horizCount != vertCount) {
-                                double t1 = maxViewAngleIter.getSampleDouble(col - 1, row - 1, 0);
-                                double t2 = maxViewAngleIter.getSampleDouble(col - 1, row, 0);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngleIter.getSampleDouble(col - 1, row - 1, 0);
-                            }
-                            if (tva > va) {
-                                maxViewAngleIter.setSample(col, row, 0, tva);
-                            } else {
-                                maxViewAngleIter.setSample(col, row, 0, va);
-                            }
-                        }
-                    } else {
-                        break;
-                    }
-                }
+        void increment( int col, int row ) {
+            int tileIndex = (row / TILE_SIZE) * tileCols + col / TILE_SIZE;
+            int[] tile = tiles[tileIndex];
+            if (tile == null) {
+                tile = new int[TILE_SIZE * TILE_SIZE];
+                tiles[tileIndex] = tile;
             }
+            tile[(row % TILE_SIZE) * TILE_SIZE + col % TILE_SIZE]++;
+        }
 
-            // solve the seventh triangular facet
-            vertCount = 1;
-            for( int col = stationCol - 2; col >= 0; col-- ) {
-                vertCount++;
-                int horizCount = 0;
-                for( int row = stationRow + 1; row <= stationRow + vertCount; row++ ) {
-                    if (row >= 0 && row < rows) {
-                        double va = viewAngleIter.getSampleDouble(col, row, 0);
-                        if (!HMConstants.isNovalue(va, novalue)) {
-                            horizCount++;
-                            double tva;
-                            if (horizCount != vertCount) {
-                                double t1 = maxViewAngleIter.getSampleDouble(col + 1, row - 1, 0);
-                                double t2 = maxViewAngleIter.getSampleDouble(col + 1, row, 0);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngleIter.getSampleDouble(col + 1, row - 1, 0);
-                            }
-                            if (tva > va) {
-                                maxViewAngleIter.setSample(col, row, 0, tva);
-                            } else {
-                                maxViewAngleIter.setSample(col, row, 0, va);
-                            }
-                        }
-                    } else {
-                        break;
-                    }
+        void addTo( WritableRaster outWR, double novalue ) {
+            for( int tileIndex = 0; tileIndex < tiles.length; tileIndex++ ) {
+                int[] tile = tiles[tileIndex];
+                if (tile == null) {
+                    continue;
                 }
-            }
-
-            // solve the eight triangular facet
-            vertCount = 1;
-            for( int col = stationCol - 2; col >= 0; col-- ) {
-                vertCount++;
-                int horizCount = 0;
-                for( int row = stationRow - 1; row >= stationRow - vertCount; row-- ) {
-                    if (row >= 0 && row < rows) {
-                        double va = viewAngleIter.getSampleDouble(col, row, 0);
-                        if (!HMConstants.isNovalue(va, novalue)) {
-                            horizCount++;
-                            double tva;
-                            if (horizCount != vertCount) {
-                                double t1 = maxViewAngleIter.getSampleDouble(col + 1, row + 1, 0);
-                                double t2 = maxViewAngleIter.getSampleDouble(col + 1, row, 0);
-                                tva = t2 + horizCount / vertCount * (t1 - t2);
-                            } else {
-                                tva = maxViewAngleIter.getSampleDouble(col + 1, row + 1, 0);
-                            }
-                            if (tva > va) {
-                                maxViewAngleIter.setSample(col, row, 0, tva);
-                            } else {
-                                maxViewAngleIter.setSample(col, row, 0, va);
+                int fromCol = (tileIndex % tileCols) * TILE_SIZE;
+                int fromRow = (tileIndex / tileCols) * TILE_SIZE;
+                int toCol = Math.min(cols, fromCol + TILE_SIZE);
+                int toRow = Math.min(rows, fromRow + TILE_SIZE);
+                for( int row = fromRow; row < toRow; row++ ) {
+                    for( int col = fromCol; col < toCol; col++ ) {
+                        int count = tile[(row - fromRow) * TILE_SIZE + col - fromCol];
+                        if (count > 0) {
+                            double value = outWR.getSampleDouble(col, row, 0);
+                            if (HMConstants.isNovalue(value, novalue)) {
+                                value = 0;
                             }
+                            outWR.setSample(col, row, 0, value + count);
                         }
-                    } else {
-                        break;
                     }
                 }
             }
-
-            for( int row = 0; row < rows; row++ ) {
-                for( int col = 0; col < cols; col++ ) {
-                    double viewAngle = viewAngleIter.getSampleDouble(col, row, 0);
-                    double maxViewAngle = maxViewAngleIter.getSampleDouble(col, row, 0);
-
-                    if (maxViewAngle <= viewAngle && !HMConstants.isNovalue(viewAngle, novalue)) {
-                        double viewshed = outViewshedIter.getSampleDouble(col, row, 0);
-                        if (HMConstants.isNovalue(viewshed, novalue)) {
-                            viewshed = 0;
-                        }
-                        outViewshedIter.setSample(col, row, 0, viewshed + 1);
-//                            } else if (HMConstants.isNovalue(viewAngle, novalue)) {
-//                                outViewshedIter.setSample(col, row, 0, novalue);
-                    }
-                }
-            }
-
-            pm.worked(1);
-        } else {
-            pm.errorMessage("Ignoring viewpoint " + viewPoint3D + " since no elevation value available.");
-            pm.worked(1);
         }
     }
 
@@ -0,0 +1,313 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.hmachine.modules.geomorphology.viewshed;
+
+import java.util.Arrays;
+
+import javax.media.jai.iterator.RandomIter;
+
+import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.utils.RegionMap;
+
+/**
+ * The viewshed of a single viewpoint, calculated in the window around it.
+ *
+ * <p>The view angles and the max view angles along the lines of sight are kept
+ * in scratch arrays of the size of the window, which are reused for all the
+ * viewpoints. A calculator is therefore not threadsafe, every thread needs its own.</p>
+ *
+ * <p>The max view angles are propagated from the viewpoint outwards, in the eight
+ * triangular facets between the axes and the diagonals. Each cell takes the max
+ * view angle from the two cells of the previous ring that the line of sight passes through:</p>
+ * <ul>
+ * <li>default: the cell on the same row (or column), as the original facet algorithm does;</li>
+ * <li>xdraw: the value interpolated between the two cells at the point the line of sight crosses the ring.</li>
+ * </ul>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class ViewshedCalculator {
+
+    /**
+     * Receives the visible cells of a viewpoint.
+     */
+    public static interface IVisibleCellsCollector {
+        /**
+         * @param col the col of the visible cell.
+         * @param row the row of the visible cell.
+         */
+        void visible( int col, int row );
+    }
+
+    private final int cols;
+    private final int rows;
+    private final double west;
+    private final double north;
+    private final double xRes;
+    private final double yRes;
+    private final double novalue;
+    private final double maxDistance;
+    private final int windowRadius;
+    private final boolean doXdraw;
+
+    private double[] viewAngles = new double[0];
+    private double[] maxViewAngles = new double[0];
+
+    private int minCol;
+    private int minRow;
+    private int windowCols;
+    private int windowRows;
+
+    /**
+     * @param regionMap the region of the elevation model.
+     * @param novalue the novalue of the elevation model.
+     * @param maxDistance the max distance of the visible cells from the viewpoint, if <= 0 the whole raster is considered.
+     * @param doXdraw if <code>true</code>, the xdraw interpolation of the max view angles is used.
+     */
+    public ViewshedCalculator( RegionMap regionMap, double novalue, double maxDistance, boolean doXdraw ) {
+        cols = regionMap.getCols();
+        rows = regionMap.getRows();
+        west = regionMap.getWest();
+        north = regionMap.getNorth();
+        xRes = regionMap.getXres();
+        yRes = regionMap.getYres();
+        this.novalue = novalue;
+        this.doXdraw = doXdraw;
+        if (maxDistance > 0) {
+            this.maxDistance = maxDistance;
+            windowRadius = (int) Math.ceil(maxDistance / Math.min(xRes, yRes)) + 1;
+        } else {
+            this.maxDistance = Double.POSITIVE_INFINITY;
+            windowRadius = -1;
+        }
+    }
+
+    /**
+     * Calculate the viewshed of a viewpoint.
+     *
+     * <p>The viewpoint needs to have its eight neighbour cells inside the raster.</p>
+     *
+     * <p>The viewpoint cell is always visible. The original algorithm left there the view angle
+     * of the previous viewpoint, so it counted it for all the viewpoints but the first one.</p>
+     *
+     * @param elevIter the iterator over the elevation model.
+     * @param stationCol the col of the viewpoint.
+     * @param stationRow the row of the viewpoint.
+     * @param stationX the x of the viewpoint.
+     * @param stationY the y of the viewpoint.
+     * @param stationZ the elevation of the viewpoint, including the height above ground.
+     * @param collector the collector of the visible cells.
+     * @return the number of visible cells.
+     */
+    public int calculate( RandomIter elevIter, int stationCol, int stationRow, double stationX, double stationY,
+            double stationZ, IVisibleCellsCollector collector ) {
+        if (windowRadius < 0) {
+            minCol = 0;
+            minRow = 0;
+            windowCols = cols;
+            windowRows = rows;
+        } else {
+            minCol = Math.max(0, stationCol - windowRadius);
+            minRow = Math.max(0, stationRow - windowRadius);
+            windowCols = Math.min(cols, stationCol + windowRadius + 1) - minCol;
+            windowRows = Math.min(rows, stationRow + windowRadius + 1) - minRow;
+        }
+        int size = windowCols * windowRows;
+        if (viewAngles.length < size) {
+            viewAngles = new double[size];
+            maxViewAngles = new double[size];
+        }
+        Arrays.fill(maxViewAngles, 0, size, novalue);
+
+        int sc = stationCol - minCol;
+        int sr = stationRow - minRow;
+
+        for( int r = 0; r < windowRows; r++ ) {
+            int row = r + minRow;
+            double y = north - (row + 0.5) * yRes;
+            for( int c = 0; c < windowCols; c++ ) {
+                int col = c + minCol;
+                double z = elevIter.getSampleDouble(col, row, 0);
+                int index = r * windowCols + c;
+                if (!HMConstants.isNovalue(z, novalue) && (c != sc || r != sr)) {
+                    double x = west + (col + 0.5) * xRes;
+                    double dist = Math.sqrt((x - stationX) * (x - stationX) + (y - stationY) * (y - stationY));
+                    viewAngles[index] = (z - stationZ) / dist * 1000;
+                } else {
+                    viewAngles[index] = novalue;
+                }
+            }
+        }
+
+        // the neighbour cells are always visible, as in the original algorithm
+        for( int r = sr - 1; r <= sr + 1; r++ ) {
+            for( int c = sc - 1; c <= sc + 1; c++ ) {
+                maxViewAngles[r * windowCols + c] = viewAngles[r * windowCols + c];
+            }
+        }
+
+        // the scan lines along the axes
+        scanLine(sc, sr, 0, -1);
+        scanLine(sc, sr, 0, 1);
+        scanLine(sc, sr, 1, 0);
+        scanLine(sc, sr, -1, 0);
+
+        // the triangular facets, first along the rows, then along the cols
+        rowsFacet(sc, sr, -1, 1, 0);
+        rowsFacet(sc, sr, -1, -1, 1);
+        rowsFacet(sc, sr, 1, -1, 1);
+        rowsFacet(sc, sr, 1, 1, 1);
+        colsFacet(sc, sr, 1, -1);
+        colsFacet(sc, sr, 1, 1);
+        colsFacet(sc, sr, -1, 1);
+        colsFacet(sc, sr, -1, -1);
+
+        int visibleCount = 0;
+        for( int r = 0; r < windowRows; r++ ) {
+            int row = r + minRow;
+            double y = north - (row + 0.5) * yRes;
+            for( int c = 0; c < windowCols; c++ ) {
+                int index = r * windowCols + c;
+                double viewAngle = viewAngles[index];
+                boolean isStation = c == sc && r == sr;
+                if (isStation || (maxViewAngles[index] <= viewAngle && !HMConstants.isNovalue(viewAngle, novalue))) {
+                    int col = c + minCol;
+                    if (!isStation && windowRadius >= 0) {
+                        double x = west + (col + 0.5) * xRes;
+                        double dist = Math.sqrt((x - stationX) * (x - stationX) + (y - stationY) * (y - stationY));
+                        if (dist > maxDistance) {
+                            continue;
+                        }
+                    }
+                    collector.visible(col, row);
+                    visibleCount++;
+                }
+            }
+        }
+        return visibleCount;
+    }
+
+    private void scanLine( int sc, int sr, int dc, int dr ) {
+        double maxVA = viewAngles[(sr + dr) * windowCols + sc + dc];
+        int c = sc + 2 * dc;
+        int r = sr + 2 * dr;
+        while( c >= 0 && c < windowCols && r >= 0 && r < windowRows ) {
+            int index = r * windowCols + c;
+            double va = viewAngles[index];
+            if (!HMConstants.isNovalue(va, novalue)) {
+                if (va > maxVA) {
+                    maxVA = va;
+                }
+                maxViewAngles[index] = maxVA;
+            }
+            c += dc;
+            r += dr;
+        }
+    }
+
+    /**
+     * A facet that proceeds by rows away from the viewpoint.
+     *
+     * @param dr the direction of the rows.
+     * @param dc the direction of the cols inside a row.
+     * @param countOffset 0 if the diagonal is left to the adjacent facet.
+     */
+    private void rowsFacet( int sc, int sr, int dr, int dc, int countOffset ) {
+        int distance = 1;
+        for( int r = sr + 2 * dr; r >= 0 && r < windowRows; r += dr ) {
+            distance++;
+            int vertCount = distance - 1 + countOffset;
+            int horizCount = 0;
+            int previousRow = (r - dr) * windowCols;
+            for( int k = 1; k <= vertCount; k++ ) {
+                int c = sc + k * dc;
+                if (c < 0 || c >= windowCols) {
+                    break;
+                }
+                int index = r * windowCols + c;
+                double va = viewAngles[index];
+                if (!HMConstants.isNovalue(va, novalue)) {
+                    horizCount++;
+                    double t1 = maxViewAngles[previousRow + c - dc];
+                    double t2 = maxViewAngles[previousRow + c];
+                    double tva = interpolate(t1, t2, horizCount, vertCount, k, distance);
+                    maxViewAngles[index] = Math.max(tva, va);
+                }
+            }
+        }
+    }
+
+    /**
+     * A facet that proceeds by cols away from the viewpoint.
+     *
+     * @param dc the direction of the cols.
+     * @param dr the direction of the rows inside a col.
+     */
+    private void colsFacet( int sc, int sr, int dc, int dr ) {
+        int distance = 1;
+        for( int c = sc + 2 * dc; c >= 0 && c < windowCols; c += dc ) {
+            distance++;
+            int vertCount = distance;
+            int horizCount = 0;
+            for( int k = 1; k <= vertCount; k++ ) {
+                int r = sr + k * dr;
+                if (r < 0 || r >= windowRows) {
+                    break;
+                }
+                int index = r * windowCols + c;
+                double va = viewAngles[index];
+                if (!HMConstants.isNovalue(va, novalue)) {
+                    horizCount++;
+                    double t1 = maxViewAngles[(r - dr) * windowCols + c - dc];
+                    double t2 = maxViewAngles[r * windowCols + c - dc];
+                    double tva = interpolate(t1, t2, horizCount, vertCount, k, distance);
+                    maxViewAngles[index] = Math.max(tva, va);
+                }
+            }
+        }
+    }
+
+    /**
+     * The max view angle at the point the line of sight crosses the previous ring.
+     *
+     * @param t1 the max view angle of the diagonal cell of the previous ring.
+     * @param t2 the max view angle of the straight cell of the previous ring.
+     * @param horizCount the count of the valid cells in the ring so far.
+     * @param vertCount the count of the cells of the ring.
+     * @param offset the offset of the cell from the axis.
+     * @param distance the distance of the ring from the viewpoint.
+     */
+    private double interpolate( double t1, double t2, int horizCount, int vertCount, int offset, int distance ) {
+        if (doXdraw) {
+            return t2 + (double) offset / distance * (t1 - t2);
+        }
+        if (horizCount != vertCount) {
+            // integer division as in the original algorithm
+            return t2 + horizCount / vertCount * (t1 - t2);
+        }
+        return t1;
+    }
+
+    /**
+     * @return the window of the last calculation as [minCol, minRow, maxCol, maxRow] (inclusive).
+     */
+    public int[] getLastWindow() {
+        return new int[]{minCol, minRow, minCol + windowCols - 1, minRow + windowRows - 1};
+    }
+
+}
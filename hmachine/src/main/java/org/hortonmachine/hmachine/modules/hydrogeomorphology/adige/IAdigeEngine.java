@@ -67,4 +67,9 @@ public interface IAdigeEngine {
      * @return the discharge.
      */
     public HashMap<Integer, double[]> getSubDischarge();
+
+    /**
+     * Release the resources of the engine, once the simulation is over.
+     */
+    public void close();
 }
@@ -62,6 +62,7 @@ import java.util.Set;
 import oms3.annotations.Author;
 import oms3.annotations.Description;
 import oms3.annotations.Execute;
+import oms3.annotations.Finalize;
 import oms3.annotations.In;
 import oms3.annotations.Keywords;
 import oms3.annotations.Label;
@@ -413,10 +414,27 @@ public class OmsAdige extends HMModel {
         // double intervalStartTimeInMinutes = runningDateInMinutes;
         // double intervalEndTimeInMinutes = runningDateInMinutes + tTimestep;
 
-        initialConditions = adigeEngine.solve(currentTimstamp, tTimestep, 1, initialConditions, rainArray, etpArray);
+        boolean isLastTimestep = endTimestamp != null && !currentTimstamp.plusMinutes(tTimestep).isBefore(endTimestamp);
+        boolean isSolved = false;
+        try {
+            initialConditions = adigeEngine.solve(currentTimstamp, tTimestep, 1, initialConditions, rainArray, etpArray);
+            isSolved = true;
+        } finally {
+            if (isLastTimestep || !isSolved) {
+                // the run is over, release the threads of the engine
+                adigeEngine.close();
+            }
+        }
 
     }
 
+    @Finalize
+    public void close() {
+        if (adigeEngine != null) {
+            adigeEngine.close();
+        }
+    }
+
     private void linkBasinWithNetwork() throws Exception {
         FeatureExtender fExt = new FeatureExtender(inNetwork.getSchema(), new String[]{NetworkChannel.NETNUMNAME},
                 new Class[]{Integer.class});
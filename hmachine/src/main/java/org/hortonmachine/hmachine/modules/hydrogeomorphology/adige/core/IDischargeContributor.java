@@ -44,13 +44,14 @@ public interface IDischargeContributor {
      * <p>This is useful because the contributor knows if it has to
      * sumor subtract.
      * 
+     * @param pfafstetterNumber the number identifying the network position.
      * @param contributorDischarge the discharge provided by the contributor itself
      *                  (taken from the result of {@link #getDischarge(String)}.
      * @param inputDischarge the input discharge in the contributing point. May 
      *                      be useful to calculate the output discharge. 
      * @return the merged discharge.
      */
-    public abstract double mergeWithDischarge(double contributorDischarge, double inputDischarge );
+    public abstract double mergeWithDischarge( String pfafstetterNumber, double contributorDischarge, double inputDischarge );
 
     public abstract void setCurrentData( HashMap<Integer, double[]> currentDataMap );
 
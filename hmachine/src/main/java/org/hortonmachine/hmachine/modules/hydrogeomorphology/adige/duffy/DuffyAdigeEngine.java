@@ -97,6 +97,7 @@ public class DuffyAdigeEngine implements IAdigeEngine {
         inDuffyInput.outS2 = new HashMap<Integer, double[]>();
 
         duffyEvaluator = new DuffyModel(orderedHillslopes, inDuffyInput.pRouting, pm, doLog);
+        duffyEvaluator.setMaxThreads(inDuffyInput.pMaxThreads);
 
         hillsSlopeNum = orderedHillslopes.size();
 
@@ -208,6 +209,10 @@ public class DuffyAdigeEngine implements IAdigeEngine {
         return outSubDischarge;
     }
 
+    public void close() {
+        duffyEvaluator.close();
+    }
+
     private void createDistributors() {
         HashMap<Integer, ADischargeDistributor> hillslopeId2DischargeDistributor = new HashMap<Integer, ADischargeDistributor>();
         for( IHillSlope hillSlope : orderedHillslopes ) {
@@ -111,6 +111,10 @@ public class DuffyInputs extends HMModel {
     @In@Out
     public int pRouting = 3;
 
+    @Description("The number of threads used to evaluate the hillslopes, 1 for the serial evaluation.")
+    @In@Out
+    public int pMaxThreads = 1;
+
     @Description("Switch to write final boundary conditions.")
     @In@Out
     public boolean doBoundary = false;
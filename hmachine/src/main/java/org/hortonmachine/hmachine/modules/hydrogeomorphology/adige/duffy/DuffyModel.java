@@ -30,8 +30,12 @@ import static org.hortonmachine.gears.libs.modules.HMConstants.isNovalue;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 import org.hortonmachine.gears.libs.exceptions.ModelsIllegalargumentException;
+import org.hortonmachine.gears.libs.exceptions.ModelsRuntimeException;
 import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
 import org.hortonmachine.hmachine.modules.hydrogeomorphology.adige.core.HillSlopeDuffy;
 import org.hortonmachine.hmachine.modules.hydrogeomorphology.adige.core.IDischargeContributor;
@@ -47,16 +51,16 @@ import org.hortonmachine.hmachine.modules.network.PfafstetterNumber;
  * {@link IBasicFunction.util.ordDiffEqSolver.BasicFunction} that is used by the
  * {@link hydroScalingAPI.util.ordDiffEqSolver.RungeKuttaFelberg}
  * 
+ * <p>The network topology and the geometry of the links don't change during the 
+ * simulation, so they are read from the hillslopes once, when the model is created.
+ * The derivatives of the hillslopes only depend on the input array, which allows 
+ * to evaluate them in parallel (see {@link #setMaxThreads(int)}).</p>
+ * 
  * @author Peter Furey
  * @author Andrea Antonello (www.hydrologis.com)
  * @author Silvia Franceschi (www.hydrologis.com)
  */
 public class DuffyModel {
-    private double qd, qs, Q_trib, Qs_trib;
-    // public double pcoe;
-
-    private double satsurf, mst, qdh, qds, inf, re, qe1, qe2;
-
     private double THRESHOLD_AREA = 500000; // 0.1Km2
     /*
      * HydroloGIS addons
@@ -65,6 +69,10 @@ public class DuffyModel {
     public static final int ROUTING_CHEZY = 3;
     public static final int ROUTING_MANNING = 4;
     private static final double MSTMAX = 1;
+    /**
+     * The min number of hillslopes for which the parallel evaluation is used.
+     */
+    private static final int MIN_PARALLEL_HILLSLOPES = 64;
     private int routingType = ROUTING_CHEZY;
     private List<IHillSlope> orderedHillslopes = null;
     private boolean doLog = false;
@@ -74,6 +82,32 @@ public class DuffyModel {
     private List<IDischargeContributor> dischargeContributorList = new ArrayList<IDischargeContributor>();
     private HashMap<Integer, ADischargeDistributor> hillslopeId2DischargeDistributor;
 
+    /*
+     * the hillslope data that doesn't change during the simulation, by hillslope index
+     */
+    private final HillSlopeDuffy[] hillslopes;
+    private final double[] hillslopeAreas;
+    private final double[] upstreamAreas;
+    private final double[] linkWidths;
+    private final double[] linkLengths;
+    private final double[] linkSlopes;
+    private final double[] linkChezys;
+    private final int[][] upstreamIndexes;
+    private final String[][] upstreamPfafstetters;
+    private ADischargeDistributor[] dischargeDistributors;
+
+    private ForkJoinPool pool;
+    /*
+     * the messages of the hillslopes during the parallel evaluation, by hillslope index. The
+     * progress monitor is not threadsafe, so they are emitted by the calling thread afterwards.
+     */
+    private HillslopeMessages[] hillslopeMessages;
+
+    private static class HillslopeMessages {
+        final List<String> messages = new ArrayList<String>();
+        final List<String> errors = new ArrayList<String>();
+    }
+
     /**
      * Duffy model function.
      * 
@@ -94,10 +128,82 @@ public class DuffyModel {
         this.pm = pm;
         this.doLog = doLog;
 
+        int linksNum = orderedHillslopes.size();
+        hillslopes = new HillSlopeDuffy[linksNum];
+        hillslopeAreas = new double[linksNum];
+        upstreamAreas = new double[linksNum];
+        linkWidths = new double[linksNum];
+        linkLengths = new double[linksNum];
+        linkSlopes = new double[linksNum];
+        linkChezys = new double[linksNum];
+        upstreamIndexes = new int[linksNum][];
+        upstreamPfafstetters = new String[linksNum][];
+
+        HashMap<IHillSlope, Integer> hillslope2Index = new HashMap<IHillSlope, Integer>();
+        for( int i = 0; i < linksNum; i++ ) {
+            hillslope2Index.put(orderedHillslopes.get(i), i);
+        }
+        for( int i = 0; i < linksNum; i++ ) {
+            HillSlopeDuffy hillslope = (HillSlopeDuffy) orderedHillslopes.get(i);
+            hillslopes[i] = hillslope;
+            hillslopeAreas[i] = hillslope.getHillslopeArea();
+            upstreamAreas[i] = hillslope.getUpstreamArea(null);
+            linkWidths[i] = hillslope.getLinkWidth(AdigeUtilities.LINK_WIDTH_COEFF, AdigeUtilities.LINK_WIDTH_EXPON, 0.0);
+            linkLengths[i] = hillslope.getLinkLength();
+            linkSlopes[i] = hillslope.getLinkSlope();
+            linkChezys[i] = hillslope.getLinkChezi(AdigeUtilities.CHEZ_LAW_COEFF, AdigeUtilities.CHEZ_LAW_EXPON);
+
+            List<IHillSlope> connectedUpstreamHillSlopes = hillslope.getConnectedUpstreamElements();
+            if (connectedUpstreamHillSlopes == null) {
+                upstreamIndexes[i] = new int[0];
+                upstreamPfafstetters[i] = new String[0];
+            } else {
+                int upstreamNum = connectedUpstreamHillSlopes.size();
+                upstreamIndexes[i] = new int[upstreamNum];
+                upstreamPfafstetters[i] = new String[upstreamNum];
+                for( int j = 0; j < upstreamNum; j++ ) {
+                    IHillSlope upstreamHillslope = connectedUpstreamHillSlopes.get(j);
+                    Integer index = hillslope2Index.get(upstreamHillslope);
+                    upstreamIndexes[i][j] = index != null ? index : orderedHillslopes.indexOf(upstreamHillslope);
+                    upstreamPfafstetters[i][j] = upstreamHillslope.getPfafstetterNumber().toString();
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the number of threads used to evaluate the hillslopes.
+     * 
+     * <p>With more than one thread, the hillslopes of networks of at least 
+     * {@value #MIN_PARALLEL_HILLSLOPES} elements are evaluated in parallel.</p>
+     * 
+     * @param maxThreads the number of threads, 1 for the serial evaluation.
+     */
+    public void setMaxThreads( int maxThreads ) {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+            hillslopeMessages = null;
+        }
+        if (maxThreads > 1 && hillslopes.length >= MIN_PARALLEL_HILLSLOPES) {
+            pool = new ForkJoinPool(maxThreads);
+            hillslopeMessages = new HillslopeMessages[hillslopes.length];
+        }
+    }
+
+    /**
+     * Release the threads used for the parallel evaluation, if any.
+     */
+    public void close() {
+        setMaxThreads(1);
     }
 
     /**
      * Duffy function evaluation.
+     * 
+     * <p>Allocates the output array, see {@link #eval(double, double[], double[], double[], boolean, double[])}
+     * for the allocation free version.</p>
+     * 
      * @param input
      *            initial condition values for every link. The structure is:
      *            <br>
@@ -132,262 +238,286 @@ public class DuffyModel {
      */
     public double[] eval( double currentTimeInMinutes, double[] input, double[] rainArray, double[] etpArray,
             boolean isAtFinalSubtimestep ) {
-        // the input's length is twice the number of links... the first half
-        // corresponds to links
-        // discharge and the second to hillslopes storage
-        // System.out.println(input.length);
+        double[] output = new double[input.length];
+        eval(currentTimeInMinutes, input, rainArray, etpArray, isAtFinalSubtimestep, output);
+        return output;
+    }
 
-        // define the month
+    /**
+     * Duffy function evaluation into an existing array.
+     * 
+     * <p>The values of the input below the minimum allowed (discharges and 
+     * residual storages) are raised to the minimum before the evaluation.</p>
+     * 
+     * @param currentTimeInMinutes the time.
+     * @param input the initial condition values for every link, with the structure 
+     *          described in {@link #eval(double, double[], double[], double[], boolean)}.
+     * @param rainArray the array of precipitation (in mm/h) for each hillslope.
+     * @param etpArray the array of evapotranspiration for each hillslope, or <code>null</code>.
+     * @param isAtFinalSubtimestep if <code>true</code>, the fluxes are logged.
+     * @param output the array, of the size of the input, into which the derivatives are put.
+     */
+    public void eval( double currentTimeInMinutes, double[] input, double[] rainArray, double[] etpArray,
+            boolean isAtFinalSubtimestep, double[] output ) {
+        // the input's length is 4 times the number of links, see the structure above
         long currentTimeInMillis = (long) (currentTimeInMinutes * 60.0 * 1000.0);
-        int linksNum = orderedHillslopes.size(); // linksConectionStruct.headsArray.length;
-        // double mstold = 0.0;
-
-        double[] output = new double[input.length];
+        int linksNum = hillslopes.length;
 
         for( int i = linksNum - 1; i >= 0; i-- ) {
-            // start from the last pieces
-            HillSlopeDuffy currentHillslope = (HillSlopeDuffy) orderedHillslopes.get(i);
-            Parameters parameters = currentHillslope.getParameters();
             /*
              * NOTE: Initial conditions are ... input[i] for link discharge
              * input[i+nLi] for link base flow input[i+2*nLi] for unsaturated
              * hillslope S1 input[i+3*nLi] for saturated hillslope S2 . input[]
              * is updated for each time step in DiffEqSolver.RKF .
+             * 
+             * The physical consistency is checked for all the hillslopes before 
+             * the evaluation, since the upstream values are read.
              */
-
-            double prec_mphr = rainArray[i] / 1000.0; // input precipitation is in mm/h
-
-            double area_m2 = currentHillslope.getHillslopeArea();
-            // automatically in m2 from the features
-            /*
-             * Added some check for phisic consistency of the parameters
-             */
-            // if (input[i + 3 * linksNum] != input[i + 3 * linksNum]) {
-            // System.out.println();
-            // }
-            double minsupdischarge = parameters.getqqsupmin() * currentHillslope.getUpstreamArea(null) / 1E6;
+            Parameters parameters = hillslopes[i].getParameters();
+            double minsupdischarge = parameters.getqqsupmin() * upstreamAreas[i] / 1E6;
             if (input[i] < minsupdischarge) {
                 input[i] = minsupdischarge;
-                // System.out
-                // .println(
-                // "Current superficial discharge is less than the minimum value, setted to it for the basin "
-                // + currentHillslope.getHillslopeId());
             }
-            double minsubdischarge = parameters.getqqsubmin() * currentHillslope.getUpstreamArea(null) / 1E6;
+            double minsubdischarge = parameters.getqqsubmin() * upstreamAreas[i] / 1E6;
             if (input[i + linksNum] < minsubdischarge) {
                 input[i + linksNum] = minsubdischarge;
-                // System.out
-                // .println(
-                // "Current subsuperficial discharge is less than the minimum value, setted to it for the basin "
-                // + currentHillslope.getHillslopeId());
             }
             if (input[i + 2 * linksNum] < parameters.getS1residual()) {
                 input[i + 2 * linksNum] = parameters.getS1residual();
-                // System.out
-                // .println(
-                // "Current S1 parameter is less than the minimum value, setted to it for the basin "
-                // + currentHillslope.getHillslopeId());
             }
             if (input[i + 3 * linksNum] < parameters.getS2residual()) {
                 input[i + 3 * linksNum] = parameters.getS2residual();
-                // System.out
-                // .println(
-                // "Current S2 parameter is less than the minimum value, setted to it for the basin "
-                // + currentHillslope.getHillslopeId());
             }
+        }
 
-            /* HILLSLOPE FLUX CONDITIONS */
-            satsurf = parameters.getS2Param() * (input[i + 3 * linksNum]); // dimless
-            // double areasat = satsurf * area_m2;
-            mst = (input[i + 2 * linksNum]) / (parameters.getS2max() - (input[i + 3 * linksNum])); // dimless
-            if (Double.isInfinite(mst)) {
-                mst = MSTMAX;
+        if (pool == null) {
+            for( int i = linksNum - 1; i >= 0; i-- ) {
+                evalHillslope(i, currentTimeInMinutes, currentTimeInMillis, input, rainArray, etpArray, isAtFinalSubtimestep,
+                        output);
+            }
+        } else {
+            try {
+                pool.submit(() -> IntStream.range(0, linksNum).parallel().forEach(i -> evalHillslope(i, currentTimeInMinutes,
+                        currentTimeInMillis, input, rainArray, etpArray, isAtFinalSubtimestep, output))).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ModelsRuntimeException("Interrupted during the evaluation of the hillslopes.", this);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                pm.exceptionThrown(cause.getLocalizedMessage());
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new ModelsRuntimeException(cause.getLocalizedMessage(), this);
+            } finally {
+                // in the same order of the serial evaluation
+                for( int i = linksNum - 1; i >= 0; i-- ) {
+                    HillslopeMessages messages = hillslopeMessages[i];
+                    if (messages != null) {
+                        hillslopeMessages[i] = null;
+                        for( String message : messages.messages ) {
+                            pm.message(message);
+                        }
+                        for( String error : messages.errors ) {
+                            pm.errorMessage(error);
+                        }
+                    }
+                }
             }
+        }
+        doPrint = false;
+    }
 
-            // if ((mst - mstold) > 0.01) {
-            // System.out.println("mst " + mst + "mstold " + mstold);
-            // mstold = mst;
-            // }
-            // Ku = hillSlopesInfo.Ks(currentHillslope)
-            // * (Math.pow(mst, hillSlopesInfo.MstExp(currentHillslope))); //
-            // mphr
-
-            /* HILLSLOPE S1-SURFACE FLUX VALUES */
-            if (prec_mphr < parameters.getKs()) {
-                inf = (1.0 - satsurf) * area_m2 * prec_mphr; // m3phr
-                qdh = 0.0; // m3phr
+    /**
+     * Send a message to the monitor, or keep it for later if evaluating in parallel.
+     */
+    private void message( int i, String message, boolean isError ) {
+        if (pool == null) {
+            if (isError) {
+                pm.errorMessage(message);
             } else {
-                inf = (1.0 - satsurf) * area_m2 * parameters.getKs(); // m3phr
-                qdh = (1.0 - satsurf) * area_m2 * (prec_mphr - parameters.getKs()); // m3phr
+                pm.message(message);
             }
-
-            Double eTrate = parameters.getETrate();
-            if (etpArray != null) {
-                qe1 = etpArray[i];
+        } else {
+            // every hillslope is evaluated by a single thread
+            HillslopeMessages messages = hillslopeMessages[i];
+            if (messages == null) {
+                messages = new HillslopeMessages();
+                hillslopeMessages[i] = messages;
+            }
+            if (isError) {
+                messages.errors.add(message);
             } else {
-                if (input[i + 2 * linksNum] > parameters.getS1residual()) {
-                    qe1 = eTrate * area_m2 * (1.0 - satsurf) * mst; // m3phr
-                } else {
-                    qe1 = 0.0;
-                }
+                messages.messages.add(message);
             }
+        }
+    }
 
-            /* HILLSLOPE S1-S2 FLUX VALUE */
-            // re = 1100.0
-            // * (input[i + 2 * linksNum] / parameters.getS2max())
-            // + 300.0
-            // * ((input[i + 2 * linksNum] / parameters.getS2max()) + 5)
-            // * Math.pow((input[i + 3 * linksNum] / parameters.getS2max()),
-            // 2.0);
-            re = parameters.getKs() * area_m2 * (1.0 - satsurf) * (Math.pow(mst, parameters.getMstExp())); // m3phr
+    private void evalHillslope( int i, double currentTimeInMinutes, long currentTimeInMillis, double[] input,
+            double[] rainArray, double[] etpArray, boolean isAtFinalSubtimestep, double[] output ) {
+        int linksNum = hillslopes.length;
+        // the monitor is not threadsafe, in parallel the exceptions are reported by the calling thread
+        IHMProgressMonitor pm = pool == null ? this.pm : null;
+        HillSlopeDuffy currentHillslope = hillslopes[i];
+        Parameters parameters = currentHillslope.getParameters();
 
-            /* HILLSLOPE S2-SURFACE FLUX VALUES */
-            qds = satsurf * area_m2 * prec_mphr; // m3phr
+        double prec_mphr = rainArray[i] / 1000.0; // input precipitation is in mm/h
+
+        double area_m2 = hillslopeAreas[i]; // in m2 from the features
+
+        /* HILLSLOPE FLUX CONDITIONS */
+        double satsurf = parameters.getS2Param() * (input[i + 3 * linksNum]); // dimless
+        // double areasat = satsurf * area_m2;
+        double mst = (input[i + 2 * linksNum]) / (parameters.getS2max() - (input[i + 3 * linksNum])); // dimless
+        if (Double.isInfinite(mst)) {
+            mst = MSTMAX;
+        }
 
-            if (etpArray != null) {
-                qe2 = etpArray[i];
+        /* HILLSLOPE S1-SURFACE FLUX VALUES */
+        double inf;
+        double qdh;
+        if (prec_mphr < parameters.getKs()) {
+            inf = (1.0 - satsurf) * area_m2 * prec_mphr; // m3phr
+            qdh = 0.0; // m3phr
+        } else {
+            inf = (1.0 - satsurf) * area_m2 * parameters.getKs(); // m3phr
+            qdh = (1.0 - satsurf) * area_m2 * (prec_mphr - parameters.getKs()); // m3phr
+        }
+
+        Double eTrate = parameters.getETrate();
+        double qe1;
+        if (etpArray != null) {
+            qe1 = etpArray[i];
+        } else {
+            if (input[i + 2 * linksNum] > parameters.getS1residual()) {
+                qe1 = eTrate * area_m2 * (1.0 - satsurf) * mst; // m3phr
             } else {
-                qe2 = eTrate * area_m2 * satsurf; // m3phr,
+                qe1 = 0.0;
             }
+        }
 
-            qs = parameters.getRecParam() * (input[i + 3 * linksNum]); // m3phr
-
-            /* HILLSLOPE DIRECT RUNOFF (TOTAL) FLUXES */
-            // System.out.println("qdh = " + qdh);
-            // System.out.println("qds = " + qds);
-            qd = qdh + qds; // m3phr
-
-            if (Double.isNaN(qs) || Double.isNaN(qd)) {
-                if (Double.isNaN(qs)) {
-                    throw new ModelsIllegalargumentException("Subsuperficial discharge for the hillslope "
-                            + currentHillslope.getHillslopeId() + " " + i + " is NaN", this.getClass().getSimpleName(), pm);
-                } else {
-                    throw new ModelsIllegalargumentException("Timestep " + currentTimeInMinutes
-                            + "Superficial discharge for the hillslope " + currentHillslope.getHillslopeId() + " " + i
-                            + " is NaN" + "\nValue of qdh " + qdh + "\nValue of qds " + qds + "\nPrecipitation " + prec_mphr
-                            + "\nSatsurf " + satsurf, this.getClass().getSimpleName(), pm);
-                }
-            }
+        /* HILLSLOPE S1-S2 FLUX VALUE */
+        double re = parameters.getKs() * area_m2 * (1.0 - satsurf) * (Math.pow(mst, parameters.getMstExp())); // m3phr
 
-            if (isAtFinalSubtimestep) {
-                pm.message("timeinmin = " + currentTimeInMinutes + "\tbacino: " + i + "\tqdh = " + qdh + "\tqds = " + qds
-                        + "\tre = " + re + "\tqs = " + qs + "\tmst = " + mst + "\tinf = " + inf + "\tqe1 = " + qe1 + "\tqe2 = "
-                        + qe2);
-            }
-            /*
-             * if the area is > 0.1 km2, we consider the delay effect
-             * of the hillslope.
-             */
-            if (area_m2 > THRESHOLD_AREA) {
-                // distribute the discharge
-                int hillslopeId = currentHillslope.getHillslopeId();
-                ADischargeDistributor dischargeDistributor = hillslopeId2DischargeDistributor.get(hillslopeId);
-                qs = dischargeDistributor.calculateSubsuperficialDischarge(qs, satsurf, currentTimeInMillis);
-                qd = dischargeDistributor.calculateSuperficialDischarge(qd, satsurf, currentTimeInMillis);
-            }
+        /* HILLSLOPE S2-SURFACE FLUX VALUES */
+        double qds = satsurf * area_m2 * prec_mphr; // m3phr
 
-            /* LINK FLUX ( Q ) */
-            /*
-             * Below, i=link#, j=id of connecting links, Array[i][j]=link# for
-             * connecting link
-             */
-            /* LINK FLUX ( Q SUBSURFACE, BASE FLOW ) */
-            /*
-             * Below, i=link#, j=id of connecting links, Array[i][j]=link# for
-             * connecting link
-             */
-            Q_trib = 0.0D;
-            Qs_trib = 0.0D;
-
-            List<IHillSlope> connectedUpstreamHillSlopes = currentHillslope.getConnectedUpstreamElements();
-
-            if (connectedUpstreamHillSlopes != null) {
-                for( IHillSlope hillSlope : connectedUpstreamHillSlopes ) {
-                    PfafstetterNumber pNum = hillSlope.getPfafstetterNumber();
-                    int index = orderedHillslopes.indexOf(hillSlope);
-                    boolean doCalculate = true;
-                    for( IDischargeContributor dContributor : dischargeContributorList ) {
-                        Double contributedDischarge = dContributor.getDischarge(pNum.toString());
-                        contributedDischarge = dContributor.mergeWithDischarge(contributedDischarge, input[index]);
-                        if (!isNovalue(contributedDischarge)) {
-                            if (doLog && doPrint) {
-                                pm.message("----> For hillslope " + currentHillslope.getPfafstetterNumber()
-                                        + " using hydrometer/dams data in pfafstetter: " + pNum.toString() + "(meaning added "
-                                        + contributedDischarge + " instead of " + input[index] + ")");
-                            }
-                            double dischargeRatio = 0.3;// input[index] / (input[index] +
-                            // input[index + linksNum]);
-                            Q_trib = dischargeRatio * contributedDischarge; // units m^3/s
-                            Qs_trib = contributedDischarge - Q_trib; // units m^3/s
-                            doCalculate = false;
-                        }
-                    }
-                    if (doCalculate) {
-                        // at the same position we can query the input array
-                        Q_trib += input[index]; // units m^3/s
-                        Qs_trib += input[index + linksNum]; // units m^3/s
-                    }
-                }
+        double qe2;
+        if (etpArray != null) {
+            qe2 = etpArray[i];
+        } else {
+            qe2 = eTrate * area_m2 * satsurf; // m3phr,
+        }
 
-            }
+        double qs = parameters.getRecParam() * (input[i + 3 * linksNum]); // m3phr
 
-            double K_Q = AdigeUtilities.doRouting(input[i], currentHillslope, routingType);
+        /* HILLSLOPE DIRECT RUNOFF (TOTAL) FLUXES */
+        double qd = qdh + qds; // m3phr
 
-            /*
-             * if (i == 62) { System.out.println(" WD ratio ="+
-             * linksHydraulicInfo.Width(i)/flowdepth); System.out.println("
-             * Mannings v (m/s) =" +
-             * (Math.pow(hydrad,2./3.)*Math.pow(linksHydraulicInfo.Slope(i),1/2.)/mannings_n) );
-             * System.out.println(" K_Q =" +
-             * (Math.pow(hydrad,2./3.)*Math.pow(linksHydraulicInfo.Slope(i),1/2.)/mannings_n)
-             * *Math.pow(linksHydraulicInfo.Length(i),-1) ); }
-             */
-            if (input[i] == 0.0D)
-                K_Q = 1e-10;
-
-            if (Double.isNaN(qs) || Double.isNaN(qd)) {
-                pm.errorMessage("Problems in basin: " + currentHillslope.getHillslopeId() + " " + i); //$NON-NLS-1$ //$NON-NLS-2$
-                if (area_m2 < THRESHOLD_AREA) {
-                    qd = 0.0;
-                    qs = 0.0;
-                    inf = 0.0;
-                    qe1 = 0.0;
-                    qe2 = 0.0;
-                    re = 0.0;
-                    System.out.println("All the contributes are set to zero.");
-                }
+        if (Double.isNaN(qs) || Double.isNaN(qd)) {
+            if (Double.isNaN(qs)) {
+                throw new ModelsIllegalargumentException("Subsuperficial discharge for the hillslope "
+                        + currentHillslope.getHillslopeId() + " " + i + " is NaN", this.getClass().getSimpleName(), pm);
+            } else {
+                throw new ModelsIllegalargumentException("Timestep " + currentTimeInMinutes
+                        + "Superficial discharge for the hillslope " + currentHillslope.getHillslopeId() + " " + i + " is NaN"
+                        + "\nValue of qdh " + qdh + "\nValue of qds " + qds + "\nPrecipitation " + prec_mphr + "\nSatsurf "
+                        + satsurf, this.getClass().getSimpleName(), pm);
             }
+        }
 
-            /* OUTPUT */
-            if (area_m2 > THRESHOLD_AREA) {
-                // LINK dQ/dt; big () term is m^3/s, 60*K_Q is 1/min
-                output[i] = 60.0D * K_Q * ((1.0D / 3600.) * qd + Q_trib - input[i]);
-                // 60.0 * K_Q * (Q_trib - input[i]) + (1.0 / 3600.0) * qd / deltaTinMinutes;
-                // LINK dQs/dt -> (m^3/s)/min
-                output[i + linksNum] = 60.0 * K_Q * (Qs_trib - input[i + linksNum]) + 60.0 * K_Q * (1.0 / 3600.) * (qs);
-                // HILLSLOPE dS1/dt -> m3/min
-                output[i + (2 * linksNum)] = (1.0 / 60.0) * (inf - re - qe1);
-                // HILLSLOPE dS2/dt -> m3/min
-                output[i + (3 * linksNum)] = (1.0 / 60.0) * (re - qs - qe2);
-            } else {
-                output[i] = 60.0D * K_Q * ((1.0D / 3600.) * qd + Q_trib - input[i]);
-                output[i + linksNum] = 60.0D * K_Q * ((1.0D / 3600.) * (qs) + Qs_trib - input[i + linksNum]);
-                output[i + (2 * linksNum)] = (1.0D / 60.0) * (inf - re - qe1);
-                if (output[i + (2 * linksNum)] != output[i + (2 * linksNum)] || output[i + (2 * linksNum)] == 0.0) {
-                    throw new ModelsIllegalargumentException("Invalid value of S1, please check the parameters."
-                            + output[i + (2 * linksNum)], this, pm);
+        if (isAtFinalSubtimestep) {
+            message(i, "timeinmin = " + currentTimeInMinutes + "\tbacino: " + i + "\tqdh = " + qdh + "\tqds = " + qds
+                    + "\tre = " + re + "\tqs = " + qs + "\tmst = " + mst + "\tinf = " + inf + "\tqe1 = " + qe1 + "\tqe2 = "
+                    + qe2, false);
+        }
+        /*
+         * if the area is > 0.1 km2, we consider the delay effect
+         * of the hillslope.
+         */
+        if (area_m2 > THRESHOLD_AREA) {
+            // distribute the discharge
+            ADischargeDistributor dischargeDistributor = dischargeDistributors[i];
+            qs = dischargeDistributor.calculateSubsuperficialDischarge(qs, satsurf, currentTimeInMillis);
+            qd = dischargeDistributor.calculateSuperficialDischarge(qd, satsurf, currentTimeInMillis);
+        }
+
+        /* LINK FLUX ( Q ) and ( Q SUBSURFACE, BASE FLOW ) from the connected upstream links */
+        double Q_trib = 0.0D;
+        double Qs_trib = 0.0D;
+
+        int[] upstream = upstreamIndexes[i];
+        for( int j = 0; j < upstream.length; j++ ) {
+            int index = upstream[j];
+            String pNum = upstreamPfafstetters[i][j];
+            boolean doCalculate = true;
+            for( IDischargeContributor dContributor : dischargeContributorList ) {
+                Double contributedDischarge = dContributor.getDischarge(pNum);
+                contributedDischarge = dContributor.mergeWithDischarge(pNum, contributedDischarge, input[index]);
+                if (!isNovalue(contributedDischarge)) {
+                    if (doLog && doPrint) {
+                        message(i, "----> For hillslope " + currentHillslope.getPfafstetterNumber()
+                                + " using hydrometer/dams data in pfafstetter: " + pNum + "(meaning added "
+                                + contributedDischarge + " instead of " + input[index] + ")", false);
+                    }
+                    double dischargeRatio = 0.3;// input[index] / (input[index] +
+                    // input[index + linksNum]);
+                    Q_trib = dischargeRatio * contributedDischarge; // units m^3/s
+                    Qs_trib = contributedDischarge - Q_trib; // units m^3/s
+                    doCalculate = false;
                 }
-                output[i + (3 * linksNum)] = (1.0D / 60.0) * (re - qs - qe2);
             }
-            if (output[i + (3 * linksNum)] != output[i + (3 * linksNum)] || output[i + (2 * linksNum)] == 0.) {
-                throw new ModelsIllegalargumentException("Invalid value of S2, please check the parameters.", this.getClass()
-                        .getSimpleName(), pm);
+            if (doCalculate) {
+                // at the same position we can query the input array
+                Q_trib += input[index]; // units m^3/s
+                Qs_trib += input[index + linksNum]; // units m^3/s
             }
+        }
 
+        double K_Q = AdigeUtilities.doRouting(input[i], linkWidths[i], linkLengths[i], linkSlopes[i], linkChezys[i],
+                routingType);
+
+        if (input[i] == 0.0D)
+            K_Q = 1e-10;
+
+        if (Double.isNaN(qs) || Double.isNaN(qd)) {
+            message(i, "Problems in basin: " + currentHillslope.getHillslopeId() + " " + i, true); //$NON-NLS-1$ //$NON-NLS-2$
+            if (area_m2 < THRESHOLD_AREA) {
+                qd = 0.0;
+                qs = 0.0;
+                inf = 0.0;
+                qe1 = 0.0;
+                qe2 = 0.0;
+                re = 0.0;
+                System.out.println("All the contributes are set to zero.");
+            }
         }
-        doPrint = false;
 
-        return output;
+        /* OUTPUT */
+        if (area_m2 > THRESHOLD_AREA) {
+            // LINK dQ/dt; big () term is m^3/s, 60*K_Q is 1/min
+            output[i] = 60.0D * K_Q * ((1.0D / 3600.) * qd + Q_trib - input[i]);
+            // 60.0 * K_Q * (Q_trib - input[i]) + (1.0 / 3600.0) * qd / deltaTinMinutes;
+            // LINK dQs/dt -> (m^3/s)/min
+            output[i + linksNum] = 60.0 * K_Q * (Qs_trib - input[i + linksNum]) + 60.0 * K_Q * (1.0 / 3600.) * (qs);
+            // HILLSLOPE dS1/dt -> m3/min
+            output[i + (2 * linksNum)] = (1.0 / 60.0) * (inf - re - qe1);
+            // HILLSLOPE dS2/dt -> m3/min
+            output[i + (3 * linksNum)] = (1.0 / 60.0) * (re - qs - qe2);
+        } else {
+            output[i] = 60.0D * K_Q * ((1.0D / 3600.) * qd + Q_trib - input[i]);
+            output[i + linksNum] = 60.0D * K_Q * ((1.0D / 3600.) * (qs) + Qs_trib - input[i + linksNum]);
+            output[i + (2 * linksNum)] = (1.0D / 60.0) * (inf - re - qe1);
+            if (output[i + (2 * linksNum)] != output[i + (2 * linksNum)] || output[i + (2 * linksNum)] == 0.0) {
+                throw new ModelsIllegalargumentException("Invalid value of S1, please check the parameters."
+                        + output[i + (2 * linksNum)], this, pm);
+            }
+            output[i + (3 * linksNum)] = (1.0D / 60.0) * (re - qs - qe2);
+        }
+        if (output[i + (3 * linksNum)] != output[i + (3 * linksNum)] || output[i + (2 * linksNum)] == 0.) {
+            throw new ModelsIllegalargumentException("Invalid value of S2, please check the parameters.", this.getClass()
+                    .getSimpleName(), pm);
+        }
     }
 
     public void addDischargeContributor( IDischargeContributor dischargeContributor ) {
@@ -396,5 +526,9 @@ public class DuffyModel {
 
     public void addDischargeDistributor( HashMap<Integer, ADischargeDistributor> hillslopeId2DischargeDistributor ) {
         this.hillslopeId2DischargeDistributor = hillslopeId2DischargeDistributor;
+        dischargeDistributors = new ADischargeDistributor[hillslopes.length];
+        for( int i = 0; i < hillslopes.length; i++ ) {
+            dischargeDistributors[i] = hillslopeId2DischargeDistributor.get(hillslopes[i].getHillslopeId());
+        }
     }
 }
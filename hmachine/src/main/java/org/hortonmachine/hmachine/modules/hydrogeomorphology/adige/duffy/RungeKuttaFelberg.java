@@ -39,6 +39,11 @@ import org.joda.time.DateTime;
  * differential equations. It uses a time step control algorithm to avoid numerical errors while
  * solving the equations
  * 
+ * <p>The stages, the intermediate state and the two solutions of every step are 
+ * kept in workspaces that are allocated once and reused for all the steps. The 
+ * derivatives are evaluated in place through 
+ * {@link DuffyModel#eval(double, double[], double[], double[], boolean, double[])}.</p>
+ * 
  * @author Ricardo Mantilla
  */
 public class RungeKuttaFelberg {
@@ -63,6 +68,20 @@ public class RungeKuttaFelberg {
     private boolean isAtFinalSubtimestep = true;
     private IHMProgressMonitor outputStream;
 
+    /*
+     * the workspaces of the steps
+     */
+    private double[] state = new double[0];
+    private double[] carrier;
+    private double[] k0;
+    private double[] k1;
+    private double[] k2;
+    private double[] k3;
+    private double[] k4;
+    private double[] k5;
+    private double[] newY;
+    private double[] newYstar;
+
     /**
      * Creates new RKF
      * 
@@ -94,34 +113,31 @@ public class RungeKuttaFelberg {
     private void step( double currentTimeInMinutes, double[] initialConditions, double timeStepInMinutes, boolean finalize,
             CurrentTimestepSolution currentSolution, double[] rainArray, double[] etpArray ) {
 
-        double[] carrier = new double[initialConditions.length];
-
-        double[] k0 = duffy.eval(currentTimeInMinutes, initialConditions, rainArray, etpArray, false);
+        duffy.eval(currentTimeInMinutes, initialConditions, rainArray, etpArray, false, k0);
         for( int i = 0; i < initialConditions.length; i++ )
             carrier[i] = Math.max(0, initialConditions[i] + timeStepInMinutes * b[1][0] * k0[i]);
 
-        double[] k1 = duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false);
+        duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false, k1);
         for( int i = 0; i < initialConditions.length; i++ )
             carrier[i] = Math.max(0, initialConditions[i] + timeStepInMinutes * (b[2][0] * k0[i] + b[2][1] * k1[i]));
 
-        double[] k2 = duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false);
+        duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false, k2);
         for( int i = 0; i < initialConditions.length; i++ )
             carrier[i] = Math.max(0, initialConditions[i] + timeStepInMinutes
                     * (b[3][0] * k0[i] + b[3][1] * k1[i] + b[3][2] * k2[i]));
 
-        double[] k3 = duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false);
+        duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false, k3);
         for( int i = 0; i < initialConditions.length; i++ )
             carrier[i] = Math.max(0, initialConditions[i] + timeStepInMinutes
                     * (b[4][0] * k0[i] + b[4][1] * k1[i] + b[4][2] * k2[i] + b[4][3] * k3[i]));
 
-        double[] k4 = duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false);
+        duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, false, k4);
         for( int i = 0; i < initialConditions.length; i++ )
             carrier[i] = Math.max(0, initialConditions[i] + timeStepInMinutes
                     * (b[5][0] * k0[i] + b[5][1] * k1[i] + b[5][2] * k2[i] + b[5][3] * k3[i] + b[5][4] * k4[i]));
 
-        double[] k5 = duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, isAtFinalSubtimestep);
+        duffy.eval(currentTimeInMinutes, carrier, rainArray, etpArray, isAtFinalSubtimestep, k5);
 
-        double[] newY = new double[initialConditions.length];
         for( int i = 0; i < initialConditions.length; i++ ) {
             newY[i] = initialConditions[i] + timeStepInMinutes
                     * (c[0] * k0[i] + c[1] * k1[i] + c[2] * k2[i] + c[3] * k3[i] + c[4] * k4[i] + c[5] * k5[i]);
@@ -131,7 +147,6 @@ public class RungeKuttaFelberg {
             }
         }
 
-        double[] newYstar = new double[initialConditions.length];
         for( int i = 0; i < initialConditions.length; i++ ) {
             newYstar[i] = initialConditions[i]
                     + timeStepInMinutes
@@ -199,6 +214,13 @@ public class RungeKuttaFelberg {
             double[] initialConditions, double[] rainArray, double[] etpArray ) throws IOException {
         isAtFinalSubtimestep = false;
 
+        // the integration runs on the state workspace, the workspaces are swapped at every accepted step
+        ensureWorkspaces(initialConditions.length);
+        if (initialConditions != state) {
+            System.arraycopy(initialConditions, 0, state, 0, state.length);
+            initialConditions = state;
+        }
+
         double intervalStartTimeInMinutes = currentTimstamp.getMillis() / 1000d / 60d;
         double intervalEndTimeInMinutes = intervalStartTimeInMinutes + modelTimestepInMinutes;
 
@@ -227,7 +249,7 @@ public class RungeKuttaFelberg {
                 basicTimeStepInMinutes = currentSolution.newTimeStepInMinutes;
                 currentTimeInMinutes += basicTimeStepInMinutes;
                 currentSolution.newTimeStepInMinutes = currentTimeInMinutes;
-                initialConditions = currentSolution.solution;
+                initialConditions = acceptSolution(currentSolution);
                 for( int i = 0; i < initialConditions.length; i++ ) {
                     if (initialConditions[i] != initialConditions[i]) {
                         throw new ModelsIllegalargumentException("Problems occure during the integration procedure.", this
@@ -255,7 +277,7 @@ public class RungeKuttaFelberg {
             basicTimeStepInMinutes = currentSolution.newTimeStepInMinutes;
             currentTimeInMinutes += basicTimeStepInMinutes;
             currentSolution.newTimeStepInMinutes = currentTimeInMinutes;
-            initialConditions = currentSolution.solution;
+            initialConditions = acceptSolution(currentSolution);
             for( int i = 0; i < initialConditions.length; i++ ) {
                 if (initialConditions[i] != initialConditions[i]) {
                     throw new ModelsIllegalargumentException("Problems occure during the integration procedure.", this.getClass()
@@ -297,7 +319,7 @@ public class RungeKuttaFelberg {
             basicTimeStepInMinutes = currentSolution.newTimeStepInMinutes;
             currentTimeInMinutes += basicTimeStepInMinutes;
             currentSolution.newTimeStepInMinutes = currentTimeInMinutes;
-            initialConditions = currentSolution.solution;
+            initialConditions = acceptSolution(currentSolution);
             for( int i = 0; i < initialConditions.length; i++ ) {
                 if (initialConditions[i] != initialConditions[i]) {
                     throw new ModelsIllegalargumentException("Problems occure during the integration procedure.", this.getClass()
@@ -325,6 +347,45 @@ public class RungeKuttaFelberg {
 
     }
 
+    /**
+     * Make the last calculated solution the current state.
+     * 
+     * <p>The workspaces of the state and of the solution are swapped, so that the 
+     * next step doesn't overwrite the state it starts from.</p>
+     * 
+     * @param currentSolution the object holding the last solution.
+     * @return the new state.
+     */
+    private double[] acceptSolution( CurrentTimestepSolution currentSolution ) {
+        double[] previousState = state;
+        state = currentSolution.solution;
+        newY = previousState;
+        return state;
+    }
+
+    private void ensureWorkspaces( int length ) {
+        if (state.length != length) {
+            state = new double[length];
+            carrier = new double[length];
+            k0 = new double[length];
+            k1 = new double[length];
+            k2 = new double[length];
+            k3 = new double[length];
+            k4 = new double[length];
+            k5 = new double[length];
+            newY = new double[length];
+            newYstar = new double[length];
+        }
+    }
+
+    /**
+     * Getter for the solution of the last {@link #solve(DateTime, int, double, double[], double[], double[])}.
+     * 
+     * <p><b>NOTE</b>: the array is a workspace of the solver, it is valid until the next 
+     * solve, to which it can be passed directly as initial conditions.</p>
+     * 
+     * @return the final conditions.
+     */
     public double[] getFinalCond() {
         return finalCond;
     }
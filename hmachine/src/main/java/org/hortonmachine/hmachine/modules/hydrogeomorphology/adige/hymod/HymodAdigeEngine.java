@@ -90,6 +90,10 @@ public class HymodAdigeEngine implements IAdigeEngine {
         return outSubDischarge;
     }
 
+    public void close() {
+        // nothing to release
+    }
+
     public double[] solve( DateTime currentTimstamp, int tTimestep, double internalTimestepInMinutes, double[] initialConditions,
             double[] rainArray, double[] etpArray ) throws IOException {
 
@@ -284,7 +288,8 @@ public class HymodAdigeEngine implements IAdigeEngine {
 
                         // modificato
                         if (!isNovalue(contributedDischarge)) {
-                            upstreamDischarge = dContributor.mergeWithDischarge(contributedDischarge, upstreamDischarge);
+                            upstreamDischarge = dContributor.mergeWithDischarge(pNum.toString(), contributedDischarge,
+                                    upstreamDischarge);
                         }
 
                     }
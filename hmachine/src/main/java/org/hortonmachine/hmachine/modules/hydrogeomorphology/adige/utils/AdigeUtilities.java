@@ -38,6 +38,23 @@ import org.opengis.feature.simple.SimpleFeatureType;
  */
 public class AdigeUtilities {
 
+    /**
+     * The coefficient used for the width of the links.
+     */
+    public static final double LINK_WIDTH_COEFF = 8.66;
+    /**
+     * The exponent used for the width of the links.
+     */
+    public static final double LINK_WIDTH_EXPON = 0.6;
+    /**
+     * The exponent of the chezy law.
+     */
+    public static final double CHEZ_LAW_EXPON = -1. / 3.;
+    /**
+     * The coefficient of the chezy law.
+     */
+    public static final double CHEZ_LAW_COEFF = 200. / Math.pow(0.000357911, CHEZ_LAW_EXPON);
+
     /**
      * Generates {@link HillSlope}s from the informations gathered in the provided feature layers.
      * 
@@ -185,13 +202,29 @@ public class AdigeUtilities {
      * @return the routing cuencas coefficient.
      */
     public static double doRouting( double discharge, IHillSlope hillslope, int routingType ) {
-        double linkWidth = hillslope.getLinkWidth(8.66, 0.6, 0.0);
+        double linkWidth = hillslope.getLinkWidth(LINK_WIDTH_COEFF, LINK_WIDTH_EXPON, 0.0);
         double linkLength = hillslope.getLinkLength();
         double linkSlope = hillslope.getLinkSlope();
-        double chezLawExpon = -1. / 3.;
-        double chezLawCoeff = 200. / Math.pow(0.000357911, chezLawExpon);
-        double linkChezy = hillslope.getLinkChezi(chezLawCoeff, chezLawExpon);
+        double linkChezy = hillslope.getLinkChezi(CHEZ_LAW_COEFF, CHEZ_LAW_EXPON);
+        return doRouting(discharge, linkWidth, linkLength, linkSlope, linkChezy, routingType);
+    }
 
+    /**
+     * Method to do the routing of a discharge along a link with known geometry.
+     * 
+     * <p>The link geometry doesn't change during a simulation, so it can be read once 
+     * from the {@link IHillSlope} and reused.</p>
+     * 
+     * @param discharge the discharge to be transported.
+     * @param linkWidth the width of the link, see {@link #LINK_WIDTH_COEFF} and {@link #LINK_WIDTH_EXPON}.
+     * @param linkLength the length of the link.
+     * @param linkSlope the slope of the link.
+     * @param linkChezy the chezy coefficient of the link, see {@link #CHEZ_LAW_COEFF} and {@link #CHEZ_LAW_EXPON}.
+     * @param routingType the routing type to use (see {@link #doRouting(double, IHillSlope, int)}).
+     * @return the routing cuencas coefficient.
+     */
+    public static double doRouting( double discharge, double linkWidth, double linkLength, double linkSlope, double linkChezy,
+            int routingType ) {
         double K_Q = 0;
 
         /* ROUTING RATE (K_Q) and CHANNEL VELOCITY (vc) */
@@ -20,10 +20,18 @@ package org.hortonmachine.hmachine.modules.statistics.kriging;
 
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.jai.iterator.RandomIterFactory;
 import javax.media.jai.iterator.WritableRandomIter;
@@ -39,14 +47,12 @@ import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
 import org.hortonmachine.gears.libs.monitor.LogProgressMonitor;
 import org.hortonmachine.gears.utils.RegionMap;
 import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
-import org.hortonmachine.gears.utils.math.matrixes.ColumnVector;
 import org.hortonmachine.gears.utils.math.regressions.PolyTrendLine;
 import org.hortonmachine.gears.utils.math.regressions.RegressionLine;
 import org.hortonmachine.hmachine.i18n.HortonMessageHandler;
-import org.hortonmachine.hmachine.modules.statistics.kriging.utils.SimpleLinearSystemSolverFactory;
+import org.hortonmachine.hmachine.modules.statistics.kriging.utils.KrigingSystemsCache;
 import org.hortonmachine.hmachine.modules.statistics.kriging.utils.StationsSelection;
 import org.hortonmachine.hmachine.modules.statistics.kriging.variogram.theoretical.ITheoreticalVariogram;
-import org.hortonmachine.hmachine.modules.statistics.kriging.variogram.theoretical.TheoreticalVariogram;
 import org.locationtech.jts.geom.Coordinate;
 import org.opengis.geometry.DirectPosition;
 import org.opengis.geometry.MismatchedDimensionException;
@@ -149,18 +155,25 @@ public class OmsKrigingRasterMode extends HMModel {
     @In
     public String linearSystemSolverType = "default";
 
+    @Description("The max number of threads to use.")
+    @In
+    public int pMaxThreads = getDefaultThreadsNum();
+
     @Description("The interpolated gridded data ")
     @Out
     public GridCoverage2D outGrid = null;
 
+    @Description("The kriging variance of the interpolated gridded data.")
+    @Out
+    public GridCoverage2D outVarianceGrid = null;
+
     private static final double TOLL = 1.0d * 10E-8;
 
     private HortonMessageHandler msg = HortonMessageHandler.getInstance();
 
-    /** The id of the cosidered station */
-    int id;
+    private static final int POINTS_CHUNK = 1000;
 
-    private WritableRaster outWR;
+    private final KrigingSystemsCache systemsCache = new KrigingSystemsCache();
 
     public GridGeometry2D inInterpolationGrid;
     WritableRaster demWR;
@@ -169,10 +182,11 @@ public class OmsKrigingRasterMode extends HMModel {
      * Executing ordinary kriging.
      * <p>
      * <li>Verify if the parameters are correct.
-     * <li>Calculating the matrix of the covariance (a).
-     * <li>For each point to interpolated, evalutate the know term vector (b)
-     * and solve the system (a x)=b where x is the weight.
+     * <li>For each point to interpolate select the stations to use.
+     * <li>Get the decomposed covariance matrix (a) of those stations from the cache, 
+     * evaluate the know term vector (b) and solve the system (a x)=b where x is the weight.
      * </p>
+     * <p>The points are interpolated in parallel.</p>
      *
      * @throws Exception the exception
      */
@@ -186,206 +200,184 @@ public class OmsKrigingRasterMode extends HMModel {
 
         demWR = mapsTransform(inGridCoverage2D);
 
-        LinkedHashMap<Integer, Coordinate> pointsToInterpolateId2Coordinates = null;
-
-        pointsToInterpolateId2Coordinates = getCoordinate(inInterpolationGrid);
-
-        Set<Integer> pointsToInterpolateIdSet = pointsToInterpolateId2Coordinates.keySet();
-        Iterator<Integer> idIterator = pointsToInterpolateIdSet.iterator();
-
-        int j = 0;
-
-        double[] result = new double[pointsToInterpolateId2Coordinates.size()];
-        int[] idArray = new int[pointsToInterpolateId2Coordinates.size()];
-
-        final DirectPosition gridPoint = new DirectPosition2D();
-        MathTransform transf = inInterpolationGrid.getCRSToGrid2D();
-
-        while( idIterator.hasNext() ) {
-
-            double sum = 0.;
-            id = idIterator.next();
-            idArray[j] = id;
-
-            Coordinate coordinate = (Coordinate) pointsToInterpolateId2Coordinates.get(id);
-
-            DirectPosition point = new DirectPosition2D(inInterpolationGrid.getCoordinateReferenceSystem(), coordinate.x,
-                    coordinate.y);
-            transf.transform(point, gridPoint);
-
-            double[] gridCoord = gridPoint.getCoordinate();
-            int x = (int) gridCoord[0];
-            int y = (int) gridCoord[1];
-
-            /**
-             * StationsSelection is an external class that allows the 
-             * selection of the stations involved in the study.
-             * It is possible to define if to include stations with zero values,
-             * station in a define neighborhood or within a max distance from 
-             * the considered point.
-             */
-
-            StationsSelection stations = new StationsSelection();
-
-            stations.idx = coordinate.x;
-            stations.idy = coordinate.y;
-            stations.inStations = inStations;
-            stations.inData = inData;
-            stations.doIncludezero = doIncludezero;
-            stations.maxdist = maxdist;
-            stations.inNumCloserStations = inNumCloserStations;
-            stations.fStationsid = fStationsid;
-            stations.fStationsZ = fStationsZ;
-
-            stations.execute();
-
-            double[] xStations = stations.xStationInitialSet;
-            double[] yStations = stations.yStationInitialSet;
-            double[] zStations = stations.zStationInitialSet;
-            double[] hStations = stations.hStationInitialSet;
-            boolean areAllEquals = stations.areAllEquals;
-            int n1 = xStations.length - 1;
-
-            xStations[n1] = coordinate.x;
-            yStations[n1] = coordinate.y;
-            zStations[n1] = demWR.getSample(x, y, 0);
-
-            double[] hresiduals = hStations;
-
-            if (doDetrended == true) {
-                if (zStations[n1] < 0) {
-                    doDetrended = false;
-                } else {
-                    doDetrended = true;
-                }
-            }
-
-            if (doDetrended) {
-                
-                
-                RegressionLine t = new PolyTrendLine(regressionOrder);
-                t.setValues(zStations, hStations);
-
-                double[] regressionParameters = t.getRegressionParameters();
-                trend_intercept = regressionParameters[0];
-                trend_coefficient = regressionParameters[1];
-                hresiduals = t.getResiduals();
-                
-
-//                Regression r = new Regression();
-//
-//                r = new Regression(zStations, hStations);
-//                r.polynomial(regressionOrder);
-//
-//                /*If there is a trend for meteorological
-//                 * variables and elevation and it is statistically significant 
-//                 * then the residuals from this linear trend
-//                 * are computed for each meteorological stations.
-//                 */
-//                // if (Math.abs(r.getXYcorrCoeff()) > thresholdCorrelation) {
-//
-//                trend_intercept = r.getBestEstimates()[0];
-//                trend_coefficient = r.getBestEstimates()[1];
-//                hresiduals = r.getResiduals();
-//
-//                // } else {
-//                // System.out.println("The trend is not significant");
-//                // doDetrended=false;
-//                // hresiduals=hStations;
-//
-//                // }
+        LinkedHashMap<Integer, Coordinate> pointsToInterpolateId2Coordinates = getCoordinate(inInterpolationGrid);
+        final Coordinate[] coordinates = pointsToInterpolateId2Coordinates.values().toArray(new Coordinate[0]);
+        final int pointsCount = coordinates.length;
 
-            }
-
-            if (n1 != 0) {
-
-                if (!areAllEquals && n1 > 1) {
-                    pm.beginTask(msg.message("kriging.working"), pointsToInterpolateId2Coordinates.size());
-
-                    double h0 = 0.0;
-
-                    /*
-                     * calculating the covariance matrix.
-                     */
-                    double[][] covarianceMatrix = covMatrixCalculating(xStations, yStations, zStations, n1);
-
-                    double[] knownTerm = knownTermsCalculation(xStations, yStations, zStations, n1);
-
-                    /*
-                     * solve the linear system, where the result is the weight (moltiplicativeFactor).
-                     */
-                    ColumnVector solution = SimpleLinearSystemSolverFactory.solve(knownTerm, covarianceMatrix,
-                            linearSystemSolverType);
+        final double[] result = new double[pointsCount];
+        final double[] variance = new double[pointsCount];
 
-                    double[] moltiplicativeFactor = solution.copyValues1D();
+        systemsCache.setVariogram(pSemivariogramType, nugget, range, sill);
+        long factorizationsBefore = systemsCache.getFactorizationsCount();
 
-                    for( int k = 0; k < n1; k++ ) {
-                        h0 = h0 + moltiplicativeFactor[k] * hresiduals[k];
-
-                        // sum is computed to check that
-                        // the sum of all the weights is 1
-                        sum = sum + moltiplicativeFactor[k];
-
-                    }
-
-                    double trend = (doDetrended) ? zStations[n1] * trend_coefficient + trend_intercept : 0;
-
-                    h0 = h0 + trend;
-                    // System.out.println(doDetrended);
-                    // System.out.println("prova");
-
-                    if (zStations[n1] < 0) {
-                        result[j] = HMConstants.doubleNovalue;
-                    } else {
-                        result[j] = h0;
-                    }
-
-                    j++;
-
-                    if (Math.abs(sum - 1) >= TOLL) {
-                        throw new ModelsRuntimeException("Error in the coffeicients calculation",
-                                this.getClass().getSimpleName());
+        // without neighbourhood the stations are the same for all the points
+        StationsSelection allStations = null;
+        if (inNumCloserStations <= 0 && maxdist <= 0 && pointsCount > 0) {
+            allStations = selectStations(coordinates[0]);
+        }
+        final StationsSelection sharedStations = allStations;
+
+        pm.beginTask(msg.message("kriging.working"), pointsCount);
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final int chunksCount = (pointsCount + POINTS_CHUNK - 1) / POINTS_CHUNK;
+        int threads = Math.max(1, Math.min(pMaxThreads, chunksCount));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for( int t = 0; t < threads; t++ ) {
+                futures.add(executor.submit(new Callable<Void>(){
+                    public Void call() throws Exception {
+                        double[] pointResult = new double[2];
+                        int chunk;
+                        while( (chunk = nextChunk.getAndIncrement()) < chunksCount ) {
+                            int from = chunk * POINTS_CHUNK;
+                            int to = Math.min(pointsCount, from + POINTS_CHUNK);
+                            for( int i = from; i < to; i++ ) {
+                                interpolatePoint(coordinates[i], sharedStations, pointResult);
+                                result[i] = pointResult[0];
+                                variance[i] = pointResult[1];
+                            }
+                            synchronized (pm) {
+                                pm.worked(to - from);
+                            }
+                        }
+                        return null;
                     }
-                    pm.worked(1);
-                } else if (n1 == 1 || areAllEquals) {
-
-                    double tmp = hresiduals[0];
-                    pm.message(msg.message("kriging.setequalsvalue"));
-                    pm.beginTask(msg.message("kriging.working"), pointsToInterpolateId2Coordinates.size());
-
-                    if (zStations[n1] < 0) {
-                        result[j] = HMConstants.doubleNovalue;
-                    } else {
-                        result[j] = tmp;
+                }));
+            }
+            for( Future<Void> future : futures ) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
                     }
-
-                    j++;
-                    n1 = 0;
-                    pm.worked(1);
-
+                    throw new ModelsRuntimeException(cause.getLocalizedMessage(), this);
                 }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        pm.done();
+        pm.message("Kriging systems factorized: " + (systemsCache.getFactorizationsCount() - factorizationsBefore));
 
-                pm.done();
-
-            } else {
-
-                pm.errorMessage("No value for this time step");
-                j = 0;
-                double[] value = inData.values().iterator().next();
+        outGrid = storeResult(result, pointsToInterpolateId2Coordinates, "gridded");
+        outVarianceGrid = storeResult(variance, pointsToInterpolateId2Coordinates, "variance");
+    }
 
-                if (zStations[n1] < 0) {
-                    result[j] = HMConstants.doubleNovalue;
-                } else {
-                    result[j] = value[0];
-                }
+    /**
+     * Interpolate a single point.
+     *
+     * @param coordinate the point.
+     * @param sharedStations the stations if they are the same for all the points, else <code>null</code>.
+     * @param pointResult the array into which to put the interpolated value and the kriging variance.
+     * @throws Exception
+     */
+    private void interpolatePoint( Coordinate coordinate, StationsSelection sharedStations, double[] pointResult )
+            throws Exception {
+        DirectPosition point = new DirectPosition2D(inInterpolationGrid.getCoordinateReferenceSystem(), coordinate.x,
+                coordinate.y);
+        DirectPosition gridPoint = new DirectPosition2D();
+        inInterpolationGrid.getCRSToGrid2D().transform(point, gridPoint);
+
+        double[] gridCoord = gridPoint.getCoordinate();
+        int x = (int) gridCoord[0];
+        int y = (int) gridCoord[1];
+
+        StationsSelection stations = sharedStations;
+        if (stations == null) {
+            stations = selectStations(coordinate);
+        }
 
-                j++;
+        // the last position is the point to interpolate, so the arrays of shared stations are copied
+        double[] xStations = stations.xStationInitialSet.clone();
+        double[] yStations = stations.yStationInitialSet.clone();
+        double[] zStations = stations.zStationInitialSet.clone();
+        double[] hStations = stations.hStationInitialSet.clone();
+        int[] idStations = stations.idStationInitialSet;
+        boolean areAllEquals = stations.areAllEquals;
+        int n1 = xStations.length - 1;
+
+        xStations[n1] = coordinate.x;
+        yStations[n1] = coordinate.y;
+        zStations[n1] = demWR.getSample(x, y, 0);
+
+        double[] hresiduals = hStations;
+
+        boolean doDetrendPoint = doDetrended && zStations[n1] >= 0;
+        double trendIntercept = 0;
+        double trendCoefficient = 0;
+        if (doDetrendPoint) {
+            RegressionLine t = new PolyTrendLine(regressionOrder);
+            t.setValues(zStations, hStations);
+
+            double[] regressionParameters = t.getRegressionParameters();
+            trendIntercept = regressionParameters[0];
+            trendCoefficient = regressionParameters[1];
+            hresiduals = t.getResiduals();
+        }
 
+        double value;
+        double pointVariance = HMConstants.doubleNovalue;
+        if (n1 == 0) {
+            // no value for this time step
+            value = inData.values().iterator().next()[0];
+        } else if (!areAllEquals && n1 > 1) {
+            double[] moltiplicativeFactor = new double[n1];
+            pointVariance = systemsCache.solve(idStations, xStations, yStations, zStations, n1, moltiplicativeFactor);
+
+            double h0 = 0.0;
+            double sum = 0.0;
+            for( int k = 0; k < n1; k++ ) {
+                h0 = h0 + moltiplicativeFactor[k] * hresiduals[k];
+
+                // sum is computed to check that
+                // the sum of all the weights is 1
+                sum = sum + moltiplicativeFactor[k];
+            }
+            if (Math.abs(sum - 1) >= TOLL) {
+                throw new ModelsRuntimeException("Error in the coffeicients calculation", this.getClass().getSimpleName());
             }
 
+            double trend = (doDetrendPoint) ? zStations[n1] * trendCoefficient + trendIntercept : 0;
+            value = h0 + trend;
+        } else {
+            // a single station or all the same values
+            value = hresiduals[0];
         }
 
-        storeResult(result, pointsToInterpolateId2Coordinates);
+        if (zStations[n1] < 0) {
+            pointResult[0] = HMConstants.doubleNovalue;
+            pointResult[1] = HMConstants.doubleNovalue;
+        } else {
+            pointResult[0] = value;
+            pointResult[1] = pointVariance;
+        }
+    }
+
+    /**
+     * StationsSelection is an external class that allows the 
+     * selection of the stations involved in the study.
+     * It is possible to define if to include stations with zero values,
+     * station in a define neighborhood or within a max distance from 
+     * the considered point.
+     */
+    private StationsSelection selectStations( Coordinate coordinate ) throws Exception {
+        StationsSelection stations = new StationsSelection();
+
+        stations.idx = coordinate.x;
+        stations.idy = coordinate.y;
+        stations.inStations = inStations;
+        stations.inData = inData;
+        stations.doIncludezero = doIncludezero;
+        stations.maxdist = maxdist;
+        stations.inNumCloserStations = inNumCloserStations;
+        stations.fStationsid = fStationsid;
+        stations.fStationsZ = fStationsZ;
+
+        stations.execute();
+        return stations;
     }
 
     /**
@@ -432,8 +424,6 @@ public class OmsKrigingRasterMode extends HMModel {
         double xres = regionMap.getXres();
         double yres = regionMap.getYres();
 
-        outWR = CoverageUtilities.createWritableRaster(cols, rows, null, null, null);
-
         double northing = south;
         double easting = west;
         for( int i = 0; i < cols; i++ ) {
@@ -465,97 +455,12 @@ public class OmsKrigingRasterMode extends HMModel {
         return inValuesWR;
     }
 
-    /**
-     * Covariance matrix calculation.
-     *
-     * @param x the x coordinates.
-     * @param y the y coordinates.
-     * @param z the z coordinates.
-     * @param n the number of the stations points.
-     * @return the double[][] matrix with the covariance
-     */
-    private double[][] covMatrixCalculating( double[] x, double[] y, double[] z, int n ) {
-
-        double[][] covarianceMatrix = new double[n + 1][n + 1];
-
-        for( int j = 0; j < n; j++ ) {
-            for( int i = 0; i < n; i++ ) {
-                double rx = x[i] - x[j];
-                double ry = y[i] - y[j];
-                double rz = z[i] - z[j];
-
-                covarianceMatrix[j][i] = variogram(nugget, range, sill, rx, ry, rz);
-                covarianceMatrix[i][j] = variogram(nugget, range, sill, rx, ry, rz);
-
-            }
-        }
-
-        for( int i = 0; i < n; i++ ) {
-            covarianceMatrix[i][n] = 1.0;
-            covarianceMatrix[n][i] = 1.0;
-
-        }
-        covarianceMatrix[n][n] = 0;
-        return covarianceMatrix;
-
-    }
-
-    /**
-     * Known terms calculation.
-     *
-     * @param x the x coordinates.
-     * @param y the y coordinates.
-     * @param z the z coordinates.
-     * @param n the number of the stations points.
-     * @return the double[] vector of the known terms
-     */
-    private double[] knownTermsCalculation( double[] x, double[] y, double[] z, int n ) {
-
-        // known terms vector
-        double[] gamma = new double[n + 1];
-
-        for( int i = 0; i < n; i++ ) {
-            double rx = x[i] - x[n];
-            double ry = y[i] - y[n];
-            double rz = z[i] - z[n];
-            gamma[i] = variogram(nugget, range, sill, rx, ry, rz);
-        }
-
-        gamma[n] = 1.0;
-        return gamma;
-
-    }
-
-    /**
-     * Variogram.
-     *
-     * @param nug is the nugget
-     * @param range is the range
-     * @param sill is the sill
-     * @param rx is the x distance
-     * @param ry is the y distance
-     * @param rz is the z distance
-     * @return the double value of the variance
-     */
-    private double variogram( double nug, double range, double sill, double rx, double ry, double rz ) {
-        if (HMConstants.isNovalue(rz)) {
-            rz = 0;
-        }
-        double h2 = Math.sqrt(rx * rx + rz * rz + ry * ry);
-        double vgmResult;
-
-        if (h2 != 0) {
-            TheoreticalVariogram vgm = new TheoreticalVariogram();
-            vgmResult = vgm.calculateVGM(pSemivariogramType, h2, sill, range, nug);
-        } else {
-            vgmResult = 0;
-        }
-        return vgmResult;
-    }
-
-    private void storeResult( double[] interpolatedValues, HashMap<Integer, Coordinate> interpolatedCoordinatesMap )
-            throws MismatchedDimensionException, Exception {
+    private GridCoverage2D storeResult( double[] interpolatedValues, HashMap<Integer, Coordinate> interpolatedCoordinatesMap,
+            String name ) throws MismatchedDimensionException, Exception {
 
+        RegionMap regionMap = CoverageUtilities.gridGeometry2RegionParamsMap(inInterpolationGrid);
+        WritableRaster outWR = CoverageUtilities.createWritableRaster(regionMap.getCols(), regionMap.getRows(), null, null,
+                null);
         WritableRandomIter outIter = RandomIterFactory.createWritable(outWR, null);
 
         Set<Integer> pointsToInterpolateIdSett = interpolatedCoordinatesMap.keySet();
@@ -582,11 +487,7 @@ public class OmsKrigingRasterMode extends HMModel {
 
         }
 
-        RegionMap regionMap = CoverageUtilities.gridGeometry2RegionParamsMap(inInterpolationGrid);
-
-        outGrid = CoverageUtilities.buildCoverage("gridded", outWR, regionMap,
-                inInterpolationGrid.getCoordinateReferenceSystem());
-
+        return CoverageUtilities.buildCoverage(name, outWR, regionMap, inInterpolationGrid.getCoordinateReferenceSystem());
     }
 
 }
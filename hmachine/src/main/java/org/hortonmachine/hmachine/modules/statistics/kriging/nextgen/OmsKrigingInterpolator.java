@@ -20,9 +20,11 @@ import static org.hortonmachine.gears.libs.modules.Variables.KRIGING_DEFAULT_VAR
 import static org.hortonmachine.gears.libs.modules.Variables.KRIGING_EXPERIMENTAL_VARIOGRAM;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
@@ -32,10 +34,15 @@ import java.util.stream.Collectors;
 import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.stat.ranking.NaturalRanking;
 import org.apache.commons.math3.stat.ranking.TiesStrategy;
+import org.hortonmachine.gears.io.timedependent.OmsTimeSeriesIteratorWriter;
+import org.hortonmachine.gears.libs.exceptions.ModelsIllegalargumentException;
+import org.hortonmachine.gears.libs.exceptions.ModelsRuntimeException;
+import org.hortonmachine.gears.libs.modules.HMConstants;
 import org.hortonmachine.gears.libs.modules.HMModel;
 import org.hortonmachine.gears.utils.math.interpolation.LinearArrayInterpolator;
 import org.hortonmachine.gears.utils.math.interpolation.LinearListInterpolator;
 import org.hortonmachine.hmachine.modules.statistics.kriging.OmsKrigingVectorMode;
+import org.hortonmachine.hmachine.modules.statistics.kriging.utils.KrigingSystemsCache;
 import org.hortonmachine.hmachine.modules.statistics.kriging.variogram.theoretical.ITheoreticalVariogram;
 import org.locationtech.jts.geom.Coordinate;
 
@@ -101,6 +108,43 @@ public class OmsKrigingInterpolator extends HMModel {
     @In
     public int pBins;
 
+    @Description("Batch mode: station ids to the measurement data of all the timesteps. If set, all the timesteps are interpolated in one run.")
+    @In
+    public HashMap<Integer, double[]> inStationIds2TimeSeriesMap;
+
+    @Description("Batch mode: the sill of the variogram, used in default variogram mode.")
+    @In
+    public double pSill = HMConstants.doubleNovalue;
+
+    @Description("Batch mode: the range of the variogram, used in default variogram mode.")
+    @In
+    public double pRange = HMConstants.doubleNovalue;
+
+    @Description("Batch mode: the nugget of the variogram, used in default variogram mode.")
+    @In
+    public double pNugget = 0.0;
+
+    @Description("Batch mode: the file to which the interpolated timesteps are written. If not set, the data are kept in outTargetIds2TimeSeriesMap.")
+    @UI(HMConstants.FILEOUT_UI_HINT)
+    @In
+    public String outTimeSeries;
+
+    @Description("Batch mode: the start date of the timeseries written (yyyy-MM-dd HH:mm).")
+    @In
+    public String tStart;
+
+    @Description("Batch mode: the timestep of the timeseries written, in minutes.")
+    @In
+    public int tTimestep = -1;
+
+    @Description("Batch mode: target ids to the interpolated data of all the timesteps, if no output file is set.")
+    @Out
+    public HashMap<Integer, double[]> outTargetIds2TimeSeriesMap;
+
+    private static final double TOLL = 1.0d * 10E-8;
+
+    private final KrigingSystemsCache systemsCache = new KrigingSystemsCache();
+
 //    public static final String OMSKRIGING_pIntegralscale_DESCRIPTION = "The integral scale.";
 //    public static final String OMSKRIGING_pVariance_DESCRIPTION = "The variance.";
 //    public static final String OMSKRIGING_doLogarithmic_DESCRIPTION = "Switch for logaritmic run selection.";
@@ -109,6 +153,10 @@ public class OmsKrigingInterpolator extends HMModel {
 
     @Execute
     public void process() throws Exception {
+        if (inStationIds2TimeSeriesMap != null) {
+            processBatch();
+            return;
+        }
         outTargetIds2ValueMap = new HashMap<>();
         
         for( Entry<Integer, TargetPointAssociation> targetId2AssociationEntry : inTargetPointId2AssociationMap.entrySet() ) {
@@ -220,6 +268,278 @@ public class OmsKrigingInterpolator extends HMModel {
 //        inverseNormalizeData(store, krigingOutData);
     }
 
+    /**
+     * Interpolate all the timesteps of the stations time series in one run.
+     * 
+     * <p>The weights of a target point only depend on the position of its stations
+     * and on the variogram, so they are calculated once per target and the
+     * interpolated series are the product of the matrix of the station values 
+     * (timesteps x stations) by the matrix of the weights (stations x targets).
+     * The product is done one timestep (row) at a time, so that the rows can be 
+     * streamed to the {@link OmsTimeSeriesIteratorWriter}.</p>
+     * 
+     * <p>The associations of the target points are the same for all the timesteps.
+     * In the timesteps in which some stations have no data, the weights are 
+     * calculated for the stations with data, the kriging systems of the same
+     * stations are decomposed only once.</p>
+     * 
+     * <p>The variogram is also the same for all the timesteps: fitted on the
+     * whole time series in experimental variogram mode, or given by sill, range and nugget.</p>
+     *
+     * @throws Exception
+     */
+    private void processBatch() throws Exception {
+        checkNull(inStationIds2TimeSeriesMap, inStationIds2CoordinateMap, inTargetPointId2AssociationMap,
+                inTargetPointsIds2CoordinateMap);
+
+        int timestepsCount = -1;
+        for( double[] series : inStationIds2TimeSeriesMap.values() ) {
+            if (timestepsCount == -1) {
+                timestepsCount = series.length;
+            } else if (series.length != timestepsCount) {
+                throw new ModelsIllegalargumentException("All the stations need to have the same number of timesteps.", this,
+                        pm);
+            }
+        }
+
+        if (pMode.equals(KRIGING_EXPERIMENTAL_VARIOGRAM)) {
+            fitBatchVariogram();
+        } else if (HMConstants.isNovalue(pSill) || HMConstants.isNovalue(pRange)) {
+            throw new ModelsIllegalargumentException("Sill and range are needed in default variogram mode.", this, pm);
+        }
+        systemsCache.setVariogram(pTheoreticalVariogramType, pNugget, pRange, pSill);
+
+        List<Integer> targetIds = new ArrayList<>(inTargetPointId2AssociationMap.keySet());
+        Collections.sort(targetIds);
+        int targetsCount = targetIds.size();
+        BatchTarget[] targets = new BatchTarget[targetsCount];
+        for( int i = 0; i < targetsCount; i++ ) {
+            Integer targetId = targetIds.get(i);
+            targets[i] = new BatchTarget(inTargetPointId2AssociationMap.get(targetId),
+                    inTargetPointsIds2CoordinateMap.get(targetId));
+        }
+
+        OmsTimeSeriesIteratorWriter writer = null;
+        if (outTimeSeries != null) {
+            writer = new OmsTimeSeriesIteratorWriter();
+            writer.file = outTimeSeries;
+            writer.tStart = tStart;
+            writer.tTimestep = tTimestep;
+            outTargetIds2TimeSeriesMap = null;
+        } else {
+            outTargetIds2TimeSeriesMap = new HashMap<>();
+            for( Integer targetId : targetIds ) {
+                outTargetIds2TimeSeriesMap.put(targetId, new double[timestepsCount]);
+            }
+        }
+
+        try {
+            pm.beginTask("Interpolating the timesteps...", timestepsCount);
+            for( int t = 0; t < timestepsCount; t++ ) {
+                checkCancel();
+                LinkedHashMap<Integer, double[]> row = new LinkedHashMap<>();
+                for( int i = 0; i < targetsCount; i++ ) {
+                    double value = targets[i].interpolate(t);
+                    Integer targetId = targetIds.get(i);
+                    if (writer != null) {
+                        row.put(targetId, new double[]{value});
+                    } else {
+                        outTargetIds2TimeSeriesMap.get(targetId)[t] = value;
+                    }
+                }
+                if (writer != null) {
+                    writer.inData = row;
+                    writer.writeNextLine();
+                }
+                pm.worked(1);
+            }
+            pm.done();
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private void fitBatchVariogram() throws Exception {
+        HashMap<Integer, Coordinate> validStationIds2CoordinateMap = new HashMap<>();
+        HashMap<Integer, double[]> validStationIds2ValueMap = new HashMap<>();
+        for( Entry<Integer, double[]> entry : inStationIds2TimeSeriesMap.entrySet() ) {
+            Integer stationId = entry.getKey();
+            double[] validValues = Arrays.stream(entry.getValue()).filter(v -> !HMConstants.isNovalue(v)).toArray();
+            Coordinate coordinate = inStationIds2CoordinateMap.get(stationId);
+            if (validValues.length > 0 && coordinate != null) {
+                validStationIds2CoordinateMap.put(stationId, coordinate);
+                validStationIds2ValueMap.put(stationId, validValues);
+            }
+        }
+
+        OmsExperimentalVariogram expVariogram = new OmsExperimentalVariogram();
+        expVariogram.inStationIds2CoordinateMap = validStationIds2CoordinateMap;
+        expVariogram.inStationIds2ValueMap = validStationIds2ValueMap;
+        expVariogram.pBins = pBins;
+        expVariogram.process();
+
+        OmsTheoreticalVariogram theoVariogram = new OmsTheoreticalVariogram();
+        theoVariogram.inExperimentalVariogramMap = expVariogram.outExperimentalVariogram;
+        theoVariogram.pTheoreticalVariogramType = pTheoreticalVariogramType;
+        theoVariogram.process();
+        pSill = theoVariogram.outSill;
+        pRange = theoVariogram.outRange;
+        pNugget = theoVariogram.outNugget;
+    }
+
+    /**
+     * A target point of the batch mode with the weights of its stations.
+     */
+    private class BatchTarget {
+        private final InterpolationType interpolationType;
+        private final Coordinate coordinate;
+        private final int[] stationIds;
+        private final double[] distances;
+        private final double[][] stationSeries;
+        private final double[] weights;
+
+        BatchTarget( TargetPointAssociation association, Coordinate coordinate ) throws Exception {
+            this.coordinate = coordinate;
+            interpolationType = association.interpolationType;
+            int n = association.stationIds.size();
+            stationIds = new int[n];
+            distances = new double[n];
+            stationSeries = new double[n][];
+            for( int i = 0; i < n; i++ ) {
+                stationIds[i] = association.stationIds.get(i);
+                distances[i] = association.stationDistances.get(i);
+                stationSeries[i] = inStationIds2TimeSeriesMap.get(stationIds[i]);
+                if (stationSeries[i] == null) {
+                    throw new ModelsIllegalargumentException("No time series found for station: " + stationIds[i],
+                            OmsKrigingInterpolator.this, pm);
+                }
+            }
+            boolean[] allValid = new boolean[n];
+            Arrays.fill(allValid, true);
+            weights = calculateWeights(allValid, n);
+        }
+
+        /**
+         * @param t the timestep.
+         * @return the interpolated value of the timestep.
+         */
+        double interpolate( int t ) throws Exception {
+            if (interpolationType == null || interpolationType == InterpolationType.NODATA || weights == null) {
+                return HMConstants.doubleNovalue;
+            }
+            double value = 0;
+            int n = stationIds.length;
+            boolean[] valid = null;
+            int validCount = n;
+            for( int i = 0; i < n; i++ ) {
+                double stationValue = stationSeries[i][t];
+                if (HMConstants.isNovalue(stationValue)) {
+                    if (valid == null) {
+                        valid = new boolean[n];
+                        Arrays.fill(valid, true);
+                    }
+                    valid[i] = false;
+                    validCount--;
+                } else {
+                    value += weights[i] * stationValue;
+                }
+            }
+            if (valid == null) {
+                return value;
+            }
+
+            // some stations miss the data of this timestep
+            if (validCount == 0) {
+                return HMConstants.doubleNovalue;
+            }
+            double[] validWeights = calculateWeights(valid, validCount);
+            value = 0;
+            for( int i = 0; i < n; i++ ) {
+                if (valid[i]) {
+                    value += validWeights[i] * stationSeries[i][t];
+                }
+            }
+            return value;
+        }
+
+        private double[] calculateWeights( boolean[] valid, int validCount ) throws Exception {
+            int n = stationIds.length;
+            double[] stationWeights = new double[n];
+            if (validCount == 0) {
+                return null;
+            }
+            switch( interpolationType ) {
+            case NOINTERPOLATION_USE_RAW_DATA:
+                // the first valid value
+                for( int i = 0; i < n; i++ ) {
+                    if (valid[i]) {
+                        stationWeights[i] = 1.0;
+                        break;
+                    }
+                }
+                break;
+            case INTERPOLATION_IDW:
+                double sumweight = 0;
+                for( int i = 0; i < n; i++ ) {
+                    if (valid[i]) {
+                        double distance = Math.max(distances[i], 0.00001);
+                        stationWeights[i] = 1 / Math.pow(distance, 2);
+                        sumweight += stationWeights[i];
+                    }
+                }
+                for( int i = 0; i < n; i++ ) {
+                    stationWeights[i] /= sumweight;
+                }
+                break;
+            case INTERPOLATION_KRIGING:
+                if (validCount == 1) {
+                    for( int i = 0; i < n; i++ ) {
+                        stationWeights[i] = valid[i] ? 1.0 : 0.0;
+                    }
+                    break;
+                }
+                int[] ids = new int[validCount + 1];
+                double[] x = new double[validCount + 1];
+                double[] y = new double[validCount + 1];
+                double[] z = new double[validCount + 1];
+                int[] indexes = new int[validCount];
+                int k = 0;
+                for( int i = 0; i < n; i++ ) {
+                    if (valid[i]) {
+                        Coordinate stationCoordinate = inStationIds2CoordinateMap.get(stationIds[i]);
+                        ids[k] = stationIds[i];
+                        x[k] = stationCoordinate.x;
+                        y[k] = stationCoordinate.y;
+                        z[k] = Double.isNaN(stationCoordinate.z) ? 0 : stationCoordinate.z;
+                        indexes[k] = i;
+                        k++;
+                    }
+                }
+                x[validCount] = coordinate.x;
+                y[validCount] = coordinate.y;
+                z[validCount] = Double.isNaN(coordinate.z) ? 0 : coordinate.z;
+
+                double[] krigingWeights = new double[validCount];
+                systemsCache.solve(ids, x, y, z, validCount, krigingWeights);
+                double sum = 0;
+                for( int j = 0; j < validCount; j++ ) {
+                    stationWeights[indexes[j]] = krigingWeights[j];
+                    sum += krigingWeights[j];
+                }
+                if (Math.abs(sum - 1) >= TOLL) {
+                    throw new ModelsRuntimeException("Error in the coffeicients calculation",
+                            OmsKrigingInterpolator.this);
+                }
+                break;
+            default:
+                return null;
+            }
+            return stationWeights;
+        }
+    }
+
     private void inverseNormalizeData( NormalizationStore store, HashMap<Integer, double[]> targetIds2ValueMap ) {
         Set<Integer> targetIdsSet = targetIds2ValueMap.keySet();
         List<Double> orderedInterpolatedValues = new ArrayList<Double>();
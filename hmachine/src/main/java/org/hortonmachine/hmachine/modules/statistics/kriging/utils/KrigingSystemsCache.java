@@ -0,0 +1,206 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.hmachine.modules.statistics.kriging.utils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.utils.math.matrixes.ColumnVector;
+import org.hortonmachine.gears.utils.math.matrixes.LinearSystem;
+import org.hortonmachine.gears.utils.math.matrixes.MatrixException;
+import org.hortonmachine.hmachine.modules.statistics.kriging.variogram.theoretical.ITheoreticalVariogram;
+
+/**
+ * Cache of the factorized ordinary kriging systems.
+ *
+ * <p>The matrix of the ordinary kriging system only depends on the stations used,
+ * not on the point to interpolate. The matrix of a set of stations is therefore
+ * decomposed once and kept, keyed by the ids of the stations, and all the points
+ * that use the same stations only need the forward and back substitution.</p>
+ *
+ * <p>The stations are ordered by id inside the cache, so the same stations selected
+ * in a different order (ex. by distance) use the same system.</p>
+ *
+ * <p>The cache is threadsafe. The systems depend on the variogram, which is why
+ * changing it empties the cache.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class KrigingSystemsCache {
+    /**
+     * The default max number of systems kept.
+     */
+    public static final int DEFAULT_MAX_SYSTEMS = 10000;
+
+    private final ConcurrentHashMap<String, LinearSystem> systems = new ConcurrentHashMap<>();
+    private final int maxSystems;
+
+    private String semivariogramType;
+    private double nugget;
+    private double range;
+    private double sill;
+
+    private final AtomicLong factorizations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    public KrigingSystemsCache() {
+        this(DEFAULT_MAX_SYSTEMS);
+    }
+
+    /**
+     * @param maxSystems the max number of systems kept. When exceeded the cache is emptied.
+     */
+    public KrigingSystemsCache( int maxSystems ) {
+        this.maxSystems = maxSystems;
+    }
+
+    /**
+     * Set the variogram used to build the systems.
+     *
+     * <p>If it is different from the one in use, the cached systems are dropped.</p>
+     *
+     * @param semivariogramType the type of theoretical semivariogram.
+     * @param nugget the nugget.
+     * @param range the range.
+     * @param sill the sill.
+     */
+    public synchronized void setVariogram( String semivariogramType, double nugget, double range, double sill ) {
+        if (!semivariogramType.equals(this.semivariogramType) || nugget != this.nugget || range != this.range
+                || sill != this.sill) {
+            systems.clear();
+            this.semivariogramType = semivariogramType;
+            this.nugget = nugget;
+            this.range = range;
+            this.sill = sill;
+        }
+    }
+
+    /**
+     * Calculate the ordinary kriging weights of a point.
+     *
+     * <p>The arrays have the layout used by {@link StationsSelection}: the stations
+     * first and the point to interpolate at position n.</p>
+     *
+     * @param ids the ids of the stations.
+     * @param x the x coordinates.
+     * @param y the y coordinates.
+     * @param z the z coordinates.
+     * @param n the number of stations.
+     * @param weights the array, of at least n elements, into which the weights of the stations are put.
+     * @return the kriging variance.
+     * @throws MatrixException if the system can't be solved.
+     */
+    public double solve( int[] ids, double[] x, double[] y, double[] z, int n, double[] weights ) throws MatrixException {
+        // the canonical order of the stations
+        Integer[] order = new Integer[n];
+        for( int i = 0; i < n; i++ ) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.<Integer> comparingInt(i -> ids[i]).thenComparingDouble(i -> x[i])
+                .thenComparingDouble(i -> y[i]).thenComparingDouble(i -> z[i]));
+
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0; i < n; i++ ) {
+            sb.append(ids[order[i]]).append(',');
+        }
+        String key = sb.toString();
+
+        LinearSystem system = systems.get(key);
+        if (system == null) {
+            system = createSystem(order, x, y, z, n);
+            if (systems.size() >= maxSystems) {
+                systems.clear();
+            }
+            LinearSystem previous = systems.putIfAbsent(key, system);
+            if (previous != null) {
+                system = previous;
+            }
+            factorizations.incrementAndGet();
+        } else {
+            reuses.incrementAndGet();
+        }
+
+        double[] knownTerm = new double[n + 1];
+        for( int k = 0; k < n; k++ ) {
+            int i = order[k];
+            knownTerm[k] = variogram(x[i] - x[n], y[i] - y[n], z[i] - z[n]);
+        }
+        knownTerm[n] = 1.0;
+
+        ColumnVector solution = system.solve(new ColumnVector(knownTerm), true);
+
+        // the variance is the sum of the weighted semivariances plus the lagrange multiplier
+        double variance = solution.at(n);
+        for( int k = 0; k < n; k++ ) {
+            double weight = solution.at(k);
+            weights[order[k]] = weight;
+            variance += weight * knownTerm[k];
+        }
+        return variance;
+    }
+
+    private LinearSystem createSystem( Integer[] order, double[] x, double[] y, double[] z, int n ) throws MatrixException {
+        double[][] covarianceMatrix = new double[n + 1][n + 1];
+        for( int r = 0; r < n; r++ ) {
+            int i = order[r];
+            for( int c = r + 1; c < n; c++ ) {
+                int j = order[c];
+                double value = variogram(x[i] - x[j], y[i] - y[j], z[i] - z[j]);
+                covarianceMatrix[r][c] = value;
+                covarianceMatrix[c][r] = value;
+            }
+            covarianceMatrix[r][n] = 1.0;
+            covarianceMatrix[n][r] = 1.0;
+        }
+        LinearSystem system = new LinearSystem(covarianceMatrix);
+        // decompose now, so that the shared system is only read afterwards
+        system.solve(new ColumnVector(n + 1), false);
+        return system;
+    }
+
+    private double variogram( double rx, double ry, double rz ) {
+        if (HMConstants.isNovalue(rz)) {
+            rz = 0;
+        }
+        double h2 = Math.sqrt(rx * rx + rz * rz + ry * ry);
+        if (h2 == 0) {
+            return 0;
+        }
+        ITheoreticalVariogram vgm = ITheoreticalVariogram.create(semivariogramType);
+        vgm.init(h2, sill, range, nugget);
+        return vgm.computeSemivariance();
+    }
+
+    /**
+     * @return the number of systems that have been decomposed.
+     */
+    public long getFactorizationsCount() {
+        return factorizations.get();
+    }
+
+    /**
+     * @return the number of times a cached system has been reused.
+     */
+    public long getReusesCount() {
+        return reuses.get();
+    }
+
+}
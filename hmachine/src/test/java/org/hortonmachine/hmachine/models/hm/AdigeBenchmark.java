@@ -0,0 +1,199 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.hmachine.models.hm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.hortonmachine.gears.libs.monitor.DummyProgressMonitor;
+import org.hortonmachine.gears.utils.CrsUtilities;
+import org.hortonmachine.gears.utils.geometry.GeometryUtilities;
+import org.hortonmachine.hmachine.modules.hydrogeomorphology.adige.OmsAdige;
+import org.hortonmachine.hmachine.modules.hydrogeomorphology.adige.duffy.DuffyInputs;
+import org.hortonmachine.hmachine.modules.network.networkattributes.NetworkChannel;
+import org.joda.time.DateTime;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Speed benchmark of the duffy engine of {@link OmsAdige}.
+ *
+ * <p>Not a unit test (it is not run by the build), launch it by hand:</p>
+ *
+ * <pre>
+ * java ... org.hortonmachine.hmachine.models.hm.AdigeBenchmark [network depth] [timesteps] [max threads]
+ * </pre>
+ *
+ * <p>A synthetic network is built by splitting every tributary of the pfafstetter
+ * numbering down to the given depth (depth 3 gives 169 hillslopes, depth 4 681, depth 5 2729).
+ * A constant rain is simulated with 1, 2, 4 ... up to the max threads, printing time, speedup
+ * and the outlet discharge, which has to be the same for all the runs.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class AdigeBenchmark {
+
+    private static final double HILLSLOPE_SIDE = 700.0;
+    private static final int TIMESTEP_MINUTES = 30;
+    private static final String START = "2009-05-01 00:00";
+
+    public static void main( String[] args ) throws Exception {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int timesteps = args.length > 1 ? Integer.parseInt(args[1]) : 48;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        List<String> pfafs = new ArrayList<>();
+        addPfafstetters("", depth, pfafs);
+        // the outlet has to come last for the network analysis
+        Collections.reverse(pfafs);
+
+        SimpleFeatureCollection[] network = createNetwork(pfafs);
+        System.out.println("Synthetic network of " + pfafs.size() + " hillslopes, " + timesteps + " timesteps of "
+                + TIMESTEP_MINUTES + " minutes");
+
+        // warm up
+        run(network, Math.min(timesteps, 4), 1);
+
+        System.out.println("threads\tseconds\tspeedup\toutlet discharge");
+        double singleSeconds = -1;
+        for( int threads = 1; threads <= maxThreads; threads *= 2 ) {
+            double[] result = run(network, timesteps, threads);
+            if (singleSeconds < 0) {
+                singleSeconds = result[0];
+            }
+            System.out.printf("%d\t%.2f\t%.2f\t%.6f%n", threads, result[0], singleSeconds / result[0], result[1]);
+        }
+    }
+
+    /**
+     * @return the seconds of the simulation (without the setup) and the final outlet discharge.
+     */
+    private static double[] run( SimpleFeatureCollection[] network, int timesteps, int threads ) throws Exception {
+        DateTime start = OmsAdige.adigeFormatter.parseDateTime(START);
+        DateTime end = start.plusMinutes(timesteps * TIMESTEP_MINUTES);
+
+        DuffyInputs duffyInputs = new DuffyInputs();
+        duffyInputs.fAvg_sub = "avg_sub";
+        duffyInputs.fVar_sub = "var_sub";
+        duffyInputs.fAvg_sup_10 = "avg_sup_10";
+        duffyInputs.fVar_sup_10 = "var_sup_10";
+        duffyInputs.fAvg_sup_30 = "avg_sup_30";
+        duffyInputs.fVar_sup_30 = "var_sup_30";
+        duffyInputs.fAvg_sup_60 = "avg_sup_60";
+        duffyInputs.fVar_sup_60 = "var_sup_60";
+        duffyInputs.pV_sup = 2.0;
+        duffyInputs.pV_sub = 0.1;
+        duffyInputs.pEtrate = 0.1;
+        duffyInputs.pMaxThreads = threads;
+
+        OmsAdige adige = new OmsAdige();
+        adige.pm = new DummyProgressMonitor();
+        adige.inHillslope = network[0];
+        adige.inNetwork = network[1];
+        adige.inDuffyInput = duffyInputs;
+        adige.pRainintensity = 5.0;
+        adige.pRainduration = timesteps * TIMESTEP_MINUTES / 2;
+        adige.tStart = START;
+        adige.tEnd = end.toString(OmsAdige.adigeFormatter);
+        adige.tTimestep = TIMESTEP_MINUTES;
+
+        // the first timestep also builds the hillslopes and the engine
+        adige.process();
+        long startNanos = System.nanoTime();
+        for( int i = 1; i < timesteps; i++ ) {
+            adige.process();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1E9;
+        double outletDischarge = adige.outDischarge.values().iterator().next()[0];
+        return new double[]{seconds, outletDischarge};
+    }
+
+    /**
+     * Add the pfafstetter numbers of a basin, splitting the tributaries (the even numbers)
+     * into subbasins until the depth is reached.
+     */
+    private static void addPfafstetters( String prefix, int depth, List<String> pfafs ) {
+        for( int i = 1; i <= 9; i++ ) {
+            String pfaf = prefix + i;
+            if (i % 2 == 0 && depth > 1) {
+                addPfafstetters(pfaf + ".", depth - 1, pfafs);
+            } else {
+                pfafs.add(pfaf);
+            }
+        }
+    }
+
+    /**
+     * @return the hillslopes and the network, with a square hillslope and a straight link per pfafstetter number.
+     */
+    private static SimpleFeatureCollection[] createNetwork( List<String> pfafs ) throws Exception {
+        CoordinateReferenceSystem crs = CrsUtilities.getCrsFromEpsg("EPSG:32632");
+        GeometryFactory gf = GeometryUtilities.gf();
+
+        SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
+        b.setName("hillslopes");
+        b.setCRS(crs);
+        b.add("the_geom", Polygon.class);
+        b.add(NetworkChannel.NETNUMNAME, Integer.class);
+        String[] distributionFields = {"avg_sup_10", "var_sup_10", "avg_sup_30", "var_sup_30", "avg_sup_60", "var_sup_60",
+                "avg_sub", "var_sub"};
+        for( String field : distributionFields ) {
+            b.add(field, Double.class);
+        }
+        SimpleFeatureBuilder hillslopeBuilder = new SimpleFeatureBuilder(b.buildFeatureType());
+
+        b = new SimpleFeatureTypeBuilder();
+        b.setName("network");
+        b.setCRS(crs);
+        b.add("the_geom", LineString.class);
+        b.add(NetworkChannel.PFAFNAME, String.class);
+        b.add(NetworkChannel.STARTELEVNAME, Double.class);
+        b.add(NetworkChannel.ENDELEVNAME, Double.class);
+        SimpleFeatureBuilder networkBuilder = new SimpleFeatureBuilder(b.buildFeatureType());
+
+        DefaultFeatureCollection hillslopes = new DefaultFeatureCollection();
+        DefaultFeatureCollection network = new DefaultFeatureCollection();
+        int cols = (int) Math.ceil(Math.sqrt(pfafs.size()));
+        for( int i = 0; i < pfafs.size(); i++ ) {
+            double x = 650000 + (i % cols) * HILLSLOPE_SIDE;
+            double y = 5100000 + (i / cols) * HILLSLOPE_SIDE;
+            Polygon square = gf.createPolygon(new Coordinate[]{new Coordinate(x, y), new Coordinate(x, y + HILLSLOPE_SIDE),
+                    new Coordinate(x + HILLSLOPE_SIDE, y + HILLSLOPE_SIDE), new Coordinate(x + HILLSLOPE_SIDE, y),
+                    new Coordinate(x, y)});
+            double linkY = y + HILLSLOPE_SIDE / 2;
+            LineString link = gf.createLineString(new Coordinate[]{new Coordinate(x + 100, linkY),
+                    new Coordinate(x + HILLSLOPE_SIDE - 100, linkY)});
+
+            hillslopeBuilder.addAll(new Object[]{square, i + 1, 3304.0, 2.41E6, 3603.0, 2.45E6, 20981.0, 2.26E8, 50555.0,
+                    1.47E9});
+            hillslopes.add(hillslopeBuilder.buildFeature(null));
+            networkBuilder.addAll(new Object[]{link, pfafs.get(i), 510.0, 500.0});
+            network.add(networkBuilder.buildFeature(null));
+        }
+        return new SimpleFeatureCollection[]{hillslopes, network};
+    }
+
+}
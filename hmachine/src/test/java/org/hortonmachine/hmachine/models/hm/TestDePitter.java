@@ -21,6 +21,7 @@ import static org.hortonmachine.gears.libs.modules.HMConstants.isNovalue;
 
 import java.awt.image.RenderedImage;
 import java.util.HashMap;
+import java.util.Random;
 
 import javax.media.jai.iterator.RectIter;
 import javax.media.jai.iterator.RectIterFactory;
@@ -29,9 +30,12 @@ import org.geotools.coverage.grid.GridCoverage2D;
 import org.hortonmachine.gears.io.rasterreader.OmsRasterReader;
 import org.hortonmachine.gears.io.rasterwriter.OmsRasterWriter;
 import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.libs.modules.Variables;
+import org.hortonmachine.gears.utils.RegionMap;
 import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
 import org.hortonmachine.gears.utils.time.EggClock;
 import org.hortonmachine.hmachine.modules.demmanipulation.pitfiller.OmsDePitter;
+import org.hortonmachine.hmachine.modules.demmanipulation.pitfiller.PriorityFloodFiller;
 import org.hortonmachine.hmachine.utils.HMTestCase;
 import org.hortonmachine.hmachine.utils.HMTestMaps;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -125,6 +129,104 @@ public class TestDePitter extends HMTestCase {
 //    
 //     }
 
+    public void testPriorityFlood() throws Exception {
+        double[][] elevationData = new double[][]{//
+                {800, 900, 1000, 1000, 1200, 1250, 1300, 1350, 1450, 1500}, //
+                {600, ND, 750, 850, 860, 900, 1000, 1200, 1250, 1500}, //
+                {500, 550, 700, 750, 800, 850, 900, 1000, 1100, 1500}, //
+                {400, 410, 650, 700, 750, 800, 850, 490, 450, 1500}, //
+                {450, 550, 430, 500, 600, 700, 800, 500, 450, 1500}, //
+                {500, 600, 700, 750, 760, 770, 850, 1000, 1150, 1500}, //
+                {600, 700, 750, 800, 780, 790, 1000, 1100, 1250, 1500}, //
+                {800, 910, 980, 1001, 1150, 1200, 1250, 1300, 1450, 1500} //
+        };
+        double[][] outNewPitData = new double[][]{ //
+                {800, 900, 1000, 1000, 1200, 1250, 1300, 1350, 1450, 1500}, //
+                {600, ND, 750, 850, 860, 900, 1000, 1200, 1250, 1500}, //
+                {500, 550, 700, 750, 800, 850, 900, 1000, 1100, 1500}, //
+                {400, 410, 650, 700, 750, 800, 850, 800.000002, 800.000004, 1500}, //
+                {450, 550, 430, 500, 600, 700, 800, 800.000002, 800.000004, 1500}, //
+                {500, 600, 700, 750, 760, 770, 850, 1000, 1150, 1500}, //
+                {600, 700, 750, 800, 780, 790, 1000, 1100, 1250, 1500}, //
+                {800, 910, 980, 1001, 1150, 1200, 1250, 1300, 1450, 1500} //
+        };
+        int[][] newIntFlowData = new int[][]{ //
+                {NI, NI, NI, NI, NI, NI, NI, NI, NI, NI}, //
+                {NI, NI, NI, 6, 6, 6, 6, 6, 6, NI}, //
+                {NI, NI, NI, 6, 6, 6, 6, 7, 7, NI}, //
+                {NI, 5, 5, 7, 6, 6, 6, 6, 5, NI}, //
+                {NI, 3, 4, 5, 5, 5, 5, 5, 5, NI}, //
+                {NI, 2, 3, 3, 4, 4, 4, 3, 3, NI}, //
+                {NI, 4, 4, 4, 4, 4, 5, 4, 4, NI}, //
+                {NI, NI, NI, NI, NI, NI, NI, NI, NI, NI} //
+        };
+        RegionMap envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        GridCoverage2D elevationCoverage = CoverageUtilities.buildCoverage("elevation", elevationData, envelopeParams, crs,
+                true);
+
+        for( String mode : new String[]{Variables.PITS_PRIORITY_FLOOD, Variables.PITS_PRIORITY_FLOOD_TILED} ) {
+            OmsDePitter pitfiller = new OmsDePitter();
+            pitfiller.inElev = elevationCoverage;
+            pitfiller.pMode = mode;
+            pitfiller.pm = pm;
+            pitfiller.process();
+
+            checkMatrixEqualLimit(pitfiller.outPit.getRenderedImage(), outNewPitData, 1E-7);
+            checkMatrixEqual(pitfiller.outFlow.getRenderedImage(), newIntFlowData);
+        }
+    }
+
+    public void testPriorityFloodBands() throws Exception {
+        // a rough slope towards west, with pits crossing the band borders
+        int cols = 15;
+        int rows = 23;
+        Random random = new Random(7);
+        double[] elevationData = new double[cols * rows];
+        for( int r = 0; r < rows; r++ ) {
+            for( int c = 0; c < cols; c++ ) {
+                elevationData[r * cols + c] = 100 + 3 * c + random.nextInt(8);
+            }
+        }
+        // a deep pit on rows 3 and 4, the band border for 4 rows bands
+        for( int r = 3; r <= 4; r++ ) {
+            for( int c = 5; c <= 7; c++ ) {
+                elevationData[r * cols + c] = 50;
+            }
+        }
+        // a long pit crossing several bands, with a high rim
+        for( int r = 8; r <= 17; r++ ) {
+            elevationData[r * cols + 9] = 60 + r;
+            elevationData[r * cols + 8] = 200;
+            elevationData[r * cols + 10] = 200;
+        }
+        elevationData[7 * cols + 9] = 200;
+        elevationData[18 * cols + 9] = 200;
+        elevationData[12 * cols + 3] = ND;
+
+        for( double epsilon : new double[]{0, 1E-6} ) {
+            double[] expected = elevationData.clone();
+            new PriorityFloodFiller(expected, cols, rows, ND, epsilon).fill();
+            double delta = epsilon * cols * rows;
+
+            for( int bandRows : new int[]{2, 4, 5, 7} ) {
+                for( boolean doParallel : new boolean[]{false, true} ) {
+                    double[] filled = elevationData.clone();
+                    new PriorityFloodFiller(filled, cols, rows, ND, epsilon).setProgressMonitor(pm).fillTiled(doParallel,
+                            bandRows);
+                    for( int i = 0; i < filled.length; i++ ) {
+                        String msg = "band rows " + bandRows + " epsilon " + epsilon + " at " + i % cols + "/" + i / cols;
+                        if (isNovalue(expected[i])) {
+                            assertTrue(msg, isNovalue(filled[i]));
+                        } else {
+                            assertEquals(msg, expected[i], filled[i], delta);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     protected void checkMatrixEqualLimit( RenderedImage image, double[][] matrix, double delta ) {
         RectIter rectIter = RectIterFactory.create(image, null);
         int y = 0;
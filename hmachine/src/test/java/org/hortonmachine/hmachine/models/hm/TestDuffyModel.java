@@ -0,0 +1,350 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.hmachine.models.hm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.hortonmachine.gears.libs.monitor.DummyProgressMonitor;
+import org.hortonmachine.gears.utils.CrsUtilities;
+import org.hortonmachine.gears.utils.geometry.GeometryUtilities;
+import org.hortonmachine.gears.utils.math.NumericsUtilities;
+import org.hortonmachine.hmachine.modules.hydrogeomorphology.adige.OmsAdige;
+import org.hortonmachine.hmachine.modules.hydrogeomorphology.adige.core.HillSlopeDuffy;
+import org.hortonmachine.hmachine.modules.hydrogeomorphology.adige.core.IHillSlope;
+import org.hortonmachine.hmachine.modules.hydrogeomorphology.adige.duffy.DuffyInputs;
+import org.hortonmachine.hmachine.modules.hydrogeomorphology.adige.duffy.DuffyModel;
+import org.hortonmachine.hmachine.modules.hydrogeomorphology.adige.duffy.RungeKuttaFelberg;
+import org.hortonmachine.hmachine.modules.hydrogeomorphology.adige.utils.AdigeUtilities;
+import org.hortonmachine.hmachine.modules.network.networkattributes.NetworkChannel;
+import org.hortonmachine.hmachine.utils.HMTestCase;
+import org.joda.time.DateTime;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Test the in place and parallel evaluation of the {@link DuffyModel} and the
+ * workspaces of the {@link RungeKuttaFelberg} against the allocating versions.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestDuffyModel extends HMTestCase {
+
+    private static final double HILLSLOPE_SIDE = 700.0;
+    private static final int TIMESTEP_MINUTES = 30;
+
+    private List<IHillSlope> hillslopes;
+    private DuffyInputs duffyInputs;
+    private double[] initialConditions;
+    private double[] rainArray;
+
+    protected void setUp() throws Exception {
+        duffyInputs = new DuffyInputs();
+        duffyInputs.pEtrate = 0.1;
+
+        // depth 3 gives 169 hillslopes, enough for the parallel evaluation
+        List<String> pfafs = new ArrayList<>();
+        addPfafstetters("", 3, pfafs);
+        Collections.reverse(pfafs);
+        DefaultFeatureCollection[] network = createNetwork(pfafs);
+        hillslopes = new ArrayList<>();
+        for( IHillSlope hillSlope : AdigeUtilities.generateHillSlopes(network[1], network[0], new DummyProgressMonitor()) ) {
+            hillslopes.add(new HillSlopeDuffy(hillSlope, duffyInputs));
+        }
+
+        // the default initial conditions of the duffy engine
+        int n = hillslopes.size();
+        initialConditions = new double[4 * n];
+        rainArray = new double[n];
+        for( int i = 0; i < n; i++ ) {
+            HillSlopeDuffy hillslope = (HillSlopeDuffy) hillslopes.get(i);
+            double totalDischarge = hillslope.getUpstreamArea(null) / 1000000.0 * duffyInputs.pDischargePerUnitArea;
+            initialConditions[i] = duffyInputs.pStartSuperficialDischargeFraction * totalDischarge;
+            initialConditions[i + n] = (1.0 - duffyInputs.pStartSuperficialDischargeFraction) * totalDischarge;
+            double s2max = hillslope.getParameters().getS2max();
+            initialConditions[i + 2 * n] = duffyInputs.pMaxSatVolumeS1 * s2max;
+            initialConditions[i + 3 * n] = duffyInputs.pMaxSatVolumeS2 * s2max;
+            // some variability in the rain
+            rainArray[i] = 2.0 + (i % 7);
+        }
+    }
+
+    public void testInPlaceAndParallelEval() throws Exception {
+        Thread testThread = Thread.currentThread();
+        AtomicInteger messagesCount = new AtomicInteger();
+        DummyProgressMonitor monitor = new DummyProgressMonitor(){
+            @Override
+            public void message( String message ) {
+                // the monitor is not threadsafe, it has to be used by the calling thread only
+                assertSame(testThread, Thread.currentThread());
+                messagesCount.incrementAndGet();
+            }
+        };
+
+        DuffyModel serialModel = new DuffyModel(hillslopes, DuffyModel.ROUTING_CHEZY, monitor, false);
+        DuffyModel parallelModel = new DuffyModel(hillslopes, DuffyModel.ROUTING_CHEZY, monitor, false);
+        parallelModel.setMaxThreads(4);
+        try {
+            double time = new DateTime(2009, 5, 1, 0, 0).getMillis() / 60000.0;
+            double[] expected = serialModel.eval(time, initialConditions.clone(), rainArray, null, false);
+
+            // a dirty output, as reused by the solver
+            double[] output = new double[initialConditions.length];
+            Arrays.fill(output, -1);
+            serialModel.eval(time, initialConditions.clone(), rainArray, null, false, output);
+            assertArrayEquals(expected, output);
+
+            Arrays.fill(output, -1);
+            parallelModel.eval(time, initialConditions.clone(), rainArray, null, false, output);
+            assertArrayEquals(expected, output);
+
+            // at the final subtimestep every hillslope logs its fluxes
+            serialModel.eval(time, initialConditions.clone(), rainArray, null, true, output);
+            assertEquals(hillslopes.size(), messagesCount.get());
+            parallelModel.eval(time, initialConditions.clone(), rainArray, null, true, output);
+            assertEquals(2 * hillslopes.size(), messagesCount.get());
+        } finally {
+            serialModel.close();
+            parallelModel.close();
+        }
+    }
+
+    public void testSolverWorkspaces() throws Exception {
+        DateTime start = OmsAdige.adigeFormatter.parseDateTime("2009-05-01 00:00");
+
+        DuffyModel referenceModel = new DuffyModel(hillslopes, DuffyModel.ROUTING_CHEZY, pm, false);
+        AllocatingRungeKuttaFelberg reference = new AllocatingRungeKuttaFelberg(referenceModel, 1e-2, 10 / 60.);
+        for( int threads : new int[]{1, 4} ) {
+            DuffyModel model = new DuffyModel(hillslopes, DuffyModel.ROUTING_CHEZY, pm, false);
+            model.setMaxThreads(threads);
+            try {
+                RungeKuttaFelberg solver = new RungeKuttaFelberg(model, 1e-2, 10 / 60., pm, false);
+                reference.basicTimeStepInMinutes = 10 / 60.;
+                double[] expected = initialConditions.clone();
+                double[] conditions = initialConditions.clone();
+                for( int t = 0; t < 4; t++ ) {
+                    DateTime current = start.plusMinutes(t * TIMESTEP_MINUTES);
+                    expected = reference.solve(current, TIMESTEP_MINUTES, 1, expected, rainArray);
+                    // the solution is passed back as it is, as done by the engine
+                    solver.solve(current, TIMESTEP_MINUTES, 1, conditions, rainArray, null);
+                    conditions = solver.getFinalCond();
+                    assertArrayEquals(expected, conditions);
+                }
+            } finally {
+                model.close();
+            }
+        }
+    }
+
+    private void assertArrayEquals( double[] expected, double[] values ) {
+        assertEquals(expected.length, values.length);
+        for( int i = 0; i < expected.length; i++ ) {
+            assertEquals("index " + i, expected[i], values[i], 0.0);
+        }
+    }
+
+    /**
+     * The solver as it was before the workspaces, allocating the stages at every step.
+     */
+    private static class AllocatingRungeKuttaFelberg {
+        private final DuffyModel duffy;
+        private final double epsilon;
+        double basicTimeStepInMinutes;
+        private boolean isAtFinalSubtimestep = true;
+        private double[][] b = {{0.}, {1. / 5.}, {3. / 40., 9. / 40.}, {3. / 10., -9. / 10., 6. / 5.},
+                {-11. / 54., 5. / 2., -70. / 27., 35. / 27.},
+                {1631. / 55296., 175. / 512., 575. / 13824., 44275. / 110592., 253. / 4096.}};
+        private double[] c = {37. / 378., 0., 250. / 621., 125. / 594., 0., 512. / 1771.};
+        private double[] cStar = {2825. / 27648., 0., 18575. / 48384., 13525. / 55296., 277. / 14336., 1. / 4.};
+
+        private double newTimeStepInMinutes;
+        private double[] solution;
+
+        AllocatingRungeKuttaFelberg( DuffyModel duffy, double epsilon, double basicTimeStepInMinutes ) {
+            this.duffy = duffy;
+            this.epsilon = epsilon;
+            this.basicTimeStepInMinutes = basicTimeStepInMinutes;
+        }
+
+        private void step( double time, double[] y, double timeStep, boolean finalize, double[] rainArray ) {
+            double[] carrier = new double[y.length];
+            double[] k0 = duffy.eval(time, y, rainArray, null, false);
+            for( int i = 0; i < y.length; i++ )
+                carrier[i] = Math.max(0, y[i] + timeStep * b[1][0] * k0[i]);
+            double[] k1 = duffy.eval(time, carrier, rainArray, null, false);
+            for( int i = 0; i < y.length; i++ )
+                carrier[i] = Math.max(0, y[i] + timeStep * (b[2][0] * k0[i] + b[2][1] * k1[i]));
+            double[] k2 = duffy.eval(time, carrier, rainArray, null, false);
+            for( int i = 0; i < y.length; i++ )
+                carrier[i] = Math.max(0, y[i] + timeStep * (b[3][0] * k0[i] + b[3][1] * k1[i] + b[3][2] * k2[i]));
+            double[] k3 = duffy.eval(time, carrier, rainArray, null, false);
+            for( int i = 0; i < y.length; i++ )
+                carrier[i] = Math.max(0,
+                        y[i] + timeStep * (b[4][0] * k0[i] + b[4][1] * k1[i] + b[4][2] * k2[i] + b[4][3] * k3[i]));
+            double[] k4 = duffy.eval(time, carrier, rainArray, null, false);
+            for( int i = 0; i < y.length; i++ )
+                carrier[i] = Math.max(0, y[i] + timeStep
+                        * (b[5][0] * k0[i] + b[5][1] * k1[i] + b[5][2] * k2[i] + b[5][3] * k3[i] + b[5][4] * k4[i]));
+            double[] k5 = duffy.eval(time, carrier, rainArray, null, isAtFinalSubtimestep);
+
+            double[] newY = new double[y.length];
+            double[] newYstar = new double[y.length];
+            for( int i = 0; i < y.length; i++ ) {
+                newY[i] = Math.max(0, y[i] + timeStep
+                        * (c[0] * k0[i] + c[1] * k1[i] + c[2] * k2[i] + c[3] * k3[i] + c[4] * k4[i] + c[5] * k5[i]));
+            }
+            for( int i = 0; i < y.length; i++ ) {
+                newYstar[i] = Math.max(0, y[i] + timeStep * (cStar[0] * k0[i] + cStar[1] * k1[i] + cStar[2] * k2[i]
+                        + cStar[3] * k3[i] + cStar[4] * k4[i] + cStar[5] * k5[i]));
+            }
+            double delta = 0;
+            for( int i = 0; i < y.length; i++ ) {
+                if ((newY[i] + newYstar[i]) > 0)
+                    delta = Math.max(delta, Math.abs(2 * (newY[i] - newYstar[i]) / (newY[i] + newYstar[i])));
+            }
+
+            if (finalize) {
+                newTimeStepInMinutes = timeStep;
+                solution = newY;
+            } else {
+                double newTimeStep;
+                if (delta != 0.0) {
+                    double factor = epsilon / delta;
+                    if (factor >= 1)
+                        newTimeStep = timeStep * Math.pow(factor, 0.15);
+                    else
+                        newTimeStep = timeStep * Math.pow(factor, 0.25);
+                } else {
+                    newTimeStep = timeStep * Math.pow(1e8, 0.15);
+                }
+                step(time, y, newTimeStep, true, rainArray);
+            }
+        }
+
+        double[] solve( DateTime currentTimstamp, int modelTimestepInMinutes, double internalTimestepInMinutes, double[] y,
+                double[] rainArray ) {
+            isAtFinalSubtimestep = false;
+            double intervalStart = currentTimstamp.getMillis() / 1000d / 60d;
+            double intervalEnd = intervalStart + modelTimestepInMinutes;
+            double time = intervalStart;
+            double target = intervalStart;
+            while( time < intervalEnd ) {
+                target = time + internalTimestepInMinutes;
+                while( time < target ) {
+                    step(time, y, basicTimeStepInMinutes, false, rainArray);
+                    if (time + newTimeStepInMinutes > target) {
+                        break;
+                    }
+                    basicTimeStepInMinutes = newTimeStepInMinutes;
+                    time += basicTimeStepInMinutes;
+                    newTimeStepInMinutes = time;
+                    y = solution;
+                }
+                if (Math.abs(target - intervalEnd) < .0000001) {
+                    break;
+                }
+                step(time, y, target - time, true, rainArray);
+                if (time + newTimeStepInMinutes >= intervalEnd) {
+                    break;
+                }
+                if (y[0] < 1e-3) {
+                    break;
+                }
+                basicTimeStepInMinutes = newTimeStepInMinutes;
+                time += basicTimeStepInMinutes;
+                newTimeStepInMinutes = time;
+                y = solution;
+            }
+
+            isAtFinalSubtimestep = true;
+            if (NumericsUtilities.dEq(time, intervalEnd) && y[0] > 1e-3) {
+                step(time, y, intervalEnd - time - 1. / 60., true, rainArray);
+                basicTimeStepInMinutes = newTimeStepInMinutes;
+                newTimeStepInMinutes = time + basicTimeStepInMinutes;
+                y = solution;
+            }
+            return y;
+        }
+    }
+
+    private static void addPfafstetters( String prefix, int depth, List<String> pfafs ) {
+        for( int i = 1; i <= 9; i++ ) {
+            String pfaf = prefix + i;
+            if (i % 2 == 0 && depth > 1) {
+                addPfafstetters(pfaf + ".", depth - 1, pfafs);
+            } else {
+                pfafs.add(pfaf);
+            }
+        }
+    }
+
+    /**
+     * @return the hillslopes and the network, with a square hillslope and a straight link per pfafstetter number.
+     */
+    private static DefaultFeatureCollection[] createNetwork( List<String> pfafs ) throws Exception {
+        CoordinateReferenceSystem crs = CrsUtilities.getCrsFromEpsg("EPSG:32632");
+        GeometryFactory gf = GeometryUtilities.gf();
+
+        SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
+        b.setName("hillslopes");
+        b.setCRS(crs);
+        b.add("the_geom", Polygon.class);
+        b.add(NetworkChannel.NETNUMNAME, Integer.class);
+        SimpleFeatureBuilder hillslopeBuilder = new SimpleFeatureBuilder(b.buildFeatureType());
+
+        b = new SimpleFeatureTypeBuilder();
+        b.setName("network");
+        b.setCRS(crs);
+        b.add("the_geom", LineString.class);
+        b.add(NetworkChannel.PFAFNAME, String.class);
+        b.add(NetworkChannel.NETNUMNAME, Integer.class);
+        b.add(NetworkChannel.STARTELEVNAME, Double.class);
+        b.add(NetworkChannel.ENDELEVNAME, Double.class);
+        SimpleFeatureBuilder networkBuilder = new SimpleFeatureBuilder(b.buildFeatureType());
+
+        DefaultFeatureCollection hillslopes = new DefaultFeatureCollection();
+        DefaultFeatureCollection network = new DefaultFeatureCollection();
+        int cols = (int) Math.ceil(Math.sqrt(pfafs.size()));
+        for( int i = 0; i < pfafs.size(); i++ ) {
+            double x = 650000 + (i % cols) * HILLSLOPE_SIDE;
+            double y = 5100000 + (i / cols) * HILLSLOPE_SIDE;
+            Polygon square = gf.createPolygon(new Coordinate[]{new Coordinate(x, y), new Coordinate(x, y + HILLSLOPE_SIDE),
+                    new Coordinate(x + HILLSLOPE_SIDE, y + HILLSLOPE_SIDE), new Coordinate(x + HILLSLOPE_SIDE, y),
+                    new Coordinate(x, y)});
+            double linkY = y + HILLSLOPE_SIDE / 2;
+            LineString link = gf.createLineString(new Coordinate[]{new Coordinate(x + 100, linkY),
+                    new Coordinate(x + HILLSLOPE_SIDE - 100, linkY)});
+
+            hillslopeBuilder.addAll(new Object[]{square, i + 1});
+            hillslopes.add(hillslopeBuilder.buildFeature(null));
+            networkBuilder.addAll(new Object[]{link, pfafs.get(i), i + 1, 510.0, 500.0});
+            network.add(networkBuilder.buildFeature(null));
+        }
+        return new DefaultFeatureCollection[]{hillslopes, network};
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.hmachine.models.hm;
+
+import static org.hortonmachine.gears.libs.modules.Variables.KRIGING_DEFAULT_VARIOGRAM;
+
+import java.util.HashMap;
+
+import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.hmachine.modules.statistics.kriging.nextgen.InterpolationType;
+import org.hortonmachine.hmachine.modules.statistics.kriging.nextgen.OmsKrigingInterpolator;
+import org.hortonmachine.hmachine.modules.statistics.kriging.nextgen.TargetPointAssociation;
+import org.hortonmachine.hmachine.modules.statistics.kriging.utils.SimpleLinearSystemSolverFactory;
+import org.hortonmachine.hmachine.modules.statistics.kriging.variogram.theoretical.ITheoreticalVariogram;
+import org.hortonmachine.hmachine.utils.HMTestCase;
+import org.locationtech.jts.geom.Coordinate;
+
+/**
+ * Test the batch mode of {@link OmsKrigingInterpolator}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestKrigingInterpolatorBatch extends HMTestCase {
+
+    private static final double NV = HMConstants.doubleNovalue;
+    private static final double SILL = 10.0;
+    private static final double RANGE = 8000.0;
+
+    private static final Coordinate[] STATIONS = {//
+            new Coordinate(1000, 1000, 200), //
+            new Coordinate(6000, 1500, 600), //
+            new Coordinate(3000, 7000, 400), //
+            new Coordinate(8000, 8000, 900) //
+    };
+    private static final double[][] SERIES = {//
+            {1.0, 2.0, 5.0, 3.0}, //
+            {2.0, 2.5, 6.0, NV}, //
+            {4.0, 1.0, 0.0, 2.0}, //
+            {3.0, 3.5, 2.0, 1.0} //
+    };
+
+    public void testBatchInterpolation() throws Exception {
+        HashMap<Integer, Coordinate> stationIds2CoordinateMap = new HashMap<>();
+        HashMap<Integer, double[]> stationIds2TimeSeriesMap = new HashMap<>();
+        for( int i = 0; i < STATIONS.length; i++ ) {
+            stationIds2CoordinateMap.put(i + 1, STATIONS[i]);
+            stationIds2TimeSeriesMap.put(i + 1, SERIES[i]);
+        }
+
+        Coordinate krigingTarget = new Coordinate(4000, 4000, 500);
+        Coordinate idwTarget = new Coordinate(2000, 2000, 300);
+        HashMap<Integer, Coordinate> targetIds2CoordinateMap = new HashMap<>();
+        targetIds2CoordinateMap.put(10, krigingTarget);
+        targetIds2CoordinateMap.put(20, idwTarget);
+
+        HashMap<Integer, TargetPointAssociation> associationMap = new HashMap<>();
+        associationMap.put(10, association(InterpolationType.INTERPOLATION_KRIGING, krigingTarget, 1, 2, 3, 4));
+        associationMap.put(20, association(InterpolationType.INTERPOLATION_IDW, idwTarget, 1, 2));
+
+        OmsKrigingInterpolator interpolator = new OmsKrigingInterpolator();
+        interpolator.pMode = KRIGING_DEFAULT_VARIOGRAM;
+        interpolator.pTheoreticalVariogramType = ITheoreticalVariogram.EXPONENTIAL;
+        interpolator.pSill = SILL;
+        interpolator.pRange = RANGE;
+        interpolator.pNugget = 0.0;
+        interpolator.inStationIds2CoordinateMap = stationIds2CoordinateMap;
+        interpolator.inStationIds2TimeSeriesMap = stationIds2TimeSeriesMap;
+        interpolator.inTargetPointsIds2CoordinateMap = targetIds2CoordinateMap;
+        interpolator.inTargetPointId2AssociationMap = associationMap;
+        interpolator.process();
+
+        double[] krigingSeries = interpolator.outTargetIds2TimeSeriesMap.get(10);
+        double[] idwSeries = interpolator.outTargetIds2TimeSeriesMap.get(20);
+        assertEquals(SERIES[0].length, krigingSeries.length);
+
+        int[] allStations = {0, 1, 2, 3};
+        double[] weights = krigingWeights(allStations, krigingTarget);
+        for( int t = 0; t < 3; t++ ) {
+            double expected = 0;
+            for( int i = 0; i < allStations.length; i++ ) {
+                expected += weights[i] * SERIES[allStations[i]][t];
+            }
+            assertEquals(expected, krigingSeries[t], 1E-9);
+        }
+        // the second station has no data in the last timestep
+        int[] validStations = {0, 2, 3};
+        weights = krigingWeights(validStations, krigingTarget);
+        double expected = 0;
+        for( int i = 0; i < validStations.length; i++ ) {
+            expected += weights[i] * SERIES[validStations[i]][3];
+        }
+        assertEquals(expected, krigingSeries[3], 1E-9);
+
+        double w1 = 1 / Math.pow(idwTarget.distance(STATIONS[0]), 2);
+        double w2 = 1 / Math.pow(idwTarget.distance(STATIONS[1]), 2);
+        assertEquals((w1 * 1.0 + w2 * 2.0) / (w1 + w2), idwSeries[0], 1E-9);
+        assertEquals(3.0, idwSeries[3], 1E-9);
+    }
+
+    private TargetPointAssociation association( InterpolationType type, Coordinate target, int... stationIds ) {
+        TargetPointAssociation association = new TargetPointAssociation();
+        association.interpolationType = type;
+        for( int stationId : stationIds ) {
+            association.stationIds.add(stationId);
+            association.stationDistances.add(target.distance(STATIONS[stationId - 1]));
+        }
+        return association;
+    }
+
+    private double[] krigingWeights( int[] stations, Coordinate target ) throws Exception {
+        int n = stations.length;
+        double[][] matrix = new double[n + 1][n + 1];
+        double[] knownTerm = new double[n + 1];
+        for( int i = 0; i < n; i++ ) {
+            Coordinate ci = STATIONS[stations[i]];
+            for( int j = 0; j < n; j++ ) {
+                matrix[i][j] = variogram(ci, STATIONS[stations[j]]);
+            }
+            matrix[i][n] = 1;
+            matrix[n][i] = 1;
+            knownTerm[i] = variogram(ci, target);
+        }
+        knownTerm[n] = 1;
+        return SimpleLinearSystemSolverFactory.solve(knownTerm, matrix, "default").copyValues1D();
+    }
+
+    private double variogram( Coordinate c1, Coordinate c2 ) {
+        double h = c1.distance3D(c2);
+        if (h == 0) {
+            return 0;
+        }
+        ITheoreticalVariogram vgm = ITheoreticalVariogram.create(ITheoreticalVariogram.EXPONENTIAL);
+        vgm.init(h, SILL, RANGE, 0.0);
+        return vgm.computeSemivariance();
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.hmachine.models.hm;
+
+import java.util.Random;
+
+import org.hortonmachine.hmachine.modules.statistics.kriging.utils.KrigingSystemsCache;
+import org.hortonmachine.hmachine.modules.statistics.kriging.utils.SimpleLinearSystemSolverFactory;
+import org.hortonmachine.hmachine.modules.statistics.kriging.variogram.theoretical.ITheoreticalVariogram;
+import org.hortonmachine.hmachine.utils.HMTestCase;
+
+/**
+ * Test {@link KrigingSystemsCache}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestKrigingSystemsCache extends HMTestCase {
+
+    private static final double SILL = 12.0;
+    private static final double RANGE = 5000.0;
+    private static final double NUGGET = 0.0;
+
+    public void testSameWeightsOfTheFullSolve() throws Exception {
+        int n = 8;
+        Random random = new Random(7);
+        int[] ids = new int[n + 1];
+        double[] x = new double[n + 1];
+        double[] y = new double[n + 1];
+        double[] z = new double[n + 1];
+        for( int i = 0; i < n; i++ ) {
+            ids[i] = 100 + i;
+            x[i] = random.nextDouble() * 10000;
+            y[i] = random.nextDouble() * 10000;
+            z[i] = 200 + random.nextDouble() * 1000;
+        }
+        x[n] = 5000;
+        y[n] = 5000;
+        z[n] = 600;
+
+        KrigingSystemsCache cache = new KrigingSystemsCache();
+        cache.setVariogram(ITheoreticalVariogram.EXPONENTIAL, NUGGET, RANGE, SILL);
+        double[] weights = new double[n];
+        double variance = cache.solve(ids, x, y, z, n, weights);
+
+        double[] expected = solveFull(x, y, z, n);
+        double sum = 0;
+        double expectedVariance = expected[n];
+        for( int i = 0; i < n; i++ ) {
+            assertEquals(expected[i], weights[i], 1E-9);
+            sum += weights[i];
+            expectedVariance += expected[i] * variogram(x[i] - x[n], y[i] - y[n], z[i] - z[n]);
+        }
+        assertEquals(1.0, sum, 1E-9);
+        assertEquals(expectedVariance, variance, 1E-9);
+        assertTrue(variance > 0);
+
+        // the same stations in reverse order and another point, the system is reused
+        int[] idsReversed = new int[n + 1];
+        double[] xReversed = new double[n + 1];
+        double[] yReversed = new double[n + 1];
+        double[] zReversed = new double[n + 1];
+        for( int i = 0; i < n; i++ ) {
+            idsReversed[i] = ids[n - 1 - i];
+            xReversed[i] = x[n - 1 - i];
+            yReversed[i] = y[n - 1 - i];
+            zReversed[i] = z[n - 1 - i];
+        }
+        // on a station, where the variance is null
+        xReversed[n] = x[3];
+        yReversed[n] = y[3];
+        zReversed[n] = z[3];
+        double[] reversedWeights = new double[n];
+        double stationVariance = cache.solve(idsReversed, xReversed, yReversed, zReversed, n, reversedWeights);
+        assertEquals(1, cache.getFactorizationsCount());
+        assertEquals(1, cache.getReusesCount());
+        assertEquals(1.0, reversedWeights[n - 1 - 3], 1E-9);
+        assertEquals(0.0, stationVariance, 1E-9);
+
+        // a new variogram drops the cached systems
+        cache.setVariogram(ITheoreticalVariogram.GAUSSIAN, NUGGET, RANGE, SILL);
+        cache.solve(ids, x, y, z, n, weights);
+        assertEquals(2, cache.getFactorizationsCount());
+    }
+
+    private double[] solveFull( double[] x, double[] y, double[] z, int n ) throws Exception {
+        double[][] matrix = new double[n + 1][n + 1];
+        double[] knownTerm = new double[n + 1];
+        for( int i = 0; i < n; i++ ) {
+            for( int j = 0; j < n; j++ ) {
+                matrix[i][j] = variogram(x[i] - x[j], y[i] - y[j], z[i] - z[j]);
+            }
+            matrix[i][n] = 1;
+            matrix[n][i] = 1;
+            knownTerm[i] = variogram(x[i] - x[n], y[i] - y[n], z[i] - z[n]);
+        }
+        knownTerm[n] = 1;
+        return SimpleLinearSystemSolverFactory.solve(knownTerm, matrix, "default").copyValues1D();
+    }
+
+    private double variogram( double rx, double ry, double rz ) {
+        double h = Math.sqrt(rx * rx + ry * ry + rz * rz);
+        if (h == 0) {
+            return 0;
+        }
+        ITheoreticalVariogram vgm = ITheoreticalVariogram.create(ITheoreticalVariogram.EXPONENTIAL);
+        vgm.init(h, SILL, RANGE, NUGGET);
+        return vgm.computeSemivariance();
+    }
+
+}
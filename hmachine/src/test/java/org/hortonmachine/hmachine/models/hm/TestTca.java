@@ -67,4 +67,26 @@ public class TestTca extends HMTestCase {
         checkMatrixEqual(tcaCoverage.getRenderedImage(), HMTestMaps.tcaData);
     }
 
-}
\ No newline at end of file
+    public void testTcaLoop() throws Exception {
+        RegionMap envelopeParams = HMTestMaps.getEnvelopeparams();
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+
+        double[][] flowData = new double[HMTestMaps.flowData.length][];
+        for( int i = 0; i < flowData.length; i++ ) {
+            flowData[i] = HMTestMaps.flowData[i].clone();
+        }
+        // make two cells flow into each other
+        flowData[4][4] = 1;
+        GridCoverage2D flowCoverage = CoverageUtilities.buildCoverage("flow", flowData, envelopeParams, crs, true);
+
+        OmsTca tca = new OmsTca();
+        tca.inFlow = flowCoverage;
+        tca.doLoopCheck = true;
+        tca.pm = pm;
+        tca.process();
+
+        assertNotNull(tca.outLoop);
+        assertEquals(1, tca.outLoop.size());
+    }
+
+}
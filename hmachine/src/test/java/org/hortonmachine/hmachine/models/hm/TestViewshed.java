@@ -0,0 +1,523 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.hmachine.models.hm;
+
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+import javax.media.jai.iterator.WritableRandomIter;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.utils.RegionMap;
+import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
+import org.hortonmachine.gears.utils.geometry.GeometryUtilities;
+import org.hortonmachine.hmachine.modules.geomorphology.viewshed.OmsViewshed;
+import org.hortonmachine.hmachine.utils.HMTestCase;
+import org.hortonmachine.hmachine.utils.HMTestMaps;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Test the {@link OmsViewshed} module against the original serial algorithm.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestViewshed extends HMTestCase {
+
+    private static final int COLS = 15;
+    private static final int ROWS = 12;
+    private static final double RES = 10.0;
+    private static final double NV = HMConstants.doubleNovalue;
+
+    private static final int[][] VIEWPOINTS = {{3, 2}, {7, 6}, {12, 9}, {1, 10}, {10, 1}, {5, 8}, {13, 4}, {8, 3}};
+
+    private final RegionMap regionMap = RegionMap.fromBoundsAndGrid(0, COLS * RES, 0, ROWS * RES, COLS, ROWS);
+
+    public void testCumulativeAgainstOriginal() throws Exception {
+        CoordinateReferenceSystem crs = HMTestMaps.getCrs();
+        GridCoverage2D demCoverage = CoverageUtilities.buildCoverage("dem", getDem(), regionMap, crs, true);
+        DefaultFeatureCollection viewpoints = getViewpoints(crs);
+
+        double[][] expected = runOriginal(demCoverage);
+        // the viewpoint cell is now always visible, the original algorithm took the view angle
+        // left there by the previous viewpoint, which is not there for the first one
+        expected[VIEWPOINTS[0][1]][VIEWPOINTS[0][0]] += 1;
+
+        for( int threads : new int[]{1, 3} ) {
+            OmsViewshed viewshed = new OmsViewshed();
+            viewshed.pm = pm;
+            viewshed.inRaster = demCoverage;
+            viewshed.inViewPoints = viewpoints;
+            viewshed.pMaxThreads = threads;
+            viewshed.process();
+            assertCounts(expected, viewshed.outViewshed.getRenderedImage());
+        }
+
+        OmsViewshed viewshed = new OmsViewshed();
+        viewshed.pm = pm;
+        viewshed.inRaster = demCoverage;
+        viewshed.inViewPoints = viewpoints;
+        int[] processed = new int[1];
+        viewshed.singleViewpointProcessListener = ( viewpoint3D, reusableViewshed ) -> processed[0]++;
+        viewshed.process();
+        assertEquals(VIEWPOINTS.length, processed[0]);
+        assertCounts(expected, viewshed.outViewshed.getRenderedImage());
+    }
+
+    /**
+     * A random dem with some holes. The last col is novalue, since the original algorithm
+     * didn't scan it on the row of the viewpoint and left there the angle of the previous one.
+     */
+    private double[][] getDem() {
+        Random random = new Random(42);
+        double[][] dem = new double[ROWS][COLS];
+        for( int r = 0; r < ROWS; r++ ) {
+            for( int c = 0; c < COLS; c++ ) {
+                dem[r][c] = 100.0 + 3.0 * c + 2.0 * r + random.nextDouble() * 20.0;
+            }
+            dem[r][COLS - 1] = NV;
+        }
+        dem[5][4] = NV;
+        dem[9][10] = NV;
+        return dem;
+    }
+
+    private DefaultFeatureCollection getViewpoints( CoordinateReferenceSystem crs ) {
+        SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
+        b.setName("viewpoints");
+        b.setCRS(crs);
+        b.add("the_geom", Point.class);
+        b.add("elev", Double.class);
+        SimpleFeatureType type = b.buildFeatureType();
+
+        DefaultFeatureCollection collection = new DefaultFeatureCollection();
+        for( int i = 0; i < VIEWPOINTS.length; i++ ) {
+            double x = regionMap.getWest() + (VIEWPOINTS[i][0] + 0.5) * RES;
+            double y = regionMap.getNorth() - (VIEWPOINTS[i][1] + 0.5) * RES;
+            Point point = GeometryUtilities.gf().createPoint(new Coordinate(x, y));
+            SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
+            builder.addAll(new Object[]{point, 1.0 + i});
+            collection.add(builder.buildFeature(null));
+        }
+        return collection;
+    }
+
+    private void assertCounts( double[][] expected, RenderedImage image ) {
+        RandomIter iter = RandomIterFactory.create(image, null);
+        try {
+            for( int r = 0; r < ROWS; r++ ) {
+                for( int c = 0; c < COLS; c++ ) {
+                    double value = iter.getSampleDouble(c, r, 0);
+                    if (HMConstants.isNovalue(value, NV)) {
+                        value = 0;
+                    }
+                    assertEquals("col " + c + " row " + r, expected[r][c], value, DELTA);
+                }
+            }
+        } finally {
+            iter.done();
+        }
+    }
+
+    /**
+     * Run the original serial algorithm, with its rasters shared by all the viewpoints.
+     */
+    private double[][] runOriginal( GridCoverage2D inRaster ) {
+        double[][] dem = getDem();
+        WritableRaster outViewshedWR = CoverageUtilities.createWritableRaster(COLS, ROWS, null, null, NV);
+        WritableRandomIter outViewshedIter = CoverageUtilities.getWritableRandomIterator(outViewshedWR);
+        WritableRandomIter viewAngleIter = CoverageUtilities
+                .getWritableRandomIterator(CoverageUtilities.createWritableRaster(COLS, ROWS, null, null, NV));
+        WritableRandomIter maxViewAngleIter = CoverageUtilities
+                .getWritableRandomIterator(CoverageUtilities.createWritableRaster(COLS, ROWS, null, null, NV));
+        RandomIter inIter = CoverageUtilities.getRandomIterator(inRaster);
+        GridGeometry2D gg = inRaster.getGridGeometry();
+        for( int i = 0; i < VIEWPOINTS.length; i++ ) {
+            int col = VIEWPOINTS[i][0];
+            int row = VIEWPOINTS[i][1];
+            double x = regionMap.getWest() + (col + 0.5) * RES;
+            double y = regionMap.getNorth() - (row + 0.5) * RES;
+            assertFalse(HMConstants.isNovalue(dem[row][col], NV));
+            calculateViewshed(inRaster, new Coordinate(x, y, 1.0 + i), new int[]{col, row}, COLS, ROWS, NV, inIter,
+                    outViewshedIter, viewAngleIter, maxViewAngleIter, gg);
+        }
+        inIter.done();
+
+        double[][] counts = new double[ROWS][COLS];
+        for( int r = 0; r < ROWS; r++ ) {
+            for( int c = 0; c < COLS; c++ ) {
+                double value = outViewshedIter.getSampleDouble(c, r, 0);
+                counts[r][c] = HMConstants.isNovalue(value, NV) ? 0 : value;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * The viewshed calculation of the original module, unchanged.
+     */
+    private static void calculateViewshed( GridCoverage2D inRaster, Coordinate viewPoint3D, int[] stationColRow, int cols,
+            int rows, double novalue, RandomIter inIter, WritableRandomIter outViewshedIter, WritableRandomIter viewAngleIter,
+            WritableRandomIter maxViewAngleIter, GridGeometry2D gg ) {
+        double value = CoverageUtilities.getValue(inRaster, viewPoint3D.x, viewPoint3D.y);
+        if (!HMConstants.isNovalue(value, novalue)) {
+            double stationX = viewPoint3D.x;
+            double stationY = viewPoint3D.y;
+            double stationZ = value + viewPoint3D.z;
+
+            int stationCol = stationColRow[0];
+            int stationRow = stationColRow[1];
+
+            for( int row = 0; row < rows; row++ ) {
+                for( int col = 0; col < cols; col++ ) {
+                    double z = inIter.getSampleDouble(col, row, 0);
+                    if (!HMConstants.isNovalue(z, novalue)) {
+                        Coordinate worldC = CoverageUtilities.coordinateFromColRow(col, row, gg);
+                        double x = worldC.x;
+                        double y = worldC.y;
+                        double dZ = z - stationZ;
+                        double dist = Math.sqrt((x - stationX) * (x - stationX) + (y - stationY) * (y - stationY));
+                        if (dist != 0.0) {
+                            double viewAngleValue = dZ / dist * 1000;
+                            viewAngleIter.setSample(col, row, 0, viewAngleValue);
+                        }
+                    } else {
+                        viewAngleIter.setSample(col, row, 0, novalue);
+                    }
+                }
+            }
+
+            // perform the simple scan lines.
+            for( int row = stationRow - 1; row <= stationRow + 1; row++ ) {
+                for( int col = stationCol - 1; col <= stationCol + 1; col++ ) {
+                    maxViewAngleIter.setSample(col, row, 0, viewAngleIter.getSampleDouble(col, row, 0));
+                }
+            }
+
+            double maxVA = viewAngleIter.getSampleDouble(stationCol, stationRow - 1, 0);
+            for( int row = stationRow - 2; row >= 0; row-- ) {
+                double z = viewAngleIter.getSampleDouble(stationCol, row, 0);
+                if (!HMConstants.isNovalue(z, novalue)) {
+                    if (z > maxVA) {
+                        maxVA = z;
+                    }
+                    maxViewAngleIter.setSample(stationCol, row, 0, maxVA);
+                }
+            }
+
+            maxVA = viewAngleIter.getSampleDouble(stationCol, stationRow + 1, 0);
+            for( int row = stationRow + 2; row < rows; row++ ) {
+                double z = viewAngleIter.getSampleDouble(stationCol, row, 0);
+                if (!HMConstants.isNovalue(z, novalue)) {
+                    if (z > maxVA) {
+                        maxVA = z;
+                    }
+                    maxViewAngleIter.setSample(stationCol, row, 0, maxVA);
+                }
+            }
+
+            maxVA = viewAngleIter.getSampleDouble(stationCol + 1, stationRow, 0);
+            for( int col = stationCol + 2; col < cols - 1; col++ ) {
+                double z = viewAngleIter.getSampleDouble(col, stationRow, 0);
+                if (!HMConstants.isNovalue(z, novalue)) {
+                    if (z > maxVA) {
+                        maxVA = z;
+                    }
+                    maxViewAngleIter.setSample(col, stationRow, 0, maxVA);
+                }
+            }
+
+            maxVA = viewAngleIter.getSampleDouble(stationCol - 1, stationRow, 0);
+            for( int col = stationCol - 2; col >= 0; col-- ) {
+                double z = viewAngleIter.getSampleDouble(col, stationRow, 0);
+                if (!HMConstants.isNovalue(z, novalue)) {
+                    if (z > maxVA) {
+                        maxVA = z;
+                    }
+                    maxViewAngleIter.setSample(col, stationRow, 0, maxVA);
+                }
+            }
+
+            // solve the first triangular facet
+            int vertCount = 0;
+            for( int row = stationRow - 2; row >= 0; row-- ) {
+                vertCount++;
+                int horizCount = 0;
+                for( int col = stationCol + 1; col <= stationCol + vertCount; col++ ) {
+                    if (col >= 0 && col < cols) {
+                        double va = viewAngleIter.getSampleDouble(col, row, 0);
+                        if (!HMConstants.isNovalue(va, novalue)) {
+                            horizCount++;
+                            double tva;
+                            if (horizCount != vertCount) {
+                                double t1 = maxViewAngleIter.getSampleDouble(col - 1, row + 1, 0);
+                                double t2 = maxViewAngleIter.getSampleDouble(col, row + 1, 0);
+                                tva = t2 + horizCount / vertCount * (t1 - t2);
+                            } else {
+                                tva = maxViewAngleIter.getSampleDouble(col - 1, row + 1, 0);
+                            }
+                            if (tva > va) {
+                                maxViewAngleIter.setSample(col, row, 0, tva);
+                            } else {
+                                maxViewAngleIter.setSample(col, row, 0, va);
+                            }
+                        }
+                    } else {
+                        break;
+                    }
+                }
+            }
+
+            // solve the second triangular facet
+            vertCount = 1;
+            for( int row = stationRow - 2; row >= 0; row-- ) {
+                vertCount++;
+                int horizCount = 0;
+                for( int col = stationCol - 1; col >= stationCol - vertCount; col-- ) {
+                    if (col >= 0 && col < cols) {
+                        double va = viewAngleIter.getSampleDouble(col, row, 0);
+                        if (!HMConstants.isNovalue(va, novalue)) {
+                            horizCount++;
+                            double tva;
+                            if (horizCount != vertCount) {
+                                double t1 = maxViewAngleIter.getSampleDouble(col + 1, row + 1, 0);
+                                double t2 = maxViewAngleIter.getSampleDouble(col, row + 1, 0);
+                                tva = t2 + horizCount / vertCount * (t1 - t2);
+                            } else {
+                                tva = maxViewAngleIter.getSampleDouble(col + 1, row + 1, 0);
+                            }
+                            if (tva > va) {
+                                maxViewAngleIter.setSample(col, row, 0, tva);
+                            } else {
+                                maxViewAngleIter.setSample(col, row, 0, va);
+                            }
+                        }
+                    } else {
+                        break;
+                    }
+                }
+            }
+
+            // solve the third triangular facet
+            vertCount = 1;
+            for( int row = stationRow + 2; row < rows; row++ ) {
+                vertCount++;
+                int horizCount = 0;
+                for( int col = stationCol - 1; col >= stationCol - vertCount; col-- ) {
+                    if (col >= 0 && col < cols) {
+                        double va = viewAngleIter.getSampleDouble(col, row, 0);
+                        if (!HMConstants.isNovalue(va, novalue)) {
+                            horizCount++;
+                            double tva;
+                            if (horizCount != vertCount) {
+                                double t1 = maxViewAngleIter.getSampleDouble(col + 1, row - 1, 0);
+                                double t2 = maxViewAngleIter.getSampleDouble(col, row - 1, 0);
+                                tva = t2 + horizCount / vertCount * (t1 - t2);
+                            } else {
+                                tva = maxViewAngleIter.getSampleDouble(col + 1, row - 1, 0);
+                            }
+                            if (tva > va) {
+                                maxViewAngleIter.setSample(col, row, 0, tva);
+                            } else {
+                                maxViewAngleIter.setSample(col, row, 0, va);
+                            }
+                        }
+                    } else {
+                        break;
+                    }
+                }
+            }
+
+            // solve the fourth triangular facet
+            vertCount = 1;
+            for( int row = stationRow + 2; row < rows; row++ ) {
+                vertCount++;
+                int horizCount = 0;
+                for( int col = stationCol + 1; col <= stationCol + vertCount; col++ ) {
+                    if (col >= 0 && col < cols) {
+                        double va = viewAngleIter.getSampleDouble(col, row, 0);
+                        if (!HMConstants.isNovalue(va, novalue)) {
+                            horizCount++;
+                            double tva;
+                            if (horizCount != vertCount) {
+                                double t1 = maxViewAngleIter.getSampleDouble(col - 1, row - 1, 0);
+                                double t2 = maxViewAngleIter.getSampleDouble(col, row - 1, 0);
+                                tva = t2 + horizCount / vertCount * (t1 - t2);
+                            } else {
+                                tva = maxViewAngleIter.getSampleDouble(col - 1, row - 1, 0);
+                            }
+                            if (tva > va) {
+                                maxViewAngleIter.setSample(col, row, 0, tva);
+                            } else {
+                                maxViewAngleIter.setSample(col, row, 0, va);
+                            }
+                        }
+                    } else {
+                        break;
+                    }
+                }
+            }
+
+            // solve the fifth triangular facet
+            vertCount = 1;
+            for( int col = stationCol + 2; col < cols; col++ ) {
+                vertCount++;
+                int horizCount = 0;
+                for( int row = stationRow - 1; row >= stationRow - vertCount; row-- ) {
+                    if (row >= 0 && row < rows) {
+                        double va = viewAngleIter.getSampleDouble(col, row, 0);
+                        if (!HMConstants.isNovalue(va, novalue)) {
+                            horizCount++;
+                            double tva;
+                            if (horizCount != vertCount) {
+                                double t1 = maxViewAngleIter.getSampleDouble(col - 1, row + 1, 0);
+                                double t2 = maxViewAngleIter.getSampleDouble(col - 1, row, 0);
+                                tva = t2 + horizCount / vertCount * (t1 - t2);
+                            } else {
+                                tva = maxViewAngleIter.getSampleDouble(col - 1, row + 1, 0);
+                            }
+                            if (tva > va) {
+                                maxViewAngleIter.setSample(col, row, 0, tva);
+                            } else {
+                                maxViewAngleIter.setSample(col, row, 0, va);
+                            }
+                        }
+                    } else {
+                        break;
+                    }
+                }
+            }
+
+            // solve the sixth triangular facet
+            vertCount = 1;
+            for( int col = stationCol + 2; col < cols; col++ ) {
+                vertCount++;
+                int horizCount = 0;
+                for( int row = stationRow + 1; row <= stationRow + vertCount; row++ ) {
+                    if (row >= 0 && row < rows) {
+                        double va = viewAngleIter.getSampleDouble(col, row, 0);
+                        if (!HMConstants.isNovalue(va, novalue)) {
+                            horizCount++;
+                            double tva;
+                            if (horizCount != vertCount) {
+                                double t1 = maxViewAngleIter.getSampleDouble(col - 1, row - 1, 0);
+                                double t2 = maxViewAngleIter.getSampleDouble(col - 1, row, 0);
+                                tva = t2 + horizCount / vertCount * (t1 - t2);
+                            } else {
+                                tva = maxViewAngleIter.getSampleDouble(col - 1, row - 1, 0);
+                            }
+                            if (tva > va) {
+                                maxViewAngleIter.setSample(col, row, 0, tva);
+                            } else {
+                                maxViewAngleIter.setSample(col, row, 0, va);
+                            }
+                        }
+                    } else {
+                        break;
+                    }
+                }
+            }
+
+            // solve the seventh triangular facet
+            vertCount = 1;
+            for( int col = stationCol - 2; col >= 0; col-- ) {
+                vertCount++;
+                int horizCount = 0;
+                for( int row = stationRow + 1; row <= stationRow + vertCount; row++ ) {
+                    if (row >= 0 && row < rows) {
+                        double va = viewAngleIter.getSampleDouble(col, row, 0);
+                        if (!HMConstants.isNovalue(va, novalue)) {
+                            horizCount++;
+                            double tva;
+                            if (horizCount != vertCount) {
+                                double t1 = maxViewAngleIter.getSampleDouble(col + 1, row - 1, 0);
+                                double t2 = maxViewAngleIter.getSampleDouble(col + 1, row, 0);
+                                tva = t2 + horizCount / vertCount * (t1 - t2);
+                            } else {
+                                tva = maxViewAngleIter.getSampleDouble(col + 1, row - 1, 0);
+                            }
+                            if (tva > va) {
+                                maxViewAngleIter.setSample(col, row, 0, tva);
+                            } else {
+                                maxViewAngleIter.setSample(col, row, 0, va);
+                            }
+                        }
+                    } else {
+                        break;
+                    }
+                }
+            }
+
+            // solve the eight triangular facet
+            vertCount = 1;
+            for( int col = stationCol - 2; col >= 0; col-- ) {
+                vertCount++;
+                int horizCount = 0;
+                for( int row = stationRow - 1; row >= stationRow - vertCount; row-- ) {
+                    if (row >= 0 && row < rows) {
+                        double va = viewAngleIter.getSampleDouble(col, row, 0);
+                        if (!HMConstants.isNovalue(va, novalue)) {
+                            horizCount++;
+                            double tva;
+                            if (horizCount != vertCount) {
+                                double t1 = maxViewAngleIter.getSampleDouble(col + 1, row + 1, 0);
+                                double t2 = maxViewAngleIter.getSampleDouble(col + 1, row, 0);
+                                tva = t2 + horizCount / vertCount * (t1 - t2);
+                            } else {
+                                tva = maxViewAngleIter.getSampleDouble(col + 1, row + 1, 0);
+                            }
+                            if (tva > va) {
+                                maxViewAngleIter.setSample(col, row, 0, tva);
+                            } else {
+                                maxViewAngleIter.setSample(col, row, 0, va);
+                            }
+                        }
+                    } else {
+                        break;
+                    }
+                }
+            }
+
+            for( int row = 0; row < rows; row++ ) {
+                for( int col = 0; col < cols; col++ ) {
+                    double viewAngle = viewAngleIter.getSampleDouble(col, row, 0);
+                    double maxViewAngle = maxViewAngleIter.getSampleDouble(col, row, 0);
+
+                    if (maxViewAngle <= viewAngle && !HMConstants.isNovalue(viewAngle, novalue)) {
+                        double viewshed = outViewshedIter.getSampleDouble(col, row, 0);
+                        if (HMConstants.isNovalue(viewshed, novalue)) {
+                            viewshed = 0;
+                        }
+                        outViewshedIter.setSample(col, row, 0, viewshed + 1);
+                    }
+                }
+            }
+        }
+    }
+
+}
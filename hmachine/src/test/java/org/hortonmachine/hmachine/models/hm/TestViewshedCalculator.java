@@ -0,0 +1,111 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.hmachine.models.hm;
+
+import java.awt.image.WritableRaster;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
+import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.utils.RegionMap;
+import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
+import org.hortonmachine.hmachine.modules.geomorphology.viewshed.ViewshedCalculator;
+import org.hortonmachine.hmachine.utils.HMTestCase;
+
+/**
+ * Test {@link ViewshedCalculator}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestViewshedCalculator extends HMTestCase {
+
+    private static final int SIZE = 21;
+    private static final int CENTER = 10;
+    private static final double RES = 10.0;
+    private static final double NV = HMConstants.doubleNovalue;
+
+    private final RegionMap regionMap = RegionMap.fromBoundsAndGrid(0, SIZE * RES, 0, SIZE * RES, SIZE, SIZE);
+    private final double centerX = (CENTER + 0.5) * RES;
+    private final double centerY = SIZE * RES - (CENTER + 0.5) * RES;
+
+    public void testFlatDemIsAllVisible() throws Exception {
+        WritableRaster demWR = CoverageUtilities.createWritableRaster(SIZE, SIZE, null, null, 100.0);
+        RandomIter demIter = RandomIterFactory.create(demWR, null);
+
+        for( boolean doXdraw : new boolean[]{false, true} ) {
+            int[][] counts = new int[SIZE][SIZE];
+            ViewshedCalculator calculator = new ViewshedCalculator(regionMap, NV, -1, doXdraw);
+            int visible = calculator.calculate(demIter, CENTER, CENTER, centerX, centerY, 102.0, ( c, r ) -> counts[r][c]++);
+            assertEquals(SIZE * SIZE, visible);
+            assertEquals(1, counts[0][0]);
+            assertEquals(1, counts[CENTER][CENTER]);
+        }
+    }
+
+    public void testWallHidesTheCellsBehind() throws Exception {
+        WritableRaster demWR = CoverageUtilities.createWritableRaster(SIZE, SIZE, null, null, 100.0);
+        for( int col = 0; col < SIZE; col++ ) {
+            demWR.setSample(col, CENTER - 3, 0, 150.0);
+        }
+        RandomIter demIter = RandomIterFactory.create(demWR, null);
+
+        for( boolean doXdraw : new boolean[]{false, true} ) {
+            int[][] counts = new int[SIZE][SIZE];
+            ViewshedCalculator calculator = new ViewshedCalculator(regionMap, NV, -1, doXdraw);
+            calculator.calculate(demIter, CENTER, CENTER, centerX, centerY, 102.0, ( c, r ) -> counts[r][c]++);
+            assertEquals(1, counts[CENTER - 3][CENTER]);
+            assertEquals(0, counts[CENTER - 4][CENTER]);
+            assertEquals(0, counts[0][CENTER]);
+            assertEquals(0, counts[0][CENTER + 2]);
+            // south of the viewpoint nothing is hidden
+            assertEquals(1, counts[SIZE - 1][CENTER]);
+            assertEquals(1, counts[SIZE - 1][0]);
+        }
+    }
+
+    public void testMaxDistanceWindow() throws Exception {
+        WritableRaster demWR = CoverageUtilities.createWritableRaster(SIZE, SIZE, null, null, 100.0);
+        RandomIter demIter = RandomIterFactory.create(demWR, null);
+
+        double maxDistance = 5 * RES;
+        ViewshedCalculator calculator = new ViewshedCalculator(regionMap, NV, maxDistance, false);
+        int[] farCells = new int[1];
+        int visible = calculator.calculate(demIter, CENTER, CENTER, centerX, centerY, 102.0, ( c, r ) -> {
+            if (Math.hypot(c - CENTER, r - CENTER) * RES > maxDistance) {
+                farCells[0]++;
+            }
+        });
+        assertEquals(0, farCells[0]);
+
+        int expected = 0;
+        for( int r = 0; r < SIZE; r++ ) {
+            for( int c = 0; c < SIZE; c++ ) {
+                if (Math.hypot(c - CENTER, r - CENTER) * RES <= maxDistance) {
+                    expected++;
+                }
+            }
+        }
+        assertEquals(expected, visible);
+
+        int[] window = calculator.getLastWindow();
+        assertEquals(CENTER - 6, window[0]);
+        assertEquals(CENTER + 6, window[3]);
+    }
+
+}
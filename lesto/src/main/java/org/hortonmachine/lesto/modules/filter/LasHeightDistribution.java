@@ -33,11 +33,11 @@ import org.geotools.coverage.grid.GridCoordinates2D;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
-import org.geotools.geometry.DirectPosition2D;
 import org.geotools.geometry.Envelope2D;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.hortonmachine.gears.io.las.ALasDataManager;
 import org.hortonmachine.gears.io.las.core.LasRecord;
+import org.hortonmachine.gears.io.las.utils.LasCellBins;
 import org.hortonmachine.gears.io.las.utils.LasRecordGroundElevationComparator;
 import org.hortonmachine.gears.libs.modules.HMConstants;
 import org.hortonmachine.gears.libs.modules.HMModel;
@@ -169,10 +169,12 @@ public class LasHeightDistribution extends HMModel {
                 List<double[]> negativeRanges = analyseNegativeLayerRanges(id, pointsListForTile);
                 List<GridCoverage2D> rangeCoverages = new ArrayList<GridCoverage2D>();
 
-                for( double[] range : negativeRanges ) {
-                    List<LasRecord> pointsInVerticalRange = ALasDataManager.getPointsInVerticalRange(pointsListForTile, range[0],
-                            range[1], true);
+                // bin the points once in the cells of the tile, keeping the height from ground
+                LasCellBins bins = new LasCellBins(tileRegionMap.getWest(), tileRegionMap.getNorth(),
+                        tileRegionMap.getXres(), tileRegionMap.getYres(), tileRegionMap.getCols(), tileRegionMap.getRows());
+                bins.bin(pointsListForTile, dot -> dot.groundElevation);
 
+                for( double[] range : negativeRanges ) {
                     WritableRaster[] wrH = new WritableRaster[1];
                     GridCoverage2D tmpCoverage = CoverageUtilities.createSubCoverageFromTemplate(inDemGC, tileEnvelope,
                             doubleNovalue, wrH);
@@ -180,15 +182,20 @@ public class LasHeightDistribution extends HMModel {
 
                     WritableRandomIter tmpIter = CoverageUtilities.getWritableRandomIterator(wrH[0]);
 
-                    final DirectPosition2D wp = new DirectPosition2D();
-                    for( LasRecord lasRecord : pointsInVerticalRange ) {
-                        wp.setLocation(lasRecord.x, lasRecord.y);
-                        GridCoordinates2D gp = tileGridGeometry.worldToGrid(wp);
-                        double count = tmpIter.getSampleDouble(gp.x, gp.y, 0);
-                        if (isNovalue(count)) {
-                            count = 0;
+                    for( int r = 0; r < bins.getRows(); r++ ) {
+                        for( int c = 0; c < bins.getCols(); c++ ) {
+                            int count = 0;
+                            int end = bins.getCellEnd(c, r);
+                            for( int index = bins.getCellStart(c, r); index < end; index++ ) {
+                                double value = bins.getValue(index);
+                                if (value >= range[0] && value <= range[1]) {
+                                    count++;
+                                }
+                            }
+                            if (count > 0) {
+                                tmpIter.setSample(c, r, 0, count);
+                            }
                         }
-                        tmpIter.setSample(gp.x, gp.y, 0, count + 1);
                     }
 
                     tmpIter.done();
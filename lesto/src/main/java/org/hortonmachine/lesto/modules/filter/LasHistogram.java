@@ -33,7 +33,7 @@ import oms3.annotations.UI;
 
 import org.hortonmachine.gears.io.las.core.ALasReader;
 import org.hortonmachine.gears.io.las.core.ILasHeader;
-import org.hortonmachine.gears.io.las.core.LasRecord;
+import org.hortonmachine.gears.io.las.core.LasPointsBatch;
 import org.hortonmachine.gears.io.las.utils.LasUtils;
 import org.hortonmachine.gears.libs.modules.HMConstants;
 import org.hortonmachine.gears.libs.modules.HMModel;
@@ -88,23 +88,20 @@ public class LasHistogram extends HMModel {
         double min = Double.POSITIVE_INFINITY;
         double max = Double.NEGATIVE_INFINITY;
         int recordsCount = 0;
-        try (ALasReader reader = ALasReader.getReader(lasFile, crs)) {
+        LasPointsBatch batch = new LasPointsBatch();
+        try (ALasReader reader = ALasReader.getMappedReader(lasFile, crs)) {
             reader.open();
             ILasHeader header = reader.getHeader();
             recordsCount = (int) header.getRecordsCount();
             pm.beginTask(MessageFormat.format("Calculating range of {0} points...", recordsCount), recordsCount);
-            while( reader.hasNextPoint() ) {
-                LasRecord readNextLasDot = reader.getNextPoint();
-                double value = readNextLasDot.z;
-                if (doIntensity) {
-                    value = readNextLasDot.intensity;
+            int read;
+            while( (read = reader.readBatch(batch)) > 0 ) {
+                for( int i = 0; i < read; i++ ) {
+                    double value = getValue(batch, i, doIntensity, doClassification);
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
                 }
-                if (doClassification) {
-                    value = readNextLasDot.classification;
-                }
-                min = Math.min(min, value);
-                max = Math.max(max, value);
-                pm.worked(1);
+                pm.worked(read);
             }
         }
         pm.done();
@@ -126,24 +123,20 @@ public class LasHistogram extends HMModel {
 
         pm.beginTask("Creating histogram...", recordsCount);
         // now read them all and split them into files following the markers
-        try (ALasReader reader = ALasReader.getReader(lasFile, crs)) {
+        try (ALasReader reader = ALasReader.getMappedReader(lasFile, crs)) {
             reader.open();
-            while( reader.hasNextPoint() ) {
-                LasRecord readNextLasDot = reader.getNextPoint();
-                double value = readNextLasDot.z;
-                if (doIntensity) {
-                    value = readNextLasDot.intensity;
-                }
-                if (doClassification) {
-                    value = readNextLasDot.classification;
-                }
-                for( int j = 0; j < markers.length; j++ ) {
-                    if (value <= markers[j]) {
-                        count[j] = count[j] + 1;
-                        break;
+            int read;
+            while( (read = reader.readBatch(batch)) > 0 ) {
+                for( int i = 0; i < read; i++ ) {
+                    double value = getValue(batch, i, doIntensity, doClassification);
+                    for( int j = 0; j < markers.length; j++ ) {
+                        if (value <= markers[j]) {
+                            count[j] = count[j] + 1;
+                            break;
+                        }
                     }
                 }
-                pm.worked(1);
+                pm.worked(read);
             }
         }
         pm.done();
@@ -163,4 +156,14 @@ public class LasHistogram extends HMModel {
         }
     }
 
+    private static double getValue( LasPointsBatch batch, int index, boolean doIntensity, boolean doClassification ) {
+        if (doIntensity) {
+            return batch.intensity[index];
+        }
+        if (doClassification) {
+            return batch.classification[index];
+        }
+        return batch.z[index];
+    }
+
 }
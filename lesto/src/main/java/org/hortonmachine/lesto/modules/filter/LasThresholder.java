@@ -21,6 +21,7 @@ import java.io.File;
 import org.hortonmachine.gears.io.las.core.ALasReader;
 import org.hortonmachine.gears.io.las.core.ALasWriter;
 import org.hortonmachine.gears.io.las.core.ILasHeader;
+import org.hortonmachine.gears.io.las.core.LasPointsBatch;
 import org.hortonmachine.gears.io.las.core.LasRecord;
 import org.hortonmachine.gears.io.las.utils.LasUtils;
 import org.hortonmachine.gears.libs.modules.HMConstants;
@@ -82,7 +83,7 @@ public class LasThresholder extends HMModel {
         File lasFile = new File(inLas);
         File outFile = new File(outLas);
 
-        try (ALasReader reader = ALasReader.getReader(lasFile, crs);//
+        try (ALasReader reader = ALasReader.getMappedReader(lasFile, crs);//
                 ALasWriter writer = ALasWriter.getWriter(outFile, crs);) {
             reader.open();
             ILasHeader header = reader.getHeader();
@@ -100,22 +101,18 @@ public class LasThresholder extends HMModel {
             if (pUpper != null) {
                 max = pUpper;
             }
-            while( reader.hasNextPoint() ) {
-                LasRecord readNextLasDot = reader.getNextPoint();
-                double value = readNextLasDot.z;
-                if (doIntensity) {
-                    value = readNextLasDot.intensity;
+            LasPointsBatch batch = new LasPointsBatch();
+            LasRecord dot = new LasRecord();
+            int read;
+            while( (read = reader.readBatch(batch)) > 0 ) {
+                for( int i = 0; i < read; i++ ) {
+                    double value = doIntensity ? batch.intensity[i] : batch.z[i];
+                    if (value < min || value > max) {
+                        continue;
+                    }
+                    writer.addPoint(batch.toRecord(i, dot));
                 }
-                if (value < min) {
-                    pm.worked(1);
-                    continue;
-                }
-                if (value > max) {
-                    pm.worked(1);
-                    continue;
-                }
-                writer.addPoint(readNextLasDot);
-                pm.worked(1);
+                pm.worked(read);
             }
         }
         pm.done();
@@ -48,9 +48,12 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.hortonmachine.gears.io.las.ALasDataManager;
 import org.hortonmachine.gears.io.las.core.LasRecord;
 import org.hortonmachine.gears.io.las.utils.LasRecordElevationComparator;
+import org.hortonmachine.gears.libs.exceptions.ModelsRuntimeException;
 import org.hortonmachine.gears.libs.modules.HMConstants;
 import org.hortonmachine.gears.libs.modules.HMModel;
 import org.hortonmachine.gears.libs.modules.ThreadedRunnable;
+import org.hortonmachine.gears.libs.monitor.DummyProgressMonitor;
+import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
 import org.hortonmachine.gears.modules.v.grids.OmsGridsGenerator;
 import org.hortonmachine.gears.utils.RegionMap;
 import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
@@ -143,6 +146,14 @@ public class AdaptiveTinFilter extends HMModel {
     @In
     public String outDem;
 
+    @Description("Size in meters of the tiles that are filtered in parallel (if null, the whole area is filtered in a single tin).")
+    @In
+    public Double pTileSize = null;
+
+    @Description("Overlap buffer in meters around the tiles (if null, twice the support grid resolution is used).")
+    @In
+    public Double pTileBuffer = null;
+
     private GridCoverage2D inTemplateGC;
 
     @Execute
@@ -172,49 +183,83 @@ public class AdaptiveTinFilter extends HMModel {
 
         int defaultThreadsNum = getDefaultThreadsNum();
         // defaultThreadsNum = 1;
-        final TinHandler tinHandler = new TinHandler(pm, inTemplateGC.getCoordinateReferenceSystem(), pAngleThres, pDistThres,
-                pEdgeThres, defaultThreadsNum);
-        tinHandler.setStartCoordinates(seedsList);
+        CoordinateReferenceSystem crs = inTemplateGC.getCoordinateReferenceSystem();
 
         // dump the first seed based tin
         if (outSeeds != null) {
-            SimpleFeatureCollection outSeedsFC = tinHandler.toFeatureCollection();
+            TinHandler seedsTinHandler = new TinHandler(pm, crs, pAngleThres, pDistThres, pEdgeThres, defaultThreadsNum);
+            seedsTinHandler.setStartCoordinates(seedsList);
+            SimpleFeatureCollection outSeedsFC = seedsTinHandler.toFeatureCollection();
             dumpVector(outSeedsFC, outSeeds);
         }
 
-        try (ALasDataManager lasHandler = ALasDataManager.getDataManager(new File(inLas), null, 0,
-                inTemplateGC.getCoordinateReferenceSystem())) {
-            lasHandler.open();
+        final WritableRaster[] rasterHandler = new WritableRaster[1];
+        GridCoverage2D outDemGC = CoverageUtilities.createCoverageFromTemplate(inTemplateGC, doubleNovalue, rasterHandler);
+        DefaultFeatureCollection outTinFC = new DefaultFeatureCollection();
+        DefaultFeatureCollection outNonGroundFC = new DefaultFeatureCollection();
 
-            tinHandler.filterOnAllData(lasHandler);
+        try (ALasDataManager lasHandler = ALasDataManager.getDataManager(new File(inLas), null, 0, crs)) {
+            lasHandler.open();
 
-            int iteration = 1;
+            if (pTileSize == null || pTileSize <= 0) {
+                TinHandler tinHandler = new TinHandler(pm, crs, pAngleThres, pDistThres, pEdgeThres, defaultThreadsNum);
+                tinHandler.setStartCoordinates(seedsList);
+                filter(tinHandler, lasHandler, pm);
+                if (doTin) {
+                    outTinFC.addAll(tinHandler.toFeatureCollection());
+                    outNonGroundFC.addAll(tinHandler.toFeatureCollectionOthers());
+                }
+                doRaster(tinHandler, rasterHandler[0], tinHandler.getMinMaxElev(), 0, regionMap.getCols() - 1, 0,
+                        regionMap.getRows() - 1, defaultThreadsNum);
+            } else {
+                filterTiles(seedsList, lasHandler, regionMap, rasterHandler[0], outTinFC, outNonGroundFC, defaultThreadsNum);
+            }
+        }
 
-            boolean firstRound = true;
-            do {
-                pm.message("Iteration N." + iteration);
+        if (doTin) {
+            if (outTin != null) {
+                dumpVector(outTinFC, outTin);
+            }
+            if (outNonGround != null) {
+                dumpVector(outNonGroundFC, outNonGround);
+            }
+        }
+        dumpRaster(outDemGC, outDem);
+    }
 
-                int tinBefore = tinHandler.getCurrentGroundPointsNum();
-                if (firstRound) {
-                    // use all data, we are at round 1
-                    tinHandler.filterOnAllData(lasHandler);
-                    firstRound = false;
-                } else {
-                    tinHandler.filterOnLeftOverData();
-                }
-                int tinAfter = tinHandler.getCurrentGroundPointsNum();
+    /**
+     * Densify the tin of the seeds with the ground points, until no new points are found
+     * or the iterations are finished.
+     */
+    private void filter( TinHandler tinHandler, ALasDataManager lasHandler, IHMProgressMonitor monitor ) throws Exception {
+        tinHandler.filterOnAllData(lasHandler);
+
+        int iteration = 1;
+
+        boolean firstRound = true;
+        do {
+            monitor.message("Iteration N." + iteration);
+
+            int tinBefore = tinHandler.getCurrentGroundPointsNum();
+            if (firstRound) {
+                // use all data, we are at round 1
+                tinHandler.filterOnAllData(lasHandler);
+                firstRound = false;
+            } else {
+                tinHandler.filterOnLeftOverData();
+            }
+            int tinAfter = tinHandler.getCurrentGroundPointsNum();
 
-                int addedPoints = tinAfter - tinBefore;
-                pm.message("Points added to the next iteration: " + addedPoints);
+            int addedPoints = tinAfter - tinBefore;
+            monitor.message("Points added to the next iteration: " + addedPoints);
 
-                tinHandler.resetTin();
+            tinHandler.resetTin();
 
-                if (addedPoints == 0) {
-                    break;
-                }
-                iteration++;
-            } while( iteration <= pIterations );
-        }
+            if (addedPoints == 0) {
+                break;
+            }
+            iteration++;
+        } while( iteration <= pIterations );
 
         tinHandler.getTriangles();
 
@@ -225,40 +270,146 @@ public class AdaptiveTinFilter extends HMModel {
         tinHandler.finalCleanup(pFinalCleanupDist);
 
         final double[] minMaxElev = tinHandler.getMinMaxElev();
-        pm.message("Tin triangles min and max elevation:" + Arrays.toString(minMaxElev));
+        monitor.message("Tin triangles min and max elevation:" + Arrays.toString(minMaxElev));
+    }
 
-        if (doTin) {
-            if (outTin != null) {
-                SimpleFeatureCollection outTinFC = tinHandler.toFeatureCollection();
-                dumpVector(outTinFC, outTin);
+    /**
+     * Filter the area by tiles in parallel. Each tile is filtered in its own tin, that
+     * also covers a buffer around the tile, and is used for the raster cells and the
+     * features that fall in the tile.
+     * 
+     * <p>If a tile can't be filtered, the whole process fails after the other tiles are done,
+     * instead of leaving a hole in the output.</p>
+     */
+    private void filterTiles( final List<Coordinate> seedsList, final ALasDataManager lasHandler, final RegionMap regionMap,
+            final WritableRaster outWR, final DefaultFeatureCollection outTinFC, final DefaultFeatureCollection outNonGroundFC,
+            int threadsNum ) {
+        final double buffer = pTileBuffer != null ? pTileBuffer : 2 * pSecRes;
+        int tileCols = (int) Math.max(1, Math.round(pTileSize / regionMap.getXres()));
+        int tileRows = (int) Math.max(1, Math.round(pTileSize / regionMap.getYres()));
+        int cols = regionMap.getCols();
+        int rows = regionMap.getRows();
+
+        List<int[]> tiles = new ArrayList<int[]>();
+        for( int r = 0; r < rows; r += tileRows ) {
+            for( int c = 0; c < cols; c += tileCols ) {
+                tiles.add(new int[]{c, Math.min(c + tileCols, cols) - 1, r, Math.min(r + tileRows, rows) - 1});
             }
+        }
 
-            if (outNonGround != null) {
-                SimpleFeatureCollection outNonGroundFC = tinHandler.toFeatureCollectionOthers();
-                dumpVector(outNonGroundFC, outNonGround);
-            }
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        pm.beginTask("Filtering " + tiles.size() + " tiles... (cores = " + threadsNum + ")", tiles.size());
+        ThreadedRunnable tRun = new ThreadedRunnable(threadsNum, null);
+        for( final int[] tile : tiles ) {
+            tRun.executeRunnable(new Runnable(){
+                public void run() {
+                    Envelope tileEnvelope = new Envelope(//
+                            regionMap.getWest() + tile[0] * regionMap.getXres(), //
+                            regionMap.getWest() + (tile[1] + 1) * regionMap.getXres(), //
+                            regionMap.getNorth() - (tile[3] + 1) * regionMap.getYres(), //
+                            regionMap.getNorth() - tile[2] * regionMap.getYres());
+                    try {
+                        List<Coordinate> tileSeeds = getTileSeeds(seedsList, tileEnvelope, buffer, pTileSize);
+                        if (tileSeeds.size() < 3) {
+                            failures.add("Not enough seeds in tile: " + tileEnvelope);
+                            return;
+                        }
 
+                        IHMProgressMonitor tileMonitor = new DummyProgressMonitor();
+                        TinHandler tinHandler = new TinHandler(tileMonitor, inTemplateGC.getCoordinateReferenceSystem(),
+                                pAngleThres, pDistThres, pEdgeThres, 1);
+                        tinHandler.setStartCoordinates(tileSeeds);
+                        filter(tinHandler, lasHandler, tileMonitor);
+
+                        doRaster(tinHandler, outWR, tinHandler.getMinMaxElev(), tile[0], tile[1], tile[2], tile[3], 1);
+
+                        if (doTin) {
+                            // keep the features of the tile, the buffer belongs to the neighbour tiles
+                            List<SimpleFeature> tileTriangles = new ArrayList<SimpleFeature>();
+                            for( SimpleFeature triangle : FeatureUtilities
+                                    .featureCollectionToList(tinHandler.toFeatureCollection()) ) {
+                                Coordinate[] c = ((Geometry) triangle.getDefaultGeometry()).getCoordinates();
+                                Coordinate centroid = GeometryUtilities.getTriangleCentroid(c[0], c[1], c[2]);
+                                if (isInTile(tileEnvelope, centroid)) {
+                                    tileTriangles.add(triangle);
+                                }
+                            }
+                            List<SimpleFeature> tileNonGround = new ArrayList<SimpleFeature>();
+                            for( SimpleFeature point : FeatureUtilities
+                                    .featureCollectionToList(tinHandler.toFeatureCollectionOthers()) ) {
+                                if (isInTile(tileEnvelope, ((Geometry) point.getDefaultGeometry()).getCoordinate())) {
+                                    tileNonGround.add(point);
+                                }
+                            }
+                            synchronized (outTinFC) {
+                                outTinFC.addAll(tileTriangles);
+                                outNonGroundFC.addAll(tileNonGround);
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.add("Error in tile " + tileEnvelope + ": " + e.getLocalizedMessage());
+                    } finally {
+                        pm.worked(1);
+                    }
+                }
+            });
         }
-        double[] minMaxElev0 = tinHandler.getMinMaxElev();
-        doRaster(tinHandler, regionMap, minMaxElev0, 0);
+        tRun.waitAndClose();
+        pm.done();
 
+        if (!failures.isEmpty()) {
+            throw new ModelsRuntimeException(
+                    "The filtering failed on " + failures.size() + " of " + tiles.size() + " tiles. " + failures.get(0), this);
+        }
     }
 
-    private void doRaster( TinHandler tinHandler, RegionMap regionMap, final double[] minMaxElev, int iteration )
-            throws Exception {
-        final WritableRaster[] rasterHandler = new WritableRaster[1];
-        GridCoverage2D outDemGC = CoverageUtilities.createCoverageFromTemplate(inTemplateGC, doubleNovalue, rasterHandler);
+    /**
+     * Collect the seeds of a tile and of its buffer. If they are too few to build a tin,
+     * the seeds of the neighbour tiles are added, one ring of tiles at a time.
+     */
+    private static List<Coordinate> getTileSeeds( List<Coordinate> seedsList, Envelope tileEnvelope, double buffer,
+            double tileSize ) {
+        Envelope seedsEnvelope = new Envelope();
+        for( Coordinate seed : seedsList ) {
+            seedsEnvelope.expandToInclude(seed);
+        }
+        Envelope searchEnvelope = new Envelope(tileEnvelope);
+        searchEnvelope.expandBy(buffer);
+        while( true ) {
+            List<Coordinate> tileSeeds = new ArrayList<Coordinate>();
+            for( Coordinate seed : seedsList ) {
+                if (searchEnvelope.contains(seed)) {
+                    tileSeeds.add(seed);
+                }
+            }
+            if (tileSeeds.size() >= 3 || seedsEnvelope.isNull() || searchEnvelope.contains(seedsEnvelope)) {
+                return tileSeeds;
+            }
+            searchEnvelope.expandBy(tileSize);
+        }
+    }
 
+    /**
+     * Check if a coordinate is in the tile, the tiles own their west and north borders.
+     */
+    private static boolean isInTile( Envelope tileEnvelope, Coordinate coordinate ) {
+        return coordinate.x >= tileEnvelope.getMinX() && coordinate.x < tileEnvelope.getMaxX()
+                && coordinate.y > tileEnvelope.getMinY() && coordinate.y <= tileEnvelope.getMaxY();
+    }
+
+    private void doRaster( TinHandler tinHandler, final WritableRaster outWR, final double[] minMaxElev, int minCol,
+            int maxCol, int minRow, int maxRow, int threadsNum ) throws Exception {
         final STRtree tinTree = tinHandler.generateTinIndex(null);
         final GridGeometry2D gridGeometry = inTemplateGC.getGridGeometry();
         // pm.beginTask("Generating dem...", regionMap.getCols() *
         // regionMap.getRows());
-        ThreadedRunnable tRun = new ThreadedRunnable(getDefaultThreadsNum(), null);
-        for( int r = 0; r < regionMap.getRows(); r++ ) {
-            for( int c = 0; c < regionMap.getCols(); c++ ) {
+        ThreadedRunnable tRun = threadsNum > 1 ? new ThreadedRunnable(threadsNum, null) : null;
+        for( int r = minRow; r <= maxRow; r++ ) {
+            for( int c = minCol; c <= maxCol; c++ ) {
                 final int col = c;
                 final int row = r;
-                tRun.executeRunnable(new Runnable(){
+                Runnable runner = new Runnable(){
                     public void run() {
                         try {
                             DirectPosition directPosition = gridGeometry.gridToWorld(new GridCoordinates2D(col, row));
@@ -298,8 +449,8 @@ public class AdaptiveTinFilter extends HMModel {
                             if (intersection != null) {
                                 double z = intersection.z;
                                 if (z >= minMaxElev[0] && z <= minMaxElev[1]) {
-                                    synchronized (rasterHandler) {
-                                        rasterHandler[0].setSample(col, row, 0, z);
+                                    synchronized (outWR) {
+                                        outWR.setSample(col, row, 0, z);
                                     }
                                 }
                             }
@@ -308,14 +459,17 @@ public class AdaptiveTinFilter extends HMModel {
                             e.printStackTrace();
                         }
                     }
-                });
-
+                };
+                if (tRun != null) {
+                    tRun.executeRunnable(runner);
+                } else {
+                    runner.run();
+                }
             }
         }
-        tRun.waitAndClose();
-        pm.done();
-
-        dumpRaster(outDemGC, outDem);
+        if (tRun != null) {
+            tRun.waitAndClose();
+        }
     }
 
     private SimpleFeatureCollection featureCollectionFromNonGroundCoordinates( CoordinateReferenceSystem crs,
@@ -340,7 +494,8 @@ public class AdaptiveTinFilter extends HMModel {
     }
 
     private List<Coordinate> getSeeds( List<Geometry> secGridGeoms ) throws Exception {
-        final List<Coordinate> seedsList = new ArrayList<Coordinate>();
+        // filled by the threads of the sec grid tiles
+        final List<Coordinate> seedsList = Collections.synchronizedList(new ArrayList<Coordinate>());
         try (ALasDataManager lasHandler = ALasDataManager.getDataManager(new File(inLas), null, 0,
                 inTemplateGC.getCoordinateReferenceSystem())) {
             lasHandler.open();
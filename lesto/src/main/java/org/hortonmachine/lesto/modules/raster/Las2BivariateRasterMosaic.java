@@ -25,10 +25,9 @@ import static org.hortonmachine.gears.i18n.GearsMessages.OMSHYDRO_AUTHORNAMES;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSHYDRO_DRAFT;
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSHYDRO_LICENSE;
 
-import java.awt.Point;
 import java.awt.image.WritableRaster;
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.media.jai.iterator.WritableRandomIter;
@@ -52,11 +51,11 @@ import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 import org.apache.commons.math3.linear.SingularMatrixException;
 import org.geotools.coverage.grid.GridCoverage2D;
-import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.hortonmachine.gears.io.las.ALasDataManager;
 import org.hortonmachine.gears.io.las.core.LasRecord;
+import org.hortonmachine.gears.io.las.utils.LasCellBins;
 import org.hortonmachine.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.hortonmachine.gears.libs.modules.HMConstants;
 import org.hortonmachine.gears.libs.modules.HMModel;
@@ -71,7 +70,6 @@ import org.hortonmachine.gears.utils.geometry.GeometryUtilities;
 import org.hortonmachine.gears.utils.math.NumericsUtilities;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Polygon;
 
@@ -225,7 +223,6 @@ public class Las2BivariateRasterMosaic extends HMModel {
 
     }
 
-    @SuppressWarnings({"unchecked"})
     private void processTile( File outFolderFile, CoordinateReferenceSystem crs, ALasDataManager lasData, int x, int y, double w,
             double e, double s, double n ) throws Exception {
 
@@ -266,23 +263,9 @@ public class Las2BivariateRasterMosaic extends HMModel {
         List<LasRecord> tileLasPoints = lasData.getPointsInGeometry(roiPolygon, true);
 
         if (tileLasPoints.size() > 100) {
-            final GridGeometry2D gridGeometry = outputCoverage.getGridGeometry();
-
             int newCols = cols + 2 * pBuffer;
             int newRows = rows + 2 * pBuffer;
-            GridGeometry2D bufferedGridGeometry = CoverageUtilities.gridGeometryFromRegionValues(env.getMaxY(), env.getMinY(),
-                    env.getMaxX(), env.getMinX(), newCols, newRows, crs);
-
-            ArrayList<LasRecord>[][] lasMatrix = new ArrayList[newCols][newRows];
-            for( int r = 0; r < newRows; r++ ) {
-                for( int c = 0; c < newCols; c++ ) {
-                    ArrayList<LasRecord> item = new ArrayList<LasRecord>();
-                    lasMatrix[c][r] = item;
-                }
-            }
 
-            // Splitting las into cells
-            final Point point = new Point();
             for( LasRecord dot : tileLasPoints ) {
                 if (doIntensity) {
                     if (dot.intensity == NOINTENSITY) {
@@ -294,10 +277,27 @@ public class Las2BivariateRasterMosaic extends HMModel {
                     minValue = min(dot.z, minValue);
                     maxValue = max(dot.z, maxValue);
                 }
-                CoverageUtilities.colRowFromCoordinate(new Coordinate(dot.x, dot.y), bufferedGridGeometry, point);
-                lasMatrix[point.x][point.y].add(dot);
             }
 
+            // Splitting las into cells
+            LasCellBins bins = new LasCellBins(env.getMinX(), env.getMaxY(), xRes, yRes, newCols, newRows);
+            if (doIntensity) {
+                bins.bin(tileLasPoints, dot -> dot.intensity == NOINTENSITY ? Double.NaN : dot.intensity);
+            } else {
+                bins.bin(tileLasPoints, null);
+            }
+            // the points of the cells are not needed anymore
+            tileLasPoints = null;
+
+            int maxWindowPoints = 0;
+            for( int r = pBuffer; r < newRows - pBuffer; r++ ) {
+                for( int c = pBuffer; c < newCols - pBuffer; c++ ) {
+                    maxWindowPoints = Math.max(maxWindowPoints, getWindowPointsNum(bins, c, r));
+                }
+            }
+            final double[][] xyMatrix = new double[maxWindowPoints][];
+            final double[] valueArray = new double[maxWindowPoints];
+
             WritableRandomIter outWIter = null;
             try {
                 outWIter = CoverageUtilities.getWritableRandomIterator(outWR);
@@ -312,19 +312,13 @@ public class Las2BivariateRasterMosaic extends HMModel {
                         pm.message(sb1.toString());
                     }
                     for( int r = pBuffer; r < newRows - pBuffer; r++ ) {
-                        Coordinate coordinate = CoverageUtilities.coordinateFromColRow(c, r, bufferedGridGeometry);
-                        List<LasRecord> currentPoints = new ArrayList<LasRecord>();
-                        for( int tmpC = c - pBuffer; tmpC <= c + pBuffer; tmpC++ ) {
-                            for( int tmpR = r - pBuffer; tmpR <= r + pBuffer; tmpR++ ) {
-                                currentPoints.addAll(lasMatrix[tmpC][tmpR]);
-                            }
-                        }
-                        int size = currentPoints.size();
+                        int size = getWindowPointsNum(bins, c, r);
                         if (size >= pMinpoints) {
                             // need at least as many samples as parameters
                             try {
-                                double[] parameters = calculateParameters(currentPoints);
-                                double interpolatedValue = getInterpolatedValue(parameters, coordinate.x, coordinate.y);
+                                double[] parameters = calculateParameters(bins, c, r, size, xyMatrix, valueArray);
+                                double interpolatedValue = getInterpolatedValue(parameters, bins.getCenterX(c),
+                                        bins.getCenterY(r));
                                 // limit by min/max
                                 if (interpolatedValue < minValue) {
                                     interpolatedValue = minValue;
@@ -333,8 +327,7 @@ public class Las2BivariateRasterMosaic extends HMModel {
                                     interpolatedValue = maxValue;
                                 }
 
-                                CoverageUtilities.colRowFromCoordinate(coordinate, gridGeometry, point);
-                                outWIter.setSample(point.x, point.y, 0, interpolatedValue);
+                                outWIter.setSample(c - pBuffer, r - pBuffer, 0, interpolatedValue);
                             } catch (SingularMatrixException ex) {
                                 // we ignore the singular matrix leaving the cell undefined
                             }
@@ -352,28 +345,47 @@ public class Las2BivariateRasterMosaic extends HMModel {
         }
     }
 
-    private double[] calculateParameters( final List<LasRecord> pointsInGeometry ) {
-        int pointsNum = pointsInGeometry.size();
-
-        final double[][] xyMatrix = new double[pointsNum][6];
-        final double[] valueArray = new double[pointsNum];
-        for( int i = 0; i < pointsNum; i++ ) {
-            LasRecord dot = pointsInGeometry.get(i);
-            xyMatrix[i][0] = dot.x * dot.x; // x^2
-            xyMatrix[i][1] = dot.y * dot.y; // y^2
-            xyMatrix[i][2] = dot.x * dot.y; // xy
-            xyMatrix[i][3] = dot.x; // x
-            xyMatrix[i][4] = dot.y; // y
-            xyMatrix[i][5] = 1;
-            if (doIntensity) {
-                valueArray[i] = dot.intensity;
-            } else {
-                valueArray[i] = dot.z;
+    /**
+     * @return the number of points in the window of cells around a cell.
+     */
+    private int getWindowPointsNum( LasCellBins bins, int col, int row ) {
+        int size = 0;
+        for( int tmpR = row - pBuffer; tmpR <= row + pBuffer; tmpR++ ) {
+            // the cells of a row are contiguous in the bins
+            size += bins.getCellEnd(col + pBuffer, tmpR) - bins.getCellStart(col - pBuffer, tmpR);
+        }
+        return size;
+    }
+
+    private double[] calculateParameters( LasCellBins bins, int col, int row, int pointsNum, double[][] xyMatrix,
+            double[] valueArray ) {
+        int i = 0;
+        for( int tmpR = row - pBuffer; tmpR <= row + pBuffer; tmpR++ ) {
+            int end = bins.getCellEnd(col + pBuffer, tmpR);
+            for( int index = bins.getCellStart(col - pBuffer, tmpR); index < end; index++ ) {
+                double x = bins.getX(index);
+                double y = bins.getY(index);
+                double[] xyRow = xyMatrix[i];
+                if (xyRow == null) {
+                    xyRow = new double[6];
+                    xyMatrix[i] = xyRow;
+                }
+                xyRow[0] = x * x; // x^2
+                xyRow[1] = y * y; // y^2
+                xyRow[2] = x * y; // xy
+                xyRow[3] = x; // x
+                xyRow[4] = y; // y
+                xyRow[5] = 1;
+                valueArray[i] = bins.getValue(index);
+                i++;
             }
         }
 
-        RealMatrix A = MatrixUtils.createRealMatrix(xyMatrix);
-        RealVector z = MatrixUtils.createRealVector(valueArray);
+        RealMatrix A = MatrixUtils.createRealMatrix(pointsNum, 6);
+        for( int j = 0; j < pointsNum; j++ ) {
+            A.setRow(j, xyMatrix[j]);
+        }
+        RealVector z = MatrixUtils.createRealVector(Arrays.copyOf(valueArray, pointsNum));
 
         DecompositionSolver solver = new RRQRDecomposition(A).getSolver();
         RealVector solution = solver.solve(z);
@@ -0,0 +1,662 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.lesto.modules.raster.adaptivetinfilter;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+
+/**
+ * A delaunay triangulation to which vertexes are added one at a time.
+ *
+ * <p>The triangulation is kept in primitive arrays (three vertexes and three neighbours
+ * per triangle, counterclockwise) inside a large frame triangle, the points are located by
+ * walking from triangle to triangle and inserted through the Bowyer-Watson algorithm. The
+ * geometric predicates fall back to exact arithmetic when the floating point result is
+ * not reliable.</p>
+ *
+ * <p>Besides the vertexes, the tin keeps a set of other points, each in the bucket of the
+ * triangle that contains it. When a vertex is inserted, the points of the removed triangles
+ * are moved to the new ones, which are marked as dirty, so that the unchanged triangles
+ * keep their points untouched.</p>
+ *
+ * <p>The frame is finite, so a triangle of the hull of the vertexes whose circumcircle
+ * reaches a frame vertex is replaced by triangles connected to the frame. This only happens
+ * to very thin triangles along almost straight stretches of the hull, the area they cover
+ * is left out of the tin as the area outside of the hull.</p>
+ *
+ * <p>The tin can be read by many threads at once, but needs to be modified by one.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class IncrementalTin {
+    private static final int FRAME_VERTEXES = 3;
+    private static final double ORIENT_ERRBOUND = 3.3306690738754716e-16;
+    private static final double INCIRCLE_ERRBOUND = 1.1102230246251577e-15;
+    private static final int HILBERT_SIDE = 1 << 15;
+
+    private final double originX;
+    private final double originY;
+
+    private final List<Coordinate> vertexes = new ArrayList<Coordinate>();
+    private double[] vx = new double[64];
+    private double[] vy = new double[64];
+
+    /** The vertexes of the triangles, -1 for removed triangles. */
+    private int[] tv = new int[3 * 128];
+    /** The neighbour triangles, the one at position i is opposite to the vertex i. */
+    private int[] tn = new int[3 * 128];
+    private int trianglesNum = 0;
+    private int[] freeTriangles = new int[16];
+    private int freeTrianglesNum = 0;
+    private int lastTriangle = 0;
+
+    private int[] cavityMarks = new int[128];
+    private int cavityStamp = 0;
+
+    private int[][] buckets = new int[128][];
+    private int[] bucketSizes = new int[128];
+    private boolean[] dirty = new boolean[128];
+
+    private final List<Coordinate> points = new ArrayList<Coordinate>();
+    private double[] px = new double[64];
+    private double[] py = new double[64];
+    /** The triangle of each point, -1 for removed points. */
+    private int[] pointTriangles = new int[64];
+    private int validPointsNum = 0;
+
+    /**
+     * Create the tin of a set of sites.
+     *
+     * <p>Later vertexes and points are accepted if they fall inside the frame, which extends
+     * for some times the size of the sites envelope around it.</p>
+     *
+     * @param sites the initial vertexes.
+     */
+    public IncrementalTin( List<Coordinate> sites ) {
+        Envelope envelope = new Envelope();
+        for( Coordinate site : sites ) {
+            envelope.expandToInclude(site);
+        }
+        if (envelope.isNull()) {
+            envelope.expandToInclude(0, 0);
+        }
+        originX = envelope.centre().x;
+        originY = envelope.centre().y;
+        double size = Math.max(1.0, Math.max(envelope.getWidth(), envelope.getHeight())) * 100.0;
+
+        addVertex(new Coordinate(originX - size, originY - size), -size, -size);
+        addVertex(new Coordinate(originX + size, originY - size), size, -size);
+        addVertex(new Coordinate(originX, originY + size), 0, size);
+        int t = newTriangle(0, 1, 2);
+        tn[3 * t] = -1;
+        tn[3 * t + 1] = -1;
+        tn[3 * t + 2] = -1;
+        lastTriangle = t;
+        dirty[t] = true;
+
+        insertAll(sites);
+    }
+
+    /**
+     * Insert a set of vertexes, in the order of a hilbert curve through them, which keeps
+     * the walks of the point location short.
+     *
+     * @param coordinates the coordinates of the vertexes.
+     * @return the number of inserted vertexes.
+     */
+    public int insertAll( List<Coordinate> coordinates ) {
+        int size = coordinates.size();
+        if (size == 0) {
+            return 0;
+        }
+        Envelope envelope = new Envelope();
+        for( Coordinate coordinate : coordinates ) {
+            envelope.expandToInclude(coordinate);
+        }
+        double width = Math.max(envelope.getWidth(), 1E-9);
+        double height = Math.max(envelope.getHeight(), 1E-9);
+        long[] keys = new long[size];
+        for( int i = 0; i < size; i++ ) {
+            Coordinate coordinate = coordinates.get(i);
+            int hx = (int) ((coordinate.x - envelope.getMinX()) / width * HILBERT_SIDE);
+            int hy = (int) ((coordinate.y - envelope.getMinY()) / height * HILBERT_SIDE);
+            long d = hilbertIndex(Math.min(hx, HILBERT_SIDE - 1), Math.min(hy, HILBERT_SIDE - 1));
+            // the position in the list in the lower bits keeps the sort stable
+            keys[i] = (d << 32) | i;
+        }
+        Arrays.sort(keys);
+        int inserted = 0;
+        for( long key : keys ) {
+            if (insert(coordinates.get((int) (key & 0xFFFFFFFFL)))) {
+                inserted++;
+            }
+        }
+        return inserted;
+    }
+
+    private static long hilbertIndex( int x, int y ) {
+        long d = 0;
+        for( int s = HILBERT_SIDE / 2; s > 0; s /= 2 ) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int tmp = x;
+                x = y;
+                y = tmp;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Insert a new vertex in the tin.
+     *
+     * <p>The triangles that change are marked as dirty and the points in them are moved to
+     * the new triangles.</p>
+     *
+     * @param coordinate the coordinate of the vertex.
+     * @return <code>true</code> if the vertex was inserted, <code>false</code> if it falls outside
+     *          the frame or on an existing vertex.
+     */
+    public boolean insert( Coordinate coordinate ) {
+        double x = coordinate.x - originX;
+        double y = coordinate.y - originY;
+        int t = locate(x, y, lastTriangle);
+        if (t < 0) {
+            return false;
+        }
+        for( int i = 0; i < 3; i++ ) {
+            int v = tv[3 * t + i];
+            if (vx[v] == x && vy[v] == y) {
+                return false;
+            }
+        }
+        int v = addVertex(coordinate, x, y);
+
+        // the cavity of the triangles whose circumcircle contains the vertex
+        cavityStamp++;
+        int[] cavity = new int[8];
+        int cavityNum = 0;
+        int[] stack = new int[8];
+        int stackNum = 0;
+        stack[stackNum++] = t;
+        cavityMarks[t] = cavityStamp;
+        while( stackNum > 0 ) {
+            int current = stack[--stackNum];
+            if (cavityNum == cavity.length) {
+                cavity = Arrays.copyOf(cavity, cavityNum * 2);
+            }
+            cavity[cavityNum++] = current;
+            for( int i = 0; i < 3; i++ ) {
+                int n = tn[3 * current + i];
+                if (n >= 0 && cavityMarks[n] != cavityStamp && inCircle(n, x, y) > 0) {
+                    cavityMarks[n] = cavityStamp;
+                    if (stackNum == stack.length) {
+                        stack = Arrays.copyOf(stack, stackNum * 2);
+                    }
+                    stack[stackNum++] = n;
+                }
+            }
+        }
+
+        // the boundary edges of the cavity as (start vertex, end vertex, outer triangle)
+        int[] edges = new int[3 * (cavityNum + 2)];
+        int edgesNum = 0;
+        int movedNum = 0;
+        for( int c = 0; c < cavityNum; c++ ) {
+            int current = cavity[c];
+            for( int i = 0; i < 3; i++ ) {
+                int n = tn[3 * current + i];
+                if (n < 0 || cavityMarks[n] != cavityStamp) {
+                    if (3 * edgesNum + 3 > edges.length) {
+                        edges = Arrays.copyOf(edges, edges.length * 2);
+                    }
+                    edges[3 * edgesNum] = tv[3 * current + (i + 1) % 3];
+                    edges[3 * edgesNum + 1] = tv[3 * current + (i + 2) % 3];
+                    edges[3 * edgesNum + 2] = n;
+                    edgesNum++;
+                }
+            }
+            movedNum += bucketSizes[current];
+        }
+
+        // take the points out of the cavity before its triangles are reused
+        int[] moved = new int[movedNum];
+        movedNum = 0;
+        for( int c = 0; c < cavityNum; c++ ) {
+            int current = cavity[c];
+            int[] bucket = buckets[current];
+            for( int k = 0; k < bucketSizes[current]; k++ ) {
+                int p = bucket[k];
+                if (pointTriangles[p] == current) {
+                    moved[movedNum++] = p;
+                }
+            }
+            removeTriangle(current);
+        }
+
+        // fan the boundary to the new vertex
+        HashMap<Integer, Integer> startingAt = new HashMap<Integer, Integer>();
+        HashMap<Integer, Integer> endingAt = new HashMap<Integer, Integer>();
+        int[] newTriangles = new int[edgesNum];
+        for( int e = 0; e < edgesNum; e++ ) {
+            int a = edges[3 * e];
+            int b = edges[3 * e + 1];
+            int outer = edges[3 * e + 2];
+            int nt = newTriangle(a, b, v);
+            newTriangles[e] = nt;
+            tn[3 * nt + 2] = outer;
+            if (outer >= 0) {
+                // the outer triangle has the same edge reversed, the triangle ids are reused so they can't be compared
+                for( int i = 0; i < 3; i++ ) {
+                    if (tv[3 * outer + (i + 1) % 3] == b && tv[3 * outer + (i + 2) % 3] == a) {
+                        tn[3 * outer + i] = nt;
+                        break;
+                    }
+                }
+            }
+            startingAt.put(a, nt);
+            endingAt.put(b, nt);
+        }
+        for( int e = 0; e < edgesNum; e++ ) {
+            int nt = newTriangles[e];
+            tn[3 * nt] = startingAt.get(tv[3 * nt + 1]);
+            tn[3 * nt + 1] = endingAt.get(tv[3 * nt]);
+        }
+        lastTriangle = newTriangles[0];
+
+        for( int k = 0; k < movedNum; k++ ) {
+            int p = moved[k];
+            int pt = locate(px[p], py[p], lastTriangle);
+            pointTriangles[p] = -1;
+            validPointsNum--;
+            if (pt >= 0) {
+                addToBucket(pt, p);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a point to the bucket of the triangle that contains it.
+     *
+     * @param coordinate the coordinate of the point.
+     * @param hintTriangle the triangle from which to start the search, or -1.
+     * @return the index of the point, or -1 if it falls outside the frame.
+     */
+    public int addPoint( Coordinate coordinate, int hintTriangle ) {
+        double x = coordinate.x - originX;
+        double y = coordinate.y - originY;
+        int start = hintTriangle >= 0 && hintTriangle < trianglesNum && tv[3 * hintTriangle] >= 0 ? hintTriangle : lastTriangle;
+        int t = locate(x, y, start);
+        if (t < 0) {
+            return -1;
+        }
+        int p = points.size();
+        if (p == px.length) {
+            int newLength = p * 2;
+            px = Arrays.copyOf(px, newLength);
+            py = Arrays.copyOf(py, newLength);
+            pointTriangles = Arrays.copyOf(pointTriangles, newLength);
+        }
+        points.add(coordinate);
+        px[p] = x;
+        py[p] = y;
+        pointTriangles[p] = -1;
+        addToBucket(t, p);
+        return p;
+    }
+
+    /**
+     * Remove a point from its bucket.
+     *
+     * @param point the index of the point.
+     */
+    public void removePoint( int point ) {
+        if (pointTriangles[point] >= 0) {
+            pointTriangles[point] = -1;
+            validPointsNum--;
+        }
+    }
+
+    /**
+     * Remove all the points.
+     */
+    public void clearPoints() {
+        points.clear();
+        for( int t = 0; t < trianglesNum; t++ ) {
+            bucketSizes[t] = 0;
+        }
+        validPointsNum = 0;
+    }
+
+    /**
+     * @param point the index of the point.
+     * @return the coordinate of the point.
+     */
+    public Coordinate getPoint( int point ) {
+        return points.get(point);
+    }
+
+    /**
+     * @return the number of points in the buckets.
+     */
+    public int getPointsNum() {
+        return validPointsNum;
+    }
+
+    /**
+     * @return the indexes of the points in the buckets.
+     */
+    public int[] getPointIndexes() {
+        int[] indexes = new int[validPointsNum];
+        int count = 0;
+        for( int p = 0; p < points.size(); p++ ) {
+            if (pointTriangles[p] >= 0) {
+                indexes[count++] = p;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * @param triangle the index of the triangle.
+     * @return the indexes of the points inside the triangle.
+     */
+    public int[] getBucket( int triangle ) {
+        int[] bucket = buckets[triangle];
+        int size = bucketSizes[triangle];
+        int[] valid = new int[size];
+        int count = 0;
+        for( int k = 0; k < size; k++ ) {
+            if (pointTriangles[bucket[k]] == triangle) {
+                valid[count++] = bucket[k];
+            }
+        }
+        return count == size ? valid : Arrays.copyOf(valid, count);
+    }
+
+    /**
+     * @param triangle the index of the triangle.
+     * @return <code>true</code> if the triangle was created after the last {@link #clearDirty()}.
+     */
+    public boolean isDirty( int triangle ) {
+        return dirty[triangle];
+    }
+
+    /**
+     * Mark all the triangles as unchanged.
+     */
+    public void clearDirty() {
+        Arrays.fill(dirty, 0, trianglesNum, false);
+    }
+
+    /**
+     * @return the indexes of the triangles of the tin, excluding the ones connected to the frame,
+     *          which can also leave out some thin triangles of the hull.
+     */
+    public int[] getTriangleIndexes() {
+        int[] indexes = new int[trianglesNum];
+        int count = 0;
+        for( int t = 0; t < trianglesNum; t++ ) {
+            int base = 3 * t;
+            if (tv[base] >= FRAME_VERTEXES && tv[base + 1] >= FRAME_VERTEXES && tv[base + 2] >= FRAME_VERTEXES) {
+                indexes[count++] = t;
+            }
+        }
+        return Arrays.copyOf(indexes, count);
+    }
+
+    /**
+     * @param triangle the index of the triangle.
+     * @return the three vertexes of the triangle, counterclockwise.
+     */
+    public Coordinate[] getTriangleCoordinates( int triangle ) {
+        return new Coordinate[]{vertexes.get(tv[3 * triangle]), vertexes.get(tv[3 * triangle + 1]),
+                vertexes.get(tv[3 * triangle + 2])};
+    }
+
+    /**
+     * @param triangle the index of the triangle.
+     * @param gf the geometry factory to use.
+     * @return the polygon of the triangle.
+     */
+    public Polygon getTriangleGeometry( int triangle, GeometryFactory gf ) {
+        Coordinate[] c = getTriangleCoordinates(triangle);
+        return gf.createPolygon(new Coordinate[]{c[0], c[1], c[2], c[0]});
+    }
+
+    /**
+     * @return the vertexes of the tin, excluding the frame.
+     */
+    public List<Coordinate> getVertexes() {
+        return vertexes.subList(FRAME_VERTEXES, vertexes.size());
+    }
+
+    /**
+     * @return the number of vertexes of the tin, excluding the frame.
+     */
+    public int getVertexesNum() {
+        return vertexes.size() - FRAME_VERTEXES;
+    }
+
+    /**
+     * Find the triangle that contains a coordinate.
+     *
+     * @param coordinate the coordinate.
+     * @return the index of the triangle, or -1 if it falls outside the frame.
+     */
+    public int locate( Coordinate coordinate ) {
+        return locate(coordinate.x - originX, coordinate.y - originY, lastTriangle);
+    }
+
+    /**
+     * Walk from triangle to triangle towards the point, crossing the first edge that has
+     * the point on its outer side. The edge to test first changes at every step, which avoids
+     * the walk to loop.
+     */
+    private int locate( double x, double y, int start ) {
+        int t = start;
+        int maxSteps = 3 * trianglesNum + 10;
+        for( int step = 0; step < maxSteps; step++ ) {
+            int base = 3 * t;
+            int next = -2;
+            for( int k = 0; k < 3; k++ ) {
+                int i = (step + k) % 3;
+                int a = tv[base + (i + 1) % 3];
+                int b = tv[base + (i + 2) % 3];
+                if (orient(vx[a], vy[a], vx[b], vy[b], x, y) < 0) {
+                    next = tn[base + i];
+                    break;
+                }
+            }
+            if (next == -2) {
+                return t;
+            }
+            if (next < 0) {
+                return -1;
+            }
+            t = next;
+        }
+        // should not happen, check all the triangles
+        for( t = 0; t < trianglesNum; t++ ) {
+            int base = 3 * t;
+            if (tv[base] < 0) {
+                continue;
+            }
+            boolean inside = true;
+            for( int i = 0; i < 3 && inside; i++ ) {
+                int a = tv[base + (i + 1) % 3];
+                int b = tv[base + (i + 2) % 3];
+                inside = orient(vx[a], vy[a], vx[b], vy[b], x, y) >= 0;
+            }
+            if (inside) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    private double inCircle( int t, double x, double y ) {
+        int a = tv[3 * t];
+        int b = tv[3 * t + 1];
+        int c = tv[3 * t + 2];
+        return inCircle(vx[a], vy[a], vx[b], vy[b], vx[c], vy[c], x, y);
+    }
+
+    private int addVertex( Coordinate coordinate, double x, double y ) {
+        int v = vertexes.size();
+        if (v == vx.length) {
+            vx = Arrays.copyOf(vx, v * 2);
+            vy = Arrays.copyOf(vy, v * 2);
+        }
+        vertexes.add(coordinate);
+        vx[v] = x;
+        vy[v] = y;
+        return v;
+    }
+
+    private int newTriangle( int a, int b, int c ) {
+        int t;
+        if (freeTrianglesNum > 0) {
+            t = freeTriangles[--freeTrianglesNum];
+        } else {
+            t = trianglesNum++;
+            if (3 * trianglesNum > tv.length) {
+                int newLength = tv.length * 2;
+                tv = Arrays.copyOf(tv, newLength);
+                tn = Arrays.copyOf(tn, newLength);
+                cavityMarks = Arrays.copyOf(cavityMarks, newLength / 3);
+                buckets = Arrays.copyOf(buckets, newLength / 3);
+                bucketSizes = Arrays.copyOf(bucketSizes, newLength / 3);
+                dirty = Arrays.copyOf(dirty, newLength / 3);
+            }
+        }
+        tv[3 * t] = a;
+        tv[3 * t + 1] = b;
+        tv[3 * t + 2] = c;
+        cavityMarks[t] = 0;
+        bucketSizes[t] = 0;
+        dirty[t] = true;
+        return t;
+    }
+
+    private void removeTriangle( int t ) {
+        tv[3 * t] = -1;
+        tv[3 * t + 1] = -1;
+        tv[3 * t + 2] = -1;
+        bucketSizes[t] = 0;
+        if (freeTrianglesNum == freeTriangles.length) {
+            freeTriangles = Arrays.copyOf(freeTriangles, freeTrianglesNum * 2);
+        }
+        freeTriangles[freeTrianglesNum++] = t;
+    }
+
+    private void addToBucket( int t, int p ) {
+        int[] bucket = buckets[t];
+        int size = bucketSizes[t];
+        if (bucket == null) {
+            bucket = new int[4];
+            buckets[t] = bucket;
+        } else if (size == bucket.length) {
+            bucket = Arrays.copyOf(bucket, size * 2);
+            buckets[t] = bucket;
+        }
+        bucket[size] = p;
+        bucketSizes[t] = size + 1;
+        pointTriangles[p] = t;
+        validPointsNum++;
+    }
+
+    /**
+     * @return a positive value if the point c is to the left of the line a-b, negative if to the right, 0 if on it.
+     */
+    static double orient( double ax, double ay, double bx, double by, double cx, double cy ) {
+        double left = (bx - ax) * (cy - ay);
+        double right = (by - ay) * (cx - ax);
+        double det = left - right;
+        double errBound = ORIENT_ERRBOUND * (Math.abs(left) + Math.abs(right));
+        if (det > errBound || -det > errBound) {
+            return det;
+        }
+        BigDecimal bax = new BigDecimal(bx).subtract(new BigDecimal(ax));
+        BigDecimal cay = new BigDecimal(cy).subtract(new BigDecimal(ay));
+        BigDecimal bay = new BigDecimal(by).subtract(new BigDecimal(ay));
+        BigDecimal cax = new BigDecimal(cx).subtract(new BigDecimal(ax));
+        return bax.multiply(cay).subtract(bay.multiply(cax)).signum();
+    }
+
+    /**
+     * @return a positive value if the point d is inside the circle through the counterclockwise a, b, c,
+     *          negative if outside, 0 if on it.
+     */
+    static double inCircle( double ax, double ay, double bx, double by, double cx, double cy, double dx, double dy ) {
+        double adx = ax - dx;
+        double ady = ay - dy;
+        double bdx = bx - dx;
+        double bdy = by - dy;
+        double cdx = cx - dx;
+        double cdy = cy - dy;
+
+        double bdxcdy = bdx * cdy;
+        double cdxbdy = cdx * bdy;
+        double alift = adx * adx + ady * ady;
+        double cdxady = cdx * ady;
+        double adxcdy = adx * cdy;
+        double blift = bdx * bdx + bdy * bdy;
+        double adxbdy = adx * bdy;
+        double bdxady = bdx * ady;
+        double clift = cdx * cdx + cdy * cdy;
+
+        double det = alift * (bdxcdy - cdxbdy) + blift * (cdxady - adxcdy) + clift * (adxbdy - bdxady);
+        double permanent = (Math.abs(bdxcdy) + Math.abs(cdxbdy)) * alift + (Math.abs(cdxady) + Math.abs(adxcdy)) * blift
+                + (Math.abs(adxbdy) + Math.abs(bdxady)) * clift;
+        double errBound = INCIRCLE_ERRBOUND * permanent;
+        if (det > errBound || -det > errBound) {
+            return det;
+        }
+
+        BigDecimal eadx = new BigDecimal(ax).subtract(new BigDecimal(dx));
+        BigDecimal eady = new BigDecimal(ay).subtract(new BigDecimal(dy));
+        BigDecimal ebdx = new BigDecimal(bx).subtract(new BigDecimal(dx));
+        BigDecimal ebdy = new BigDecimal(by).subtract(new BigDecimal(dy));
+        BigDecimal ecdx = new BigDecimal(cx).subtract(new BigDecimal(dx));
+        BigDecimal ecdy = new BigDecimal(cy).subtract(new BigDecimal(dy));
+        BigDecimal ealift = eadx.multiply(eadx).add(eady.multiply(eady));
+        BigDecimal eblift = ebdx.multiply(ebdx).add(ebdy.multiply(ebdy));
+        BigDecimal eclift = ecdx.multiply(ecdx).add(ecdy.multiply(ecdy));
+        BigDecimal exact = ealift.multiply(ebdx.multiply(ecdy).subtract(ecdx.multiply(ebdy)))
+                .add(eblift.multiply(ecdx.multiply(eady).subtract(eadx.multiply(ecdy))))
+                .add(eclift.multiply(eadx.multiply(ebdy).subtract(ebdx.multiply(eady))));
+        return exact.signum();
+    }
+
+}
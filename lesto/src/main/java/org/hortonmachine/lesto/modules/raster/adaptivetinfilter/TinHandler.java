@@ -23,12 +23,10 @@ import static org.hortonmachine.gears.utils.geometry.GeometryUtilities.getLineWi
 import static org.hortonmachine.gears.utils.geometry.GeometryUtilities.getTriangleCentroid;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.DefaultFeatureCollection;
@@ -43,20 +41,21 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import org.locationtech.jts.algorithm.locate.SimplePointInAreaLocator;
 import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.Location;
 import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.index.strtree.STRtree;
-import org.locationtech.jts.triangulate.DelaunayTriangulationBuilder;
 
 /**
  * A helper class for tin handling.
  * 
+ * <p>The ground points are inserted one by one in a single {@link IncrementalTin}, which
+ * keeps the non ground points in the buckets of the triangles. After the first round on
+ * all data, the filtering of the leftover points only visits the triangles that changed
+ * in the previous round, unless the thresholds were relaxed.</p>
+ * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
 @SuppressWarnings("nls")
@@ -64,19 +63,19 @@ public class TinHandler {
     public static final double POINTENVELOPE_EXPAND = 0.1;
 
     /**
-     * The list of coordinates that will be used at the next tin generation.
+     * The tin of the ground points, with the non ground points in the buckets of its triangles.
      */
-    private List<Coordinate> tinCoordinateList = new ArrayList<Coordinate>();
+    private IncrementalTin tin;
 
     /**
-     * The list of coordinates that are left out as non ground points at each filtering.
+     * The geometries of the triangles of the tin.
      */
-    private List<Coordinate> leftOverCoordinateList = new ArrayList<Coordinate>();
+    private Geometry[] tinGeometries = null;
 
     /**
-     * The geometries of the last calculated tin.
+     * The indexes in the {@link #tin} of the {@link #tinGeometries}.
      */
-    private Geometry[] tinGeometries = null;
+    private int[] tinTriangles = null;
 
     private GeometryFactory gf = GeometryUtilities.gf();
 
@@ -96,7 +95,11 @@ public class TinHandler {
 
     private double calculatedDistanceThreshold;
 
-    private final ReadWriteLock monitor = new ReentrantReadWriteLock();
+    /**
+     * The distance and angle thresholds the unchanged triangles were checked with.
+     */
+    private double checkedDistanceThreshold = Double.NEGATIVE_INFINITY;
+    private double checkedAngleThreshold = Double.NEGATIVE_INFINITY;
 
     private final Double maxEdgeLength;
     private double maxEdgeLengthThreshold;
@@ -125,27 +128,17 @@ public class TinHandler {
     /**
      * Sets the initial coordinates to start with.
      * 
-     * <p>Generates the tin on the first set of coordinates and adds the 
-     * coordinates to the {@link #tinCoordinateList} for future use.</p>
+     * <p>Generates the tin on the first set of coordinates.</p>
      * 
      * <p><b>Note that it is mandatory to call this method to initialize.</b></p>
      * 
      * @param coordinateList the initial list of coordinates.
      */
     public void setStartCoordinates( List<Coordinate> coordinateList ) {
-        generateTin(coordinateList);
-        for( int i = 0; i < tinGeometries.length; i++ ) {
-            Coordinate[] coordinates = tinGeometries[i].getCoordinates();
-            if (!tinCoordinateList.contains(coordinates[0])) {
-                tinCoordinateList.add(coordinates[0]);
-            }
-            if (!tinCoordinateList.contains(coordinates[1])) {
-                tinCoordinateList.add(coordinates[1]);
-            }
-            if (!tinCoordinateList.contains(coordinates[2])) {
-                tinCoordinateList.add(coordinates[2]);
-            }
-        }
+        pm.beginTask("Generate tin...", -1);
+        tin = new IncrementalTin(coordinateList);
+        tinGeometries = null;
+        pm.done();
         didInitialize = true;
     }
 
@@ -160,12 +153,12 @@ public class TinHandler {
     }
 
     /**
-     * Returns the current size of the {@link #tinCoordinateList} representing teh current ground points.
+     * Returns the current number of vertexes of the tin, representing the current ground points.
      * 
-     * @return the size of the tin coords list.
+     * @return the number of ground points.
      */
     public int getCurrentGroundPointsNum() {
-        return tinCoordinateList.size();
+        return tin.getVertexesNum();
     }
 
     /**
@@ -174,9 +167,7 @@ public class TinHandler {
      * @return the size of the non ground points list.
      */
     public int getCurrentNonGroundPointsNum() {
-        synchronized (leftOverCoordinateList) {
-            return leftOverCoordinateList.size();
-        }
+        return tin.getPointsNum();
     }
 
     /**
@@ -191,37 +182,61 @@ public class TinHandler {
         final ConcurrentSkipListSet<Double> angleSet = new ConcurrentSkipListSet<Double>();
         final ConcurrentSkipListSet<Double> distanceSet = new ConcurrentSkipListSet<Double>();
 
+        checkTinGeometries();
+        final Geometry[] triangles = tinGeometries;
         if (isFirstStatsCalculation) {
-            pm.beginTask("Calculating initial statistics...", tinGeometries.length);
+            pm.beginTask("Calculating initial statistics...", triangles.length);
         } else {
-            pm.beginTask("Filtering all data on seeds tin...", tinGeometries.length);
+            pm.beginTask("Filtering all data on seeds tin...", triangles.length);
         }
         try {
-            final List<Coordinate> newTotalLeftOverCoordinateList = new ArrayList<Coordinate>();
+            final TriangleFilterResult[] results = new TriangleFilterResult[triangles.length];
             if (threadsNum > 1) {
                 // multithreaded
                 ThreadedRunnable tRun = new ThreadedRunnable(threadsNum, null);
-                for( final Geometry tinGeom : tinGeometries ) {
+                for( int i = 0; i < triangles.length; i++ ) {
+                    final int index = i;
                     tRun.executeRunnable(new Runnable(){
                         public void run() {
-                            List<Coordinate> leftOverList = runFilterOnAllData(lasHandler, angleSet, distanceSet, tinGeom);
-                            synchronized (newTotalLeftOverCoordinateList) {
-                                newTotalLeftOverCoordinateList.addAll(leftOverList);
-                            }
+                            results[index] = runFilterOnAllData(lasHandler, angleSet, distanceSet, triangles[index]);
                         }
                     });
                 }
                 tRun.waitAndClose();
             } else {
-                for( final Geometry tinGeom : tinGeometries ) {
-                    List<Coordinate> leftOverList = runFilterOnAllData(lasHandler, angleSet, distanceSet, tinGeom);
-                    newTotalLeftOverCoordinateList.addAll(leftOverList);
+                for( int i = 0; i < triangles.length; i++ ) {
+                    results[i] = runFilterOnAllData(lasHandler, angleSet, distanceSet, triangles[i]);
                 }
             }
             pm.done();
 
-            leftOverCoordinateList.clear();
-            leftOverCoordinateList.addAll(newTotalLeftOverCoordinateList);
+            if (!isFirstStatsCalculation) {
+                /*
+                 * the points on the shared edges are read by more triangles,
+                 * keep them once, in the bucket of the first triangle
+                 */
+                HashSet<Coordinate> usedCoordinates = new HashSet<Coordinate>();
+                List<Coordinate> groundCoordinates = new ArrayList<Coordinate>();
+                for( TriangleFilterResult result : results ) {
+                    if (result != null && result.groundCoordinate != null && usedCoordinates.add(result.groundCoordinate)) {
+                        groundCoordinates.add(result.groundCoordinate);
+                    }
+                }
+                tin.clearPoints();
+                for( int i = 0; i < results.length; i++ ) {
+                    if (results[i] == null) {
+                        continue;
+                    }
+                    for( Coordinate c : results[i].leftOverCoordinates ) {
+                        if (usedCoordinates.add(c)) {
+                            tin.addPoint(c, tinTriangles[i]);
+                        }
+                    }
+                }
+                checkedDistanceThreshold = calculatedDistanceThreshold;
+                checkedAngleThreshold = calculatedAngleThreshold;
+                insertGroundCoordinates(groundCoordinates);
+            }
 
             /*
              * now recalculate the thresholds
@@ -255,9 +270,10 @@ public class TinHandler {
         }
     }
 
-    private List<Coordinate> runFilterOnAllData( final ALasDataManager lasHandler, final ConcurrentSkipListSet<Double> angleSet,
-            final ConcurrentSkipListSet<Double> distanceSet, final Geometry tinGeom ) {
-        final List<Coordinate> newTotalLeftOverCoordinateList = new ArrayList<Coordinate>();
+    private TriangleFilterResult runFilterOnAllData( final ALasDataManager lasHandler,
+            final ConcurrentSkipListSet<Double> angleSet, final ConcurrentSkipListSet<Double> distanceSet,
+            final Geometry tinGeom ) {
+        final TriangleFilterResult result = new TriangleFilterResult();
         try {
             Coordinate[] tinCoords = tinGeom.getCoordinates();
             Coordinate triangleCentroid = getTriangleCentroid(tinCoords[0], tinCoords[1], tinCoords[2]);
@@ -267,22 +283,21 @@ public class TinHandler {
              * now sort the points in the triangle in distance order
              * from the triangle centroid, nearest first
              */
-            TreeSet<Coordinate> centroidNearestSet = new TreeSet<Coordinate>(new PointsToCoordinateComparator(triangleCentroid));
+            List<Coordinate> centroidNearestList = new ArrayList<Coordinate>(pointsInGeom.size());
             for( LasRecord pointInGeom : pointsInGeom ) {
                 Coordinate c = new Coordinate(pointInGeom.x, pointInGeom.y, pointInGeom.z);
                 if (c.equals(tinCoords[0]) || c.equals(tinCoords[1]) || c.equals(tinCoords[2])) {
                     // the seed point was reread
                     continue;
                 }
-                centroidNearestSet.add(c);
+                centroidNearestList.add(c);
             }
+            Collections.sort(centroidNearestList, new PointsToCoordinateComparator(triangleCentroid));
 
             // find first possible ground coordinate
-            boolean foundOne = false;
-            for( Coordinate c : centroidNearestSet ) {
-                if (foundOne && !isFirstStatsCalculation) {
-                    if (!newTotalLeftOverCoordinateList.contains(c))
-                        newTotalLeftOverCoordinateList.add(c);
+            for( Coordinate c : centroidNearestList ) {
+                if (result.groundCoordinate != null && !isFirstStatsCalculation) {
+                    result.leftOverCoordinates.add(c);
                 } else {
                     /*
                      * find the nearest node and distance
@@ -295,8 +310,7 @@ public class TinHandler {
                          * for the next round only on the kept data.
                          */
                         if (nearestDistance > calculatedDistanceThreshold) {
-                            if (!newTotalLeftOverCoordinateList.contains(c))
-                                newTotalLeftOverCoordinateList.add(c);
+                            result.leftOverCoordinates.add(c);
                             continue;
                         }
                     }
@@ -311,19 +325,13 @@ public class TinHandler {
                     }
                     if (!isFirstStatsCalculation) {
                         if (angle > calculatedAngleThreshold) {
-                            if (!newTotalLeftOverCoordinateList.contains(c))
-                                newTotalLeftOverCoordinateList.add(c);
+                            result.leftOverCoordinates.add(c);
                             continue;
                         } else {
                             // add it to the next tin
-                            synchronized (tinCoordinateList) {
-                                if (!tinCoordinateList.contains(c)) {
-                                    tinCoordinateList.add(c);
-                                    foundOne = true;
-                                    angleSet.add(angle);
-                                    distanceSet.add(nearestDistance);
-                                }
-                            }
+                            result.groundCoordinate = c;
+                            angleSet.add(angle);
+                            distanceSet.add(nearestDistance);
                         }
                     } else {
                         angleSet.add(angle);
@@ -335,58 +343,72 @@ public class TinHandler {
             e.printStackTrace();
         }
         pm.worked(1);
-        return newTotalLeftOverCoordinateList;
+        return result;
     }
 
     public void filterOnLeftOverData() {
         if (isFirstStatsCalculation) {
             throw new IllegalArgumentException("The first round needs to be filtered on all data.");
         }
-        pm.beginTask("Creating points indexes...", leftOverCoordinateList.size());
-        final STRtree leftOverCoordinatesTree = new STRtree(leftOverCoordinateList.size());
-        for( Coordinate c : leftOverCoordinateList ) {
-            leftOverCoordinatesTree.insert(new Envelope(c), c);
-        }
-        pm.done();
-
         if (maxEdgeLength != null) {
             maxEdgeLengthThreshold = maxEdgeLength;
         }
 
-        Geometry[] triangles = getTriangles();
+        checkTinGeometries();
+        final Geometry[] triangles = tinGeometries;
+
+        /*
+         * the triangles that didn't change since they were last checked can't
+         * find new ground points, unless the thresholds were relaxed
+         */
+        final double effectiveAngleThreshold = Math.max(calculatedAngleThreshold, angleThreshold);
+        boolean checkAll = calculatedDistanceThreshold > checkedDistanceThreshold
+                || effectiveAngleThreshold > checkedAngleThreshold;
+        final List<Integer> toCheck = new ArrayList<Integer>();
+        for( int i = 0; i < triangles.length; i++ ) {
+            if (checkAll || tin.isDirty(tinTriangles[i])) {
+                toCheck.add(i);
+            }
+        }
+
         final ConcurrentSkipListSet<Double> angleSet = new ConcurrentSkipListSet<Double>();
         final ConcurrentSkipListSet<Double> distanceSet = new ConcurrentSkipListSet<Double>();
-        final List<Coordinate> newTotalLeftOverCoordinateList = new ArrayList<Coordinate>();
-        pm.beginTask("Filtering leftover coordinates on previous tin...", triangles.length);
+        final int[] groundPoints = new int[toCheck.size()];
+        pm.beginTask("Filtering leftover coordinates on previous tin (" + toCheck.size() + " of " + triangles.length
+                + " triangles changed)...", toCheck.size());
         if (threadsNum > 1) {
             ThreadedRunnable tRun = new ThreadedRunnable(threadsNum, null);
-            for( int i = 0; i < triangles.length; i++ ) {
-                final Geometry triangle = triangles[i];
+            for( int i = 0; i < toCheck.size(); i++ ) {
+                final int index = i;
+                final int triangleIndex = toCheck.get(i);
                 tRun.executeRunnable(new Runnable(){
                     public void run() {
-                        if (maxEdgeLength != null && triangle.getLength() < maxEdgeLengthThreshold * 3.0) {
-                            return;
-                        }
-                        List<Coordinate> leftOverList = runfilterOnLeftOverData(leftOverCoordinatesTree, angleSet, distanceSet,
-                                triangle);
-                        synchronized (newTotalLeftOverCoordinateList) {
-                            newTotalLeftOverCoordinateList.addAll(leftOverList);
-                        }
+                        groundPoints[index] = runfilterOnLeftOverData(angleSet, distanceSet, triangles[triangleIndex],
+                                tinTriangles[triangleIndex]);
                     }
                 });
             }
             tRun.waitAndClose();
         } else {
-            for( int i = 0; i < triangles.length; i++ ) {
-                Geometry triangle = triangles[i];
-                List<Coordinate> leftOverList = runfilterOnLeftOverData(leftOverCoordinatesTree, angleSet, distanceSet, triangle);
-                newTotalLeftOverCoordinateList.addAll(leftOverList);
+            for( int i = 0; i < toCheck.size(); i++ ) {
+                int triangleIndex = toCheck.get(i);
+                groundPoints[i] = runfilterOnLeftOverData(angleSet, distanceSet, triangles[triangleIndex],
+                        tinTriangles[triangleIndex]);
             }
         }
         pm.done();
 
-        leftOverCoordinateList.clear();
-        leftOverCoordinateList.addAll(newTotalLeftOverCoordinateList);
+        List<Coordinate> groundCoordinates = new ArrayList<Coordinate>();
+        for( int point : groundPoints ) {
+            if (point >= 0) {
+                groundCoordinates.add(tin.getPoint(point));
+                tin.removePoint(point);
+            }
+        }
+        tin.clearDirty();
+        checkedDistanceThreshold = calculatedDistanceThreshold;
+        checkedAngleThreshold = effectiveAngleThreshold;
+        insertGroundCoordinates(groundCoordinates);
 
         /*
          * now recalculate the thresholds
@@ -418,189 +440,170 @@ public class TinHandler {
 
     }
 
-    @SuppressWarnings("rawtypes")
-    private List<Coordinate> runfilterOnLeftOverData( final STRtree leftOverCoordsTree,
-            final ConcurrentSkipListSet<Double> angleSet, final ConcurrentSkipListSet<Double> distanceSet, final Geometry triangle ) {
+    /**
+     * @return the index of the point that was found to be ground, or -1.
+     */
+    private int runfilterOnLeftOverData( final ConcurrentSkipListSet<Double> angleSet,
+            final ConcurrentSkipListSet<Double> distanceSet, final Geometry triangle, final int tinTriangle ) {
+        if (maxEdgeLength != null && triangle.getLength() < maxEdgeLengthThreshold * 3.0) {
+            return -1;
+        }
 
-        List<Coordinate> newLeftOverCoordinateList = new ArrayList<Coordinate>();
         Coordinate[] tinCoords = triangle.getCoordinates();
-        Coordinate triangleCentroid = getTriangleCentroid(tinCoords[0], tinCoords[1], tinCoords[2]);
-
-        // get left coords around triangle
-        List triangleCoordinates = null;
-        monitor.readLock().lock();
-        try {
-            triangleCoordinates = leftOverCoordsTree.query(triangle.getEnvelopeInternal());
-        } finally {
-            monitor.readLock().unlock();
-        }
+        final Coordinate triangleCentroid = getTriangleCentroid(tinCoords[0], tinCoords[1], tinCoords[2]);
 
         /*
          * now sort the points in the triangle in distance order
          * from the triangle centroid, nearest first
          */
-        TreeSet<Coordinate> centroidNearestSet = new TreeSet<Coordinate>(new PointsToCoordinateComparator(triangleCentroid));
-        for( Object coordinateObj : triangleCoordinates ) {
-            Coordinate c = (Coordinate) coordinateObj;
+        int[] bucket = tin.getBucket(tinTriangle);
+        List<Integer> centroidNearestList = new ArrayList<Integer>(bucket.length);
+        for( int point : bucket ) {
+            Coordinate c = tin.getPoint(point);
             if (c.equals(tinCoords[0]) || c.equals(tinCoords[1]) || c.equals(tinCoords[2])) {
                 // the seed point was reread
                 continue;
             }
-            int loc = SimplePointInAreaLocator.locate(c, triangle);
-            if (loc == Location.INTERIOR) {
-                centroidNearestSet.add(c);
-            }
+            centroidNearestList.add(point);
         }
+        final PointsToCoordinateComparator comparator = new PointsToCoordinateComparator(triangleCentroid);
+        Collections.sort(centroidNearestList, ( p1, p2 ) -> comparator.compare(tin.getPoint(p1), tin.getPoint(p2)));
 
         // find first possible ground coordinate
-        boolean foundOne = false;
-        for( Coordinate c : centroidNearestSet ) {
-            if (foundOne && !isFirstStatsCalculation) {
-                if (!newLeftOverCoordinateList.contains(c))
-                    newLeftOverCoordinateList.add(c);
-            } else {
-                /*
-                 * find the nearest node and distance
-                 */
-                Coordinate[] nodes = getOrderedNodes(c, tinCoords[0], tinCoords[1], tinCoords[2]);
-                double nearestDistance = distance3d(nodes[0], c, null);
-                /*
-                 * if we are here, we are doing filtering and calc of thresholds 
-                 * for the next round only on the kept data.
-                 */
-                if (nearestDistance > calculatedDistanceThreshold) {
-                    if (!newLeftOverCoordinateList.contains(c))
-                        newLeftOverCoordinateList.add(c);
-                    continue;
-                }
-                /*
-                 * calculate the angle between the facet normal and the line
-                 * connecting the point and the nearest facet node.
-                 */
-                double angle = getAngleBetweenLinePlane(c, nodes[0], nodes[1], nodes[2]);
-                if (Double.isNaN(angle)) {
-                    pm.errorMessage("Found NaN angle, set to 0...");
-                    angle = 0.0;
-                }
-                if (angle > calculatedAngleThreshold && angle > angleThreshold) { // TODO
-                    if (!newLeftOverCoordinateList.contains(c))
-                        newLeftOverCoordinateList.add(c);
-                    continue;
-                } else {
-                    // add it to the next tin
-                    synchronized (tinCoordinateList) {
-                        if (!tinCoordinateList.contains(c)) {
-                            tinCoordinateList.add(c);
-                            foundOne = true;
-                            angleSet.add(angle);
-                            distanceSet.add(nearestDistance);
-                        }
-                    }
-                }
+        int groundPoint = -1;
+        for( int point : centroidNearestList ) {
+            Coordinate c = tin.getPoint(point);
+            /*
+             * find the nearest node and distance
+             */
+            Coordinate[] nodes = getOrderedNodes(c, tinCoords[0], tinCoords[1], tinCoords[2]);
+            double nearestDistance = distance3d(nodes[0], c, null);
+            /*
+             * if we are here, we are doing filtering and calc of thresholds 
+             * for the next round only on the kept data.
+             */
+            if (nearestDistance > calculatedDistanceThreshold) {
+                continue;
             }
+            /*
+             * calculate the angle between the facet normal and the line
+             * connecting the point and the nearest facet node.
+             */
+            double angle = getAngleBetweenLinePlane(c, nodes[0], nodes[1], nodes[2]);
+            if (Double.isNaN(angle)) {
+                pm.errorMessage("Found NaN angle, set to 0...");
+                angle = 0.0;
+            }
+            if (angle > calculatedAngleThreshold && angle > angleThreshold) { // TODO
+                continue;
+            }
+            // add it to the next tin
+            groundPoint = point;
+            angleSet.add(angle);
+            distanceSet.add(nearestDistance);
+            break;
         }
 
         pm.worked(1);
-        return newLeftOverCoordinateList;
+        return groundPoint;
+    }
+
+    /**
+     * Insert the new ground points in the tin. The triangles they fall in are replaced
+     * and marked as changed.
+     */
+    private void insertGroundCoordinates( List<Coordinate> groundCoordinates ) {
+        pm.beginTask("Inserting " + groundCoordinates.size() + " ground points in the tin...", -1);
+        tin.insertAll(groundCoordinates);
+        tinGeometries = null;
+        pm.done();
     }
 
     public void finalCleanup( final double pFinalCleanupDist ) {
         if (isFirstStatsCalculation) {
             throw new IllegalArgumentException("The first round needs to be filtered on all data.");
         }
-        pm.beginTask("Creating points indexes...", leftOverCoordinateList.size());
-        final STRtree leftOverCoordinatesTree = new STRtree(leftOverCoordinateList.size());
-        for( Coordinate c : leftOverCoordinateList ) {
-            leftOverCoordinatesTree.insert(new Envelope(c), c);
-        }
-        pm.done();
 
-        final AtomicInteger removedCount = new AtomicInteger();
-        Geometry[] triangles = getTriangles();
-        final List<Coordinate> newLeftOverCoordinateList = new ArrayList<Coordinate>();
+        final int pointsBefore = tin.getPointsNum();
+        final Geometry[] triangles = getTriangles();
+        final boolean[] keep = new boolean[triangles.length];
+        final List<List<Integer>> keptPoints = new ArrayList<List<Integer>>(triangles.length);
+        for( int i = 0; i < triangles.length; i++ ) {
+            keptPoints.add(null);
+        }
         pm.beginTask("Final cleanup through triangle to point distance filter...", triangles.length);
         ThreadedRunnable tRun = new ThreadedRunnable(threadsNum, null);
         for( int i = 0; i < triangles.length; i++ ) {
-            final Geometry triangle = triangles[i];
+            final int index = i;
             tRun.executeRunnable(new Runnable(){
                 public void run() {
-                    runFinalFilter(leftOverCoordinatesTree, newLeftOverCoordinateList, triangle, pFinalCleanupDist, removedCount);
+                    keptPoints.set(index, runFinalFilter(triangles[index], tinTriangles[index], pFinalCleanupDist));
                 }
             });
         }
         tRun.waitAndClose();
         pm.done();
 
-        pm.message("Final points removed from non ground: " + removedCount.get());
-        pm.message("Final points left as non ground: " + newLeftOverCoordinateList.size());
-        leftOverCoordinateList.clear();
-        leftOverCoordinateList.addAll(newLeftOverCoordinateList);
-    }
+        // the points outside of the triangles are removed as well
+        HashSet<Integer> keptSet = new HashSet<Integer>();
+        for( List<Integer> points : keptPoints ) {
+            if (points != null) {
+                keptSet.addAll(points);
+            }
+        }
+        for( int point : tin.getPointIndexes() ) {
+            if (!keptSet.contains(point)) {
+                tin.removePoint(point);
+            }
+        }
 
-    private void runFinalFilter( final STRtree leftOverCoordsTree, List<Coordinate> newLeftOverCoordinateList,
-            final Geometry triangle, double pFinalCleanupDist, AtomicInteger removedCount ) {
+        pm.message("Final points removed from non ground: " + (pointsBefore - tin.getPointsNum()));
+        pm.message("Final points left as non ground: " + tin.getPointsNum());
+    }
 
+    /**
+     * @return the points of the triangle that are farther than the cleanup distance from it.
+     */
+    private List<Integer> runFinalFilter( final Geometry triangle, final int tinTriangle, double pFinalCleanupDist ) {
         Coordinate[] tinCoords = triangle.getCoordinates();
-
-        // get left coords around triangle
-        List triangleCoordinates = null;
-        monitor.readLock().lock();
-        try {
-            triangleCoordinates = leftOverCoordsTree.query(triangle.getEnvelopeInternal());
-        } finally {
-            monitor.readLock().unlock();
-        }
-
-        /*
-         * now sort the points in the triangle in distance order
-         * from the triangle centroid, nearest first
-         */
-        int count = 0;
-        for( Object coordinateObj : triangleCoordinates ) {
-            Coordinate c = (Coordinate) coordinateObj;
-            int loc = SimplePointInAreaLocator.locate(c, triangle);
-            if (loc == Location.INTERIOR) {
-                Coordinate c1 = new Coordinate(c.x, c.y, 1E6);
-                Coordinate c2 = new Coordinate(c.x, c.y, -1E6);
-                Coordinate intersection = getLineWithPlaneIntersection(c1, c2, tinCoords[0], tinCoords[1], tinCoords[2]);
-                double distance = distance3d(intersection, c, null);
-                if (distance > pFinalCleanupDist) {
-                    count++;
-                    synchronized (newLeftOverCoordinateList) {
-                        newLeftOverCoordinateList.add(c);
-                    }
-                }
+        List<Integer> keptPoints = new ArrayList<Integer>();
+        for( int point : tin.getBucket(tinTriangle) ) {
+            Coordinate c = tin.getPoint(point);
+            Coordinate c1 = new Coordinate(c.x, c.y, 1E6);
+            Coordinate c2 = new Coordinate(c.x, c.y, -1E6);
+            Coordinate intersection = getLineWithPlaneIntersection(c1, c2, tinCoords[0], tinCoords[1], tinCoords[2]);
+            double distance = distance3d(intersection, c, null);
+            if (distance > pFinalCleanupDist) {
+                keptPoints.add(point);
             }
         }
-        removedCount.addAndGet(count);
         pm.worked(1);
+        return keptPoints;
     }
 
+    /**
+     * Invalidate the geometries of the current tin, which are created again when needed.
+     */
     public void resetTin() {
         tinGeometries = null;
     }
 
     /**
-     * Generate a tin from a given coords list. The internal tin geoms array is set from the result.
-     * 
-     * @param coordinateList the coords to use for the tin generation.
+     * Generate the geometries of the triangles of the tin.
      */
-    private void generateTin( List<Coordinate> coordinateList ) {
-        pm.beginTask("Generate tin...", -1);
-        DelaunayTriangulationBuilder b = new DelaunayTriangulationBuilder();
-        b.setSites(coordinateList);
-        Geometry tinTriangles = b.getTriangles(gf);
-        tinGeometries = new Geometry[tinTriangles.getNumGeometries()];
-        for( int i = 0; i < tinTriangles.getNumGeometries(); i++ ) {
-            tinGeometries[i] = tinTriangles.getGeometryN(i);
+    private void generateTinGeometries() {
+        tinTriangles = tin.getTriangleIndexes();
+        tinGeometries = new Geometry[tinTriangles.length];
+        for( int i = 0; i < tinTriangles.length; i++ ) {
+            tinGeometries[i] = tin.getTriangleGeometry(tinTriangles[i], gf);
         }
-        pm.done();
     }
 
     /**
      * Generate a spatial index on the tin geometries.
      */
     public STRtree generateTinIndex( Double maxEdgeLength ) {
+        checkTinGeometries();
         double maxEdge = maxEdgeLength != null ? maxEdgeLength : 0.0;
         pm.beginTask("Creating tin indexes...", tinGeometries.length);
         final STRtree tinTree = new STRtree(tinGeometries.length);
@@ -627,18 +630,18 @@ public class TinHandler {
         return tinTree;
     }
 
+
     /**
-     * Checks if the tin is done. If not, it generates it with the available {@link #tinCoordinateList}.  
+     * Checks if the tin geometries are done. If not, it generates them from the {@link #tin}.  
      */
     private void checkTinGeometries() {
         if (!didInitialize) {
             throw new IllegalArgumentException("Not initialized properly. Did you call setStartCoordinates?");
         }
         if (tinGeometries == null) {
-            generateTin(tinCoordinateList);
+            generateTinGeometries();
         }
     }
-
     /**
      * Order coordinates to have the first coordinate in the array as the nearest to a given 
      * coordinate 'c'. The second and third are not ordered, but randomly added. 
@@ -699,6 +702,14 @@ public class TinHandler {
         return (set.last() - set.first()) / 2;
     }
 
+    /**
+     * The outcome of the filtering of the points in a triangle.
+     */
+    private static class TriangleFilterResult {
+        Coordinate groundCoordinate;
+        List<Coordinate> leftOverCoordinates = new ArrayList<Coordinate>();
+    }
+
     /**
      * Create a {@link SimpleFeatureCollection FeatureCollection} from the current tin triangles
      * with information about the vertexes elevation.
@@ -747,7 +758,8 @@ public class TinHandler {
         b.add("elev", Double.class);
         SimpleFeatureType type = b.buildFeatureType();
         SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
-        for( Coordinate c : leftOverCoordinateList ) {
+        for( int point : tin.getPointIndexes() ) {
+            Coordinate c = tin.getPoint(point);
             Object[] values = new Object[]{gf.createPoint(c), c.z};
             builder.addAll(values);
             SimpleFeature feature = builder.buildFeature(null);
@@ -766,7 +778,7 @@ public class TinHandler {
         b.add("elev", Double.class);
         SimpleFeatureType type = b.buildFeatureType();
         SimpleFeatureBuilder builder = new SimpleFeatureBuilder(type);
-        for( Coordinate c : tinCoordinateList ) {
+        for( Coordinate c : tin.getVertexes() ) {
             Object[] values = new Object[]{gf.createPoint(c), c.z};
             builder.addAll(values);
             SimpleFeature feature = builder.buildFeature(null);
@@ -778,7 +790,7 @@ public class TinHandler {
     public double[] getMinMaxElev() {
         double min = Double.POSITIVE_INFINITY;
         double max = Double.NEGATIVE_INFINITY;
-        for( Coordinate coordinate : tinCoordinateList ) {
+        for( Coordinate coordinate : tin.getVertexes() ) {
             max = Math.max(max, coordinate.z);
             min = Math.min(min, coordinate.z);
         }
@@ -45,6 +45,7 @@ import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.hortonmachine.gears.io.las.core.ALasReader;
 import org.hortonmachine.gears.io.las.core.ILasHeader;
 import org.hortonmachine.gears.io.las.core.LasRecord;
+import org.hortonmachine.gears.io.las.utils.LasCellBins;
 import org.hortonmachine.gears.libs.exceptions.ModelsIllegalargumentException;
 import org.hortonmachine.gears.libs.modules.HMConstants;
 import org.hortonmachine.gears.libs.modules.HMModel;
@@ -54,12 +55,9 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.Point;
 import org.locationtech.jts.geom.Polygon;
-import org.locationtech.jts.index.strtree.STRtree;
 
 @Description("Creates a vector map of the point cloud density over a given grid.")
 @Author(name = OMSHYDRO_AUTHORNAMES, contact = OMSHYDRO_AUTHORCONTACTS)
@@ -107,16 +105,20 @@ public class LasPointDensityExtractor extends HMModel {
             double[] xBins = NumericsUtilities.range2Bins(dataEnvelope.getMinX(), dataEnvelope.getMaxX(), pGridStep, false);
             double[] yBins = NumericsUtilities.range2Bins(dataEnvelope.getMinY(), dataEnvelope.getMaxY(), pGridStep, false);
 
-            STRtree tree = new STRtree();
-            for( int x = 0; x < xBins.length - 1; x++ ) {
+            int cols = xBins.length - 1;
+            int rows = yBins.length - 1;
+            // the grid is counted from north, the last bins can be smaller
+            LasCellBins bins = new LasCellBins(xBins[0], yBins[0] + rows * pGridStep, pGridStep, pGridStep, cols, rows);
+            DensityData[] cellsDensityData = new DensityData[cols * rows];
+            for( int x = 0; x < cols; x++ ) {
                 double minX = xBins[x];
                 double maxX = xBins[x + 1];
-                for( int y = 0; y < yBins.length - 1; y++ ) {
+                for( int y = 0; y < rows; y++ ) {
                     double minY = yBins[y];
                     double maxY = yBins[y + 1];
                     Envelope envelope = new Envelope(minX, maxX, minY, maxY);
                     DensityData densityData = new DensityData();
-                    tree.insert(envelope, densityData);
+                    cellsDensityData[(rows - 1 - y) * cols + x] = densityData;
                     densityDataList.add(densityData);
                     Polygon polygon = GeometryUtilities.createPolygonFromEnvelope(envelope);
                     densityData.geometry = polygon;
@@ -130,28 +132,13 @@ public class LasPointDensityExtractor extends HMModel {
 
                 final LasRecord lasDot = lasReader.getNextPoint();
 
-                final double x = lasDot.x;
-                final double y = lasDot.y;
                 final short impulse = lasDot.returnNumber;
 
-                Coordinate p = new Coordinate(x, y);
-                Envelope envelope = new Envelope(p);
-                List result = tree.query(envelope);
-                if (result.size() < 1)
-                    throw new RuntimeException();
-
-                DensityData densityData = null;
-                if (result.size() == 1) {
-                    densityData = (DensityData) result.get(0);
-                } else {
-                    for( Object object : result ) {
-                        densityData = (DensityData) object;
-                        Point point = gf.createPoint(p);
-                        if (densityData.geometry.intersects(point)) {
-                            break;
-                        }
-                    }
-                }
+                int cell = bins.getCell(lasDot.x, lasDot.y);
+                if (cell < 0)
+                    throw new RuntimeException("Point outside of the data envelope: " + lasDot.x + "/" + lasDot.y);
+
+                DensityData densityData = cellsDensityData[cell];
                 densityData.imp[impulse]++; // update impulse count
                 densityData.imp[0]++; // update total count
             }
@@ -29,7 +29,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.jai.iterator.RandomIter;
@@ -61,6 +61,7 @@ import org.hortonmachine.gears.libs.monitor.IHMProgressMonitor;
 import org.hortonmachine.gears.utils.RegionMap;
 import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
 import org.hortonmachine.gears.utils.features.FeatureUtilities;
+import org.hortonmachine.gears.utils.math.NumericsUtilities;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
@@ -178,98 +179,284 @@ public class OmsPointCloudMaximaFinder extends HMModel {
 
     }
 
+    /**
+     * Mark the local maxima of a tile of points and add them to the output collection.
+     * 
+     * <p>The points are indexed in a uniform grid, so that only the points inside the
+     * search radius are compared. The grid is processed in bands of rows in parallel.
+     * The maxima are added to the collection in the order of the points.</p>
+     */
     public static void doProcess( final List<LasRecord> pointsInTile, final double pMaxRadius, final boolean doDynamicRadius,
             final DsmDtmDiffHelper helper, final DefaultFeatureCollection outTopsFC, final SimpleFeatureBuilder lasBuilder,
             final AtomicInteger index, final IHMProgressMonitor pm ) throws Exception {
-        /*
-         * we use the intensity value to mark local maxima
-         * - 1 = maxima
-         * - 0 = non maxima
-         */
-        final GeometryFactory gf = new GeometryFactory();
-        pm.beginTask("Mark local maxima...", pointsInTile.size());
-        ExecutorService fixedThreadPool = Executors.newFixedThreadPool(getDefaultThreadsNum());
-        for( final LasRecord currentDot : pointsInTile ) {
-            Runnable runner = new Runnable(){
-                public void run() {
-                    try {
-                        // check if it is a local maxima
-                        boolean isLocalMaxima = true;
-                        for( LasRecord tmpDot : pointsInTile ) {
-                            double distance = LasUtils.distance(currentDot, tmpDot);
-                            double maxRadius = pMaxRadius;
-                            if (doDynamicRadius) {
-                                // use Popescu lowered to 70% (Popescu & Kini 2004 for mixed pines
-                                // and
-                                // deciduous trees)
-                                maxRadius = (2.51503 + 0.00901 * pow(currentDot.groundElevation, 2.0)) / 2.0 * 0.7;
-                                if (maxRadius > pMaxRadius) {
-                                    maxRadius = pMaxRadius;
-                                }
-                            }
-                            if (distance > maxRadius) {
-                                continue;
-                            }
-                            if (tmpDot.groundElevation > currentDot.groundElevation) {
-                                // not local maxima
-                                isLocalMaxima = false;
-                                break;
-                            }
-                        }
-                        // mark it
-                        if (isLocalMaxima) {
-                            if (helper != null) {
-                                // check if it is some border or noise
-                                GridCoordinates2D gridCoord = helper.gridGeometry
-                                        .worldToGrid(new DirectPosition2D(currentDot.x, currentDot.y));
-                                GridNode node = new GridNode(helper.dsmDtmDiffIter, helper.cols, helper.rows, helper.xres,
-                                        helper.yres, gridCoord.x, gridCoord.y, helper.novalue);
-                                double topElevation = node.elevation;
-                                if (!node.isValid() || node.touchesBound()) {
-                                    isLocalMaxima = false;
-                                } else {
-                                    List<GridNode> validSurroundingNodes = node.getValidSurroundingNodes();
-                                    for( GridNode tmpNode : validSurroundingNodes ) {
-                                        double tmpElevation = tmpNode.elevation;
-                                        if (abs(topElevation - tmpElevation) > helper.pElevDiffThres) {
-                                            isLocalMaxima = false;
-                                        }
-                                    }
-                                }
-                            }
-                            if (isLocalMaxima) {
-                                synchronized (lasBuilder) {
-                                    final Point point = gf.createPoint(new Coordinate(currentDot.x, currentDot.y));
-                                    double groundElevation = currentDot.groundElevation;
-                                    // round to meter with 1 decimal
-                                    groundElevation = ((int) round(groundElevation * 10)) / 10.0;
-                                    final Object[] values = new Object[]{point, index.getAndIncrement(), groundElevation,
-                                            currentDot.intensity, currentDot.classification, currentDot.returnNumber,
-                                            currentDot.numberOfReturns};
-                                    lasBuilder.addAll(values);
-                                    final SimpleFeature feature = lasBuilder.buildFeature(null);
-                                    outTopsFC.add(feature);
-                                }
-                            }
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    } finally {
-                        pm.worked(1);
-                    }
-                }
-            };
-            fixedThreadPool.execute(runner);
+        final int size = pointsInTile.size();
+        pm.beginTask("Mark local maxima...", size);
+        if (size == 0) {
+            pm.done();
+            return;
         }
+
+        final MaximaGrid grid = new MaximaGrid(pointsInTile, pMaxRadius, doDynamicRadius);
+        final boolean[] isLocalMaxima = new boolean[size];
+
+        int threads = getDefaultThreadsNum();
+        int bandsNum = Math.min(grid.rows, threads * 4);
+        int bandRows = (int) Math.ceil(grid.rows / (double) bandsNum);
+        ExecutorService fixedThreadPool = Executors.newFixedThreadPool(threads);
         try {
-            fixedThreadPool.shutdown();
-            fixedThreadPool.awaitTermination(30, TimeUnit.DAYS);
+            List<Future<?>> futures = new ArrayList<>();
+            for( int fromRow = 0; fromRow < grid.rows; fromRow += bandRows ) {
+                final int startRow = fromRow;
+                final int endRow = Math.min(grid.rows, fromRow + bandRows);
+                futures.add(fixedThreadPool.submit(() -> {
+                    int fromIndex = grid.cellStart[startRow * grid.cols];
+                    int toIndex = grid.cellStart[endRow * grid.cols];
+                    for( int k = fromIndex; k < toIndex; k++ ) {
+                        int i = grid.cellPoints[k];
+                        isLocalMaxima[i] = grid.isLocalMaxima(i) && isValidTop(helper, grid.xs[i], grid.ys[i]);
+                    }
+                    pm.worked(toIndex - fromIndex);
+                    return null;
+                }));
+            }
+            // the points without coordinates are not in the grid
+            for( int i : grid.nanPoints ) {
+                isLocalMaxima[i] = grid.isLocalMaxima(i) && isValidTop(helper, grid.xs[i], grid.ys[i]);
+                pm.worked(1);
+            }
+            for( Future<?> future : futures ) {
+                future.get();
+            }
+        } finally {
             fixedThreadPool.shutdownNow();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        }
+
+        final GeometryFactory gf = new GeometryFactory();
+        synchronized (lasBuilder) {
+            for( int i = 0; i < size; i++ ) {
+                if (!isLocalMaxima[i]) {
+                    continue;
+                }
+                LasRecord currentDot = pointsInTile.get(i);
+                final Point point = gf.createPoint(new Coordinate(currentDot.x, currentDot.y));
+                double groundElevation = currentDot.groundElevation;
+                // round to meter with 1 decimal
+                groundElevation = ((int) round(groundElevation * 10)) / 10.0;
+                final Object[] values = new Object[]{point, index.getAndIncrement(), groundElevation, currentDot.intensity,
+                        currentDot.classification, currentDot.returnNumber, currentDot.numberOfReturns};
+                lasBuilder.addAll(values);
+                final SimpleFeature feature = lasBuilder.buildFeature(null);
+                outTopsFC.add(feature);
+            }
         }
         pm.done();
+    }
+
+    /**
+     * Check on the dsm-dtm difference if a maxima is some border or noise.
+     */
+    private static boolean isValidTop( DsmDtmDiffHelper helper, double x, double y ) throws Exception {
+        if (helper == null) {
+            return true;
+        }
+        GridCoordinates2D gridCoord = helper.gridGeometry.worldToGrid(new DirectPosition2D(x, y));
+        GridNode node = new GridNode(helper.dsmDtmDiffIter, helper.cols, helper.rows, helper.xres, helper.yres, gridCoord.x,
+                gridCoord.y, helper.novalue);
+        double topElevation = node.elevation;
+        if (!node.isValid() || node.touchesBound()) {
+            return false;
+        }
+        List<GridNode> validSurroundingNodes = node.getValidSurroundingNodes();
+        for( GridNode tmpNode : validSurroundingNodes ) {
+            double tmpElevation = tmpNode.elevation;
+            if (abs(topElevation - tmpElevation) > helper.pElevDiffThres) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The search radius of a point.
+     */
+    static double getMaxRadius( double groundElevation, double pMaxRadius, boolean doDynamicRadius ) {
+        double maxRadius = pMaxRadius;
+        if (doDynamicRadius) {
+            // use Popescu lowered to 70% (Popescu & Kini 2004 for mixed pines
+            // and deciduous trees)
+            maxRadius = (2.51503 + 0.00901 * pow(groundElevation, 2.0)) / 2.0 * 0.7;
+            if (maxRadius > pMaxRadius) {
+                maxRadius = pMaxRadius;
+            }
+        }
+        return maxRadius;
+    }
+
+    /**
+     * A uniform grid over the coordinates of the points of a tile.
+     * 
+     * <p>The points are stored cell by cell in a single array, the points of the
+     * cell <code>c</code> going from <code>cellStart[c]</code> to <code>cellStart[c + 1]</code>.</p>
+     */
+    static class MaximaGrid {
+        final double[] xs;
+        final double[] ys;
+        final double[] elevs;
+        final double[] radii;
+        final int[] nanPoints;
+        final int cols;
+        final int rows;
+        final int[] cellStart;
+        final int[] cellPoints;
+        private double minX = Double.POSITIVE_INFINITY;
+        private double minY = Double.POSITIVE_INFINITY;
+        private double cellSize;
 
+        MaximaGrid( List<LasRecord> points, double pMaxRadius, boolean doDynamicRadius ) {
+            int size = points.size();
+            xs = new double[size];
+            ys = new double[size];
+            elevs = new double[size];
+            radii = new double[size];
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            int nanCount = 0;
+            for( int i = 0; i < size; i++ ) {
+                LasRecord dot = points.get(i);
+                xs[i] = dot.x;
+                ys[i] = dot.y;
+                elevs[i] = dot.groundElevation;
+                radii[i] = getMaxRadius(dot.groundElevation, pMaxRadius, doDynamicRadius);
+                if (Double.isNaN(dot.x) || Double.isNaN(dot.y)) {
+                    nanCount++;
+                    continue;
+                }
+                minX = Math.min(minX, dot.x);
+                minY = Math.min(minY, dot.y);
+                maxX = Math.max(maxX, dot.x);
+                maxY = Math.max(maxY, dot.y);
+            }
+
+            int gridSize = size - nanCount;
+            if (gridSize == 0) {
+                minX = 0;
+                minY = 0;
+                maxX = 0;
+                maxY = 0;
+            }
+            double width = maxX - minX;
+            double height = maxY - minY;
+            if (pMaxRadius > 0 && !Double.isInfinite(pMaxRadius)) {
+                cellSize = pMaxRadius;
+            } else {
+                // about four points per cell
+                cellSize = Math.sqrt(width * height / Math.max(1, gridSize) * 4.0);
+            }
+            if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+                cellSize = Math.max(1.0, Math.max(width, height));
+            }
+            // keep the grid in proportion to the points
+            long maxCells = 4L * gridSize + 16;
+            while( ((long) (width / cellSize) + 1) * ((long) (height / cellSize) + 1) > maxCells ) {
+                cellSize *= 2;
+            }
+            cols = (int) (width / cellSize) + 1;
+            rows = (int) (height / cellSize) + 1;
+
+            nanPoints = new int[nanCount];
+            int[] pointCells = new int[size];
+            cellStart = new int[cols * rows + 1];
+            int nanIndex = 0;
+            for( int i = 0; i < size; i++ ) {
+                if (Double.isNaN(xs[i]) || Double.isNaN(ys[i])) {
+                    nanPoints[nanIndex++] = i;
+                    pointCells[i] = -1;
+                    continue;
+                }
+                int cell = toRow(ys[i]) * cols + toCol(xs[i]);
+                pointCells[i] = cell;
+                cellStart[cell + 1]++;
+            }
+            for( int c = 0; c < cols * rows; c++ ) {
+                cellStart[c + 1] += cellStart[c];
+            }
+            cellPoints = new int[gridSize];
+            int[] cellFill = new int[cols * rows];
+            for( int i = 0; i < size; i++ ) {
+                int cell = pointCells[i];
+                if (cell >= 0) {
+                    cellPoints[cellStart[cell] + cellFill[cell]++] = i;
+                }
+            }
+        }
+
+        private int toCol( double x ) {
+            return clamp(Math.floor((x - minX) / cellSize), cols);
+        }
+
+        private int toRow( double y ) {
+            return clamp(Math.floor((y - minY) / cellSize), rows);
+        }
+
+        private static int clamp( double value, int size ) {
+            if (value < 0) {
+                return 0;
+            }
+            if (value > size - 1) {
+                return size - 1;
+            }
+            return (int) value;
+        }
+
+        /**
+         * Check if a point is a local maxima, i.e. no higher point is inside its radius.
+         * 
+         * <p>A point with an undefined distance or radius is considered inside the radius.</p>
+         */
+        boolean isLocalMaxima( int i ) {
+            double x = xs[i];
+            double y = ys[i];
+            double elev = elevs[i];
+            double radius = radii[i];
+            if (Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(radius)) {
+                for( int j = 0; j < xs.length; j++ ) {
+                    if (isHigherInRadius(i, j)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            for( int j : nanPoints ) {
+                if (elevs[j] > elev) {
+                    return false;
+                }
+            }
+            if (radius < 0) {
+                return true;
+            }
+            // one more cell on each side to absorb the rounding
+            int minCol = Math.max(0, toCol(x - radius) - 1);
+            int maxCol = Math.min(cols - 1, toCol(x + radius) + 1);
+            int minRow = Math.max(0, toRow(y - radius) - 1);
+            int maxRow = Math.min(rows - 1, toRow(y + radius) + 1);
+            for( int r = minRow; r <= maxRow; r++ ) {
+                int rowStart = r * cols;
+                for( int k = cellStart[rowStart + minCol]; k < cellStart[rowStart + maxCol + 1]; k++ ) {
+                    if (isHigherInRadius(i, cellPoints[k])) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private boolean isHigherInRadius( int i, int j ) {
+            if (!(elevs[j] > elevs[i])) {
+                return false;
+            }
+            double distance = NumericsUtilities.pythagoras(xs[i] - xs[j], ys[i] - ys[j]);
+            return !(distance > radii[i]);
+        }
     }
 
     static class DsmDtmDiffHelper {
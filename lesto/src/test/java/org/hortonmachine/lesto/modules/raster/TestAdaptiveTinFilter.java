@@ -0,0 +1,136 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.lesto.modules.raster;
+
+import java.awt.image.Raster;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.hortonmachine.gears.io.las.core.ALasWriter;
+import org.hortonmachine.gears.io.las.core.LasRecord;
+import org.hortonmachine.gears.io.rasterreader.OmsRasterReader;
+import org.hortonmachine.gears.io.rasterwriter.OmsRasterWriter;
+import org.hortonmachine.gears.libs.modules.HMConstants;
+import org.hortonmachine.gears.libs.monitor.DummyProgressMonitor;
+import org.hortonmachine.gears.utils.CrsUtilities;
+import org.hortonmachine.gears.utils.RegionMap;
+import org.hortonmachine.gears.utils.coverage.CoverageUtilities;
+import org.hortonmachine.gears.utils.files.FileUtilities;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the {@link AdaptiveTinFilter} filtering by tiles against the single tin.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestAdaptiveTinFilter extends TestCase {
+
+    private static final double X0 = 650000;
+    private static final double Y0 = 5100000;
+    private static final double SIZE = 200;
+    private static final double RES = 2;
+    private static final double SEC_RES = 20;
+
+    public void testTilesAgainstSingleTin() throws Exception {
+        File folder = Files.createTempDirectory("hm-adaptivetin").toFile();
+        try {
+            CoordinateReferenceSystem crs = CrsUtilities.getCrsFromEpsg("EPSG:32632");
+
+            // ground on a plane, some vegetation well above it
+            File lasFile = new File(folder, "cloud.las");
+            Random random = new Random(13);
+            try (ALasWriter writer = ALasWriter.getWriter(lasFile, crs)) {
+                writer.setBounds(X0, X0 + SIZE, Y0, Y0 + SIZE, 0, 200);
+                writer.open();
+                for( double x = 1; x < SIZE; x += 2 ) {
+                    for( double y = 1; y < SIZE; y += 2 ) {
+                        double px = X0 + x + random.nextDouble() - 0.5;
+                        double py = Y0 + y + random.nextDouble() - 0.5;
+                        writer.addPoint(record(px, py, plane(px, py)));
+                        if (random.nextInt(10) == 0) {
+                            double vx = X0 + x + random.nextDouble() - 0.5;
+                            double vy = Y0 + y + random.nextDouble() - 0.5;
+                            writer.addPoint(record(vx, vy, plane(vx, vy) + 15 + random.nextDouble() * 10));
+                        }
+                    }
+                }
+            }
+
+            int cells = (int) (SIZE / RES);
+            RegionMap region = CoverageUtilities.makeRegionParamsMap(Y0 + SIZE, Y0, X0, X0 + SIZE, RES, RES, cells, cells);
+            File templateFile = new File(folder, "template.tiff");
+            OmsRasterWriter.writeRaster(templateFile.getAbsolutePath(),
+                    CoverageUtilities.buildCoverage("template", new double[cells][cells], region, crs, true));
+
+            GridCoverage2D singleDem = runFilter(lasFile, templateFile, new File(folder, "single.tiff"), null);
+            GridCoverage2D tilesDem = runFilter(lasFile, templateFile, new File(folder, "tiles.tiff"), 60.0);
+
+            Raster singleData = singleDem.getRenderedImage().getData();
+            Raster tilesData = tilesDem.getRenderedImage().getData();
+            // the border of the area is outside the hull of the seeds
+            int margin = (int) Math.ceil(SEC_RES / RES) + 1;
+            for( int r = margin; r < cells - margin; r++ ) {
+                for( int c = margin; c < cells - margin; c++ ) {
+                    double x = X0 + (c + 0.5) * RES;
+                    double y = Y0 + SIZE - (r + 0.5) * RES;
+                    double single = singleData.getSampleDouble(c, r, 0);
+                    double tiles = tilesData.getSampleDouble(c, r, 0);
+                    assertFalse(c + "/" + r, HMConstants.isNovalue(single));
+                    assertFalse(c + "/" + r, HMConstants.isNovalue(tiles));
+                    assertEquals(c + "/" + r, plane(x, y), single, 0.01);
+                    assertEquals(c + "/" + r, single, tiles, 0.01);
+                }
+            }
+        } finally {
+            FileUtilities.deleteFileOrDir(folder);
+        }
+    }
+
+    private GridCoverage2D runFilter( File lasFile, File templateFile, File demFile, Double tileSize ) throws Exception {
+        AdaptiveTinFilter filter = new AdaptiveTinFilter();
+        filter.pm = new DummyProgressMonitor();
+        filter.inLas = lasFile.getAbsolutePath();
+        filter.inTemplate = templateFile.getAbsolutePath();
+        filter.outDem = demFile.getAbsolutePath();
+        filter.pSecRes = SEC_RES;
+        filter.pTileSize = tileSize;
+        filter.process();
+        return OmsRasterReader.readRaster(demFile.getAbsolutePath());
+    }
+
+    private static double plane( double x, double y ) {
+        return 100 + 0.05 * (x - X0) + 0.02 * (y - Y0);
+    }
+
+    private static LasRecord record( double x, double y, double z ) {
+        LasRecord dot = new LasRecord();
+        dot.x = x;
+        dot.y = y;
+        dot.z = z;
+        dot.intensity = 100;
+        dot.classification = 1;
+        dot.returnNumber = 1;
+        dot.numberOfReturns = 1;
+        return dot;
+    }
+
+}
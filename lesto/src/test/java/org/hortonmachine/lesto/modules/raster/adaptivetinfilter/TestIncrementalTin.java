@@ -0,0 +1,133 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.lesto.modules.raster.adaptivetinfilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.locationtech.jts.geom.Coordinate;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the {@link IncrementalTin}.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestIncrementalTin extends TestCase {
+
+    private static final double X0 = 650000;
+    private static final double Y0 = 5100000;
+
+    public void testRegularGrid() throws Exception {
+        // the cocircular points of a grid are the worst case for the predicates
+        List<Coordinate> sites = new ArrayList<>();
+        for( int i = 0; i < 400; i++ ) {
+            sites.add(new Coordinate(X0 + i % 20, Y0 + i / 20, i));
+        }
+        IncrementalTin tin = new IncrementalTin(sites);
+
+        assertEquals(400, tin.getVertexesNum());
+        assertEquals(2 * 19 * 19, tin.getTriangleIndexes().length);
+        assertEquals(19.0 * 19.0, getArea(tin), 1E-9);
+        checkDelaunay(tin);
+    }
+
+    public void testRandomInsertAndBuckets() throws Exception {
+        Random random = new Random(3);
+        // a border of vertexes makes the hull cover all the points
+        List<Coordinate> sites = new ArrayList<>();
+        for( int i = 0; i < 10; i++ ) {
+            sites.add(new Coordinate(X0 + i * 10, Y0, 0));
+            sites.add(new Coordinate(X0 + 100, Y0 + i * 10, 0));
+            sites.add(new Coordinate(X0 + 100 - i * 10, Y0 + 100, 0));
+            sites.add(new Coordinate(X0, Y0 + 100 - i * 10, 0));
+        }
+        for( int i = 40; i < 300; i++ ) {
+            sites.add(new Coordinate(X0 + random.nextDouble() * 100, Y0 + random.nextDouble() * 100, i));
+        }
+        IncrementalTin tin = new IncrementalTin(sites.subList(0, 150));
+        for( int i = 0; i < 2000; i++ ) {
+            tin.addPoint(new Coordinate(X0 + random.nextDouble() * 100, Y0 + random.nextDouble() * 100), -1);
+        }
+        tin.clearDirty();
+        for( Coordinate site : sites.subList(150, 300) ) {
+            assertTrue(tin.insert(site));
+        }
+        // a duplicated vertex is not inserted
+        assertFalse(tin.insert(new Coordinate(sites.get(0))));
+
+        assertEquals(300, tin.getVertexesNum());
+        checkDelaunay(tin);
+
+        // all the points are in the bucket of the triangle that contains them
+        int pointsInBuckets = 0;
+        boolean someDirty = false;
+        for( int t : tin.getTriangleIndexes() ) {
+            Coordinate[] c = tin.getTriangleCoordinates(t);
+            for( int p : tin.getBucket(t) ) {
+                Coordinate q = tin.getPoint(p);
+                for( int i = 0; i < 3; i++ ) {
+                    Coordinate a = c[(i + 1) % 3];
+                    Coordinate b = c[(i + 2) % 3];
+                    assertTrue(IncrementalTin.orient(a.x - X0, a.y - Y0, b.x - X0, b.y - Y0, q.x - X0, q.y - Y0) >= 0);
+                }
+                pointsInBuckets++;
+            }
+            someDirty = someDirty || tin.isDirty(t);
+        }
+        assertTrue(someDirty);
+        assertEquals(tin.getPointsNum(), pointsInBuckets);
+        assertEquals(tin.getPointsNum(), tin.getPointIndexes().length);
+
+        int[] pointIndexes = tin.getPointIndexes();
+        tin.removePoint(pointIndexes[0]);
+        assertEquals(pointIndexes.length - 1, tin.getPointsNum());
+        tin.clearPoints();
+        assertEquals(0, tin.getPointsNum());
+    }
+
+    private double getArea( IncrementalTin tin ) {
+        double area = 0;
+        for( int t : tin.getTriangleIndexes() ) {
+            Coordinate[] c = tin.getTriangleCoordinates(t);
+            area += ((c[1].x - c[0].x) * (c[2].y - c[0].y) - (c[1].y - c[0].y) * (c[2].x - c[0].x)) / 2;
+        }
+        return area;
+    }
+
+    /**
+     * Check that the triangles are counterclockwise and have no vertex inside their circumcircle.
+     */
+    private void checkDelaunay( IncrementalTin tin ) {
+        List<Coordinate> vertexes = tin.getVertexes();
+        for( int t : tin.getTriangleIndexes() ) {
+            Coordinate[] c = tin.getTriangleCoordinates(t);
+            assertTrue(IncrementalTin.orient(c[0].x - X0, c[0].y - Y0, c[1].x - X0, c[1].y - Y0, c[2].x - X0, c[2].y - Y0) > 0);
+            for( Coordinate v : vertexes ) {
+                if (v == c[0] || v == c[1] || v == c[2]) {
+                    continue;
+                }
+                assertTrue(IncrementalTin.inCircle(c[0].x - X0, c[0].y - Y0, c[1].x - X0, c[1].y - Y0, c[2].x - X0,
+                        c[2].y - Y0, v.x - X0, v.y - Y0) <= 0);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of HortonMachine (http://www.hortonmachine.org)
+ * (C) HydroloGIS - www.hydrologis.com
+ *
+ * The HortonMachine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.hortonmachine.lesto.modules.vegetation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.hortonmachine.gears.io.las.core.LasRecord;
+import org.hortonmachine.gears.io.las.utils.LasUtils;
+import org.hortonmachine.gears.libs.monitor.DummyProgressMonitor;
+import org.locationtech.jts.geom.Point;
+
+import junit.framework.TestCase;
+
+/**
+ * Test {@link OmsPointCloudMaximaFinder} against the brute force search of the maxima.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TestPointCloudMaximaFinder extends TestCase {
+
+    public void testDynamicRadius() throws Exception {
+        List<LasRecord> cloud = createForestCloud(3000, 50);
+        checkSameMaxima(cloud, 5.0, true);
+        checkSameMaxima(cloud, 1.5, true);
+    }
+
+    public void testFixedRadius() throws Exception {
+        List<LasRecord> cloud = createForestCloud(3000, 50);
+        checkSameMaxima(cloud, 3.0, false);
+        checkSameMaxima(cloud, 0.5, false);
+        checkSameMaxima(cloud, Double.POSITIVE_INFINITY, false);
+    }
+
+    public void testNegativeRadiusAndNovalues() throws Exception {
+        List<LasRecord> cloud = createForestCloud(500, 20);
+        // a point without elevation and one without position
+        cloud.get(10).groundElevation = Double.NaN;
+        cloud.get(20).x = Double.NaN;
+        checkSameMaxima(cloud, -1.0, true);
+        checkSameMaxima(cloud, 4.0, true);
+        checkSameMaxima(cloud, -1.0, false);
+    }
+
+    private void checkSameMaxima( List<LasRecord> cloud, double maxRadius, boolean doDynamicRadius ) throws Exception {
+        List<String> expected = new ArrayList<>();
+        for( LasRecord currentDot : cloud ) {
+            if (isBruteForceMaxima(cloud, currentDot, maxRadius, doDynamicRadius)) {
+                expected.add(currentDot.x + " " + currentDot.y);
+            }
+        }
+        Collections.sort(expected);
+
+        DefaultFeatureCollection outTops = new DefaultFeatureCollection();
+        OmsPointCloudMaximaFinder.doProcess(cloud, maxRadius, doDynamicRadius, null, outTops,
+                LasUtils.getLasFeatureBuilder(DefaultGeographicCRS.WGS84), new AtomicInteger(), new DummyProgressMonitor());
+        List<String> tops = new ArrayList<>();
+        try (SimpleFeatureIterator iterator = outTops.features()) {
+            while( iterator.hasNext() ) {
+                Point point = (Point) iterator.next().getDefaultGeometry();
+                tops.add(point.getX() + " " + point.getY());
+            }
+        }
+        Collections.sort(tops);
+
+        assertTrue(expected.size() > 0);
+        assertEquals(expected, tops);
+    }
+
+    /**
+     * The search of the maxima on all the points of the tile.
+     */
+    private boolean isBruteForceMaxima( List<LasRecord> cloud, LasRecord currentDot, double pMaxRadius,
+            boolean doDynamicRadius ) {
+        for( LasRecord tmpDot : cloud ) {
+            double distance = LasUtils.distance(currentDot, tmpDot);
+            double maxRadius = OmsPointCloudMaximaFinder.getMaxRadius(currentDot.groundElevation, pMaxRadius, doDynamicRadius);
+            if (distance > maxRadius) {
+                continue;
+            }
+            if (tmpDot.groundElevation > currentDot.groundElevation) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A cloud of randomly placed crowns with ground points in between.
+     */
+    private List<LasRecord> createForestCloud( int pointsNum, int treesNum ) {
+        Random random = new Random(1234);
+        double side = 60.0;
+        double[][] trees = new double[treesNum][];
+        for( int i = 0; i < treesNum; i++ ) {
+            trees[i] = new double[]{random.nextDouble() * side, random.nextDouble() * side, 8 + random.nextDouble() * 20,
+                    1 + random.nextDouble() * 3};
+        }
+        List<LasRecord> cloud = new ArrayList<>();
+        for( int i = 0; i < pointsNum; i++ ) {
+            LasRecord dot = new LasRecord();
+            dot.x = random.nextDouble() * side;
+            dot.y = random.nextDouble() * side;
+            double elevation = 0;
+            for( double[] tree : trees ) {
+                double distance = Math.hypot(dot.x - tree[0], dot.y - tree[1]);
+                if (distance < tree[3]) {
+                    elevation = Math.max(elevation, tree[2] * (1 - Math.pow(distance / tree[3], 2)));
+                }
+            }
+            // round to have some equal elevations
+            dot.groundElevation = Math.round(elevation * 10) / 10.0;
+            dot.intensity = 100;
+            dot.classification = 1;
+            dot.returnNumber = 1;
+            dot.numberOfReturns = 1;
+            cloud.add(dot);
+        }
+        return cloud;
+    }
+
+}
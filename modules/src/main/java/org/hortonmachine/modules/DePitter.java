@@ -17,6 +17,9 @@
  */
 package org.hortonmachine.modules;
 
+import static org.hortonmachine.gears.libs.modules.Variables.PITS_CLASSIC;
+import static org.hortonmachine.gears.libs.modules.Variables.PITS_PRIORITY_FLOOD;
+import static org.hortonmachine.gears.libs.modules.Variables.PITS_PRIORITY_FLOOD_TILED;
 import static org.hortonmachine.hmachine.modules.demmanipulation.pitfiller.OmsDePitter.OMSDEPITTER_AUTHORCONTACTS;
 import static org.hortonmachine.hmachine.modules.demmanipulation.pitfiller.OmsDePitter.OMSDEPITTER_AUTHORNAMES;
 import static org.hortonmachine.hmachine.modules.demmanipulation.pitfiller.OmsDePitter.OMSDEPITTER_DESCRIPTION;
@@ -28,6 +31,7 @@ import static org.hortonmachine.hmachine.modules.demmanipulation.pitfiller.OmsDe
 import static org.hortonmachine.hmachine.modules.demmanipulation.pitfiller.OmsDePitter.OMSDEPITTER_inElev_DESCRIPTION;
 import static org.hortonmachine.hmachine.modules.demmanipulation.pitfiller.OmsDePitter.OMSDEPITTER_outFlow_DESCRIPTION;
 import static org.hortonmachine.hmachine.modules.demmanipulation.pitfiller.OmsDePitter.OMSDEPITTER_outPit_DESCRIPTION;
+import static org.hortonmachine.hmachine.modules.demmanipulation.pitfiller.OmsDePitter.OMSDEPITTER_pMode_DESCRIPTION;
 
 import org.hortonmachine.gears.libs.modules.HMConstants;
 import org.hortonmachine.gears.libs.modules.HMModel;
@@ -57,6 +61,11 @@ public class DePitter extends HMModel {
     @In
     public String inElev;
 
+    @Description(OMSDEPITTER_pMode_DESCRIPTION)
+    @UI("combo:" + PITS_CLASSIC + "," + PITS_PRIORITY_FLOOD + "," + PITS_PRIORITY_FLOOD_TILED)
+    @In
+    public String pMode = PITS_CLASSIC;
+
     @Description(OMSDEPITTER_outPit_DESCRIPTION)
     @UI(HMConstants.FILEOUT_UI_HINT)
     @In
@@ -77,6 +86,7 @@ public class DePitter extends HMModel {
         pitfiller.doProcess = doProcess;
         pitfiller.doReset = doReset;
         pitfiller.doParallel = doParallel;
+        pitfiller.pMode = pMode;
         pitfiller.doFlow = outFlow != null;
         pitfiller.process();
         if (outPit != null)
@@ -47,6 +47,7 @@ import static org.hortonmachine.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_
 import static org.hortonmachine.gears.i18n.GearsMessages.OMSSURFACEINTERPOLATOR_STATUS;
 import static org.hortonmachine.gears.libs.modules.Variables.IDW;
 import static org.hortonmachine.gears.libs.modules.Variables.TPS;
+import static org.hortonmachine.gears.libs.modules.Variables.TPS_BLOCKS;
 
 import org.geotools.coverage.grid.GridGeometry2D;
 import org.hortonmachine.gears.io.gridgeometryreader.OmsGridGeometryReader;
@@ -83,7 +84,7 @@ public class SurfaceInterpolator extends HMModel {
     public String fCat;
 
     @Description(OMSSURFACEINTERPOLATOR_P_MODE_DESCRIPTION)
-    @UI("combo:" + TPS + "," + IDW)
+    @UI("combo:" + TPS + "," + TPS_BLOCKS + "," + IDW)
     @In
     public String pMode = "TPS";
 
@@ -62,6 +62,14 @@ public class VectorOverlayOperators extends HMModel {
     @In
     public String pType = INTERSECTION;
 
+    @Description(OMSVECTOROVERLAYOPERATORS_pTileSize_DESCRIPTION)
+    @In
+    public Double pTileSize = null;
+
+    @Description(OMSVECTOROVERLAYOPERATORS_pMaxThreads_DESCRIPTION)
+    @In
+    public int pMaxThreads = getDefaultThreadsNum();
+
     @Description(OMSVECTOROVERLAYOPERATORS_outMap_DESCRIPTION)
     @UI(HMConstants.FILEOUT_UI_HINT)
     @In
@@ -73,6 +81,8 @@ public class VectorOverlayOperators extends HMModel {
         vectoroverlayoperators.inMap1 = getVector(inMap1);
         vectoroverlayoperators.inMap2 = getVector(inMap2);
         vectoroverlayoperators.pType = pType;
+        vectoroverlayoperators.pTileSize = pTileSize;
+        vectoroverlayoperators.pMaxThreads = pMaxThreads;
         vectoroverlayoperators.pm = pm;
         vectoroverlayoperators.doProcess = doProcess;
         vectoroverlayoperators.doReset = doReset;
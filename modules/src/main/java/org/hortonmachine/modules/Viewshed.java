@@ -64,6 +64,19 @@ public class Viewshed extends HMModel {
     @In
     public double pHeight = 2.0;
 
+    @Description(DESCR_pMaxDistance)
+    @Unit("m")
+    @In
+    public double pMaxDistance = -1;
+
+    @Description(DESCR_doXdraw)
+    @In
+    public boolean doXdraw = false;
+
+    @Description(DESCR_pMaxThreads)
+    @In
+    public int pMaxThreads = getDefaultThreadsNum();
+
     @Description(DESCR_outViewshed)
     @UI(HMConstants.FILEOUT_UI_HINT)
     @In
@@ -77,6 +90,9 @@ public class Viewshed extends HMModel {
         vs.inViewPoints = getVector(inViewPoints);
         vs.pField = pField;
         vs.pHeight = pHeight;
+        vs.pMaxDistance = pMaxDistance;
+        vs.doXdraw = doXdraw;
+        vs.pMaxThreads = pMaxThreads;
         vs.process();
         dumpRaster(vs.outViewshed, outViewshed);
     }